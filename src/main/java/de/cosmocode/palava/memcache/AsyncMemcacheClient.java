@@ -0,0 +1,321 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.transcoders.Transcoder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * An asynchronous facade of a {@link MemcachedClientIF} whose operations return
+ * {@link ListenableFuture}s, allowing callers to compose results using
+ * {@link com.google.common.util.concurrent.Futures} instead of blocking. Results are taken
+ * from the completion callbacks of the underlying operations, see {@link CompletionListeners},
+ * and handed over by a small pool of completer threads shared by all clients. Completer threads
+ * never wait for pending operations, a slow server only delays its own results.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+public final class AsyncMemcacheClient {
+
+    private final MemcachedClientIF client;
+
+    private final Executor completer;
+
+    private final long timeout;
+
+    AsyncMemcacheClient(MemcachedClientIF client, Executor completer, long timeout) {
+        this.client = Preconditions.checkNotNull(client, "Client");
+        this.completer = Preconditions.checkNotNull(completer, "Completer");
+        this.timeout = timeout;
+    }
+
+    private <V> ListenableFuture<V> listen(CompletionListeners.Capture capture, final Future<V> future) {
+        final SettableFuture<V> result = SettableFuture.create();
+        result.addListener(new Runnable() {
+
+            @Override
+            public void run() {
+                if (result.isCancelled()) {
+                    future.cancel(false);
+                }
+            }
+
+        }, MoreExecutors.sameThreadExecutor());
+        capture.listen(future, new Runnable() {
+
+            @Override
+            public void run() {
+                // keeps the listeners of callers off the I/O thread
+                completer.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        complete(future, result);
+                    }
+
+                });
+            }
+
+        });
+        CompletionListeners.expire(future, timeout, new Runnable() {
+
+            @Override
+            public void run() {
+                result.setException(new OperationTimeoutException("Timeout waiting for value"));
+                future.cancel(false);
+            }
+
+        });
+        return result;
+    }
+
+    private static <V> void complete(Future<V> future, SettableFuture<V> result) {
+        try {
+            result.set(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.setException(e);
+        } catch (ExecutionException e) {
+            result.setException(e.getCause());
+        } catch (CancellationException e) {
+            result.cancel(false);
+        } catch (RuntimeException e) {
+            result.setException(e);
+        }
+    }
+
+    /**
+     * Gets the value of the given key.
+     *
+     * @param key the key
+     * @return a future holding the value or null if the key is missing
+     */
+    public ListenableFuture<Object> get(String key) {
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Object> future;
+        try {
+            future = client.asyncGet(key);
+        } finally {
+            capture.stop();
+        }
+        return listen(capture, future);
+    }
+
+    /**
+     * Gets the value of the given key.
+     *
+     * @param <T> the generic value type
+     * @param key the key
+     * @param transcoder the transcoder used to decode the value
+     * @return a future holding the value or null if the key is missing
+     */
+    public <T> ListenableFuture<T> get(String key, Transcoder<T> transcoder) {
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<T> future;
+        try {
+            future = client.asyncGet(key, transcoder);
+        } finally {
+            capture.stop();
+        }
+        return listen(capture, future);
+    }
+
+    /**
+     * Gets the value of the given key with its cas identifier.
+     *
+     * @param key the key
+     * @return a future holding the value or null if the key is missing
+     */
+    public ListenableFuture<CASValue<Object>> gets(String key) {
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<CASValue<Object>> future;
+        try {
+            future = client.asyncGets(key);
+        } finally {
+            capture.stop();
+        }
+        return listen(capture, future);
+    }
+
+    /**
+     * Gets the values of the given keys.
+     *
+     * @param keys the keys
+     * @return a future holding all found keys mapped to their values
+     */
+    public ListenableFuture<Map<String, Object>> getBulk(Collection<String> keys) {
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Map<String, Object>> future;
+        try {
+            future = client.asyncGetBulk(keys);
+        } finally {
+            capture.stop();
+        }
+        return listen(capture, future);
+    }
+
+    /**
+     * Sets the value of the given key.
+     *
+     * @param key the key
+     * @param exp the expiration
+     * @param value the value
+     * @return a future holding the success of the operation
+     */
+    public ListenableFuture<Boolean> set(String key, int exp, Object value) {
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.set(key, exp, value);
+        } finally {
+            capture.stop();
+        }
+        return listen(capture, future);
+    }
+
+    /**
+     * Sets the value of the given key if it is missing.
+     *
+     * @param key the key
+     * @param exp the expiration
+     * @param value the value
+     * @return a future holding the success of the operation
+     */
+    public ListenableFuture<Boolean> add(String key, int exp, Object value) {
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.add(key, exp, value);
+        } finally {
+            capture.stop();
+        }
+        return listen(capture, future);
+    }
+
+    /**
+     * Sets the value of the given key if it exists.
+     *
+     * @param key the key
+     * @param exp the expiration
+     * @param value the value
+     * @return a future holding the success of the operation
+     */
+    public ListenableFuture<Boolean> replace(String key, int exp, Object value) {
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.replace(key, exp, value);
+        } finally {
+            capture.stop();
+        }
+        return listen(capture, future);
+    }
+
+    /**
+     * Sets the value of the given key if it was not modified since it was read.
+     *
+     * @param key the key
+     * @param casId the cas identifier of the read value
+     * @param value the value
+     * @return a future holding the outcome of the operation
+     */
+    public ListenableFuture<CASResponse> cas(String key, long casId, Object value) {
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<CASResponse> future;
+        try {
+            future = client.asyncCAS(key, casId, value);
+        } finally {
+            capture.stop();
+        }
+        return listen(capture, future);
+    }
+
+    /**
+     * Increments the value of the given key.
+     *
+     * @param key the key
+     * @param by the delta
+     * @return a future holding the new value or -1 if the key is missing
+     */
+    public ListenableFuture<Long> incr(String key, int by) {
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Long> future;
+        try {
+            future = client.asyncIncr(key, by);
+        } finally {
+            capture.stop();
+        }
+        return listen(capture, future);
+    }
+
+    /**
+     * Decrements the value of the given key.
+     *
+     * @param key the key
+     * @param by the delta
+     * @return a future holding the new value or -1 if the key is missing
+     */
+    public ListenableFuture<Long> decr(String key, int by) {
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Long> future;
+        try {
+            future = client.asyncDecr(key, by);
+        } finally {
+            capture.stop();
+        }
+        return listen(capture, future);
+    }
+
+    /**
+     * Deletes the given key.
+     *
+     * @param key the key
+     * @return a future holding the success of the operation
+     */
+    public ListenableFuture<Boolean> delete(String key) {
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.delete(key);
+        } finally {
+            capture.stop();
+        }
+        return listen(capture, future);
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncMemcacheClient [client=" + client + "]";
+    }
+
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import net.spy.memcached.MemcachedClientIF;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+import de.cosmocode.palava.ipc.Current;
+
+/**
+ * Provider for {@link AsyncMemcacheClient}s on top of the current {@link MemcachedClientIF}.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class AsyncMemcacheClientProvider implements Provider<AsyncMemcacheClient> {
+
+    private final Provider<MemcachedClientIF> currentClient;
+
+    private final MemcacheClientProvider provider;
+
+    @Inject
+    AsyncMemcacheClientProvider(@Current Provider<MemcachedClientIF> currentClient, MemcacheClientProvider provider) {
+        this.currentClient = Preconditions.checkNotNull(currentClient, "CurrentClient");
+        this.provider = Preconditions.checkNotNull(provider, "Provider");
+    }
+
+    @Override
+    public AsyncMemcacheClient get() {
+        return provider.newAsyncClient(currentClient.get());
+    }
+
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.OperationTimeoutException;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link MemcachedClientIF} decorator which routes single key gets
+ * using the default transcoder through a shared {@link MemcacheGetBatcher}.
+ * The batched gets are sent using the decorated client, or the pooled client
+ * of a lease, so they see the writes issued using this client before.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class BatchingMemcachedClient extends ForwardingMemcachedClient {
+
+    private final MemcachedClientIF client;
+
+    private final MemcachedClientIF target;
+
+    private final MemcacheGetBatcher batcher;
+
+    private final long timeout;
+
+    BatchingMemcachedClient(MemcachedClientIF client, MemcacheGetBatcher batcher, long timeout) {
+        this.client = Preconditions.checkNotNull(client, "Client");
+        // leases of the same pooled client share its connections and may share batches
+        this.target = client instanceof MemcachedClientLease ?
+            MemcachedClientLease.class.cast(client).delegate() : client;
+        this.batcher = Preconditions.checkNotNull(batcher, "Batcher");
+        this.timeout = timeout;
+    }
+
+    @Override
+    protected MemcachedClientIF delegate() {
+        return client;
+    }
+
+    @Override
+    public Future<Object> asyncGet(String key) {
+        return batcher.get(target, key);
+    }
+
+    @Override
+    public Object get(String key) throws OperationTimeoutException {
+        final Future<Object> future = batcher.get(target, key);
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for value", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Exception waiting for value", e);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new OperationTimeoutException("Timeout waiting for value", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BatchingMemcachedClient [client=" + client + ", batcher=" + batcher + "]";
+    }
+
+}
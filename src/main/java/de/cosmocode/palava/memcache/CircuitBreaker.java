@@ -0,0 +1,319 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.ConnectionObserver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Per server circuit breakers. A circuit opens once at least {@value #MIN_CALLS} calls of
+ * the current window were recorded and the ratio of failed or slow calls reaches the
+ * failure rate, or when the connection to the server is lost. Calls to an open server
+ * fail fast. After the open time a few probe calls are let through; the circuit closes
+ * if all of them succeed and opens again otherwise.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class CircuitBreaker implements ConnectionObserver {
+
+    static final int MIN_CALLS = 10;
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * The state of a single circuit.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    enum State {
+
+        CLOSED,
+
+        OPEN,
+
+        HALF_OPEN;
+
+    }
+
+    private final ConcurrentMap<SocketAddress, Circuit> circuits = Maps.newConcurrentMap();
+
+    private final StripedCounter rejected = new StripedCounter();
+
+    private final double failureRate;
+
+    private final long slowCall;
+
+    private final int window;
+
+    private final long openTime;
+
+    private final int probes;
+
+    /**
+     * Creates a new circuit breaker.
+     *
+     * @param failureRate the ratio of failed calls which opens a circuit, e.g. 0.5
+     * @param slowCall the latency in milliseconds above which a call counts as failed
+     * @param window the number of calls after which the counts are reset
+     * @param openTime the time in milliseconds a circuit stays open before probing
+     * @param probes the number of successful probes which close a circuit
+     */
+    CircuitBreaker(double failureRate, long slowCall, int window, long openTime, int probes) {
+        Preconditions.checkArgument(failureRate > 0.0 && failureRate <= 1.0,
+            "Failure rate must be a ratio, but was %s", failureRate);
+        Preconditions.checkArgument(slowCall > 0, "Slow call must be positive, but was %s", slowCall);
+        Preconditions.checkArgument(window >= MIN_CALLS, "Window must be at least %s, but was %s", MIN_CALLS, window);
+        Preconditions.checkArgument(openTime >= 0, "Open time must not be negative, but was %s", openTime);
+        Preconditions.checkArgument(probes > 0, "Probes must be positive, but was %s", probes);
+        this.failureRate = failureRate;
+        this.slowCall = TimeUnit.MILLISECONDS.toNanos(slowCall);
+        this.window = window;
+        this.openTime = TimeUnit.MILLISECONDS.toNanos(openTime);
+        this.probes = probes;
+    }
+
+    private Circuit circuitOf(SocketAddress address) {
+        final Circuit circuit = circuits.get(address);
+        if (circuit == null) {
+            final Circuit created = new Circuit(address);
+            final Circuit present = circuits.putIfAbsent(address, created);
+            return present == null ? created : present;
+        } else {
+            return circuit;
+        }
+    }
+
+    /**
+     * Provides the latency above which a call counts as failed.
+     *
+     * @return the latency in milliseconds
+     */
+    long getSlowCall() {
+        return TimeUnit.NANOSECONDS.toMillis(slowCall);
+    }
+
+    /**
+     * Decides whether a call to the given server may proceed. Rejected calls are counted.
+     *
+     * @param address the server address
+     * @return true if the call may proceed, false if it should fail fast
+     */
+    boolean allow(SocketAddress address) {
+        if (circuitOf(address).allow()) {
+            return true;
+        } else {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Records the outcome of a call which was allowed.
+     *
+     * @param address the server address
+     * @param start the start of the call as returned by {@link System#nanoTime()}
+     * @param success whether the call succeeded
+     */
+    void record(SocketAddress address, long start, boolean success) {
+        circuitOf(address).record(success && System.nanoTime() - start <= slowCall);
+    }
+
+    /**
+     * Opens the circuit of the given server.
+     *
+     * @param address the server address
+     */
+    void open(SocketAddress address) {
+        circuitOf(address).open();
+    }
+
+    @Override
+    public void connectionLost(SocketAddress address) {
+        LOG.info("Lost connection to {}, opening circuit", address);
+        open(address);
+    }
+
+    @Override
+    public void connectionEstablished(SocketAddress address, int reconnectCount) {
+        if (reconnectCount > 0) {
+            circuitOf(address).probe();
+        }
+    }
+
+    State getState(SocketAddress address) {
+        final Circuit circuit = circuits.get(address);
+        return circuit == null ? State.CLOSED : circuit.state;
+    }
+
+    /**
+     * Provides the servers whose circuits are not closed.
+     *
+     * @return the addresses of open and half open circuits
+     */
+    Set<SocketAddress> getOpen() {
+        final Set<SocketAddress> open = Sets.newHashSet();
+        for (Circuit circuit : circuits.values()) {
+            if (circuit.state != State.CLOSED) {
+                open.add(circuit.address);
+            }
+        }
+        return open;
+    }
+
+    Map<String, String> getStates() {
+        final Map<String, String> states = Maps.newTreeMap();
+        for (Circuit circuit : circuits.values()) {
+            final String name = circuit.address.toString();
+            states.put(name.startsWith("/") ? name.substring(1) : name, circuit.state.name());
+        }
+        return states;
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    void reset() {
+        rejected.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker [failureRate=" + failureRate + ", window=" + window + ", probes=" + probes + "]";
+    }
+
+    /**
+     * The circuit of a single server. Closed circuits count calls without locking,
+     * all state transitions are synchronized.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private final class Circuit {
+
+        private final SocketAddress address;
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private volatile State state = State.CLOSED;
+
+        private long openedAt;
+
+        private int permits;
+
+        private int successes;
+
+        Circuit(SocketAddress address) {
+            this.address = address;
+        }
+
+        boolean allow() {
+            if (state == State.CLOSED) {
+                return true;
+            }
+            synchronized (this) {
+                if (state == State.OPEN) {
+                    if (System.nanoTime() - openedAt < openTime) {
+                        return false;
+                    }
+                    halfOpen();
+                }
+                if (state == State.HALF_OPEN) {
+                    if (permits == 0 && System.nanoTime() - openedAt >= openTime) {
+                        // probes whose outcome was never recorded must not block recovery
+                        halfOpen();
+                    } else if (permits == 0) {
+                        return false;
+                    }
+                    permits--;
+                }
+                return true;
+            }
+        }
+
+        void record(boolean success) {
+            if (state == State.CLOSED) {
+                final int count = calls.incrementAndGet();
+                final int failed = success ? failures.get() : failures.incrementAndGet();
+                if (!success && count >= MIN_CALLS && failed >= failureRate * count) {
+                    synchronized (this) {
+                        if (state == State.CLOSED) {
+                            LOG.warn("{} of {} calls to {} failed, opening circuit",
+                                new Object[] {failed, count, address});
+                            open();
+                        }
+                    }
+                } else if (count >= window) {
+                    calls.set(0);
+                    failures.set(0);
+                }
+            } else {
+                synchronized (this) {
+                    if (state != State.HALF_OPEN) {
+                        return;
+                    } else if (success && ++successes >= probes) {
+                        LOG.info("Probes to {} succeeded, closing circuit", address);
+                        calls.set(0);
+                        failures.set(0);
+                        state = State.CLOSED;
+                    } else if (!success) {
+                        LOG.info("Probe to {} failed, opening circuit again", address);
+                        open();
+                    }
+                }
+            }
+        }
+
+        synchronized void open() {
+            openedAt = System.nanoTime();
+            state = State.OPEN;
+        }
+
+        synchronized void probe() {
+            if (state == State.OPEN) {
+                halfOpen();
+            }
+        }
+
+        private void halfOpen() {
+            openedAt = System.nanoTime();
+            permits = probes;
+            successes = 0;
+            state = State.HALF_OPEN;
+        }
+
+    }
+
+}
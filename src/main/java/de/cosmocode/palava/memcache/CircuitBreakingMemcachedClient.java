@@ -0,0 +1,703 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.transcoders.Transcoder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * A {@link MemcachedClientIF} which guards every server with the {@link CircuitBreaker}.
+ * Calls to servers with an open circuit fail fast and behave like a cache miss: reads
+ * return null, writes return false and increments return -1. Servers with open circuits
+ * are reported as unavailable. The futures of rejected asynchronous calls are
+ * {@link RejectedFuture}s, which {@link ReplicatedMemcachedClient} skips in favour of
+ * other replicas.
+ *
+ * <p>
+ *   The outcome of asynchronous calls is recorded when their operations complete, no matter
+ *   whether their future is queried. Calls which didn't complete within the slow call
+ *   threshold are recorded as failed at that moment.
+ * </p>
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class CircuitBreakingMemcachedClient extends ForwardingMemcachedClient {
+
+    private final MemcachedClientIF client;
+
+    private final CircuitBreaker breaker;
+
+    private final NodeLocator locator;
+
+    private final Set<SocketAddress> servers;
+
+    CircuitBreakingMemcachedClient(MemcachedClientIF client, CircuitBreaker breaker) {
+        this.client = Preconditions.checkNotNull(client, "Client");
+        this.breaker = Preconditions.checkNotNull(breaker, "Breaker");
+        // the locator of a spymemcached client is copied on every call
+        this.locator = client.getNodeLocator();
+        final ImmutableSet.Builder<SocketAddress> builder = ImmutableSet.builder();
+        for (MemcachedNode node : locator.getAll()) {
+            builder.add(node.getSocketAddress());
+        }
+        this.servers = builder.build();
+        for (SocketAddress address : client.getUnavailableServers()) {
+            breaker.open(address);
+        }
+    }
+
+    @Override
+    protected MemcachedClientIF delegate() {
+        return client;
+    }
+
+    private SocketAddress addressOf(String key) {
+        return locator.getPrimary(key).getSocketAddress();
+    }
+
+    private <V> Future<V> track(Collection<SocketAddress> addresses, long start, CompletionListeners.Capture capture,
+        Future<V> future) {
+        capture.stop();
+        final Tracker tracker = new Tracker(addresses, start, future);
+        capture.listen(future, tracker);
+        CompletionListeners.expire(future, breaker.getSlowCall(), new Runnable() {
+
+            @Override
+            public void run() {
+                tracker.record(false);
+            }
+
+        });
+        return future;
+    }
+
+    private static <V> Future<V> reject(V miss) {
+        return new RejectedFuture<V>(miss);
+    }
+
+    @Override
+    public Collection<SocketAddress> getAvailableServers() {
+        final List<SocketAddress> available = Lists.newArrayList(client.getAvailableServers());
+        available.removeAll(breaker.getOpen());
+        return available;
+    }
+
+    @Override
+    public Collection<SocketAddress> getUnavailableServers() {
+        final Set<SocketAddress> unavailable = Sets.newLinkedHashSet(client.getUnavailableServers());
+        for (SocketAddress address : breaker.getOpen()) {
+            if (servers.contains(address)) {
+                unavailable.add(address);
+            }
+        }
+        return unavailable;
+    }
+
+    @Override
+    public Future<Boolean> append(long cas, String key, Object value) {
+        return append(cas, key, value, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<Boolean> append(long cas, String key, T value, Transcoder<T> tc) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return reject(Boolean.FALSE);
+        }
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        try {
+            return track(Collections.singletonList(address), start, capture, client.append(cas, key, value, tc));
+        } catch (RuntimeException e) {
+            breaker.record(address, start, false);
+            throw e;
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Override
+    public Future<Boolean> prepend(long cas, String key, Object value) {
+        return prepend(cas, key, value, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<Boolean> prepend(long cas, String key, T value, Transcoder<T> tc) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return reject(Boolean.FALSE);
+        }
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        try {
+            return track(Collections.singletonList(address), start, capture, client.prepend(cas, key, value, tc));
+        } catch (RuntimeException e) {
+            breaker.record(address, start, false);
+            throw e;
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Override
+    public <T> Future<CASResponse> asyncCAS(String key, long casId, T value, Transcoder<T> tc) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return reject(CASResponse.NOT_FOUND);
+        }
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        try {
+            return track(Collections.singletonList(address), start, capture, client.asyncCAS(key, casId, value, tc));
+        } catch (RuntimeException e) {
+            breaker.record(address, start, false);
+            throw e;
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Override
+    public Future<CASResponse> asyncCAS(String key, long casId, Object value) {
+        return asyncCAS(key, casId, value, getTranscoder());
+    }
+
+    @Override
+    public <T> CASResponse cas(String key, long casId, T value, Transcoder<T> tc) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return CASResponse.NOT_FOUND;
+        }
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final CASResponse response = client.cas(key, casId, value, tc);
+            success = true;
+            return response;
+        } finally {
+            breaker.record(address, start, success);
+        }
+    }
+
+    @Override
+    public CASResponse cas(String key, long casId, Object value) {
+        return cas(key, casId, value, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<Boolean> add(String key, int exp, T value, Transcoder<T> tc) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return reject(Boolean.FALSE);
+        }
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        try {
+            return track(Collections.singletonList(address), start, capture, client.add(key, exp, value, tc));
+        } catch (RuntimeException e) {
+            breaker.record(address, start, false);
+            throw e;
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Override
+    public Future<Boolean> add(String key, int exp, Object value) {
+        return add(key, exp, value, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<Boolean> set(String key, int exp, T value, Transcoder<T> tc) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return reject(Boolean.FALSE);
+        }
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        try {
+            return track(Collections.singletonList(address), start, capture, client.set(key, exp, value, tc));
+        } catch (RuntimeException e) {
+            breaker.record(address, start, false);
+            throw e;
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Override
+    public Future<Boolean> set(String key, int exp, Object value) {
+        return set(key, exp, value, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<Boolean> replace(String key, int exp, T value, Transcoder<T> tc) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return reject(Boolean.FALSE);
+        }
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        try {
+            return track(Collections.singletonList(address), start, capture, client.replace(key, exp, value, tc));
+        } catch (RuntimeException e) {
+            breaker.record(address, start, false);
+            throw e;
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Override
+    public Future<Boolean> replace(String key, int exp, Object value) {
+        return replace(key, exp, value, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<T> asyncGet(String key, Transcoder<T> tc) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return reject(null);
+        }
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        try {
+            return track(Collections.singletonList(address), start, capture, client.asyncGet(key, tc));
+        } catch (RuntimeException e) {
+            breaker.record(address, start, false);
+            throw e;
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Override
+    public Future<Object> asyncGet(String key) {
+        return asyncGet(key, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<CASValue<T>> asyncGets(String key, Transcoder<T> tc) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return reject(null);
+        }
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        try {
+            return track(Collections.singletonList(address), start, capture, client.asyncGets(key, tc));
+        } catch (RuntimeException e) {
+            breaker.record(address, start, false);
+            throw e;
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Override
+    public Future<CASValue<Object>> asyncGets(String key) {
+        return asyncGets(key, getTranscoder());
+    }
+
+    @Override
+    public <T> CASValue<T> gets(String key, Transcoder<T> tc) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return null;
+        }
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final CASValue<T> value = client.gets(key, tc);
+            success = true;
+            return value;
+        } finally {
+            breaker.record(address, start, success);
+        }
+    }
+
+    @Override
+    public CASValue<Object> gets(String key) {
+        return gets(key, getTranscoder());
+    }
+
+    @Override
+    public <T> T get(String key, Transcoder<T> tc) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return null;
+        }
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final T value = client.get(key, tc);
+            success = true;
+            return value;
+        } finally {
+            breaker.record(address, start, success);
+        }
+    }
+
+    @Override
+    public Object get(String key) {
+        return get(key, getTranscoder());
+    }
+
+    /**
+     * Removes all keys of servers with open circuits.
+     *
+     * @param keys the requested keys
+     * @param addresses receives the servers of the remaining keys
+     * @return the remaining keys
+     */
+    private List<String> allowed(Collection<String> keys, Set<SocketAddress> addresses) {
+        final List<String> allowed = Lists.newArrayListWithCapacity(keys.size());
+        final Set<SocketAddress> rejected = Sets.newHashSet();
+        for (String key : keys) {
+            final SocketAddress address = addressOf(key);
+            if (addresses.contains(address)) {
+                allowed.add(key);
+            } else if (!rejected.contains(address)) {
+                if (breaker.allow(address)) {
+                    addresses.add(address);
+                    allowed.add(key);
+                } else {
+                    rejected.add(address);
+                }
+            }
+        }
+        return allowed;
+    }
+
+    @Override
+    public <T> Future<Map<String, T>> asyncGetBulk(Collection<String> keys, Transcoder<T> tc) {
+        final Set<SocketAddress> addresses = Sets.newHashSet();
+        final List<String> allowed = allowed(keys, addresses);
+        if (allowed.isEmpty()) {
+            return reject(Collections.<String, T>emptyMap());
+        }
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        try {
+            return track(addresses, start, capture, client.asyncGetBulk(allowed, tc));
+        } catch (RuntimeException e) {
+            recordBulk(addresses, start, false);
+            throw e;
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Override
+    public Future<Map<String, Object>> asyncGetBulk(Collection<String> keys) {
+        return asyncGetBulk(keys, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<Map<String, T>> asyncGetBulk(Transcoder<T> tc, String... keys) {
+        return asyncGetBulk(Arrays.asList(keys), tc);
+    }
+
+    @Override
+    public Future<Map<String, Object>> asyncGetBulk(String... keys) {
+        return asyncGetBulk(Arrays.asList(keys), getTranscoder());
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc) {
+        final Set<SocketAddress> addresses = Sets.newHashSet();
+        final List<String> allowed = allowed(keys, addresses);
+        if (allowed.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final Map<String, T> values = client.getBulk(allowed, tc);
+            success = true;
+            return values;
+        } finally {
+            recordBulk(addresses, start, success);
+        }
+    }
+
+    @Override
+    public Map<String, Object> getBulk(Collection<String> keys) {
+        return getBulk(keys, getTranscoder());
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Transcoder<T> tc, String... keys) {
+        return getBulk(Arrays.asList(keys), tc);
+    }
+
+    @Override
+    public Map<String, Object> getBulk(String... keys) {
+        return getBulk(Arrays.asList(keys), getTranscoder());
+    }
+
+    /**
+     * Records the outcome of a call to several servers. A failure can't be attributed to
+     * a single server, it is only recorded if the call went to one server.
+     *
+     * @param addresses the servers of the call
+     * @param start the start of the call
+     * @param success whether the call succeeded
+     */
+    private void recordBulk(Collection<SocketAddress> addresses, long start, boolean success) {
+        if (success || addresses.size() == 1) {
+            for (SocketAddress address : addresses) {
+                breaker.record(address, start, success);
+            }
+        }
+    }
+
+    @Override
+    public long incr(String key, int by) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return -1L;
+        }
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final long value = client.incr(key, by);
+            success = true;
+            return value;
+        } finally {
+            breaker.record(address, start, success);
+        }
+    }
+
+    @Override
+    public long decr(String key, int by) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return -1L;
+        }
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final long value = client.decr(key, by);
+            success = true;
+            return value;
+        } finally {
+            breaker.record(address, start, success);
+        }
+    }
+
+    @Override
+    public long incr(String key, int by, long def, int exp) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return -1L;
+        }
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final long value = client.incr(key, by, def, exp);
+            success = true;
+            return value;
+        } finally {
+            breaker.record(address, start, success);
+        }
+    }
+
+    @Override
+    public long decr(String key, int by, long def, int exp) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return -1L;
+        }
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final long value = client.decr(key, by, def, exp);
+            success = true;
+            return value;
+        } finally {
+            breaker.record(address, start, success);
+        }
+    }
+
+    @Override
+    public Future<Long> asyncIncr(String key, int by) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return reject(Long.valueOf(-1L));
+        }
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        try {
+            return track(Collections.singletonList(address), start, capture, client.asyncIncr(key, by));
+        } catch (RuntimeException e) {
+            breaker.record(address, start, false);
+            throw e;
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Override
+    public Future<Long> asyncDecr(String key, int by) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return reject(Long.valueOf(-1L));
+        }
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        try {
+            return track(Collections.singletonList(address), start, capture, client.asyncDecr(key, by));
+        } catch (RuntimeException e) {
+            breaker.record(address, start, false);
+            throw e;
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Override
+    public long incr(String key, int by, long def) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return -1L;
+        }
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final long value = client.incr(key, by, def);
+            success = true;
+            return value;
+        } finally {
+            breaker.record(address, start, success);
+        }
+    }
+
+    @Override
+    public long decr(String key, int by, long def) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return -1L;
+        }
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final long value = client.decr(key, by, def);
+            success = true;
+            return value;
+        } finally {
+            breaker.record(address, start, success);
+        }
+    }
+
+    @Override
+    public Future<Boolean> delete(String key) {
+        final SocketAddress address = addressOf(key);
+        if (!breaker.allow(address)) {
+            return reject(Boolean.FALSE);
+        }
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        try {
+            return track(Collections.singletonList(address), start, capture, client.delete(key));
+        } catch (RuntimeException e) {
+            breaker.record(address, start, false);
+            throw e;
+        } finally {
+            capture.stop();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreakingMemcachedClient [client=" + client + ", breaker=" + breaker + "]";
+    }
+
+    /**
+     * Records the outcome of an asynchronous call once its operations completed,
+     * or as failure once it took longer than a slow call.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private final class Tracker implements Runnable {
+
+        private final Collection<SocketAddress> addresses;
+
+        private final long start;
+
+        private final Future<?> future;
+
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        Tracker(Collection<SocketAddress> addresses, long start, Future<?> future) {
+            this.addresses = addresses;
+            this.start = start;
+            this.future = future;
+        }
+
+        void record(boolean success) {
+            if (recorded.compareAndSet(false, true)) {
+                recordBulk(addresses, start, success);
+            }
+        }
+
+        @Override
+        public void run() {
+            record(CompletionListeners.succeeded(future));
+        }
+
+    }
+
+    /**
+     * The future of a call rejected because of an open circuit. It carries the
+     * result of a cache miss, clients combining several servers skip it.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     * @param <V> the generic result type
+     */
+    static final class RejectedFuture<V> extends MemcacheFuture<V> {
+
+        RejectedFuture(V miss) {
+            set(miss);
+        }
+
+    }
+
+}
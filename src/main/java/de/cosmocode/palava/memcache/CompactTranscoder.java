@@ -0,0 +1,329 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * A {@link Transcoder} which stores collections and values of registered types
+ * in a compact binary format instead of using java serialization. Strings, primitive
+ * wrappers, dates and byte arrays use the fast paths of {@link SerializingTranscoder}, as does
+ * decoding of values written by it, so existing data stays readable. Compression is
+ * handled by {@link CompressingTranscoder}.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+class CompactTranscoder extends CompressingTranscoder {
+
+    /**
+     * Special type flag, distinct from the types used by {@link SerializingTranscoder}.
+     */
+    static final int COMPACT = 0x80 << 8;
+
+    static final int SPECIAL_MASK = 0xff00;
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompactTranscoder.class);
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int INTEGER = 2;
+    private static final int LONG = 3;
+    private static final int BOOLEAN = 4;
+    private static final int DOUBLE = 5;
+    private static final int BYTES = 6;
+    private static final int ARRAY_LIST = 7;
+    private static final int HASH_MAP = 8;
+    private static final int LINKED_HASH_MAP = 9;
+    private static final int HASH_SET = 10;
+    private static final int LINKED_HASH_SET = 11;
+    private static final int REGISTERED = 12;
+    private static final int SERIALIZED = 13;
+
+    private final Map<Class<?>, Integer> ids;
+
+    private final Map<Integer, MemcacheSerializer<?>> serializers;
+
+    CompactTranscoder(Map<Integer, ? extends MemcacheSerializer<?>> serializers, 
+        MemcacheCodec codec, byte[] dictionary, int dictionaryThreshold) {
+        super(codec, dictionary, dictionaryThreshold);
+        Preconditions.checkNotNull(serializers, "Serializers");
+        final Map<Class<?>, Integer> types = Maps.newHashMap();
+        for (Map.Entry<Integer, ? extends MemcacheSerializer<?>> entry : serializers.entrySet()) {
+            final Integer previous = types.put(entry.getValue().getType(), entry.getKey());
+            Preconditions.checkArgument(previous == null, "%s registered twice", entry.getValue().getType());
+        }
+        this.ids = ImmutableMap.copyOf(types);
+        this.serializers = ImmutableMap.<Integer, MemcacheSerializer<?>>copyOf(serializers);
+    }
+
+    @Override
+    protected CachedData encodeUncompressed(Object value) {
+        if (value instanceof String || value instanceof Number || value instanceof Boolean || 
+            value instanceof Character || value instanceof Date || value instanceof byte[]) {
+            return super.encodeUncompressed(value);
+        }
+        
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            write(value, new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to encode " + value, e);
+        }
+        
+        return new CachedData(COMPACT, bytes.toByteArray(), getMaxSize());
+    }
+
+    @Override
+    protected Object decodeUncompressed(CachedData cachedData) {
+        if ((cachedData.getFlags() & SPECIAL_MASK) != COMPACT) {
+            return super.decodeUncompressed(cachedData);
+        }
+        
+        try {
+            return read(new DataInputStream(new ByteArrayInputStream(cachedData.getData())));
+        } catch (IOException e) {
+            LOG.warn("Unable to decode " + cachedData, e);
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(Object value, DataOutput output) throws IOException {
+        if (value == null) {
+            output.writeByte(NULL);
+            return;
+        }
+        
+        final Class<?> type = value.getClass();
+        final Integer id = ids.get(type);
+        
+        if (id != null) {
+            output.writeByte(REGISTERED);
+            writeVarInt(id.intValue(), output);
+            MemcacheSerializer.class.cast(serializers.get(id)).write(value, output);
+        } else if (type == String.class) {
+            output.writeByte(STRING);
+            writeBytes(String.class.cast(value).getBytes(Charsets.UTF_8), output);
+        } else if (type == Integer.class) {
+            output.writeByte(INTEGER);
+            output.writeInt(Integer.class.cast(value).intValue());
+        } else if (type == Long.class) {
+            output.writeByte(LONG);
+            output.writeLong(Long.class.cast(value).longValue());
+        } else if (type == Boolean.class) {
+            output.writeByte(BOOLEAN);
+            output.writeBoolean(Boolean.class.cast(value).booleanValue());
+        } else if (type == Double.class) {
+            output.writeByte(DOUBLE);
+            output.writeDouble(Double.class.cast(value).doubleValue());
+        } else if (type == byte[].class) {
+            output.writeByte(BYTES);
+            writeBytes(byte[].class.cast(value), output);
+        } else if (type == ArrayList.class) {
+            output.writeByte(ARRAY_LIST);
+            writeElements(Collection.class.cast(value), output);
+        } else if (type == HashSet.class) {
+            output.writeByte(HASH_SET);
+            writeElements(Collection.class.cast(value), output);
+        } else if (type == LinkedHashSet.class) {
+            output.writeByte(LINKED_HASH_SET);
+            writeElements(Collection.class.cast(value), output);
+        } else if (type == HashMap.class) {
+            output.writeByte(HASH_MAP);
+            writeEntries(Map.class.cast(value), output);
+        } else if (type == LinkedHashMap.class) {
+            output.writeByte(LINKED_HASH_MAP);
+            writeEntries(Map.class.cast(value), output);
+        } else {
+            output.writeByte(SERIALIZED);
+            writeBytes(serialize(value), output);
+        }
+    }
+
+    private void writeElements(Collection<?> elements, DataOutput output) throws IOException {
+        writeVarInt(elements.size(), output);
+        for (Object element : elements) {
+            write(element, output);
+        }
+    }
+
+    private void writeEntries(Map<?, ?> map, DataOutput output) throws IOException {
+        writeVarInt(map.size(), output);
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            write(entry.getKey(), output);
+            write(entry.getValue(), output);
+        }
+    }
+
+    private void writeBytes(byte[] bytes, DataOutput output) throws IOException {
+        writeVarInt(bytes.length, output);
+        output.write(bytes);
+    }
+
+    private void writeVarInt(int value, DataOutput output) throws IOException {
+        int remaining = value;
+        while ((remaining & ~0x7f) != 0) {
+            output.writeByte((remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+        output.writeByte(remaining);
+    }
+
+    private Object read(DataInputStream input) throws IOException {
+        final int tag = input.readUnsignedByte();
+        switch (tag) {
+            case NULL: {
+                return null;
+            }
+            case STRING: {
+                return new String(readBytes(input), Charsets.UTF_8);
+            }
+            case INTEGER: {
+                return Integer.valueOf(input.readInt());
+            }
+            case LONG: {
+                return Long.valueOf(input.readLong());
+            }
+            case BOOLEAN: {
+                return Boolean.valueOf(input.readBoolean());
+            }
+            case DOUBLE: {
+                return Double.valueOf(input.readDouble());
+            }
+            case BYTES: {
+                return readBytes(input);
+            }
+            case ARRAY_LIST: {
+                final int size = readSize(input);
+                return readElements(new ArrayList<Object>(size), size, input);
+            }
+            case HASH_SET: {
+                final int size = readSize(input);
+                return readElements(new HashSet<Object>(capacity(size)), size, input);
+            }
+            case LINKED_HASH_SET: {
+                final int size = readSize(input);
+                return readElements(new LinkedHashSet<Object>(capacity(size)), size, input);
+            }
+            case HASH_MAP: {
+                final int size = readSize(input);
+                return readEntries(new HashMap<Object, Object>(capacity(size)), size, input);
+            }
+            case LINKED_HASH_MAP: {
+                final int size = readSize(input);
+                return readEntries(new LinkedHashMap<Object, Object>(capacity(size)), size, input);
+            }
+            case REGISTERED: {
+                final int id = readVarInt(input);
+                final MemcacheSerializer<?> serializer = serializers.get(id);
+                if (serializer == null) {
+                    throw new IOException("No serializer registered for id " + id);
+                }
+                return serializer.read(input);
+            }
+            case SERIALIZED: {
+                return deserialize(readBytes(input));
+            }
+            default: {
+                throw new IOException("Unknown tag " + tag);
+            }
+        }
+    }
+
+    private static int capacity(int size) {
+        return Math.max(size * 4 / 3 + 1, 16);
+    }
+
+    private Collection<Object> readElements(Collection<Object> elements, int size, DataInputStream input) 
+        throws IOException {
+        for (int i = 0; i < size; i++) {
+            elements.add(read(input));
+        }
+        return elements;
+    }
+
+    private Map<Object, Object> readEntries(Map<Object, Object> map, int size, DataInputStream input) 
+        throws IOException {
+        for (int i = 0; i < size; i++) {
+            final Object key = read(input);
+            map.put(key, read(input));
+        }
+        return map;
+    }
+
+    private byte[] readBytes(DataInputStream input) throws IOException {
+        final byte[] bytes = new byte[readSize(input)];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads a byte or element count. Every byte and element takes at least one byte
+     * of the input, so a count beyond the remaining input is corrupt.
+     */
+    private int readSize(DataInputStream input) throws IOException {
+        final int size = readVarInt(input);
+        if (size < 0 || size > input.available()) {
+            throw new IOException("Corrupt size " + size);
+        }
+        return size;
+    }
+
+    private int readVarInt(DataInputStream input) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = input.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactTranscoder [serializers=" + serializers + "]";
+    }
+
+}
@@ -0,0 +1,389 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.OperationFactory;
+import net.spy.memcached.ops.OperationCallback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Notifies listeners when the futures of memcache operations complete. The futures of
+ * spymemcached can't notify listeners, but the callbacks of their operations can: while a
+ * {@link Capture} is active, every operation created on the current thread by a client using a
+ * {@link #decorate(ConnectionFactory) decorated} connection factory is recorded, and the listeners
+ * of the capture run once all recorded operations completed. {@link ListenableFuture}s are
+ * listened to directly. All other futures are polled by a single shared thread, which also
+ * runs the listeners of {@link #expire(Future, long, Runnable) expired} futures.
+ *
+ * <p>
+ *   Listeners usually run on an I/O thread of spymemcached and must neither block nor
+ *   do expensive work.
+ * </p>
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class CompletionListeners {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompletionListeners.class);
+
+    private static final ThreadLocal<List<Capture>> ACTIVE = new ThreadLocal<List<Capture>>() {
+
+        @Override
+        protected List<Capture> initialValue() {
+            return Lists.newArrayListWithCapacity(2);
+        }
+
+    };
+
+    private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private CompletionListeners() {
+
+    }
+
+    /**
+     * Decorates the given connection factory to record the operations created by its clients.
+     *
+     * @param factory the built factory
+     * @return a factory whose operation factory reports completed operations
+     */
+    static ConnectionFactory decorate(final ConnectionFactory factory) {
+        Preconditions.checkNotNull(factory, "Factory");
+        final ClassLoader loader = ConnectionFactory.class.getClassLoader();
+        return ConnectionFactory.class.cast(Proxy.newProxyInstance(loader,
+            new Class<?>[] {ConnectionFactory.class}, new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    final Object result = invokeOn(factory, method, args);
+                    if ("getOperationFactory".equals(method.getName())) {
+                        return decorate(OperationFactory.class.cast(result));
+                    } else {
+                        return result;
+                    }
+                }
+
+            }));
+    }
+
+    private static OperationFactory decorate(final OperationFactory factory) {
+        final ClassLoader loader = OperationFactory.class.getClassLoader();
+        return OperationFactory.class.cast(Proxy.newProxyInstance(loader,
+            new Class<?>[] {OperationFactory.class}, new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    final List<Capture> active = ACTIVE.get();
+                    if (!active.isEmpty() && args != null) {
+                        final Class<?>[] types = method.getParameterTypes();
+                        for (int i = 0; i < args.length; i++) {
+                            if (types[i].isInterface() && OperationCallback.class.isAssignableFrom(types[i])) {
+                                args[i] = notifying(types[i], args[i], active.toArray(new Capture[active.size()]));
+                            }
+                        }
+                    }
+                    return invokeOn(factory, method, args);
+                }
+
+            }));
+    }
+
+    private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Object notifying(Class<?> type, final Object callback, final Capture[] captures) {
+        for (Capture capture : captures) {
+            capture.pending.incrementAndGet();
+            capture.operations++;
+        }
+        final AtomicBoolean completed = new AtomicBoolean();
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                final Object result = invokeOn(callback, method, args);
+                // cloned operations share the callback, only the first completion counts
+                if ("complete".equals(method.getName()) && completed.compareAndSet(false, true)) {
+                    for (Capture capture : captures) {
+                        capture.completed();
+                    }
+                }
+                return result;
+            }
+
+        });
+    }
+
+    /**
+     * Starts recording the operations created on the current thread. The returned capture
+     * must be stopped in a finally block.
+     *
+     * @return a new active capture
+     */
+    static Capture capture() {
+        final Capture capture = new Capture();
+        ACTIVE.get().add(capture);
+        return capture;
+    }
+
+    /**
+     * Runs the given listener once the given future is done.
+     *
+     * @param future the future
+     * @param listener the listener
+     */
+    static void listen(Future<?> future, Runnable listener) {
+        if (future.isDone()) {
+            run(listener);
+        } else if (future instanceof ListenableFuture<?>) {
+            ListenableFuture.class.cast(future).addListener(listener, MoreExecutors.sameThreadExecutor());
+        } else {
+            Poller.INSTANCE.watch(future, listener);
+        }
+    }
+
+    /**
+     * Checks whether the given completed future succeeded.
+     *
+     * @param future a completed future
+     * @return true if the future neither failed nor was cancelled
+     */
+    static boolean succeeded(Future<?> future) {
+        try {
+            future.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (CancellationException e) {
+            return false;
+        }
+    }
+
+    private static void run(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            LOG.warn("Completion listener failed", e);
+        }
+    }
+
+    /**
+     * Runs the given listener if the given future is not done after the given timeout.
+     * Expirations are checked in the order they were registered, an expiration registered
+     * with a shorter timeout than earlier ones may run late.
+     *
+     * @param future the future
+     * @param timeout the timeout in milliseconds
+     * @param listener the listener
+     */
+    static void expire(Future<?> future, long timeout, Runnable listener) {
+        Poller.INSTANCE.expire(future, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout), listener);
+    }
+
+    /**
+     * Records the operations created on a thread between {@link CompletionListeners#capture()}
+     * and {@link #stop()}.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    static final class Capture {
+
+        // one extra for the registration of the listener
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private int operations;
+
+        private volatile Future<?> future;
+
+        private volatile Runnable listener;
+
+        private Capture() {
+
+        }
+
+        /**
+         * Stops recording operations.
+         */
+        void stop() {
+            ACTIVE.get().remove(this);
+        }
+
+        /**
+         * Runs the given listener once the given future, which was created while this
+         * capture was active, is done. This capture must be stopped.
+         *
+         * @param done the future
+         * @param callback the listener
+         */
+        void listen(Future<?> done, Runnable callback) {
+            if (operations == 0 || done.isDone()) {
+                CompletionListeners.listen(done, callback);
+            } else {
+                this.future = done;
+                this.listener = callback;
+                completed();
+            }
+        }
+
+        private void completed() {
+            if (pending.decrementAndGet() == 0) {
+                final Future<?> done = future;
+                if (done.isDone()) {
+                    run(listener);
+                } else {
+                    // the future waits for something else than the recorded operations
+                    CompletionListeners.listen(done, listener);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A future watched by the {@link Poller}.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private static final class Watch {
+
+        private final Future<?> future;
+
+        private final Runnable listener;
+
+        private final long deadline;
+
+        Watch(Future<?> future, Runnable listener, long deadline) {
+            this.future = future;
+            this.listener = listener;
+            this.deadline = deadline;
+        }
+
+        void run() {
+            CompletionListeners.run(listener);
+        }
+
+    }
+
+    /**
+     * The single thread polling futures which can't notify listeners and expiring futures.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private static final class Poller implements Runnable {
+
+        private static final Poller INSTANCE = new Poller();
+
+        private final Queue<Watch> watched = new ConcurrentLinkedQueue<Watch>();
+
+        private final Queue<Watch> expiring = new ConcurrentLinkedQueue<Watch>();
+
+        private final Thread thread;
+
+        private volatile boolean idle;
+
+        private Poller() {
+            thread = new Thread(this, "memcache-completion-poller");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void watch(Future<?> future, Runnable listener) {
+            watched.add(new Watch(future, listener, 0L));
+            LockSupport.unpark(thread);
+        }
+
+        void expire(Future<?> future, long deadline, Runnable listener) {
+            expiring.add(new Watch(future, listener, deadline));
+            if (idle) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Iterator<Watch> iterator = watched.iterator();
+                while (iterator.hasNext()) {
+                    final Watch watch = iterator.next();
+                    if (watch.future.isDone()) {
+                        iterator.remove();
+                        watch.run();
+                    }
+                }
+                final long now = System.nanoTime();
+                Watch head = expiring.peek();
+                while (head != null && (head.future.isDone() || head.deadline - now <= 0)) {
+                    expiring.poll();
+                    if (!head.future.isDone()) {
+                        head.run();
+                    }
+                    head = expiring.peek();
+                }
+                if (!watched.isEmpty()) {
+                    LockSupport.parkNanos(POLL_INTERVAL);
+                } else if (head != null) {
+                    LockSupport.parkNanos(Math.max(POLL_INTERVAL, head.deadline - now));
+                } else {
+                    idle = true;
+                    if (expiring.isEmpty() && watched.isEmpty()) {
+                        LockSupport.park();
+                    }
+                    idle = false;
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.IOException;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link Transcoder} which compresses values using a configurable {@link MemcacheCodec}.
+ * The codec is recorded in the flags, so values written using any codec, including those written
+ * by {@link SerializingTranscoder}, can be read. Small values are compressed using the preset
+ * dictionary, if any, large values using the configured codec. Values which don't compress
+ * well are stored uncompressed.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+class CompressingTranscoder extends SerializingTranscoder {
+
+    static final int COMPRESSED = 2;
+
+    static final int CODEC_MASK = 0xf0;
+
+    static final int CODEC_SHIFT = 4;
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompressingTranscoder.class);
+
+    private static final int MIN_SIZE = 64;
+
+    private final MemcacheCodec codec;
+
+    private final byte[] dictionary;
+
+    private final int dictionaryThreshold;
+
+    private int threshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    /**
+     * Creates a new transcoder.
+     *
+     * @param codec the codec used for values above the compression threshold
+     * @param dictionary the preset dictionary for small values, may be null
+     * @param dictionaryThreshold values up to this size are compressed using the dictionary
+     */
+    CompressingTranscoder(MemcacheCodec codec, byte[] dictionary, int dictionaryThreshold) {
+        super(CachedData.MAX_SIZE);
+        this.codec = Preconditions.checkNotNull(codec, "Codec");
+        this.dictionary = dictionary == null ? null : dictionary.clone();
+        this.dictionaryThreshold = dictionaryThreshold;
+        // compression is handled here
+        super.setCompressionThreshold(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void setCompressionThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public final CachedData encode(Object value) {
+        final CachedData raw = encodeUncompressed(value);
+        final byte[] data = raw.getData();
+        
+        final MemcacheCodec selected;
+        if (data.length < MIN_SIZE) {
+            return raw;
+        } else if (dictionary != null && data.length <= dictionaryThreshold) {
+            selected = MemcacheCodec.DEFLATE;
+        } else if (data.length > threshold) {
+            selected = codec;
+        } else {
+            return raw;
+        }
+        
+        final byte[] compressed;
+        try {
+            compressed = selected.compress(data, dictionary);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to compress " + value, e);
+        }
+        
+        // must save at least an eighth
+        if (compressed.length < data.length - data.length / 8) {
+            final int flags = raw.getFlags() | COMPRESSED | (selected.getId() << CODEC_SHIFT);
+            return new CachedData(flags, compressed, getMaxSize());
+        } else {
+            return raw;
+        }
+    }
+
+    @Override
+    public final Object decode(CachedData cachedData) {
+        final int flags = cachedData.getFlags();
+        if ((flags & COMPRESSED) == 0) {
+            return decodeUncompressed(cachedData);
+        }
+        
+        final int id = (flags & CODEC_MASK) >>> CODEC_SHIFT;
+        final byte[] data;
+        try {
+            data = MemcacheCodec.of(id).decompress(cachedData.getData(), dictionary);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Ignoring value compressed using unknown codec {}", id);
+            return null;
+        } catch (IOException e) {
+            LOG.warn("Unable to decompress value using " + MemcacheCodec.of(id), e);
+            return null;
+        }
+        return decodeUncompressed(new CachedData(flags & ~(COMPRESSED | CODEC_MASK), data, getMaxSize()));
+    }
+
+    /**
+     * Encodes the given value without compressing it.
+     *
+     * @param value the value
+     * @return the uncompressed data
+     */
+    protected CachedData encodeUncompressed(Object value) {
+        return super.encode(value);
+    }
+
+    /**
+     * Decodes already decompressed data.
+     *
+     * @param cachedData the uncompressed data
+     * @return the value
+     */
+    protected Object decodeUncompressed(CachedData cachedData) {
+        return super.decode(cachedData);
+    }
+
+}
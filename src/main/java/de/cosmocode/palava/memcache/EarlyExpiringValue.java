@@ -0,0 +1,68 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * A cached value together with the time it took to compute and its logical expiry,
+ * used for probabilistic early expiration (XFetch).
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class EarlyExpiringValue implements Serializable {
+
+    private static final long serialVersionUID = -2739052914283046461L;
+
+    private final Object value;
+
+    private final long delta;
+
+    private final long expiry;
+
+    EarlyExpiringValue(Object value, long delta, long expiry) {
+        this.value = value;
+        this.delta = delta;
+        this.expiry = expiry;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Decides whether this value should be recomputed now. The probability rises
+     * exponentially as the expiry approaches.
+     *
+     * @param beta the eagerness, 1.0 is the default
+     * @param random the source of randomness
+     * @param now the current time in milliseconds
+     * @return true if the caller should recompute the value
+     */
+    boolean isDue(double beta, Random random, long now) {
+        final double gap = -delta * beta * Math.log(random.nextDouble());
+        return now + gap >= expiry;
+    }
+
+    @Override
+    public String toString() {
+        return "EarlyExpiringValue [value=" + value + ", delta=" + delta + ", expiry=" + expiry + "]";
+    }
+
+}
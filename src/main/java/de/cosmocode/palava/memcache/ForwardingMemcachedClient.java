@@ -0,0 +1,333 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.ConnectionObserver;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.transcoders.Transcoder;
+import de.cosmocode.palava.scope.Destroyable;
+
+/**
+ * Abstract {@link MemcachedClientIF} which forwards all calls to a delegate. Subclasses
+ * override the methods they want to decorate.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+abstract class ForwardingMemcachedClient implements MemcachedClientIF, Destroyable {
+
+    /**
+     * Provides the underlying client.
+     *
+     * @return the delegate
+     */
+    protected abstract MemcachedClientIF delegate();
+
+    @Override
+    public Collection<SocketAddress> getAvailableServers() {
+        return delegate().getAvailableServers();
+    }
+
+    @Override
+    public Collection<SocketAddress> getUnavailableServers() {
+        return delegate().getUnavailableServers();
+    }
+
+    @Override
+    public Transcoder<Object> getTranscoder() {
+        return delegate().getTranscoder();
+    }
+
+    @Override
+    public NodeLocator getNodeLocator() {
+        return delegate().getNodeLocator();
+    }
+
+    @Override
+    public Future<Boolean> append(long l, String s, Object o) {
+        return delegate().append(l, s, o);
+    }
+
+    @Override
+    public <T> Future<Boolean> append(long l, String s, T t, Transcoder<T> tTranscoder) {
+        return delegate().append(l, s, t, tTranscoder);
+    }
+
+    @Override
+    public Future<Boolean> prepend(long l, String s, Object o) {
+        return delegate().prepend(l, s, o);
+    }
+
+    @Override
+    public <T> Future<Boolean> prepend(long l, String s, T t, Transcoder<T> tTranscoder) {
+        return delegate().prepend(l, s, t, tTranscoder);
+    }
+
+    @Override
+    public <T> Future<CASResponse> asyncCAS(String s, long l, T t, Transcoder<T> tTranscoder) {
+        return delegate().asyncCAS(s, l, t, tTranscoder);
+    }
+
+    @Override
+    public Future<CASResponse> asyncCAS(String s, long l, Object o) {
+        return delegate().asyncCAS(s, l, o);
+    }
+
+    @Override
+    public <T> CASResponse cas(String s, long l, T t, Transcoder<T> tTranscoder) throws OperationTimeoutException {
+        return delegate().cas(s, l, t, tTranscoder);
+    }
+
+    @Override
+    public CASResponse cas(String s, long l, Object o) throws OperationTimeoutException {
+        return delegate().cas(s, l, o);
+    }
+
+    @Override
+    public <T> Future<Boolean> add(String s, int i, T t, Transcoder<T> tTranscoder) {
+        return delegate().add(s, i, t, tTranscoder);
+    }
+
+    @Override
+    public Future<Boolean> add(String s, int i, Object o) {
+        return delegate().add(s, i, o);
+    }
+
+    @Override
+    public <T> Future<Boolean> set(String s, int i, T t, Transcoder<T> tTranscoder) {
+        return delegate().set(s, i, t, tTranscoder);
+    }
+
+    @Override
+    public Future<Boolean> set(String s, int i, Object o) {
+        return delegate().set(s, i, o);
+    }
+
+    @Override
+    public <T> Future<Boolean> replace(String s, int i, T t, Transcoder<T> tTranscoder) {
+        return delegate().replace(s, i, t, tTranscoder);
+    }
+
+    @Override
+    public Future<Boolean> replace(String s, int i, Object o) {
+        return delegate().replace(s, i, o);
+    }
+
+    @Override
+    public <T> Future<T> asyncGet(String s, Transcoder<T> tTranscoder) {
+        return delegate().asyncGet(s, tTranscoder);
+    }
+
+    @Override
+    public Future<Object> asyncGet(String s) {
+        return delegate().asyncGet(s);
+    }
+
+    @Override
+    public <T> Future<CASValue<T>> asyncGets(String s, Transcoder<T> tTranscoder) {
+        return delegate().asyncGets(s, tTranscoder);
+    }
+
+    @Override
+    public Future<CASValue<Object>> asyncGets(String s) {
+        return delegate().asyncGets(s);
+    }
+
+    @Override
+    public <T> CASValue<T> gets(String s, Transcoder<T> tTranscoder) throws OperationTimeoutException {
+        return delegate().gets(s, tTranscoder);
+    }
+
+    @Override
+    public CASValue<Object> gets(String s) throws OperationTimeoutException {
+        return delegate().gets(s);
+    }
+
+    @Override
+    public <T> T get(String s, Transcoder<T> tTranscoder) throws OperationTimeoutException {
+        return delegate().get(s, tTranscoder);
+    }
+
+    @Override
+    public Object get(String s) throws OperationTimeoutException {
+        return delegate().get(s);
+    }
+
+    @Override
+    public <T> Future<Map<String, T>> asyncGetBulk(Collection<String> strings, Transcoder<T> tTranscoder) {
+        return delegate().asyncGetBulk(strings, tTranscoder);
+    }
+
+    @Override
+    public Future<Map<String, Object>> asyncGetBulk(Collection<String> strings) {
+        return delegate().asyncGetBulk(strings);
+    }
+
+    @Override
+    public <T> Future<Map<String, T>> asyncGetBulk(Transcoder<T> tTranscoder, String... strings) {
+        return delegate().asyncGetBulk(tTranscoder, strings);
+    }
+
+    @Override
+    public Future<Map<String, Object>> asyncGetBulk(String... strings) {
+        return delegate().asyncGetBulk(strings);
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Collection<String> strings, Transcoder<T> tTranscoder) 
+        throws OperationTimeoutException {
+        return delegate().getBulk(strings, tTranscoder);
+    }
+
+    @Override
+    public Map<String, Object> getBulk(Collection<String> strings) throws OperationTimeoutException {
+        return delegate().getBulk(strings);
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Transcoder<T> tTranscoder, String... strings) throws OperationTimeoutException {
+        return delegate().getBulk(tTranscoder, strings);
+    }
+
+    @Override
+    public Map<String, Object> getBulk(String... strings) throws OperationTimeoutException {
+        return delegate().getBulk(strings);
+    }
+
+    @Override
+    public Map<SocketAddress, String> getVersions() {
+        return delegate().getVersions();
+    }
+
+    @Override
+    public Map<SocketAddress, Map<String, String>> getStats() {
+        return delegate().getStats();
+    }
+
+    @Override
+    public Map<SocketAddress, Map<String, String>> getStats(String s) {
+        return delegate().getStats(s);
+    }
+
+    @Override
+    public long incr(String s, int i) throws OperationTimeoutException {
+        return delegate().incr(s, i);
+    }
+
+    @Override
+    public long decr(String s, int i) throws OperationTimeoutException {
+        return delegate().decr(s, i);
+    }
+
+    @Override
+    public long incr(String s, int i, long l, int i1) throws OperationTimeoutException {
+        return delegate().incr(s, i, l, i1);
+    }
+
+    @Override
+    public long decr(String s, int i, long l, int i1) throws OperationTimeoutException {
+        return delegate().decr(s, i, l, i1);
+    }
+
+    @Override
+    public Future<Long> asyncIncr(String s, int i) {
+        return delegate().asyncIncr(s, i);
+    }
+
+    @Override
+    public Future<Long> asyncDecr(String s, int i) {
+        return delegate().asyncDecr(s, i);
+    }
+
+    @Override
+    public long incr(String s, int i, long l) throws OperationTimeoutException {
+        return delegate().incr(s, i, l);
+    }
+
+    @Override
+    public long decr(String s, int i, long l) throws OperationTimeoutException {
+        return delegate().decr(s, i, l);
+    }
+
+    @Override
+    public Future<Boolean> delete(String s) {
+        return delegate().delete(s);
+    }
+
+    @Override
+    public Future<Boolean> flush(int i) {
+        return delegate().flush(i);
+    }
+
+    @Override
+    public Future<Boolean> flush() {
+        return delegate().flush();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate().shutdown();
+    }
+
+    @Override
+    public boolean shutdown(long l, TimeUnit timeUnit) {
+        return delegate().shutdown(l, timeUnit);
+    }
+
+    @Override
+    public boolean waitForQueues(long l, TimeUnit timeUnit) {
+        return delegate().waitForQueues(l, timeUnit);
+    }
+
+    @Override
+    public boolean addObserver(ConnectionObserver connectionObserver) {
+        return delegate().addObserver(connectionObserver);
+    }
+
+    @Override
+    public boolean removeObserver(ConnectionObserver connectionObserver) {
+        return delegate().removeObserver(connectionObserver);
+    }
+
+    @Override
+    public Set<String> listSaslMechanisms() {
+        return delegate().listSaslMechanisms();
+    }
+
+    /**
+     * Propagates the destruction to the delegate if it is {@link Destroyable}.
+     */
+    @Override
+    public void destroy() {
+        final MemcachedClientIF delegate = delegate();
+        if (delegate instanceof Destroyable) {
+            Destroyable.class.cast(delegate).destroy();
+        }
+    }
+
+}
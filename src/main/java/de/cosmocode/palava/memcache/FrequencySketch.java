@@ -0,0 +1,126 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A count-min sketch of 4 bit counters which estimates how often a hash has been seen
+ * recently. Sixteen counters are packed into each long. All counters are halved once
+ * the number of increments reaches ten times the maximum size, i.e. the sketch
+ * forgets old popularity.
+ *
+ * <p>
+ *   This class is not thread-safe.
+ * </p>
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class FrequencySketch {
+
+    static final int MAX_FREQUENCY = 15;
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int MIN_WIDTH = 64;
+
+    private final long[] table;
+
+    private final int mask;
+
+    private final int sampleSize;
+
+    private int size;
+
+    /**
+     * Creates a new sketch.
+     *
+     * @param maximum the maximum number of entries of the cache using this sketch
+     */
+    FrequencySketch(int maximum) {
+        Preconditions.checkArgument(maximum > 0, "Maximum must be positive, but was %s", maximum);
+        final int width = Math.max(MIN_WIDTH, Integer.highestOneBit(Math.min(maximum, 1 << 29) - 1) << 1);
+        this.table = new long[width];
+        this.mask = width - 1;
+        this.sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * maximum);
+    }
+
+    private static long indexOf(int hash, int depth) {
+        long h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h += h >>> 32;
+        return h;
+    }
+
+    private int slotOf(long index) {
+        return (int) index & mask;
+    }
+
+    private static int shiftOf(long index) {
+        return ((int) (index >>> 40) & 15) << 2;
+    }
+
+    /**
+     * Estimates the frequency of the given hash.
+     *
+     * @param hash the hash
+     * @return the estimated frequency, between 0 and {@value #MAX_FREQUENCY}
+     */
+    int frequency(int hash) {
+        int frequency = MAX_FREQUENCY;
+        for (int depth = 0; depth < SEEDS.length; depth++) {
+            final long index = indexOf(hash, depth);
+            final int count = (int) (table[slotOf(index)] >>> shiftOf(index)) & MAX_FREQUENCY;
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Increments the frequency of the given hash, unless it reached the maximum already.
+     *
+     * @param hash the hash
+     */
+    void increment(int hash) {
+        boolean added = false;
+        for (int depth = 0; depth < SEEDS.length; depth++) {
+            final long index = indexOf(hash, depth);
+            final int slot = slotOf(index);
+            final int shift = shiftOf(index);
+            if (((table[slot] >>> shift) & MAX_FREQUENCY) < MAX_FREQUENCY) {
+                table[slot] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+}
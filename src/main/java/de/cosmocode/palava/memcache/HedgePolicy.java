@@ -0,0 +1,143 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decides when a read is hedged, i.e. sent to a second replica. A read is hedged once it
+ * took longer than the configured quantile of the latencies of the last {@value #WINDOW}
+ * reads. Every read earns a fraction of a hedge and every hedge spends a whole one, which
+ * caps the extra load at the budget. Unused hedges accumulate up to {@value #BURST}.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class HedgePolicy {
+
+    static final int WINDOW = 1024;
+
+    static final int BURST = 10;
+
+    private static final long SCALE = 1000L;
+
+    private final double quantile;
+
+    private final long minDelay;
+
+    private final long earnings;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private final AtomicInteger samples = new AtomicInteger();
+
+    private final AtomicLong tokens = new AtomicLong();
+
+    private final StripedCounter sent = new StripedCounter();
+
+    private final StripedCounter won = new StripedCounter();
+
+    private volatile long delay = Long.MAX_VALUE;
+
+    /**
+     * Creates a new policy. Reads are not hedged until the first window is complete.
+     *
+     * @param quantile the latency quantile after which reads are hedged, e.g. 0.95
+     * @param budget the maximum ratio of hedges to reads, e.g. 0.05
+     * @param minDelay the minimum delay before hedging in microseconds
+     */
+    HedgePolicy(double quantile, double budget, long minDelay) {
+        Preconditions.checkArgument(quantile > 0.0 && quantile < 1.0, "%s is not a quantile", quantile);
+        Preconditions.checkArgument(budget >= 0.0 && budget <= 1.0, "Budget must be a ratio, but was %s", budget);
+        Preconditions.checkArgument(minDelay >= 0, "Min delay must not be negative, but was %s", minDelay);
+        this.quantile = quantile;
+        this.earnings = Math.round(budget * SCALE);
+        this.minDelay = minDelay;
+    }
+
+    /**
+     * Provides the time a read waits for its first replica before it is hedged.
+     *
+     * @return the delay in nanoseconds, {@link Long#MAX_VALUE} until the first window is complete
+     */
+    long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Records the latency of the first replica of a read and earns a fraction of a hedge.
+     * The latency is the one of the first replica's own operation, even if a hedge answered
+     * earlier. Failed and expired reads record the time until they ended.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    void record(long nanos) {
+        latencies.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        if (samples.incrementAndGet() % WINDOW == 0) {
+            final long micros = Math.max(minDelay, latencies.getValueAt(quantile));
+            delay = TimeUnit.MICROSECONDS.toNanos(micros);
+            latencies.reset();
+        }
+        long current = tokens.get();
+        while (current < BURST * SCALE && !tokens.compareAndSet(current, Math.min(BURST * SCALE, current + earnings))) {
+            current = tokens.get();
+        }
+    }
+
+    /**
+     * Spends a hedge if the budget allows it.
+     *
+     * @return true if the read may be hedged, false otherwise
+     */
+    boolean tryHedge() {
+        long current = tokens.get();
+        while (current >= SCALE) {
+            if (tokens.compareAndSet(current, current - SCALE)) {
+                sent.increment();
+                return true;
+            }
+            current = tokens.get();
+        }
+        return false;
+    }
+
+    /**
+     * Records that a hedge answered before the first replica.
+     */
+    void won() {
+        won.increment();
+    }
+
+    long getSent() {
+        return sent.get();
+    }
+
+    long getWon() {
+        return won.get();
+    }
+
+    void reset() {
+        sent.reset();
+        won.reset();
+    }
+
+}
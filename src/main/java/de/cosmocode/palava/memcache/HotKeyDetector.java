@@ -0,0 +1,233 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Finds the most frequently read keys. A random sample of reads is counted in a
+ * count-min sketch whose counters are halved once per window, i.e. older reads
+ * fade out. Sampling keeps the contended counter updates off most reads, estimates
+ * are scaled back to reads. Keys whose estimated count reaches the threshold are
+ * promoted into a hot set of bounded size, replacing the coldest member if necessary.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class HotKeyDetector {
+
+    private static final int DEPTH = 4;
+
+    private static final int WIDTH = 4096;
+
+    private static final int MASK = WIDTH - 1;
+
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+
+    };
+
+    private static final Comparator<Map.Entry<String, Long>> HOTTEST_FIRST = new Comparator<Map.Entry<String, Long>>() {
+
+        @Override
+        public int compare(Map.Entry<String, Long> left, Map.Entry<String, Long> right) {
+            return right.getValue().compareTo(left.getValue());
+        }
+
+    };
+
+    private final AtomicLongArray counters = new AtomicLongArray(DEPTH * WIDTH);
+
+    private final ConcurrentMap<String, Long> hot = Maps.newConcurrentMap();
+
+    private final long threshold;
+
+    private final int maxHot;
+
+    private final long window;
+
+    private final int sampling;
+
+    private final AtomicLong nextDecay;
+
+    /**
+     * The lowest estimate in the full hot set, colder keys can't be promoted.
+     */
+    private volatile long floor;
+
+    /**
+     * Creates a new detector.
+     *
+     * @param threshold the number of reads per window which makes a key hot
+     * @param maxHot the maximum number of hot keys
+     * @param window the window in milliseconds
+     * @param sampling one in this many reads is counted, 1 counts every read
+     */
+    HotKeyDetector(long threshold, int maxHot, long window, int sampling) {
+        Preconditions.checkArgument(threshold > 0, "Threshold must be positive, but was %s", threshold);
+        Preconditions.checkArgument(maxHot > 0, "Max hot keys must be positive, but was %s", maxHot);
+        Preconditions.checkArgument(window > 0, "Window must be positive, but was %s", window);
+        Preconditions.checkArgument(sampling > 0, "Sampling must be positive, but was %s", sampling);
+        this.threshold = threshold;
+        this.maxHot = maxHot;
+        this.window = window;
+        this.sampling = sampling;
+        this.nextDecay = new AtomicLong(System.currentTimeMillis() + window);
+    }
+
+    private static int spread(int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int indexOf(int h1, int h2, int row) {
+        return row * WIDTH + ((h1 + row * h2) & MASK);
+    }
+
+    /**
+     * Counts a read of the given key.
+     *
+     * @param key the key
+     */
+    void record(String key) {
+        if (sampling > 1 && RANDOM.get().nextInt(sampling) != 0) {
+            return;
+        }
+        decayIfDue();
+        final int h1 = spread(key.hashCode());
+        final int h2 = spread(h1) | 1;
+        long samples = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            samples = Math.min(samples, counters.incrementAndGet(indexOf(h1, h2, row)));
+        }
+        final long estimate = samples * sampling;
+        if (estimate >= threshold && estimate > floor && !hot.containsKey(key)) {
+            promote(key, estimate);
+        }
+    }
+
+    private long estimate(String key) {
+        final int h1 = spread(key.hashCode());
+        final int h2 = spread(h1) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters.get(indexOf(h1, h2, row)));
+        }
+        return estimate * sampling;
+    }
+
+    private synchronized void promote(String key, long estimate) {
+        if (hot.size() >= maxHot) {
+            Map.Entry<String, Long> coldest = null;
+            for (Map.Entry<String, Long> entry : hot.entrySet()) {
+                if (coldest == null || entry.getValue().longValue() < coldest.getValue().longValue()) {
+                    coldest = entry;
+                }
+            }
+            if (coldest == null || coldest.getValue().longValue() >= estimate) {
+                return;
+            }
+            hot.remove(coldest.getKey());
+        }
+        hot.put(key, Long.valueOf(estimate));
+        updateFloor();
+    }
+
+    private void updateFloor() {
+        if (hot.size() < maxHot) {
+            floor = 0L;
+            return;
+        }
+        long lowest = Long.MAX_VALUE;
+        for (Long estimate : hot.values()) {
+            lowest = Math.min(lowest, estimate.longValue());
+        }
+        floor = lowest;
+    }
+
+    private void decayIfDue() {
+        final long due = nextDecay.get();
+        final long now = System.currentTimeMillis();
+        if (now < due || !nextDecay.compareAndSet(due, now + window)) {
+            return;
+        }
+        for (int i = 0; i < counters.length(); i++) {
+            final long value = counters.get(i);
+            if (value > 0L) {
+                counters.compareAndSet(i, value, value >>> 1);
+            }
+        }
+        synchronized (this) {
+            for (Map.Entry<String, Long> entry : hot.entrySet()) {
+                final long estimate = estimate(entry.getKey());
+                if (estimate < threshold / 2) {
+                    hot.remove(entry.getKey());
+                } else {
+                    hot.put(entry.getKey(), Long.valueOf(estimate));
+                }
+            }
+            updateFloor();
+        }
+    }
+
+    /**
+     * Checks whether the given key is currently hot.
+     *
+     * @param key the key
+     * @return true if the key is in the hot set
+     */
+    boolean isHot(String key) {
+        return hot.containsKey(key);
+    }
+
+    /**
+     * Provides the current hot set.
+     *
+     * @return all hot keys mapped to their estimated reads per window, hottest first
+     */
+    Map<String, Long> getHotKeys() {
+        final List<Map.Entry<String, Long>> entries = Lists.newArrayList(hot.entrySet());
+        Collections.sort(entries, HOTTEST_FIRST);
+        final Map<String, Long> keys = Maps.newLinkedHashMap();
+        for (Map.Entry<String, Long> entry : entries) {
+            keys.put(entry.getKey(), entry.getValue());
+        }
+        return keys;
+    }
+
+    @Override
+    public String toString() {
+        return "HotKeyDetector [threshold=" + threshold + ", maxHot=" + maxHot + ", window=" + window +
+            ", sampling=" + sampling + ", hot=" + hot.keySet() + "]";
+    }
+
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A lock-free log-linear histogram of latencies in microseconds. Every power of two
+ * is split into {@value #SUB_BUCKETS} linear buckets, which bounds the relative error
+ * of reported values to about 6%. Latencies above {@value #MAX_VALUE} microseconds (more
+ * than two minutes) share the last bucket, which keeps the histogram at {@value #BUCKETS}
+ * buckets. Buckets are striped per thread like in {@link StripedCounter}.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private static final int MAX_BITS = 27;
+
+    static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+
+    private final StripedCounter sum = new StripedCounter();
+
+    private final AtomicLong max = new AtomicLong();
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        } else if (value > MAX_VALUE) {
+            return BUCKETS - 1;
+        }
+        final int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        final int sub = (int) (value >>> shift);
+        return (shift + 1) * SUB_BUCKETS + sub - SUB_BUCKETS;
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long sub = SUB_BUCKETS + index % SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a single latency.
+     *
+     * @param micros the latency in microseconds, negative values are recorded as 0
+     */
+    void record(long micros) {
+        final long value = Math.max(0L, micros);
+        buckets.incrementAndGet(StripedCounter.stripe() * BUCKETS + indexOf(value));
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    private long[] merge() {
+        final long[] merged = new long[BUCKETS];
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            for (int i = 0; i < BUCKETS; i++) {
+                merged[i] += buckets.get(stripe * BUCKETS + i);
+            }
+        }
+        return merged;
+    }
+
+    long getCount() {
+        long count = 0L;
+        for (long bucket : merge()) {
+            count += bucket;
+        }
+        return count;
+    }
+
+    double getMean() {
+        final long count = getCount();
+        return count == 0L ? 0.0 : (double) sum.get() / count;
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Computes the value at the given quantile.
+     *
+     * @param quantile a number between 0.0 and 1.0, e.g. 0.99
+     * @return the highest latency of the bucket containing the quantile, in microseconds
+     */
+    long getValueAt(double quantile) {
+        Preconditions.checkArgument(quantile >= 0.0 && quantile <= 1.0, "%s is not a quantile", quantile);
+        final long[] merged = merge();
+        long count = 0L;
+        for (long bucket : merged) {
+            count += bucket;
+        }
+        if (count == 0L) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(quantile * count));
+        long seen = 0L;
+        for (int i = 0; i < merged.length; i++) {
+            seen += merged[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0L);
+        }
+        sum.reset();
+        max.set(0L);
+    }
+
+}
@@ -0,0 +1,491 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.transcoders.Transcoder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A {@link MemcachedClientIF} decorator which serves reads of the default transcoder
+ * from a shared {@link MemcacheLocalCache} and invalidates it on every write.
+ *
+ * <p>
+ *   The cache keeps the encoded values as read from the server, weighs them by their
+ *   encoded size and decodes them on every hit, so callers never share mutable values.
+ *   Writes invalidate the key when they are sent and again from the callback of their
+ *   operation once they completed, which drops values concurrent reads loaded in between
+ *   without polling the futures of spymemcached.
+ * </p>
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class LocalCacheMemcachedClient extends ForwardingMemcachedClient {
+
+    private static final Transcoder<CachedData> RAW = new Transcoder<CachedData>() {
+
+        @Override
+        public boolean asyncDecode(CachedData data) {
+            return false;
+        }
+
+        @Override
+        public CachedData encode(CachedData data) {
+            return data;
+        }
+
+        @Override
+        public CachedData decode(CachedData data) {
+            return data;
+        }
+
+        @Override
+        public int getMaxSize() {
+            return CachedData.MAX_SIZE;
+        }
+
+    };
+
+    private final MemcachedClientIF client;
+
+    private final MemcacheLocalCache cache;
+
+    LocalCacheMemcachedClient(MemcachedClientIF client, MemcacheLocalCache cache) {
+        this.client = Preconditions.checkNotNull(client, "Client");
+        this.cache = Preconditions.checkNotNull(cache, "Cache");
+    }
+
+    @Override
+    protected MemcachedClientIF delegate() {
+        return client;
+    }
+
+    /**
+     * Provides the transcoder for local hits, which must not count as bytes read.
+     */
+    private Transcoder<Object> local() {
+        final Transcoder<Object> transcoder = client.getTranscoder();
+        return transcoder instanceof MeteredTranscoder ?
+            MeteredTranscoder.class.cast(transcoder).getDelegate() : transcoder;
+    }
+
+    @Override
+    public Object get(String key) throws OperationTimeoutException {
+        cache.record(key);
+        if (!cache.isCacheable(key)) {
+            return client.get(key);
+        }
+        final CachedData cached = cache.get(key);
+        if (cached == null) {
+            final long stamp = cache.stamp(key);
+            final CachedData data = client.get(key, RAW);
+            if (data == null) {
+                return null;
+            }
+            cache.put(key, data, stamp);
+            return client.getTranscoder().decode(data);
+        } else {
+            return local().decode(cached);
+        }
+    }
+
+    @Override
+    public Map<String, Object> getBulk(Collection<String> keys) throws OperationTimeoutException {
+        final Map<String, Object> result = Maps.newHashMapWithExpectedSize(keys.size());
+        final List<String> uncacheable = Lists.newArrayList();
+        final List<String> missing = Lists.newArrayList();
+        final Transcoder<Object> local = local();
+        for (String key : keys) {
+            cache.record(key);
+            if (!cache.isCacheable(key)) {
+                uncacheable.add(key);
+                continue;
+            }
+            final CachedData cached = cache.get(key);
+            if (cached == null) {
+                missing.add(key);
+            } else {
+                result.put(key, local.decode(cached));
+            }
+        }
+        
+        if (!uncacheable.isEmpty()) {
+            result.putAll(client.getBulk(uncacheable));
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        
+        final long[] stamps = new long[missing.size()];
+        for (int i = 0; i < stamps.length; i++) {
+            stamps[i] = cache.stamp(missing.get(i));
+        }
+        final Map<String, CachedData> loaded = client.getBulk(missing, RAW);
+        final Transcoder<Object> transcoder = client.getTranscoder();
+        for (int i = 0; i < stamps.length; i++) {
+            final String key = missing.get(i);
+            final CachedData data = loaded.get(key);
+            if (data != null) {
+                cache.put(key, data, stamps[i]);
+                result.put(key, transcoder.decode(data));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Object> getBulk(String... keys) throws OperationTimeoutException {
+        return getBulk(Arrays.asList(keys));
+    }
+
+    @Override
+    public Future<Boolean> set(String key, int exp, Object value) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.set(key, exp, value);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public <T> Future<Boolean> set(String key, int exp, T value, Transcoder<T> transcoder) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.set(key, exp, value, transcoder);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public Future<Boolean> add(String key, int exp, Object value) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.add(key, exp, value);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public <T> Future<Boolean> add(String key, int exp, T value, Transcoder<T> transcoder) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.add(key, exp, value, transcoder);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public Future<Boolean> replace(String key, int exp, Object value) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.replace(key, exp, value);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public <T> Future<Boolean> replace(String key, int exp, T value, Transcoder<T> transcoder) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.replace(key, exp, value, transcoder);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public Future<Boolean> append(long cas, String key, Object value) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.append(cas, key, value);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public <T> Future<Boolean> append(long cas, String key, T value, Transcoder<T> transcoder) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.append(cas, key, value, transcoder);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public Future<Boolean> prepend(long cas, String key, Object value) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.prepend(cas, key, value);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public <T> Future<Boolean> prepend(long cas, String key, T value, Transcoder<T> transcoder) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.prepend(cas, key, value, transcoder);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public Future<CASResponse> asyncCAS(String key, long cas, Object value) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<CASResponse> future;
+        try {
+            future = client.asyncCAS(key, cas, value);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public <T> Future<CASResponse> asyncCAS(String key, long cas, T value, Transcoder<T> transcoder) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<CASResponse> future;
+        try {
+            future = client.asyncCAS(key, cas, value, transcoder);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public CASResponse cas(String key, long cas, Object value) throws OperationTimeoutException {
+        try {
+            return client.cas(key, cas, value);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public <T> CASResponse cas(String key, long cas, T value, Transcoder<T> transcoder) 
+        throws OperationTimeoutException {
+        try {
+            return client.cas(key, cas, value, transcoder);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public long incr(String key, int by) throws OperationTimeoutException {
+        try {
+            return client.incr(key, by);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public long incr(String key, int by, long def) throws OperationTimeoutException {
+        try {
+            return client.incr(key, by, def);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public long incr(String key, int by, long def, int exp) throws OperationTimeoutException {
+        try {
+            return client.incr(key, by, def, exp);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public Future<Long> asyncIncr(String key, int by) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Long> future;
+        try {
+            future = client.asyncIncr(key, by);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public long decr(String key, int by) throws OperationTimeoutException {
+        try {
+            return client.decr(key, by);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public long decr(String key, int by, long def) throws OperationTimeoutException {
+        try {
+            return client.decr(key, by, def);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public long decr(String key, int by, long def, int exp) throws OperationTimeoutException {
+        try {
+            return client.decr(key, by, def, exp);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public Future<Long> asyncDecr(String key, int by) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Long> future;
+        try {
+            future = client.asyncDecr(key, by);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public Future<Boolean> delete(String key) {
+        cache.invalidate(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.delete(key);
+        } finally {
+            capture.stop();
+        }
+        return invalidate(key, capture, future);
+    }
+
+    @Override
+    public Future<Boolean> flush() {
+        cache.invalidateAll();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.flush();
+        } finally {
+            capture.stop();
+        }
+        return invalidateAll(capture, future);
+    }
+
+    @Override
+    public Future<Boolean> flush(int delay) {
+        cache.invalidateAll();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = client.flush(delay);
+        } finally {
+            capture.stop();
+        }
+        return invalidateAll(capture, future);
+    }
+
+    private <T> Future<T> invalidate(final String key, CompletionListeners.Capture capture, Future<T> future) {
+        capture.listen(future, new Runnable() {
+
+            @Override
+            public void run() {
+                cache.invalidate(key);
+            }
+
+        });
+        return future;
+    }
+
+    private <T> Future<T> invalidateAll(CompletionListeners.Capture capture, Future<T> future) {
+        capture.listen(future, new Runnable() {
+
+            @Override
+            public void run() {
+                cache.invalidateAll();
+            }
+
+        });
+        return future;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalCacheMemcachedClient [client=" + client + ", cache=" + cache + "]";
+    }
+
+}
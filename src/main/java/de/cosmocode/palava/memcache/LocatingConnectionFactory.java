@@ -0,0 +1,89 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.HashAlgorithm;
+import net.spy.memcached.MemcachedNode;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decorates {@link ConnectionFactory}s built by the
+ * {@link net.spy.memcached.ConnectionFactoryBuilder} to create a
+ * {@link WeightedKetamaNodeLocator}. The builder offers no hook for custom locators,
+ * a dynamic proxy keeps this independent of the factory methods of the spymemcached version
+ * in use.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class LocatingConnectionFactory implements InvocationHandler {
+
+    private final ConnectionFactory factory;
+
+    private final Map<InetSocketAddress, Integer> weights;
+
+    private final HashAlgorithm hashAlgorithm;
+
+    private LocatingConnectionFactory(ConnectionFactory factory, Map<InetSocketAddress, Integer> weights,
+        HashAlgorithm hashAlgorithm) {
+        this.factory = Preconditions.checkNotNull(factory, "Factory");
+        this.weights = Preconditions.checkNotNull(weights, "Weights");
+        this.hashAlgorithm = Preconditions.checkNotNull(hashAlgorithm, "HashAlgorithm");
+    }
+
+    /**
+     * Decorates the given factory.
+     *
+     * @param factory the built factory
+     * @param weights the weights of all servers
+     * @param hashAlgorithm the algorithm used to place keys on the continuum
+     * @return a factory creating {@link WeightedKetamaNodeLocator}s
+     */
+    static ConnectionFactory of(ConnectionFactory factory, Map<InetSocketAddress, Integer> weights,
+        HashAlgorithm hashAlgorithm) {
+        final InvocationHandler handler = new LocatingConnectionFactory(factory, weights, hashAlgorithm);
+        final ClassLoader loader = ConnectionFactory.class.getClassLoader();
+        return ConnectionFactory.class.cast(Proxy.newProxyInstance(loader,
+            new Class<?>[] {ConnectionFactory.class}, handler));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("createLocator".equals(method.getName())) {
+            return new WeightedKetamaNodeLocator((List<MemcachedNode>) args[0], weights, hashAlgorithm);
+        } else if ("toString".equals(method.getName()) && method.getParameterTypes().length == 0) {
+            return "LocatingConnectionFactory [factory=" + factory + ", weights=" + weights + "]";
+        }
+        try {
+            return method.invoke(factory, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+}
@@ -26,7 +26,8 @@ final class MemcacheClientConfig {
     public static final String PREFIX = "memcache.";
 
     /**
-     * Format:  "host1:port1 host2:port2".
+     * Format:  "host1:port1 host2:port2:weight2", the weight is optional and
+     * only used by the consistent locator.
      */
     public static final String ADRESSES = PREFIX + "addresses";
 
@@ -35,6 +36,217 @@ final class MemcacheClientConfig {
     public static final String COMPRESSION_THRESHOLD = PREFIX + "compressionThreshold";
 
     public static final String HASH_ALGORITHM = PREFIX + "hashAlgorithm";
+
+    /**
+     * "ARRAY_MOD" (default) or "CONSISTENT" for weighted ketama hashing. The consistent
+     * locator hashes with KETAMA_HASH unless another hash algorithm is configured.
+     */
+    public static final String LOCATOR = PREFIX + "locator";
+
+    /**
+     * Milliseconds replaced shared clients keep serving after a topology reload.
+     */
+    public static final String DRAIN_TIME = PREFIX + "drainTime";
+
+    /**
+     * Maximum number of operations per server waiting to be sent. Operations sent
+     * and awaiting their response are not limited.
+     */
+    public static final String OP_QUEUE_LENGTH = PREFIX + "opQueueLength";
+
+    /**
+     * Milliseconds a caller blocks when the operation queue is full before the operation fails.
+     */
+    public static final String OP_QUEUE_MAX_BLOCK_TIME = PREFIX + "opQueueMaxBlockTime";
+
+    public static final String READ_BUFFER_SIZE = PREFIX + "readBufferSize";
+
+    /**
+     * Timeout of synchronous operations in milliseconds.
+     */
+    public static final String OPERATION_TIMEOUT = PREFIX + "operationTimeout";
+
+    /**
+     * One of "Redistribute", "Retry" and "Cancel", see {@link net.spy.memcached.FailureMode}.
+     */
+    public static final String FAILURE_MODE = PREFIX + "failureMode";
+
+    public static final String USE_NAGLE = PREFIX + "useNagle";
+
+    /**
+     * Maximum delay between reconnect attempts in seconds.
+     */
+    public static final String MAX_RECONNECT_DELAY = PREFIX + "maxReconnectDelay";
+
+    /**
+     * Enables client side {@link MemcacheMetrics}, also exported via JMX.
+     */
+    public static final String METRICS = PREFIX + "metrics";
+
+    /**
+     * Number of shared clients, 0 (default) creates a new client per unit of work.
+     */
+    public static final String POOL_SIZE = PREFIX + "poolSize";
+
+    /**
+     * Number of servers every key is stored on, 1 (default) disables replication.
+     * Reads use the fastest replica and fall back to the others, see {@link ReplicatedMemcachedClient}.
+     */
+    public static final String REPLICAS = PREFIX + "replicas";
+
+    /**
+     * Latency quantile after which reads are also sent to a second replica, e.g. 0.95.
+     * 0.0 (default) disables hedging, which requires {@link #REPLICAS} greater than 1.
+     */
+    public static final String HEDGE_QUANTILE = PREFIX + "hedge.quantile";
+
+    /**
+     * Maximum ratio of hedged reads to reads, defaults to 0.05.
+     */
+    public static final String HEDGE_BUDGET = PREFIX + "hedge.budget";
+
+    /**
+     * Minimum delay in microseconds before a read is hedged.
+     */
+    public static final String HEDGE_MIN_DELAY = PREFIX + "hedge.minDelay";
+
+    /**
+     * Ratio of failed or slow calls which opens the circuit of a server, e.g. 0.5.
+     * 0.0 (default) disables the {@link CircuitBreaker}.
+     */
+    public static final String CIRCUIT_BREAKER_FAILURE_RATE = PREFIX + "circuitBreaker.failureRate";
+
+    /**
+     * Milliseconds after which a call counts as failed, defaults to the operation timeout.
+     */
+    public static final String CIRCUIT_BREAKER_SLOW_CALL = PREFIX + "circuitBreaker.slowCall";
+
+    /**
+     * Number of calls after which the failure counts of a server are reset.
+     */
+    public static final String CIRCUIT_BREAKER_WINDOW = PREFIX + "circuitBreaker.window";
+
+    /**
+     * Milliseconds a circuit stays open before probe calls are let through.
+     */
+    public static final String CIRCUIT_BREAKER_OPEN_TIME = PREFIX + "circuitBreaker.openTime";
+
+    /**
+     * Number of successful probe calls which close a circuit.
+     */
+    public static final String CIRCUIT_BREAKER_PROBES = PREFIX + "circuitBreaker.probes";
+
+    /**
+     * Enables memoization of reads for the duration of a unit of work.
+     */
+    public static final String NEAR_CACHE = PREFIX + "nearCache";
+
+    /**
+     * Key prefixes cached in the JVM, format: "prefix1:ttlSeconds prefix2:ttlSeconds".
+     */
+    public static final String LOCAL_CACHE_PREFIXES = PREFIX + "localCache.prefixes";
+
+    public static final String LOCAL_CACHE_MAX_ITEMS = PREFIX + "localCache.maxItems";
+
+    public static final String LOCAL_CACHE_MAX_BYTES = PREFIX + "localCache.maxBytes";
+
+    /**
+     * Reads per window which promote a key into the local cache, 0 (default) disables
+     * hot key detection.
+     */
+    public static final String HOT_KEYS_THRESHOLD = PREFIX + "hotKeys.threshold";
+
+    /**
+     * Window of hot key detection in seconds.
+     */
+    public static final String HOT_KEYS_WINDOW = PREFIX + "hotKeys.window";
+
+    /**
+     * Maximum number of simultaneously hot keys.
+     */
+    public static final String HOT_KEYS_MAX = PREFIX + "hotKeys.max";
+
+    /**
+     * Local ttl of hot keys in seconds.
+     */
+    public static final String HOT_KEYS_TTL = PREFIX + "hotKeys.ttl";
+
+    /**
+     * One in this many reads is counted by hot key detection, defaults to 8.
+     * 1 counts every read.
+     */
+    public static final String HOT_KEYS_SAMPLING = PREFIX + "hotKeys.sampling";
+
+    /**
+     * Time in microseconds single key gets are held back to be sent as one bulk get,
+     * 0 (default) disables batching.
+     */
+    public static final String BATCH_WINDOW = PREFIX + "batch.window";
+
+    public static final String BATCH_MAX_KEYS = PREFIX + "batch.maxKeys";
+
+    /**
+     * Maximum number of sets buffered for write-behind, 0 (default) disables buffering.
+     */
+    public static final String WRITE_BEHIND_CAPACITY = PREFIX + "writeBehind.capacity";
+
+    /**
+     * Milliseconds between two flushes of buffered sets.
+     */
+    public static final String WRITE_BEHIND_INTERVAL = PREFIX + "writeBehind.interval";
+
+    /**
+     * "BLOCK" (default) or "DROP", the behaviour when the write-behind buffer is full.
+     */
+    public static final String WRITE_BEHIND_OVERFLOW = PREFIX + "writeBehind.overflow";
+
+    /**
+     * Number of threads completing the futures of {@link AsyncMemcacheClient}s.
+     */
+    public static final String ASYNC_COMPLETERS = PREFIX + "async.completers";
+
+    /**
+     * Seconds a node may spend recomputing a missing value before others load it too.
+     */
+    public static final String LEASE_TIME = PREFIX + "lease.time";
+
+    /**
+     * Milliseconds between two polls while waiting for a value loaded by another node.
+     */
+    public static final String LEASE_POLL_INTERVAL = PREFIX + "lease.pollInterval";
+
+    /**
+     * Eagerness of early refreshes, values greater than 1.0 favor earlier recomputation.
+     */
+    public static final String XFETCH_BETA = PREFIX + "xfetch.beta";
+
+    /**
+     * Milliseconds namespace generations are cached in the JVM, see {@link MemcacheNamespaces}.
+     */
+    public static final String NAMESPACE_GENERATION_TTL = PREFIX + "namespace.generationTtl";
+
+    /**
+     * Stores collections and registered types in a compact binary format instead of
+     * using java serialization.
+     */
+    public static final String TRANSCODER_COMPACT = PREFIX + "transcoder.compact";
+
+    /**
+     * Format: "id1:serializerClass1 id2:serializerClass2", see {@link MemcacheSerializer}.
+     */
+    public static final String TRANSCODER_SERIALIZERS = PREFIX + "transcoder.serializers";
+
+    /**
+     * The {@link MemcacheCodec} used for values above the compression threshold, defaults to LZ4.
+     */
+    public static final String TRANSCODER_CODEC = PREFIX + "transcoder.codec";
+
+    /**
+     * File containing a preset dictionary used to compress small values.
+     */
+    public static final String TRANSCODER_DICTIONARY = PREFIX + "transcoder.dictionary";
+
+    public static final String TRANSCODER_DICTIONARY_THRESHOLD = PREFIX + "transcoder.dictionaryThreshold";
     
     private MemcacheClientConfig() {
         
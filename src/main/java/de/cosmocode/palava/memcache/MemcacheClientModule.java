@@ -27,7 +27,10 @@ import de.cosmocode.palava.ipc.Current;
 import de.cosmocode.palava.scope.UnitOfWork;
 
 /**
- * Binds {@link MemcachedClientIF} to {@link MemcacheClientProvider}.
+ * Binds {@link MemcachedClientIF} to {@link MemcacheClientProvider}, {@link AsyncMemcacheClient}
+ * to {@link AsyncMemcacheClientProvider} and
+ * provides the {@link MemcacheLoader}, the {@link MemcacheNamespaces}, the {@link MemcacheTopology}
+ * and the {@link MemcacheMetrics}.
  * 
  * @author Tobias Sarnowski
  */
@@ -37,7 +40,14 @@ public final class MemcacheClientModule implements Module {
     public void configure(Binder binder) {
         final Class<? extends Provider<MemcachedClientIF>> provider = MemcacheClientProvider.class;
         binder.bind(MemcacheClientProvider.class).in(Singleton.class);
+        binder.bind(MemcacheTopology.class).to(MemcacheClientProvider.class).in(Singleton.class);
         binder.bind(MemcachedClientIF.class).annotatedWith(Current.class).toProvider(provider).in(UnitOfWork.class);
+        final Class<? extends Provider<AsyncMemcacheClient>> asyncProvider = AsyncMemcacheClientProvider.class;
+        binder.bind(AsyncMemcacheClient.class).annotatedWith(Current.class).toProvider(asyncProvider).
+            in(UnitOfWork.class);
+        binder.bind(MemcacheLoader.class).in(Singleton.class);
+        binder.bind(MemcacheNamespaces.class).in(Singleton.class);
+        binder.bind(MemcacheMetrics.class).in(Singleton.class);
     }
     
 }
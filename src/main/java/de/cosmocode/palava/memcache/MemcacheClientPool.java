@@ -0,0 +1,82 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A fixed-size pool of long-lived {@link MemcachedClient}s. Clients are striped
+ * by thread, i.e. every thread always leases the same client.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class MemcacheClientPool {
+
+    private final List<MemcachedClientIF> clients;
+
+    MemcacheClientPool(List<? extends MemcachedClientIF> clients) {
+        Preconditions.checkNotNull(clients, "Clients");
+        Preconditions.checkArgument(!clients.isEmpty(), "Clients must not be empty");
+        this.clients = ImmutableList.copyOf(clients);
+    }
+
+    /**
+     * Provides the client assigned to the current thread. The returned client
+     * is shared and must not be shut down by the caller.
+     *
+     * @return the client of the current thread
+     */
+    MemcachedClientIF lease() {
+        final long id = Thread.currentThread().getId();
+        return clients.get((int) (id % clients.size()));
+    }
+
+    /**
+     * Shuts down all pooled clients.
+     */
+    void shutdown() {
+        for (MemcachedClientIF client : clients) {
+            client.shutdown();
+        }
+    }
+
+    /**
+     * Shuts down all pooled clients, waiting for queued operations to complete.
+     *
+     * @param timeout the maximum time to wait per client
+     * @param unit the unit of timeout
+     */
+    void shutdown(long timeout, TimeUnit unit) {
+        for (MemcachedClientIF client : clients) {
+            client.shutdown(timeout, unit);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MemcacheClientPool [size=" + clients.size() + "]";
+    }
+
+}
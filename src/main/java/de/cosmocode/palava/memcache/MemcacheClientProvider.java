@@ -16,25 +16,53 @@
 
 package de.cosmocode.palava.memcache;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
-import net.spy.memcached.AddrUtil;
-import net.spy.memcached.BinaryConnectionFactory;
 import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.ConnectionFactoryBuilder.Locator;
+import net.spy.memcached.ConnectionFactoryBuilder.Protocol;
 import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.FailureMode;
 import net.spy.memcached.HashAlgorithm;
 import net.spy.memcached.MemcachedClient;
 import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.ops.ArrayOperationQueueFactory;
+import net.spy.memcached.ops.LinkedOperationQueueFactory;
+import net.spy.memcached.ops.OperationQueueFactory;
 import net.spy.memcached.transcoders.BaseSerializingTranscoder;
+import net.spy.memcached.transcoders.SerializingTranscoder;
 import net.spy.memcached.transcoders.Transcoder;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.name.Named;
 
+import de.cosmocode.palava.core.lifecycle.Disposable;
 import de.cosmocode.palava.core.lifecycle.Initializable;
 import de.cosmocode.palava.core.lifecycle.LifecycleException;
 
@@ -44,20 +72,83 @@ import de.cosmocode.palava.core.lifecycle.LifecycleException;
  * @since 1.0
  * @author Willi Schoenborn
  */
-final class MemcacheClientProvider implements Provider<MemcachedClientIF>, Initializable {
+final class MemcacheClientProvider implements Provider<MemcachedClientIF>, MemcacheTopology,
+    Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemcacheClientProvider.class);
+
+    private static final String OBJECT_NAME = "de.cosmocode.palava.memcache:type=MemcacheMetrics";
 
-    private final List<InetSocketAddress> addresses;
+    private final MemcacheMetrics metrics;
+
+    private volatile Map<InetSocketAddress, Integer> servers;
     
     private boolean binary;
     private int compressionThreshold = -1;
     private HashAlgorithm hashAlgorithm = HashAlgorithm.NATIVE_HASH;
+    private Locator locator = Locator.ARRAY_MOD;
+    private long drainTime = 10000L;
+    private boolean metered;
+    private int opQueueLength = DefaultConnectionFactory.DEFAULT_OP_QUEUE_LEN;
+    private long opQueueMaxBlockTime = -1L;
+    private int readBufferSize = DefaultConnectionFactory.DEFAULT_READ_BUFFER_SIZE;
+    private long operationTimeout = DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT;
+    private FailureMode failureMode = DefaultConnectionFactory.DEFAULT_FAILURE_MODE;
+    private boolean useNagle;
+    private long maxReconnectDelay = DefaultConnectionFactory.DEFAULT_MAX_RECONNECT_DELAY;
+    private int poolSize;
+    private int replicas = 1;
+    private double hedgeQuantile;
+    private double hedgeBudget = 0.05;
+    private long hedgeMinDelay = 500;
+    private double circuitBreakerFailureRate;
+    private long circuitBreakerSlowCall = -1L;
+    private int circuitBreakerWindow = 100;
+    private long circuitBreakerOpenTime = 5000;
+    private int circuitBreakerProbes = 3;
+    private boolean nearCache;
+    private String localCachePrefixes;
+    private int localCacheMaxItems = 10000;
+    private long localCacheMaxBytes = 16 * 1024 * 1024;
+    private long hotKeysThreshold;
+    private long hotKeysWindow = 10;
+    private int hotKeysMax = 32;
+    private long hotKeysTtl = 1;
+    private int hotKeysSampling = 8;
+    private long batchWindow;
+    private int batchMaxKeys = 100;
+    private int writeBehindCapacity;
+    private long writeBehindInterval = 10;
+    private MemcacheSetBuffer.Overflow writeBehindOverflow = MemcacheSetBuffer.Overflow.BLOCK;
+    private int asyncCompleters = Runtime.getRuntime().availableProcessors();
+    private boolean compactTranscoder;
+    private String transcoderSerializers;
+    private MemcacheCodec codec;
+    private File dictionaryFile;
+    private int dictionaryThreshold = 4096;
     
     private ConnectionFactory factory;
     
+    private volatile MemcacheClientPool pool;
+
+    private ReplicaSelector selector;
+
+    private HedgePolicy hedging;
+
+    private CircuitBreaker breaker;
+    
+    private MemcacheLocalCache localCache;
+    
+    private volatile MemcacheGetBatcher batcher;
+    
+    private volatile MemcacheSetBuffer setBuffer;
+    
+    private ExecutorService completer;
+    
     @Inject
-    public MemcacheClientProvider(@Named(MemcacheClientConfig.ADRESSES) String addresses) {
-        Preconditions.checkNotNull(addresses, "Addresses");
-        this.addresses = AddrUtil.getAddresses(addresses);
+    public MemcacheClientProvider(@Named(MemcacheClientConfig.ADRESSES) String addresses, MemcacheMetrics metrics) {
+        this.servers = WeightedAddresses.parse(addresses);
+        this.metrics = Preconditions.checkNotNull(metrics, "Metrics");
     }
 
     @Inject(optional = true)
@@ -74,42 +165,586 @@ final class MemcacheClientProvider implements Provider<MemcachedClientIF>, Initi
     void setHashAlgorithm(@Named(MemcacheClientConfig.HASH_ALGORITHM) HashAlgorithm hashAlgorithm) {
         this.hashAlgorithm = hashAlgorithm;
     }
+    
+    @Inject(optional = true)
+    void setLocator(@Named(MemcacheClientConfig.LOCATOR) Locator locator) {
+        Preconditions.checkArgument(locator == Locator.ARRAY_MOD || locator == Locator.CONSISTENT,
+            "Locator %s is not supported", locator);
+        this.locator = locator;
+    }
+    
+    @Inject(optional = true)
+    void setDrainTime(@Named(MemcacheClientConfig.DRAIN_TIME) long drainTime) {
+        Preconditions.checkArgument(drainTime >= 0, "Drain time must not be negative, but was %s", drainTime);
+        this.drainTime = drainTime;
+    }
+    
+    @Inject(optional = true)
+    void setMetered(@Named(MemcacheClientConfig.METRICS) boolean metered) {
+        this.metered = metered;
+    }
+    
+    @Inject(optional = true)
+    void setOpQueueLength(@Named(MemcacheClientConfig.OP_QUEUE_LENGTH) int opQueueLength) {
+        Preconditions.checkArgument(opQueueLength > 0, "Op queue length must be positive, but was %s", opQueueLength);
+        this.opQueueLength = opQueueLength;
+    }
+    
+    @Inject(optional = true)
+    void setOpQueueMaxBlockTime(@Named(MemcacheClientConfig.OP_QUEUE_MAX_BLOCK_TIME) long opQueueMaxBlockTime) {
+        this.opQueueMaxBlockTime = opQueueMaxBlockTime;
+    }
+    
+    @Inject(optional = true)
+    void setReadBufferSize(@Named(MemcacheClientConfig.READ_BUFFER_SIZE) int readBufferSize) {
+        Preconditions.checkArgument(readBufferSize > 0, "Buffer size must be positive, but was %s", readBufferSize);
+        this.readBufferSize = readBufferSize;
+    }
+    
+    @Inject(optional = true)
+    void setOperationTimeout(@Named(MemcacheClientConfig.OPERATION_TIMEOUT) long operationTimeout) {
+        Preconditions.checkArgument(operationTimeout > 0, "Timeout must be positive, but was %s", operationTimeout);
+        this.operationTimeout = operationTimeout;
+    }
+    
+    @Inject(optional = true)
+    void setFailureMode(@Named(MemcacheClientConfig.FAILURE_MODE) FailureMode failureMode) {
+        this.failureMode = Preconditions.checkNotNull(failureMode, "FailureMode");
+    }
+    
+    @Inject(optional = true)
+    void setUseNagle(@Named(MemcacheClientConfig.USE_NAGLE) boolean useNagle) {
+        this.useNagle = useNagle;
+    }
+    
+    @Inject(optional = true)
+    void setMaxReconnectDelay(@Named(MemcacheClientConfig.MAX_RECONNECT_DELAY) long maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+    
+    @Inject(optional = true)
+    void setPoolSize(@Named(MemcacheClientConfig.POOL_SIZE) int poolSize) {
+        Preconditions.checkArgument(poolSize >= 0, "Pool size must not be negative, but was %s", poolSize);
+        this.poolSize = poolSize;
+    }
+    
+    @Inject(optional = true)
+    void setReplicas(@Named(MemcacheClientConfig.REPLICAS) int replicas) {
+        Preconditions.checkArgument(replicas > 0, "Replicas must be positive, but was %s", replicas);
+        this.replicas = replicas;
+    }
+    
+    @Inject(optional = true)
+    void setHedgeQuantile(@Named(MemcacheClientConfig.HEDGE_QUANTILE) double hedgeQuantile) {
+        this.hedgeQuantile = hedgeQuantile;
+    }
+    
+    @Inject(optional = true)
+    void setHedgeBudget(@Named(MemcacheClientConfig.HEDGE_BUDGET) double hedgeBudget) {
+        this.hedgeBudget = hedgeBudget;
+    }
+    
+    @Inject(optional = true)
+    void setHedgeMinDelay(@Named(MemcacheClientConfig.HEDGE_MIN_DELAY) long hedgeMinDelay) {
+        this.hedgeMinDelay = hedgeMinDelay;
+    }
+    
+    @Inject(optional = true)
+    void setCircuitBreakerFailureRate(
+        @Named(MemcacheClientConfig.CIRCUIT_BREAKER_FAILURE_RATE) double circuitBreakerFailureRate) {
+        this.circuitBreakerFailureRate = circuitBreakerFailureRate;
+    }
+    
+    @Inject(optional = true)
+    void setCircuitBreakerSlowCall(@Named(MemcacheClientConfig.CIRCUIT_BREAKER_SLOW_CALL) long circuitBreakerSlowCall) {
+        this.circuitBreakerSlowCall = circuitBreakerSlowCall;
+    }
+    
+    @Inject(optional = true)
+    void setCircuitBreakerWindow(@Named(MemcacheClientConfig.CIRCUIT_BREAKER_WINDOW) int circuitBreakerWindow) {
+        this.circuitBreakerWindow = circuitBreakerWindow;
+    }
+    
+    @Inject(optional = true)
+    void setCircuitBreakerOpenTime(@Named(MemcacheClientConfig.CIRCUIT_BREAKER_OPEN_TIME) long circuitBreakerOpenTime) {
+        this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+    }
+    
+    @Inject(optional = true)
+    void setCircuitBreakerProbes(@Named(MemcacheClientConfig.CIRCUIT_BREAKER_PROBES) int circuitBreakerProbes) {
+        this.circuitBreakerProbes = circuitBreakerProbes;
+    }
+    
+    @Inject(optional = true)
+    void setNearCache(@Named(MemcacheClientConfig.NEAR_CACHE) boolean nearCache) {
+        this.nearCache = nearCache;
+    }
+    
+    @Inject(optional = true)
+    void setLocalCachePrefixes(@Named(MemcacheClientConfig.LOCAL_CACHE_PREFIXES) String localCachePrefixes) {
+        this.localCachePrefixes = localCachePrefixes;
+    }
+    
+    @Inject(optional = true)
+    void setLocalCacheMaxItems(@Named(MemcacheClientConfig.LOCAL_CACHE_MAX_ITEMS) int localCacheMaxItems) {
+        this.localCacheMaxItems = localCacheMaxItems;
+    }
+    
+    @Inject(optional = true)
+    void setLocalCacheMaxBytes(@Named(MemcacheClientConfig.LOCAL_CACHE_MAX_BYTES) long localCacheMaxBytes) {
+        this.localCacheMaxBytes = localCacheMaxBytes;
+    }
+    
+    @Inject(optional = true)
+    void setHotKeysThreshold(@Named(MemcacheClientConfig.HOT_KEYS_THRESHOLD) long hotKeysThreshold) {
+        Preconditions.checkArgument(hotKeysThreshold >= 0, "Threshold must not be negative, but was %s",
+            hotKeysThreshold);
+        this.hotKeysThreshold = hotKeysThreshold;
+    }
+    
+    @Inject(optional = true)
+    void setHotKeysWindow(@Named(MemcacheClientConfig.HOT_KEYS_WINDOW) long hotKeysWindow) {
+        this.hotKeysWindow = hotKeysWindow;
+    }
+    
+    @Inject(optional = true)
+    void setHotKeysMax(@Named(MemcacheClientConfig.HOT_KEYS_MAX) int hotKeysMax) {
+        this.hotKeysMax = hotKeysMax;
+    }
+    
+    @Inject(optional = true)
+    void setHotKeysTtl(@Named(MemcacheClientConfig.HOT_KEYS_TTL) long hotKeysTtl) {
+        this.hotKeysTtl = hotKeysTtl;
+    }
+    
+    @Inject(optional = true)
+    void setHotKeysSampling(@Named(MemcacheClientConfig.HOT_KEYS_SAMPLING) int hotKeysSampling) {
+        this.hotKeysSampling = hotKeysSampling;
+    }
+    
+    @Inject(optional = true)
+    void setBatchWindow(@Named(MemcacheClientConfig.BATCH_WINDOW) long batchWindow) {
+        Preconditions.checkArgument(batchWindow >= 0, "Batch window must not be negative, but was %s", batchWindow);
+        this.batchWindow = batchWindow;
+    }
+    
+    @Inject(optional = true)
+    void setBatchMaxKeys(@Named(MemcacheClientConfig.BATCH_MAX_KEYS) int batchMaxKeys) {
+        Preconditions.checkArgument(batchMaxKeys > 0, "Batch max keys must be positive, but was %s", batchMaxKeys);
+        this.batchMaxKeys = batchMaxKeys;
+    }
+    
+    @Inject(optional = true)
+    void setWriteBehindCapacity(@Named(MemcacheClientConfig.WRITE_BEHIND_CAPACITY) int writeBehindCapacity) {
+        Preconditions.checkArgument(writeBehindCapacity >= 0, "Capacity must not be negative, but was %s",
+            writeBehindCapacity);
+        this.writeBehindCapacity = writeBehindCapacity;
+    }
+    
+    @Inject(optional = true)
+    void setWriteBehindInterval(@Named(MemcacheClientConfig.WRITE_BEHIND_INTERVAL) long writeBehindInterval) {
+        this.writeBehindInterval = writeBehindInterval;
+    }
+    
+    @Inject(optional = true)
+    void setWriteBehindOverflow(
+        @Named(MemcacheClientConfig.WRITE_BEHIND_OVERFLOW) MemcacheSetBuffer.Overflow writeBehindOverflow) {
+        this.writeBehindOverflow = Preconditions.checkNotNull(writeBehindOverflow, "Overflow");
+    }
+    
+    @Inject(optional = true)
+    void setAsyncCompleters(@Named(MemcacheClientConfig.ASYNC_COMPLETERS) int asyncCompleters) {
+        Preconditions.checkArgument(asyncCompleters > 0, "Completers must be positive, but was %s", asyncCompleters);
+        this.asyncCompleters = asyncCompleters;
+    }
+    
+    @Inject(optional = true)
+    void setCompactTranscoder(@Named(MemcacheClientConfig.TRANSCODER_COMPACT) boolean compactTranscoder) {
+        this.compactTranscoder = compactTranscoder;
+    }
+    
+    @Inject(optional = true)
+    void setTranscoderSerializers(@Named(MemcacheClientConfig.TRANSCODER_SERIALIZERS) String transcoderSerializers) {
+        this.transcoderSerializers = transcoderSerializers;
+    }
+    
+    @Inject(optional = true)
+    void setCodec(@Named(MemcacheClientConfig.TRANSCODER_CODEC) MemcacheCodec codec) {
+        this.codec = codec;
+    }
+    
+    @Inject(optional = true)
+    void setDictionaryFile(@Named(MemcacheClientConfig.TRANSCODER_DICTIONARY) String dictionaryFile) {
+        this.dictionaryFile = new File(dictionaryFile);
+    }
+    
+    @Inject(optional = true)
+    void setDictionaryThreshold(@Named(MemcacheClientConfig.TRANSCODER_DICTIONARY_THRESHOLD) int threshold) {
+        this.dictionaryThreshold = threshold;
+    }
         
     @Override
     public void initialize() throws LifecycleException {
-        if (binary) {
-            factory = new BinaryConnectionFactory(
-                BinaryConnectionFactory.DEFAULT_OP_QUEUE_LEN,
-                BinaryConnectionFactory.DEFAULT_READ_BUFFER_SIZE,
-                hashAlgorithm
-            );
+        final ConnectionFactoryBuilder builder = new ConnectionFactoryBuilder();
+        builder.setProtocol(binary ? Protocol.BINARY : Protocol.TEXT);
+        builder.setHashAlg(hashAlgorithm);
+        // only the input queue is bounded, the i/o thread must never find the read or write queue full
+        final OperationQueueFactory input = new ArrayOperationQueueFactory(opQueueLength);
+        final OperationQueueFactory pending = new LinkedOperationQueueFactory();
+        final MeteredConnectionFactory meteredFactory;
+        if (metered) {
+            meteredFactory = new MeteredConnectionFactory(metrics);
+            builder.setOpQueueFactory(meteredFactory.register(input));
+            builder.setReadOpQueueFactory(meteredFactory.register(pending));
+            builder.setWriteOpQueueFactory(meteredFactory.register(pending));
         } else {
-            factory = new DefaultConnectionFactory(
-                DefaultConnectionFactory.DEFAULT_OP_QUEUE_LEN,
-                DefaultConnectionFactory.DEFAULT_READ_BUFFER_SIZE,
-                hashAlgorithm
-            );
+            meteredFactory = null;
+            builder.setOpQueueFactory(input);
+        }
+        if (opQueueMaxBlockTime >= 0) {
+            builder.setOpQueueMaxBlockTime(opQueueMaxBlockTime);
+        }
+        builder.setReadBufferSize(readBufferSize);
+        builder.setOpTimeout(operationTimeout);
+        builder.setFailureMode(failureMode);
+        builder.setUseNagleAlgorithm(useNagle);
+        builder.setMaxReconnectDelay(maxReconnectDelay);
+        
+        Transcoder<Object> transcoder = null;
+        if (compactTranscoder || codec != null || dictionaryFile != null) {
+            final MemcacheCodec selected = codec == null ? MemcacheCodec.LZ4 : codec;
+            final byte[] dictionary;
+            try {
+                dictionary = dictionaryFile == null ? null : Files.toByteArray(dictionaryFile);
+            } catch (IOException e) {
+                throw new LifecycleException(e);
+            }
+            if (compactTranscoder) {
+                final Map<Integer, MemcacheSerializer<?>> serializers = newSerializers();
+                transcoder = new CompactTranscoder(serializers, selected, dictionary, dictionaryThreshold);
+            } else {
+                transcoder = new CompressingTranscoder(selected, dictionary, dictionaryThreshold);
+            }
+        }
+        
+        if (metered) {
+            transcoder = new MeteredTranscoder(transcoder == null ? new SerializingTranscoder() : transcoder, metrics);
+        }
+        
+        if (transcoder != null) {
+            builder.setTranscoder(transcoder);
+        }
+        
+        final ConnectionFactory built = builder.build();
+        factory = CompletionListeners.decorate(meteredFactory == null ? built : meteredFactory.decorate(built));
+        selector = new ReplicaSelector(operationTimeout);
+        
+        if (circuitBreakerFailureRate > 0.0) {
+            final long slowCall = circuitBreakerSlowCall < 0 ? operationTimeout : circuitBreakerSlowCall;
+            breaker = new CircuitBreaker(circuitBreakerFailureRate, slowCall, circuitBreakerWindow,
+                circuitBreakerOpenTime, circuitBreakerProbes);
+            metrics.monitor(breaker);
+        }
+        
+        if (hedgeQuantile > 0.0) {
+            if (replicas > 1) {
+                hedging = new HedgePolicy(hedgeQuantile, hedgeBudget, hedgeMinDelay);
+                metrics.monitor(hedging);
+            } else {
+                LOG.warn("Hedged reads require at least 2 replicas, ignoring {}", MemcacheClientConfig.HEDGE_QUANTILE);
+            }
+        }
+        
+        if (metered) {
+            register();
+        }
+        
+        if (poolSize > 0) {
+            try {
+                pool = newPool(servers);
+            } catch (IOException e) {
+                throw new LifecycleException(e);
+            }
+        }
+        
+        if (hotKeysThreshold > 0) {
+            final HotKeyDetector detector = new HotKeyDetector(hotKeysThreshold, hotKeysMax,
+                TimeUnit.SECONDS.toMillis(hotKeysWindow), hotKeysSampling);
+            final String prefixes = localCachePrefixes == null ? "" : localCachePrefixes;
+            localCache = new MemcacheLocalCache(prefixes, localCacheMaxItems, localCacheMaxBytes,
+                detector, TimeUnit.SECONDS.toMillis(hotKeysTtl));
+            metrics.monitor(detector);
+        } else if (localCachePrefixes != null) {
+            localCache = new MemcacheLocalCache(localCachePrefixes, localCacheMaxItems, localCacheMaxBytes);
+        }
+        
+        if (batchWindow > 0) {
+            batcher = new MemcacheGetBatcher(batchWindow, batchMaxKeys, operationTimeout);
+        }
+        
+        completer = Executors.newFixedThreadPool(asyncCompleters,
+            new ThreadFactoryBuilder().setNameFormat("memcache-completer-%d").setDaemon(true).build());
+        
+        if (writeBehindCapacity > 0) {
+            try {
+                setBuffer = newSetBuffer(servers);
+            } catch (IOException e) {
+                dispose();
+                throw new LifecycleException(e);
+            }
         }
     }
     
-    @Override
-    public MemcachedClientIF get() {
+    private void register() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            LOG.warn("Unable to register memcache metrics in JMX", e);
+        }
+    }
+    
+    private void unregister() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
         try {
-            final MemcachedClient client = new MemcachedClient(factory, addresses);
-
-            if (compressionThreshold >= 0) {
-                final Transcoder<Object> transcoder = client.getTranscoder();
-                if (transcoder instanceof BaseSerializingTranscoder) {
-                    BaseSerializingTranscoder.class.cast(transcoder).setCompressionThreshold(compressionThreshold);
-                } else {
-                    throw new UnsupportedOperationException("Unable set compression threshold");
+            server.unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            LOG.warn("Unable to unregister memcache metrics from JMX", e);
+        }
+    }
+    
+    private MemcacheClientPool newPool(Map<InetSocketAddress, Integer> snapshot) throws IOException {
+        final List<MemcachedClientIF> clients = Lists.newArrayListWithCapacity(poolSize);
+        try {
+            for (int i = 0; i < poolSize; i++) {
+                clients.add(newClient(snapshot));
+            }
+        } catch (IOException e) {
+            for (MemcachedClientIF client : clients) {
+                client.shutdown();
+            }
+            throw e;
+        }
+        return new MemcacheClientPool(clients);
+    }
+    
+    private MemcacheSetBuffer newSetBuffer(Map<InetSocketAddress, Integer> snapshot) throws IOException {
+        final MemcachedClientIF client = newClient(snapshot);
+        return new MemcacheSetBuffer(client, writeBehindCapacity, writeBehindInterval, operationTimeout,
+            writeBehindOverflow);
+    }
+    
+    private Map<Integer, MemcacheSerializer<?>> newSerializers() throws LifecycleException {
+        final Map<Integer, MemcacheSerializer<?>> serializers = Maps.newHashMap();
+        if (transcoderSerializers == null) {
+            return serializers;
+        }
+        for (String registration : Splitter.on(' ').trimResults().omitEmptyStrings().split(transcoderSerializers)) {
+            final int index = registration.indexOf(':');
+            Preconditions.checkArgument(index > 0, "Invalid serializer registration %s", registration);
+            final Integer id = Integer.valueOf(registration.substring(0, index));
+            final String className = registration.substring(index + 1);
+            try {
+                final Class<?> type = Class.forName(className);
+                final MemcacheSerializer<?> serializer = MemcacheSerializer.class.cast(type.newInstance());
+                Preconditions.checkArgument(serializers.put(id, serializer) == null, "Id %s registered twice", id);
+            } catch (ClassNotFoundException e) {
+                throw new LifecycleException(e);
+            } catch (InstantiationException e) {
+                throw new LifecycleException(e);
+            } catch (IllegalAccessException e) {
+                throw new LifecycleException(e);
+            }
+        }
+        return serializers;
+    }
+    
+    private MemcachedClientIF newClient(Map<InetSocketAddress, Integer> snapshot) throws IOException {
+        // the default native hash spreads keys badly on the continuum
+        final HashAlgorithm algorithm = hashAlgorithm == HashAlgorithm.NATIVE_HASH ?
+            HashAlgorithm.KETAMA_HASH : hashAlgorithm;
+        
+        if (replicas > 1 && snapshot.size() > 1) {
+            final Map<InetSocketAddress, MemcachedClientIF> clients = Maps.newLinkedHashMap();
+            final List<MemcachedNode> nodes = Lists.newArrayList();
+            try {
+                for (InetSocketAddress address : snapshot.keySet()) {
+                    final MemcachedClient client = configure(new MemcachedClient(factory, ImmutableList.of(address)));
+                    nodes.addAll(client.getNodeLocator().getAll());
+                    clients.put(address, guard(client));
                 }
+            } catch (IOException e) {
+                for (MemcachedClientIF client : clients.values()) {
+                    client.shutdown();
+                }
+                throw e;
             }
-
-            return new DestroyableMemcachedClient(client);
+            final NodeLocator ring = new WeightedKetamaNodeLocator(nodes, snapshot, algorithm);
+            return new ReplicatedMemcachedClient(clients, ring, replicas, selector, hedging, operationTimeout);
+        }
+        
+        final List<InetSocketAddress> addresses = Lists.newArrayList(snapshot.keySet());
+        if (locator == Locator.CONSISTENT) {
+            final ConnectionFactory locating = LocatingConnectionFactory.of(factory, snapshot, algorithm);
+            return guard(configure(new MemcachedClient(locating, addresses)));
+        } else {
+            return guard(configure(new MemcachedClient(factory, addresses)));
+        }
+    }
+    
+    private MemcachedClientIF guard(MemcachedClient client) {
+        if (breaker == null) {
+            return client;
+        } else {
+            client.addObserver(breaker);
+            return new CircuitBreakingMemcachedClient(client, breaker);
+        }
+    }
+    
+    private MemcachedClient configure(MemcachedClient client) {
+        if (compressionThreshold >= 0) {
+            final Transcoder<Object> transcoder = client.getTranscoder() instanceof MeteredTranscoder ?
+                MeteredTranscoder.class.cast(client.getTranscoder()).getDelegate() : client.getTranscoder();
+            if (transcoder instanceof BaseSerializingTranscoder) {
+                BaseSerializingTranscoder.class.cast(transcoder).setCompressionThreshold(compressionThreshold);
+            } else {
+                client.shutdown();
+                throw new UnsupportedOperationException("Unable set compression threshold");
+            }
+        }
+        
+        return client;
+    }
+    
+    @Override
+    public MemcachedClientIF get() {
+        MemcachedClientIF client;
+        
+        if (pool == null) {
+            try {
+                client = new DestroyableMemcachedClient(newClient(servers));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        } else {
+            client = new MemcachedClientLease(pool.lease());
+        }
+        
+        if (batcher != null) {
+            client = new BatchingMemcachedClient(client, batcher, operationTimeout);
+        }
+        
+        if (metered) {
+            client = new MeteredMemcachedClient(client, metrics);
+        }
+        
+        if (setBuffer != null) {
+            client = new WriteBehindMemcachedClient(client, setBuffer);
+        }
+        
+        if (localCache != null) {
+            client = new LocalCacheMemcachedClient(client, localCache);
+        }
+        
+        return nearCache ? new NearCacheMemcachedClient(client, metered ? metrics : null) : client;
+    }
+    
+    /**
+     * Creates an {@link AsyncMemcacheClient} on top of the given client.
+     *
+     * @param client the client
+     * @return a new asynchronous client
+     */
+    AsyncMemcacheClient newAsyncClient(MemcachedClientIF client) {
+        Preconditions.checkState(completer != null, "Not initialized");
+        return new AsyncMemcacheClient(client, completer, operationTimeout);
+    }
+    
+    /**
+     * Provides the connection factory all clients are created with.
+     *
+     * @return the connection factory, null until initialized
+     */
+    ConnectionFactory getConnectionFactory() {
+        return factory;
+    }
+    
+    @Override
+    public Map<InetSocketAddress, Integer> getServers() {
+        return servers;
+    }
+    
+    @Override
+    public synchronized void reload(String addresses) {
+        final Map<InetSocketAddress, Integer> next = WeightedAddresses.parse(addresses);
+        final MemcacheClientPool stalePool = pool;
+        final MemcacheSetBuffer staleBuffer = setBuffer;
+        
+        MemcacheClientPool nextPool = null;
+        try {
+            nextPool = stalePool == null ? null : newPool(next);
+            final MemcacheSetBuffer nextBuffer = staleBuffer == null ? null : newSetBuffer(next);
+            LOG.info("Switching memcache servers from {} to {}", servers, next);
+            servers = next;
+            pool = nextPool;
+            setBuffer = nextBuffer;
         } catch (IOException e) {
+            if (nextPool != null) {
+                nextPool.shutdown();
+            }
             throw new IllegalStateException(e);
         }
+        
+        if (stalePool != null || staleBuffer != null) {
+            retire(stalePool, staleBuffer);
+        }
+    }
+    
+    /**
+     * Shuts down replaced shared clients once units of work which leased them had
+     * the chance to complete and their queued operations drained.
+     */
+    private void retire(final MemcacheClientPool stalePool, final MemcacheSetBuffer staleBuffer) {
+        final Thread thread = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(drainTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (staleBuffer != null) {
+                    staleBuffer.shutdown(operationTimeout);
+                }
+                if (stalePool != null) {
+                    stalePool.shutdown(operationTimeout, TimeUnit.MILLISECONDS);
+                }
+                LOG.debug("Retired stale memcache clients");
+            }
+            
+        }, "memcache-retire");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    @Override
+    public void dispose() throws LifecycleException {
+        if (setBuffer != null) {
+            setBuffer.shutdown(operationTimeout);
+        }
+        if (completer != null) {
+            completer.shutdown();
+        }
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        if (metered) {
+            unregister();
+        }
     }
     
 }
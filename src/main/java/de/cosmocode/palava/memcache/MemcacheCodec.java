@@ -0,0 +1,349 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Compression codecs supported by {@link CompressingTranscoder}. The id of the used
+ * codec is stored in the flags of each value.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+public enum MemcacheCodec {
+
+    /**
+     * GZIP, as used by the spymemcached transcoders. Id 0, so values compressed by
+     * them are read as GZIP.
+     */
+    GZIP(0) {
+
+        @Override
+        byte[] compress(byte[] data, int offset, int length, byte[] dictionary) throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2);
+            final GZIPOutputStream stream = new GZIPOutputStream(bytes);
+            stream.write(data, offset, length);
+            stream.close();
+            return bytes.toByteArray();
+        }
+
+        @Override
+        byte[] decompress(byte[] data, byte[] dictionary) throws IOException {
+            return ByteStreams.toByteArray(openStream(data, dictionary));
+        }
+
+        @Override
+        void decompress(byte[] data, byte[] dictionary, byte[] target) throws IOException {
+            final InputStream stream = openStream(data, dictionary);
+            try {
+                final int length = ByteStreams.read(stream, target, 0, target.length);
+                if (length == target.length && stream.read() != -1) {
+                    throw new IOException("Value exceeds " + target.length + " bytes");
+                }
+            } finally {
+                stream.close();
+            }
+        }
+
+        @Override
+        int lengthOf(byte[] data) throws IOException {
+            // the trailer holds the uncompressed length modulo 2^32, little endian
+            final int end = data.length;
+            if (end < GZIP_MIN_SIZE) {
+                throw new IOException("Corrupt value");
+            }
+            final int length = ((data[end - 1] & 0xff) << 24) | ((data[end - 2] & 0xff) << 16) |
+                ((data[end - 3] & 0xff) << 8) | (data[end - 4] & 0xff);
+            if (length < 0) {
+                throw new IOException("Corrupt value");
+            }
+            return length;
+        }
+
+        @Override
+        InputStream openStream(byte[] data, byte[] dictionary) throws IOException {
+            return new GZIPInputStream(new ByteArrayInputStream(data));
+        }
+
+    },
+
+    /**
+     * LZ4, much faster than GZIP at a slightly lower compression ratio.
+     */
+    LZ4(1) {
+
+        @Override
+        byte[] compress(byte[] data, int offset, int length, byte[] dictionary) {
+            final LZ4Compressor compressor = Lz4.COMPRESSOR;
+            final byte[] result = PooledBuffers.scratch(4 + compressor.maxCompressedLength(length));
+            writeLength(length, result);
+            final int compressed = compressor.compress(data, offset, length, result, 4);
+            return Arrays.copyOf(result, 4 + compressed);
+        }
+
+        @Override
+        int lengthOf(byte[] data) throws IOException {
+            final int length = super.lengthOf(data);
+            // the header is not trusted, a forged length must not allocate huge buffers
+            if (length > (data.length - 4L) * Lz4.MAX_RATIO) {
+                throw new IOException("Corrupt value");
+            }
+            return length;
+        }
+
+        @Override
+        void decompress(byte[] data, byte[] dictionary, byte[] target) throws IOException {
+            final int length = lengthOf(data);
+            // the safe decompressor checks the bounds instead of trusting the length
+            try {
+                if (Lz4.DECOMPRESSOR.decompress(data, 4, data.length - 4, target, 0, length) != length) {
+                    throw new IOException("Corrupt value");
+                }
+            } catch (LZ4Exception e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+    },
+
+    /**
+     * Deflate using the fastest level and the configured preset dictionary, which
+     * makes compressing small, similar payloads worthwhile.
+     */
+    DEFLATE(2) {
+
+        @Override
+        byte[] compress(byte[] data, int offset, int length, byte[] dictionary) {
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(data, offset, length);
+                deflater.finish();
+                // anything longer than the input is not worth it
+                final byte[] result = PooledBuffers.scratch(length);
+                writeLength(length, result);
+                int written = 4;
+                while (!deflater.finished() && written < length) {
+                    written += deflater.deflate(result, written, length - written);
+                }
+                return deflater.finished() ? Arrays.copyOf(result, written) :
+                    Arrays.copyOfRange(data, offset, offset + length);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        void decompress(byte[] data, byte[] dictionary, byte[] target) throws IOException {
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, 4, data.length - 4);
+                final int total = lengthOf(data);
+                int length = 0;
+                while (!inflater.finished()) {
+                    final int count = inflater.inflate(target, length, total - length);
+                    if (count > 0) {
+                        length += count;
+                    } else if (inflater.needsDictionary() && dictionary != null) {
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsDictionary()) {
+                        throw new IOException("Value requires a dictionary");
+                    } else if (inflater.needsInput() || length == total) {
+                        throw new IOException("Corrupt value");
+                    }
+                }
+                // a stream ending early would leave trailing zeros
+                if (length != total) {
+                    throw new IOException("Corrupt value");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+
+    };
+
+    /**
+     * Size of the GZIP header and trailer.
+     */
+    private static final int GZIP_MIN_SIZE = 18;
+
+    private final int id;
+
+    private MemcacheCodec(int id) {
+        this.id = id;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Compresses the given data.
+     *
+     * @param data the uncompressed data
+     * @param dictionary the preset dictionary, may be null
+     * @return the compressed data
+     * @throws IOException if compressing failed
+     */
+    final byte[] compress(byte[] data, byte[] dictionary) throws IOException {
+        return compress(data, 0, data.length, dictionary);
+    }
+
+    /**
+     * Compresses a range of the given data.
+     *
+     * @param data the uncompressed data
+     * @param offset the offset of the range
+     * @param length the length of the range
+     * @param dictionary the preset dictionary, may be null
+     * @return the compressed data
+     * @throws IOException if compressing failed
+     */
+    abstract byte[] compress(byte[] data, int offset, int length, byte[] dictionary) throws IOException;
+
+    /**
+     * Decompresses the given data.
+     *
+     * @param data the compressed data
+     * @param dictionary the preset dictionary, may be null
+     * @return the uncompressed data
+     * @throws IOException if decompressing failed
+     */
+    byte[] decompress(byte[] data, byte[] dictionary) throws IOException {
+        final byte[] result = new byte[lengthOf(data)];
+        decompress(data, dictionary, result);
+        return result;
+    }
+
+    /**
+     * Decompresses the given data into the given target, which must be large enough
+     * to hold the uncompressed data.
+     *
+     * @param data the compressed data
+     * @param dictionary the preset dictionary, may be null
+     * @param target the target
+     * @throws IOException if decompressing failed
+     */
+    abstract void decompress(byte[] data, byte[] dictionary, byte[] target) throws IOException;
+
+    /**
+     * Opens a stream reading the uncompressed data. The stream may be backed by
+     * a {@link PooledBuffers pooled buffer}, so it must be consumed before the current
+     * thread uses the pool again.
+     *
+     * @param data the compressed data
+     * @param dictionary the preset dictionary, may be null
+     * @return a stream of the uncompressed data
+     * @throws IOException if decompressing failed
+     */
+    InputStream openStream(byte[] data, byte[] dictionary) throws IOException {
+        final int length = lengthOf(data);
+        final byte[] target = PooledBuffers.scratch(length);
+        decompress(data, dictionary, target);
+        return new ByteArrayInputStream(target, 0, length);
+    }
+
+    /**
+     * Reads the uncompressed length from the header of the given data.
+     *
+     * @param data the compressed data
+     * @return the uncompressed length
+     * @throws IOException if the header is corrupt
+     */
+    int lengthOf(byte[] data) throws IOException {
+        return readLength(data);
+    }
+
+    private static void writeLength(int length, byte[] target) {
+        target[0] = (byte) (length >>> 24);
+        target[1] = (byte) (length >>> 16);
+        target[2] = (byte) (length >>> 8);
+        target[3] = (byte) length;
+    }
+
+    private static int readLength(byte[] source) throws IOException {
+        if (source.length < 4) {
+            throw new IOException("Corrupt value");
+        }
+        final int length =
+            ((source[0] & 0xff) << 24) | ((source[1] & 0xff) << 16) | ((source[2] & 0xff) << 8) | (source[3] & 0xff);
+        if (length < 0) {
+            throw new IOException("Corrupt value");
+        }
+        return length;
+    }
+
+    /**
+     * Holds the thread-safe LZ4 instances, loaded once LZ4 is used.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private static final class Lz4 {
+
+        // the highest ratio LZ4 can reach
+        private static final int MAX_RATIO = 255;
+
+        private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+
+        private static final LZ4SafeDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().safeDecompressor();
+
+        private Lz4() {
+
+        }
+
+    }
+
+    /**
+     * Looks up the codec with the given id.
+     *
+     * @param id the id
+     * @return the codec
+     * @throws IllegalArgumentException if there is no such codec
+     */
+    static MemcacheCodec of(int id) {
+        for (MemcacheCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown codec " + id);
+    }
+
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.AbstractListenableFuture;
+
+/**
+ * A {@link Future} which is completed explicitly by the code producing its result
+ * and notifies its listeners when it is done. It can be cancelled, subclasses
+ * propagate the cancellation to the operations producing the result.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ * @param <V> the generic result type
+ */
+class MemcacheFuture<V> extends AbstractListenableFuture<V> {
+
+    @Override
+    public boolean set(V value) {
+        return super.set(value);
+    }
+
+    @Override
+    public boolean setException(Throwable throwable) {
+        return super.setException(throwable);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return cancel();
+    }
+
+}
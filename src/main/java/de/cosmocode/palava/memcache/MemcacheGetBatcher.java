@@ -0,0 +1,245 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.OperationTimeoutException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Coalesces concurrent single key gets into bulk gets. Requests are collected
+ * until either the window elapsed or the maximum number of keys is reached and then
+ * sent using one {@link MemcachedClientIF#asyncGetBulk(java.util.Collection)} per client
+ * the requests were made for, which in turn issues one multi-get per server. Sending the
+ * bulk get using the requesting client keeps it behind the writes the caller issued before.
+ * Batches complete from the callbacks of their operations, a batch which does not complete
+ * within the operation timeout fails all of its requests.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class MemcacheGetBatcher implements Runnable {
+
+    private final long window;
+
+    private final int maxKeys;
+
+    private final long timeout;
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates and starts a new batcher.
+     *
+     * @param window the time to wait for further keys, in microseconds
+     * @param maxKeys the maximum number of keys per batch
+     * @param timeout the maximum time to wait for a bulk result, in milliseconds
+     */
+    MemcacheGetBatcher(long window, int maxKeys, long timeout) {
+        Preconditions.checkArgument(window >= 0, "Window must not be negative, but was %s", window);
+        Preconditions.checkArgument(maxKeys > 0, "MaxKeys must be positive, but was %s", maxKeys);
+        Preconditions.checkArgument(timeout > 0, "Timeout must be positive, but was %s", timeout);
+        this.window = TimeUnit.MICROSECONDS.toNanos(window);
+        this.maxKeys = maxKeys;
+        this.timeout = timeout;
+        this.thread = new Thread(this, "memcache-get-batcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Schedules a get of the given key using the given client with the next batch.
+     *
+     * @param client the client used for the bulk get
+     * @param key the key
+     * @return a future holding the value or null on a miss
+     */
+    Future<Object> get(MemcachedClientIF client, String key) {
+        Preconditions.checkNotNull(client, "Client");
+        Preconditions.checkNotNull(key, "Key");
+        final Request request = new Request(client, key);
+        if (running) {
+            queue.add(request);
+            if (!running) {
+                // shut down concurrently, the request may have missed the final drain
+                drain();
+            }
+        } else {
+            request.setException(new IllegalStateException("Batcher has been shut down"));
+        }
+        return request;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            final List<Request> batch = Lists.newArrayList();
+            try {
+                batch.add(queue.take());
+                final long deadline = System.nanoTime() + window;
+                while (batch.size() < maxKeys) {
+                    final Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(batch, e);
+                break;
+            }
+            for (Map.Entry<MemcachedClientIF, List<Request>> entry : byClient(batch).entrySet()) {
+                dispatch(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private Map<MemcachedClientIF, List<Request>> byClient(List<Request> batch) {
+        final Map<MemcachedClientIF, List<Request>> byClient = new IdentityHashMap<MemcachedClientIF, List<Request>>();
+        for (Request request : batch) {
+            List<Request> requests = byClient.get(request.client);
+            if (requests == null) {
+                requests = Lists.newArrayList();
+                byClient.put(request.client, requests);
+            }
+            requests.add(request);
+        }
+        return byClient;
+    }
+
+    private void dispatch(MemcachedClientIF client, final List<Request> batch) {
+        final Set<String> keys = Sets.newHashSetWithExpectedSize(batch.size());
+        for (Request request : batch) {
+            keys.add(request.key);
+        }
+        
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Map<String, Object>> future;
+        try {
+            future = client.asyncGetBulk(keys);
+        } catch (RuntimeException e) {
+            fail(batch, e);
+            return;
+        } finally {
+            capture.stop();
+        }
+        
+        capture.listen(future, new Runnable() {
+
+            @Override
+            public void run() {
+                complete(batch, future);
+            }
+
+        });
+        CompletionListeners.expire(future, timeout, new Runnable() {
+
+            @Override
+            public void run() {
+                fail(batch, new OperationTimeoutException("Timeout waiting for bulk values"));
+                future.cancel(false);
+            }
+
+        });
+    }
+
+    private void complete(List<Request> batch, Future<Map<String, Object>> future) {
+        final Map<String, Object> values;
+        try {
+            values = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(batch, e);
+            return;
+        } catch (ExecutionException e) {
+            fail(batch, e.getCause());
+            return;
+        } catch (CancellationException e) {
+            fail(batch, e);
+            return;
+        }
+        for (Request request : batch) {
+            request.set(values.get(request.key));
+        }
+    }
+
+    private void fail(List<Request> batch, Throwable throwable) {
+        for (Request request : batch) {
+            request.setException(throwable);
+        }
+    }
+
+    /**
+     * Stops batching and fails pending requests. Batches already sent complete
+     * from their operations, the clients are owned by the callers.
+     */
+    void shutdown() {
+        running = false;
+        thread.interrupt();
+        drain();
+    }
+
+    private void drain() {
+        final List<Request> pending = Lists.newArrayList();
+        queue.drainTo(pending);
+        fail(pending, new IllegalStateException("Batcher has been shut down"));
+    }
+
+    @Override
+    public String toString() {
+        return "MemcacheGetBatcher [window=" + TimeUnit.NANOSECONDS.toMicros(window) + "us, maxKeys=" + maxKeys + "]";
+    }
+
+    /**
+     * A single pending get.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private static final class Request extends MemcacheFuture<Object> {
+
+        private final MemcachedClientIF client;
+
+        private final String key;
+
+        Request(MemcachedClientIF client, String key) {
+            this.client = client;
+            this.key = key;
+        }
+
+    }
+
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.MemcachedClientIF;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.ipc.Current;
+
+/**
+ * Loads missing values while preventing thundering herds. Only one loader runs per key
+ * in this JVM, concurrent callers wait for its result. Across JVMs a short lease, acquired
+ * using {@link MemcachedClientIF#add(String, int, Object)}, makes sure only one node
+ * recomputes the value while the others poll for it. If the lease can't be acquired
+ * because memcached failed or timed out, the value is loaded locally and the lease,
+ * which might belong to another node, is left alone.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+public final class MemcacheLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemcacheLoader.class);
+
+    private static final String LEASE_SUFFIX = ":lease";
+
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+
+    };
+
+    private static final String LEASE_VALUE = "1";
+
+    private final Provider<MemcachedClientIF> currentClient;
+
+    private final ConcurrentMap<String, MemcacheFuture<Object>> inFlight = Maps.newConcurrentMap();
+
+    private int leaseTime = 5;
+
+    private long pollInterval = 50;
+
+    private double beta = 1.0;
+
+    private long operationTimeout = DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT;
+
+    // null uses the random of the current thread
+    private Random random;
+
+    @Inject
+    MemcacheLoader(@Current Provider<MemcachedClientIF> currentClient) {
+        this.currentClient = Preconditions.checkNotNull(currentClient, "CurrentClient");
+    }
+
+    @Inject(optional = true)
+    void setLeaseTime(@Named(MemcacheClientConfig.LEASE_TIME) int leaseTime) {
+        Preconditions.checkArgument(leaseTime > 0, "Lease time must be positive, but was %s", leaseTime);
+        this.leaseTime = leaseTime;
+    }
+
+    @Inject(optional = true)
+    void setPollInterval(@Named(MemcacheClientConfig.LEASE_POLL_INTERVAL) long pollInterval) {
+        Preconditions.checkArgument(pollInterval > 0, "Poll interval must be positive, but was %s", pollInterval);
+        this.pollInterval = pollInterval;
+    }
+
+    @Inject(optional = true)
+    void setOperationTimeout(@Named(MemcacheClientConfig.OPERATION_TIMEOUT) long operationTimeout) {
+        Preconditions.checkArgument(operationTimeout > 0, "Timeout must be positive, but was %s", operationTimeout);
+        this.operationTimeout = operationTimeout;
+    }
+
+    @Inject(optional = true)
+    void setBeta(@Named(MemcacheClientConfig.XFETCH_BETA) double beta) {
+        Preconditions.checkArgument(beta > 0, "Beta must be positive, but was %s", beta);
+        this.beta = beta;
+    }
+
+    /**
+     * Replaces the thread local randomness of early expiration, used by tests.
+     *
+     * @param random the random, null for the thread local one
+     */
+    void setRandom(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Gets the value of the given key or loads and stores it if it is missing.
+     *
+     * @param <T> the generic value type
+     * @param key the key
+     * @param ttl the expiration of the loaded value in seconds
+     * @param loader the loader computing missing values
+     * @return the cached or loaded value
+     * @throws ExecutionException if the loader failed
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getOrLoad(String key, int ttl, Callable<? extends T> loader) throws ExecutionException {
+        return (T) get(key, ttl, loader, false);
+    }
+
+    /**
+     * Like {@link #getOrLoad(String, int, Callable)} but refreshes values before they expire
+     * using probabilistic early expiration (XFetch). Values are stored together with the time
+     * it took to compute them and their logical expiry. Each read recomputes the value
+     * with a probability rising as the expiry approaches and as the computation gets more expensive,
+     * all other readers keep getting the cached value. Values of this method must not be read
+     * using {@link #getOrLoad(String, int, Callable)} and vice versa.
+     *
+     * @param <T> the generic value type
+     * @param key the key
+     * @param ttl the expiration of the loaded value in seconds, must be positive
+     * @param loader the loader computing missing values
+     * @return the cached or loaded value
+     * @throws ExecutionException if the loader failed
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getOrRefresh(String key, int ttl, Callable<? extends T> loader) throws ExecutionException {
+        Preconditions.checkArgument(ttl > 0, "Ttl must be positive, but was %s", ttl);
+        return (T) get(key, ttl, loader, true);
+    }
+
+    private Object get(String key, int ttl, Callable<?> loader, boolean early) throws ExecutionException {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(loader, "Loader");
+        final MemcachedClientIF client = currentClient.get();
+        
+        final Object cached = client.get(key);
+        final Object stale;
+        
+        if (early && cached instanceof EarlyExpiringValue) {
+            final EarlyExpiringValue value = EarlyExpiringValue.class.cast(cached);
+            final Random source = random == null ? RANDOM.get() : random;
+            if (!value.isDue(beta, source, System.currentTimeMillis()) || inFlight.containsKey(key)) {
+                return value.getValue();
+            }
+            stale = value.getValue();
+        } else if (cached != null && !early) {
+            return cached;
+        } else {
+            stale = null;
+        }
+        
+        final MemcacheFuture<Object> future = new MemcacheFuture<Object>();
+        final MemcacheFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        
+        if (existing == null) {
+            try {
+                final Object value = load(client, key, ttl, loader, early, stale);
+                future.set(value);
+                return value;
+            } catch (ExecutionException e) {
+                future.setException(e.getCause());
+                throw e;
+            } finally {
+                if (!future.isDone()) {
+                    future.setException(new IllegalStateException("Loading " + key + " failed"));
+                }
+                inFlight.remove(key, future);
+            }
+        } else if (stale == null) {
+            try {
+                return existing.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for " + key, e);
+            }
+        } else {
+            return stale;
+        }
+    }
+
+    private Object load(MemcachedClientIF client, String key, int ttl, Callable<?> loader, 
+        boolean early, Object stale) throws ExecutionException {
+        final String lease = key + LEASE_SUFFIX;
+        
+        final Boolean acquired = acquire(client, lease);
+        if (acquired == null) {
+            // unknown whether the lease is ours, so it must not be deleted
+            return compute(client, key, ttl, loader, early);
+        } else if (acquired.booleanValue()) {
+            try {
+                return compute(client, key, ttl, loader, early);
+            } finally {
+                client.delete(lease);
+            }
+        } else if (stale != null) {
+            // another node is already refreshing
+            return stale;
+        }
+        
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(leaseTime);
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            // bypasses the per unit memoization of the previous miss
+            final Object value = poll(client, key);
+            if (value instanceof EarlyExpiringValue) {
+                return EarlyExpiringValue.class.cast(value).getValue();
+            } else if (value != null) {
+                return value;
+            }
+        }
+        
+        LOG.debug("Lease holder of {} did not store a value in time, loading locally", key);
+        return compute(client, key, ttl, loader, early);
+    }
+
+    /**
+     * Tries to acquire the given lease.
+     *
+     * @param client the client
+     * @param lease the lease key
+     * @return true if acquired, false if held by another node or null if unknown
+     */
+    private Boolean acquire(MemcachedClientIF client, String lease) {
+        try {
+            final Future<Boolean> future = client.add(lease, leaseTime, LEASE_VALUE);
+            return future.get(operationTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOG.warn("Unable to acquire lease " + lease, e.getCause());
+            return null;
+        } catch (TimeoutException e) {
+            LOG.warn("Timeout while acquiring lease {}", lease);
+            return null;
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to acquire lease " + lease, e);
+            return null;
+        }
+    }
+
+    private Object poll(MemcachedClientIF client, String key) {
+        final Future<Object> future = client.asyncGet(key);
+        try {
+            return future.get(pollInterval, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            return null;
+        }
+    }
+
+    private Object compute(MemcachedClientIF client, String key, int ttl, Callable<?> loader, boolean early) 
+        throws ExecutionException {
+        final long start = System.currentTimeMillis();
+        final Object value;
+        try {
+            value = loader.call();
+        } catch (Exception e) {
+            throw new ExecutionException(e);
+        }
+        if (value == null) {
+            return null;
+        } else if (early) {
+            final long now = System.currentTimeMillis();
+            final long expiry = now + TimeUnit.SECONDS.toMillis(ttl);
+            client.set(key, ttl, new EarlyExpiringValue(value, now - start, expiry));
+        } else {
+            client.set(key, ttl, value);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "MemcacheLoader [leaseTime=" + leaseTime + ", inFlight=" + inFlight.size() + "]";
+    }
+
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.spy.memcached.CachedData;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.hash.SizedItem;
+
+/**
+ * A process-wide, size and weight bounded cache which keeps values of selected
+ * key prefixes in the JVM for a short time. Entries are only invalidated by writes
+ * from this JVM, other nodes' writes become visible when the local ttl expires.
+ * Besides configured prefixes, keys found hot by a {@link HotKeyDetector} are cached
+ * as well.
+ *
+ * <p>
+ *   Values are kept encoded. Every invalidation advances the stamp of the key's stripe,
+ *   a value read before is dropped once it gets put, so a slow read can't restore the
+ *   value a concurrent write replaced.
+ * </p>
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class MemcacheLocalCache {
+
+    private static final int STRIPES = 64;
+
+    private static final Splitter SPACE = Splitter.on(' ').trimResults().omitEmptyStrings();
+
+    private static final Comparator<Rule> LONGEST_PREFIX_FIRST = new Comparator<Rule>() {
+
+        @Override
+        public int compare(Rule left, Rule right) {
+            return right.prefix.length() - left.prefix.length();
+        }
+
+    };
+
+    private final List<Rule> rules;
+
+    private final ConcurrentLinkedHashMap<String, Entry> entries;
+
+    private final HotKeyDetector detector;
+
+    private final long hotTtl;
+
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+
+    /**
+     * Creates a new local cache.
+     *
+     * @param prefixes format: "prefix1:ttlSeconds prefix2:ttlSeconds"
+     * @param maxItems the maximum number of entries
+     * @param maxBytes the maximum accumulated weight of all entries
+     */
+    MemcacheLocalCache(String prefixes, int maxItems, long maxBytes) {
+        this(prefixes, maxItems, maxBytes, null, -1L);
+    }
+
+    /**
+     * Creates a new local cache which also caches hot keys.
+     *
+     * @param prefixes format: "prefix1:ttlSeconds prefix2:ttlSeconds"
+     * @param maxItems the maximum number of entries
+     * @param maxBytes the maximum accumulated weight of all entries
+     * @param detector the detector finding hot keys, may be null
+     * @param hotTtl the local ttl of hot keys in milliseconds
+     */
+    MemcacheLocalCache(String prefixes, int maxItems, long maxBytes, HotKeyDetector detector, long hotTtl) {
+        Preconditions.checkNotNull(prefixes, "Prefixes");
+        Preconditions.checkArgument(detector == null || hotTtl > 0, "Hot ttl must be positive, but was %s", hotTtl);
+        this.detector = detector;
+        this.hotTtl = hotTtl;
+        final List<Rule> list = Lists.newArrayList();
+        for (String rule : SPACE.split(prefixes)) {
+            final int index = rule.lastIndexOf(':');
+            Preconditions.checkArgument(index > 0, "Invalid local cache rule %s", rule);
+            final int ttl = Integer.parseInt(rule.substring(index + 1));
+            Preconditions.checkArgument(ttl > 0, "Ttl of %s must be positive", rule);
+            list.add(new Rule(rule.substring(0, index), TimeUnit.SECONDS.toMillis(ttl)));
+        }
+        Collections.sort(list, LONGEST_PREFIX_FIRST);
+        this.rules = ImmutableList.copyOf(list);
+        this.entries = ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.LRU, maxItems, maxBytes);
+    }
+
+    private long ttlOf(String key) {
+        for (Rule rule : rules) {
+            if (key.startsWith(rule.prefix)) {
+                return rule.ttl;
+            }
+        }
+        return detector != null && detector.isHot(key) ? hotTtl : -1L;
+    }
+
+    /**
+     * Counts a read of the given key in order to detect hot keys.
+     *
+     * @param key the key
+     */
+    void record(String key) {
+        if (detector != null) {
+            detector.record(key);
+        }
+    }
+
+    /**
+     * Checks whether the given key is cached locally at all.
+     *
+     * @param key the key
+     * @return true if the key matches a configured prefix
+     */
+    boolean isCacheable(String key) {
+        return ttlOf(key) > 0;
+    }
+
+    /**
+     * Looks up a value.
+     *
+     * @param key the key
+     * @return the cached encoded value or null if there is none or it expired
+     */
+    CachedData get(String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        } else if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(key, entry);
+            return null;
+        } else {
+            return entry.data;
+        }
+    }
+
+    private static int stripeOf(String key) {
+        return key.hashCode() & (STRIPES - 1);
+    }
+
+    /**
+     * Provides the current stamp of the given key, to be taken before reading the value
+     * which will be passed to {@link #put(String, CachedData, long)}.
+     *
+     * @param key the key
+     * @return the stamp
+     */
+    long stamp(String key) {
+        return stamps.get(stripeOf(key));
+    }
+
+    /**
+     * Caches a value if its key matches a configured prefix and was not invalidated
+     * since the given stamp was taken.
+     *
+     * @param key the key
+     * @param data the encoded value, weighed by its length
+     * @param stamp the stamp taken before the value was read
+     */
+    void put(String key, CachedData data, long stamp) {
+        final long ttl = ttlOf(key);
+        if (ttl > 0 && data != null) {
+            final Entry entry = new Entry(data, System.currentTimeMillis() + ttl);
+            entries.put(key, entry);
+            // checked after the put, an invalidation in between removes it anyway
+            if (stamps.get(stripeOf(key)) != stamp) {
+                entries.remove(key, entry);
+            }
+        }
+    }
+
+    void invalidate(String key) {
+        stamps.incrementAndGet(stripeOf(key));
+        entries.remove(key);
+    }
+
+    void invalidateAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            stamps.incrementAndGet(i);
+        }
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getMemoryUsed() {
+        return entries.getMemoryUsed();
+    }
+
+    @Override
+    public String toString() {
+        return "MemcacheLocalCache [rules=" + rules + ", size=" + entries.size() + "]";
+    }
+
+    /**
+     * A prefix with its local ttl.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private static final class Rule {
+
+        private final String prefix;
+        private final long ttl;
+
+        Rule(String prefix, long ttl) {
+            this.prefix = prefix;
+            this.ttl = ttl;
+        }
+
+        @Override
+        public String toString() {
+            return prefix + ":" + TimeUnit.MILLISECONDS.toSeconds(ttl);
+        }
+
+    }
+
+    /**
+     * A locally cached value.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private static final class Entry implements SizedItem {
+
+        private final CachedData data;
+        private final long expiresAt;
+
+        Entry(CachedData data, long expiresAt) {
+            this.data = data;
+            this.expiresAt = expiresAt;
+        }
+
+        @Override
+        public int size() {
+            return data.getData().length;
+        }
+
+    }
+
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.group.ChannelGroupFuture;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.thimbleware.jmemcached.Cache;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.MemCacheDaemon;
+import com.thimbleware.jmemcached.protocol.binary.MemcachedBinaryPipelineFactory;
+import com.thimbleware.jmemcached.protocol.text.MemcachedPipelineFactory;
+
+/**
+ * A replacement for {@link MemCacheDaemon} which uses the same protocol pipelines
+ * but exposes the thread and socket settings of the underlying netty server.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class MemcacheLocalDaemon {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemcacheLocalDaemon.class);
+
+    private static final int FRAME_SIZE = 32 * 1024 * 1024;
+
+    private final Cache<LocalCacheElement> cache;
+
+    private final InetSocketAddress address;
+
+    private boolean binary;
+
+    private boolean verbose;
+
+    private int idleTime;
+
+    private int workers = Runtime.getRuntime().availableProcessors() * 2;
+
+    private int backlog = 1024;
+
+    private boolean tcpNoDelay = true;
+
+    private int receiveBufferSize = 64 * 1024;
+
+    private int sendBufferSize = 64 * 1024;
+
+    private boolean directBuffers;
+
+    private NioServerSocketChannelFactory channelFactory;
+
+    private DefaultChannelGroup channels;
+
+    MemcacheLocalDaemon(Cache<LocalCacheElement> cache, InetSocketAddress address) {
+        this.cache = Preconditions.checkNotNull(cache, "Cache");
+        this.address = Preconditions.checkNotNull(address, "Address");
+    }
+
+    void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    void setIdleTime(int idleTime) {
+        this.idleTime = idleTime;
+    }
+
+    void setWorkers(int workers) {
+        Preconditions.checkArgument(workers > 0, "Workers must be positive, but was %s", workers);
+        this.workers = workers;
+    }
+
+    void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * Enables pooled direct buffers for reading requests and writing responses.
+     * Stored values are slices of these buffers unless the storage copies them,
+     * i.e. this should only be enabled for the off-heap storage.
+     *
+     * @param directBuffers true to use direct buffers
+     */
+    void setDirectBuffers(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+    }
+
+    /**
+     * Binds the server socket and starts accepting connections.
+     * Netty accepts all connections of a bound channel on a single boss thread,
+     * hence only the number of workers is configurable.
+     */
+    void start() {
+        Preconditions.checkState(channelFactory == null, "%s has already been started", this);
+        final ExecutorService bosses = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("memcache-local-boss-%d").setDaemon(true).build());
+        final ExecutorService workerPool = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("memcache-local-worker-%d").setDaemon(true).build());
+        channelFactory = new NioServerSocketChannelFactory(bosses, workerPool, workers);
+        channels = new DefaultChannelGroup("memcache-local");
+
+        final ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
+        final ChannelPipelineFactory pipelineFactory;
+        if (binary) {
+            pipelineFactory = new MemcachedBinaryPipelineFactory(cache, MemCacheDaemon.memcachedVersion,
+                verbose, idleTime, channels);
+        } else {
+            pipelineFactory = new MemcachedPipelineFactory(cache, MemCacheDaemon.memcachedVersion,
+                verbose, idleTime, FRAME_SIZE, channels);
+        }
+        bootstrap.setPipelineFactory(pipelineFactory);
+        bootstrap.setOption("backlog", backlog);
+        bootstrap.setOption("reuseAddress", true);
+        bootstrap.setOption("receiveBufferSize", receiveBufferSize);
+        bootstrap.setOption("child.tcpNoDelay", tcpNoDelay);
+        bootstrap.setOption("child.keepAlive", true);
+        bootstrap.setOption("child.receiveBufferSize", receiveBufferSize);
+        bootstrap.setOption("child.sendBufferSize", sendBufferSize);
+        if (directBuffers) {
+            bootstrap.setOption("child.bufferFactory", DirectChannelBufferFactory.getInstance());
+        }
+
+        channels.add(bootstrap.bind(address));
+        LOG.info("Listening on {} with {} workers", address, workers);
+    }
+
+    /**
+     * Closes all connections, then the cache and releases all threads.
+     */
+    void stop() {
+        if (channelFactory == null) {
+            return;
+        }
+        final ChannelGroupFuture future = channels.close().awaitUninterruptibly();
+        if (!future.isCompleteSuccess()) {
+            LOG.warn("Unable to close all connections of {}", this);
+        }
+        try {
+            cache.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close cache", e);
+        }
+        channelFactory.releaseExternalResources();
+        channelFactory = null;
+        LOG.info("Stopped listening on {}", address);
+    }
+
+    @Override
+    public String toString() {
+        return "MemcacheLocalDaemon [address=" + address + ", binary=" + binary + ", workers=" + workers + "]";
+    }
+
+}
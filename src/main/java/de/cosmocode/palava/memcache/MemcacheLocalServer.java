@@ -16,22 +16,34 @@
 
 package de.cosmocode.palava.memcache;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.thimbleware.jmemcached.CacheImpl;
 import com.thimbleware.jmemcached.Key;
 import com.thimbleware.jmemcached.LocalCacheElement;
-import com.thimbleware.jmemcached.MemCacheDaemon;
 import com.thimbleware.jmemcached.storage.CacheStorage;
 import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
 import de.cosmocode.palava.core.lifecycle.Disposable;
 import de.cosmocode.palava.core.lifecycle.Initializable;
 import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.util.List;
 
 /**
  * A memcache server that runs in the JVM, provided by jmemcached.<br />
+ * The network layer is set up by {@link MemcacheLocalDaemon}.<br />
  * Google code page:
  * <a href="https://code.google.com/p/jmemcache-daemon/">https://code.google.com/p/jmemcache-daemon/</a>.
  *
@@ -39,6 +51,10 @@ import java.net.InetSocketAddress;
  */
 final class MemcacheLocalServer implements Initializable, Disposable {
 
+    private static final Logger LOG = LoggerFactory.getLogger(MemcacheLocalServer.class);
+
+    private static final String OBJECT_NAME = "de.cosmocode.palava.memcache:type=MemcacheLocalServer,port=";
+
     private boolean binary;
     private String address = "127.0.0.1";
     private int port = 11211;
@@ -46,9 +62,20 @@ final class MemcacheLocalServer implements Initializable, Disposable {
     private boolean verbose;
     private int maxItems = 10000;
     private long maxBytes = 1024 * 1024;
-    private ConcurrentLinkedHashMap.EvictionPolicy evictionPolicy = ConcurrentLinkedHashMap.EvictionPolicy.LRU;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+    private Storage storage = Storage.HEAP;
+    private File snapshot;
+    private double maxClassRatio = 1.0;
+    private int shards = 1;
+    private int workers = Runtime.getRuntime().availableProcessors() * 2;
+    private int backlog = 1024;
+    private boolean tcpNoDelay = true;
+    private int receiveBufferSize = 64 * 1024;
+    private int sendBufferSize = 64 * 1024;
+    private boolean directBuffers;
+    private ObjectName objectName;
 
-    private final MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>();
+    private MemcacheLocalDaemon daemon;
 
     @Inject(optional = true)
     public void setBinary(@Named("local.memcache.server.binary") boolean binary) {
@@ -76,8 +103,7 @@ final class MemcacheLocalServer implements Initializable, Disposable {
     }
 
     @Inject(optional = true)
-    public void setEvictionPolicy(@Named("local.memcache.server.evictionPolicy")
-                                  ConcurrentLinkedHashMap.EvictionPolicy evictionPolicy) {
+    public void setEvictionPolicy(@Named("local.memcache.server.evictionPolicy") EvictionPolicy evictionPolicy) {
         this.evictionPolicy = evictionPolicy;
     }
 
@@ -91,21 +117,227 @@ final class MemcacheLocalServer implements Initializable, Disposable {
         this.maxBytes = maxBytes;
     }
 
+    @Inject(optional = true)
+    public void setStorage(@Named("local.memcache.server.storage") Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Sets the snapshot file. If set, all entries are written to this file on dispose
+     * and read back in on the next initialize.
+     *
+     * @param snapshot the path of the snapshot file
+     */
+    @Inject(optional = true)
+    public void setSnapshot(@Named("local.memcache.server.snapshot") String snapshot) {
+        this.snapshot = new File(snapshot);
+    }
+
+    /**
+     * Sets the maximum share of all pages one slab class of the off-heap storage may take.
+     *
+     * @param maxClassRatio a number between 0.0 (exclusive) and 1.0
+     */
+    @Inject(optional = true)
+    public void setMaxClassRatio(@Named("local.memcache.server.maxClassRatio") double maxClassRatio) {
+        this.maxClassRatio = maxClassRatio;
+    }
+
+    /**
+     * Sets the number of shards. Every shard gets an equal part of maxItems and maxBytes
+     * and evicts on its own. Off-heap shards smaller than the default page size use
+     * smaller pages, which limits the size of a single value to the page size.
+     *
+     * @param shards the number of shards
+     */
+    @Inject(optional = true)
+    public void setShards(@Named("local.memcache.server.shards") int shards) {
+        this.shards = shards;
+    }
+
+    @Inject(optional = true)
+    public void setWorkers(@Named("local.memcache.server.workers") int workers) {
+        this.workers = workers;
+    }
+
+    @Inject(optional = true)
+    public void setBacklog(@Named("local.memcache.server.backlog") int backlog) {
+        this.backlog = backlog;
+    }
+
+    @Inject(optional = true)
+    public void setTcpNoDelay(@Named("local.memcache.server.tcpNoDelay") boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    @Inject(optional = true)
+    public void setReceiveBufferSize(@Named("local.memcache.server.receiveBufferSize") int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    @Inject(optional = true)
+    public void setSendBufferSize(@Named("local.memcache.server.sendBufferSize") int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * Enables pooled direct buffers for the network layer. Only takes effect with the
+     * off-heap storage, the heap storages would keep slices of the pooled buffers.
+     *
+     * @param directBuffers true to use direct buffers
+     */
+    @Inject(optional = true)
+    public void setDirectBuffers(@Named("local.memcache.server.directBuffers") boolean directBuffers) {
+        this.directBuffers = directBuffers;
+    }
+
     @Override
     public void initialize() throws LifecycleException {
+        final CacheStorage<Key, LocalCacheElement> cacheStorage = newStorage();
+        register(new MemcacheLocalServerStats(cacheStorage));
+        final CacheImpl cache;
+        if (snapshot == null) {
+            cache = new CacheImpl(cacheStorage);
+        } else {
+            final SnapshotCacheStorage snapshotStorage = new SnapshotCacheStorage(cacheStorage, snapshot);
+            try {
+                snapshotStorage.load();
+            } catch (IOException e) {
+                LOG.warn("Unable to load memcache snapshot, starting empty", e);
+                snapshotStorage.clear();
+            }
+            cache = new CacheImpl(snapshotStorage);
+        }
+
         // start daemon
-        final CacheStorage<Key, LocalCacheElement> storage =
-                ConcurrentLinkedHashMap.create(evictionPolicy, maxItems, maxBytes);
-        daemon.setCache(new CacheImpl(storage));
+        daemon = new MemcacheLocalDaemon(cache, new InetSocketAddress(address, port));
         daemon.setBinary(binary);
-        daemon.setAddr(new InetSocketAddress(address, port));
         daemon.setIdleTime(idleTime);
         daemon.setVerbose(verbose);
+        daemon.setWorkers(workers);
+        daemon.setBacklog(backlog);
+        daemon.setTcpNoDelay(tcpNoDelay);
+        daemon.setReceiveBufferSize(receiveBufferSize);
+        daemon.setSendBufferSize(sendBufferSize);
+        if (directBuffers && storage != Storage.OFFHEAP) {
+            LOG.warn("Ignoring direct buffers, they require the off-heap storage");
+        } else {
+            daemon.setDirectBuffers(directBuffers);
+        }
         daemon.start();
     }
 
+    private void register(MemcacheLocalServerStats stats) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = new ObjectName(OBJECT_NAME + port);
+            server.registerMBean(new StandardMBean(stats, MemcacheLocalServerMXBean.class, true), name);
+            objectName = name;
+        } catch (JMException e) {
+            LOG.warn("Unable to register local memcache server stats in JMX", e);
+        }
+    }
+
     @Override
     public void dispose() throws LifecycleException {
-        daemon.stop();
+        if (daemon != null) {
+            daemon.stop();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOG.warn("Unable to unregister local memcache server stats from JMX", e);
+            }
+        }
+    }
+
+    /**
+     * Creates the configured, possibly sharded storage.
+     *
+     * @return a new storage
+     * @throws LifecycleException if the configuration leaves no room for a single page per shard
+     */
+    CacheStorage<Key, LocalCacheElement> newStorage() throws LifecycleException {
+        if (shards <= 0) {
+            throw new LifecycleException("local.memcache.server.shards must be positive, but was " + shards);
+        } else if (storage == Storage.OFFHEAP && maxBytes / shards < OffHeapCacheStorage.MIN_CHUNK_SIZE) {
+            throw new LifecycleException(String.format(
+                "local.memcache.server.maxBytes of %s is too small for %s off-heap shards of at least %s bytes",
+                maxBytes, shards, OffHeapCacheStorage.MIN_CHUNK_SIZE));
+        }
+        if (shards == 1) {
+            return newStorage(maxItems, maxBytes);
+        }
+        final List<CacheStorage<Key, LocalCacheElement>> list = Lists.newArrayListWithCapacity(shards);
+        for (int i = 0; i < shards; i++) {
+            list.add(newStorage(Math.max(1, maxItems / shards), maxBytes / shards));
+        }
+        return new ShardedCacheStorage(list);
+    }
+
+    private CacheStorage<Key, LocalCacheElement> newStorage(int items, long bytes) {
+        switch (storage) {
+            case HEAP: {
+                if (evictionPolicy == EvictionPolicy.TINY_LFU) {
+                    return new TinyLfuCacheStorage(items, bytes);
+                } else {
+                    return ConcurrentLinkedHashMap.create(
+                        ConcurrentLinkedHashMap.EvictionPolicy.valueOf(evictionPolicy.name()), items, bytes);
+                }
+            }
+            case OFFHEAP: {
+                final int pageSize = (int) Math.min(OffHeapCacheStorage.DEFAULT_PAGE_SIZE, Long.highestOneBit(bytes));
+                if (pageSize < OffHeapCacheStorage.DEFAULT_PAGE_SIZE) {
+                    LOG.info("Using off-heap pages of {} bytes for {} bytes per shard", pageSize, bytes);
+                }
+                return new OffHeapCacheStorage(items, bytes, pageSize, maxClassRatio);
+            }
+            default: {
+                throw new AssertionError("Unknown storage " + storage);
+            }
+        }
+    }
+
+    /**
+     * The eviction policies of the heap storage. The off-heap storage always uses
+     * the clock algorithm.
+     *
+     * @since 1.3
+     */
+    enum EvictionPolicy {
+
+        FIFO,
+
+        SECOND_CHANCE,
+
+        LRU,
+
+        /**
+         * Window TinyLFU, see {@link TinyLfuCacheStorage}.
+         */
+        TINY_LFU;
+
+    }
+
+    /**
+     * The different kinds of storage the local server can use.
+     *
+     * @since 1.3
+     */
+    enum Storage {
+
+        /**
+         * Keeps all elements on the java heap, evicted using the configured eviction policy.
+         */
+        HEAP,
+
+        /**
+         * Keeps all elements in direct memory slabs, see {@link OffHeapCacheStorage}.
+         * The number of pages is derived from maxBytes, i.e. maxBytes should
+         * be a multiple of one megabyte.
+         */
+        OFFHEAP;
+
     }
 }
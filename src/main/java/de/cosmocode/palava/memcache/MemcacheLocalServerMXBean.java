@@ -0,0 +1,58 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Map;
+
+/**
+ * JMX view of the storage of the local memcache server. Per class statistics
+ * are keyed by chunk size and only available for the off-heap storage.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+public interface MemcacheLocalServerMXBean {
+
+    String getStorage();
+
+    long getItems();
+
+    long getMaxItems();
+
+    /**
+     * Provides the memory used by all entries. The off-heap storage and the
+     * W-TinyLFU storage include the overhead of every entry, the other heap
+     * storages only count the values.
+     *
+     * @return the used memory in bytes
+     */
+    long getMemoryUsed();
+
+    long getMemoryCapacity();
+
+    Map<String, Long> getClassItems();
+
+    Map<String, Long> getClassMemoryUsed();
+
+    Map<String, Long> getClassMemoryAllocated();
+
+    Map<String, Long> getClassMemoryLimit();
+
+    Map<String, Long> getClassEvictions();
+
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+
+/**
+ * Exposes the statistics of the storage of a {@link MemcacheLocalServer}.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class MemcacheLocalServerStats implements MemcacheLocalServerMXBean {
+
+    private final CacheStorage<Key, LocalCacheElement> storage;
+
+    MemcacheLocalServerStats(CacheStorage<Key, LocalCacheElement> storage) {
+        this.storage = Preconditions.checkNotNull(storage, "Storage");
+    }
+
+    @Override
+    public String getStorage() {
+        return storage.toString();
+    }
+
+    @Override
+    public long getItems() {
+        return storage.size();
+    }
+
+    @Override
+    public long getMaxItems() {
+        return storage.capacity();
+    }
+
+    @Override
+    public long getMemoryUsed() {
+        return storage.getMemoryUsed();
+    }
+
+    @Override
+    public long getMemoryCapacity() {
+        return storage.getMemoryCapacity();
+    }
+
+    private List<SizeClassStats> classes() {
+        if (storage instanceof OffHeapCacheStorage) {
+            return OffHeapCacheStorage.class.cast(storage).getSizeClasses();
+        } else if (storage instanceof ShardedCacheStorage) {
+            // sums up the classes of all off-heap shards
+            final SortedMap<Integer, SizeClassStats> classes = Maps.newTreeMap();
+            for (CacheStorage<Key, LocalCacheElement> shard : ShardedCacheStorage.class.cast(storage).getShards()) {
+                if (!(shard instanceof OffHeapCacheStorage)) {
+                    continue;
+                }
+                for (SizeClassStats stats : OffHeapCacheStorage.class.cast(shard).getSizeClasses()) {
+                    final SizeClassStats sum = classes.get(stats.getChunkSize());
+                    classes.put(stats.getChunkSize(), sum == null ? stats : sum.plus(stats));
+                }
+            }
+            return ImmutableList.copyOf(classes.values());
+        } else {
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public Map<String, Long> getClassItems() {
+        final Map<String, Long> map = Maps.newLinkedHashMap();
+        for (SizeClassStats stats : classes()) {
+            map.put(String.valueOf(stats.getChunkSize()), stats.getItems());
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getClassMemoryUsed() {
+        final Map<String, Long> map = Maps.newLinkedHashMap();
+        for (SizeClassStats stats : classes()) {
+            map.put(String.valueOf(stats.getChunkSize()), stats.getMemoryUsed());
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getClassMemoryAllocated() {
+        final Map<String, Long> map = Maps.newLinkedHashMap();
+        for (SizeClassStats stats : classes()) {
+            map.put(String.valueOf(stats.getChunkSize()), stats.getMemoryAllocated());
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getClassMemoryLimit() {
+        final Map<String, Long> map = Maps.newLinkedHashMap();
+        for (SizeClassStats stats : classes()) {
+            map.put(String.valueOf(stats.getChunkSize()), stats.getMemoryLimit());
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getClassEvictions() {
+        final Map<String, Long> map = Maps.newLinkedHashMap();
+        for (SizeClassStats stats : classes()) {
+            map.put(String.valueOf(stats.getChunkSize()), stats.getEvictions());
+        }
+        return map;
+    }
+
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Collects client side metrics of all memcache clients created by the
+ * {@link MemcacheClientProvider} while "memcache.metrics" is enabled.
+ * Recording only touches striped counters and never locks.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+@Singleton
+public final class MemcacheMetrics implements MemcacheMetricsMXBean {
+
+    private final Map<MemcacheOperation, LatencyHistogram> latencies =
+        new EnumMap<MemcacheOperation, LatencyHistogram>(MemcacheOperation.class);
+
+    private final StripedCounter hits = new StripedCounter();
+
+    private final StripedCounter misses = new StripedCounter();
+
+    private final StripedCounter bytesIn = new StripedCounter();
+
+    private final StripedCounter bytesOut = new StripedCounter();
+
+    private final StripedCounter timeouts = new StripedCounter();
+
+    private final StripedCounter nearCacheHits = new StripedCounter();
+
+    private final StripedCounter nearCacheMisses = new StripedCounter();
+
+    /**
+     * Operation queues of all live nodes, mapped to the name of their node.
+     */
+    private final ConcurrentMap<Queue<?>, String> queues = new MapMaker().weakKeys().makeMap();
+
+    private volatile HotKeyDetector detector;
+
+    private volatile HedgePolicy hedging;
+
+    private volatile CircuitBreaker breaker;
+
+    @Inject
+    MemcacheMetrics() {
+        for (MemcacheOperation operation : MemcacheOperation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+        }
+    }
+
+    void record(MemcacheOperation operation, long startNanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        latencies.get(operation).record(micros);
+    }
+
+    void hits(int count) {
+        hits.add(count);
+    }
+
+    void misses(int count) {
+        misses.add(count);
+    }
+
+    void bytesIn(int count) {
+        bytesIn.add(count);
+    }
+
+    void bytesOut(int count) {
+        bytesOut.add(count);
+    }
+
+    void timeout() {
+        timeouts.increment();
+    }
+
+    void nearCache(long hitCount, long missCount) {
+        nearCacheHits.add(hitCount);
+        nearCacheMisses.add(missCount);
+    }
+
+    void register(SocketAddress address, Queue<?> queue) {
+        final String name = address.toString();
+        queues.put(queue, name.startsWith("/") ? name.substring(1) : name);
+    }
+
+    void monitor(HotKeyDetector hotKeyDetector) {
+        this.detector = hotKeyDetector;
+    }
+
+    void monitor(HedgePolicy hedgePolicy) {
+        this.hedging = hedgePolicy;
+    }
+
+    void monitor(CircuitBreaker circuitBreaker) {
+        this.breaker = circuitBreaker;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        final long hitCount = hits.get();
+        final long total = hitCount + misses.get();
+        return total == 0L ? 0.0 : (double) hitCount / total;
+    }
+
+    @Override
+    public long getNearCacheHits() {
+        return nearCacheHits.get();
+    }
+
+    @Override
+    public long getNearCacheMisses() {
+        return nearCacheMisses.get();
+    }
+
+    @Override
+    public double getNearCacheHitRatio() {
+        final long hitCount = nearCacheHits.get();
+        final long total = hitCount + nearCacheMisses.get();
+        return total == 0L ? 0.0 : (double) hitCount / total;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public long getHedgesSent() {
+        final HedgePolicy current = hedging;
+        return current == null ? 0L : current.getSent();
+    }
+
+    @Override
+    public long getHedgesWon() {
+        final HedgePolicy current = hedging;
+        return current == null ? 0L : current.getWon();
+    }
+
+    @Override
+    public long getHedgeDelay() {
+        final HedgePolicy current = hedging;
+        if (current == null) {
+            return 0L;
+        }
+        final long delay = current.getDelay();
+        return delay == Long.MAX_VALUE ? delay : TimeUnit.NANOSECONDS.toMicros(delay);
+    }
+
+    @Override
+    public Map<String, String> getCircuits() {
+        final CircuitBreaker current = breaker;
+        if (current == null) {
+            return Collections.emptyMap();
+        } else {
+            return current.getStates();
+        }
+    }
+
+    @Override
+    public long getFastFails() {
+        final CircuitBreaker current = breaker;
+        return current == null ? 0L : current.getRejected();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   The depth of a node sums up its input, read and write queues of all
+     *   clients connected to it.
+     * </p>
+     */
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        final Map<String, Integer> depths = Maps.newTreeMap();
+        for (Map.Entry<Queue<?>, String> entry : queues.entrySet()) {
+            final Integer depth = depths.get(entry.getValue());
+            final int size = entry.getKey().size();
+            depths.put(entry.getValue(), depth == null ? size : depth.intValue() + size);
+        }
+        return depths;
+    }
+
+    @Override
+    public Map<String, Long> getHotKeys() {
+        final HotKeyDetector current = detector;
+        if (current == null) {
+            return Collections.emptyMap();
+        } else {
+            return current.getHotKeys();
+        }
+    }
+
+    /**
+     * Provides the latency histogram of the given operation.
+     *
+     * @param operation the operation
+     * @return the histogram
+     */
+    LatencyHistogram getHistogram(MemcacheOperation operation) {
+        return latencies.get(Preconditions.checkNotNull(operation, "Operation"));
+    }
+
+    /**
+     * Provides the latency of the given operation at the given quantile.
+     *
+     * @param operation the operation
+     * @param quantile a number between 0.0 and 1.0, e.g. 0.99
+     * @return the latency in microseconds
+     */
+    public long getLatency(MemcacheOperation operation, double quantile) {
+        return getHistogram(operation).getValueAt(quantile);
+    }
+
+    /**
+     * Provides the number of measured calls of the given operation.
+     *
+     * @param operation the operation
+     * @return the number of calls
+     */
+    public long getCount(MemcacheOperation operation) {
+        return getHistogram(operation).getCount();
+    }
+
+    @Override
+    public long getLatency(String operation, double quantile) {
+        return getLatency(MemcacheOperation.valueOf(operation), quantile);
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        final Map<String, Long> counts = Maps.newLinkedHashMap();
+        for (MemcacheOperation operation : MemcacheOperation.values()) {
+            counts.put(operation.name(), getCount(operation));
+        }
+        return counts;
+    }
+
+    private Map<String, Long> getLatencies(double quantile) {
+        final Map<String, Long> values = Maps.newLinkedHashMap();
+        for (MemcacheOperation operation : MemcacheOperation.values()) {
+            values.put(operation.name(), getLatency(operation, quantile));
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMedian() {
+        return getLatencies(0.5);
+    }
+
+    @Override
+    public Map<String, Long> getLatency99thPercentile() {
+        return getLatencies(0.99);
+    }
+
+    @Override
+    public Map<String, Long> getLatency999thPercentile() {
+        return getLatencies(0.999);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMax() {
+        final Map<String, Long> values = Maps.newLinkedHashMap();
+        for (MemcacheOperation operation : MemcacheOperation.values()) {
+            values.put(operation.name(), getHistogram(operation).getMax());
+        }
+        return values;
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : latencies.values()) {
+            histogram.reset();
+        }
+        hits.reset();
+        misses.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        timeouts.reset();
+        nearCacheHits.reset();
+        nearCacheMisses.reset();
+        final HedgePolicy current = hedging;
+        if (current != null) {
+            current.reset();
+        }
+        final CircuitBreaker currentBreaker = breaker;
+        if (currentBreaker != null) {
+            currentBreaker.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MemcacheMetrics [hits=" + hits + ", misses=" + misses + ", bytesIn=" + bytesIn +
+            ", bytesOut=" + bytesOut + ", timeouts=" + timeouts + "]";
+    }
+
+}
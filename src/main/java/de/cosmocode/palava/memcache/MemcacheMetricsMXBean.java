@@ -0,0 +1,118 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link MemcacheMetrics}. Latencies are in microseconds
+ * and keyed by {@link MemcacheOperation} name.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+public interface MemcacheMetricsMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    /**
+     * Provides the number of reads served by near caches of units of work which ended.
+     *
+     * @return the number of near cache hits, 0 if the near cache is disabled
+     */
+    long getNearCacheHits();
+
+    long getNearCacheMisses();
+
+    double getNearCacheHitRatio();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getTimeouts();
+
+    /**
+     * Provides the number of reads which were also sent to a second replica.
+     *
+     * @return the number of hedged reads, 0 if hedging is disabled
+     */
+    long getHedgesSent();
+
+    /**
+     * Provides the number of hedged reads answered by the second replica first.
+     *
+     * @return the number of hedges that won
+     */
+    long getHedgesWon();
+
+    /**
+     * Provides the current delay after which reads are hedged.
+     *
+     * @return the delay in microseconds, {@link Long#MAX_VALUE} during warm up, 0 if hedging is disabled
+     */
+    long getHedgeDelay();
+
+    /**
+     * Provides the circuit states of all servers which were called.
+     *
+     * @return server names mapped to CLOSED, OPEN or HALF_OPEN, empty if circuit breaking is disabled
+     */
+    Map<String, String> getCircuits();
+
+    /**
+     * Provides the number of calls which failed fast because of an open circuit.
+     *
+     * @return the number of rejected calls
+     */
+    long getFastFails();
+
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * Provides the currently hot keys.
+     *
+     * @return hot keys mapped to their estimated reads per window, empty if detection is disabled
+     */
+    Map<String, Long> getHotKeys();
+
+    Map<String, Long> getCounts();
+
+    Map<String, Long> getLatencyMedian();
+
+    Map<String, Long> getLatency99thPercentile();
+
+    Map<String, Long> getLatency999thPercentile();
+
+    Map<String, Long> getLatencyMax();
+
+    /**
+     * Provides the latency at the given quantile.
+     *
+     * @param operation the name of a {@link MemcacheOperation}
+     * @param quantile a number between 0.0 and 1.0
+     * @return the latency in microseconds
+     */
+    long getLatency(String operation, double quantile);
+
+    void reset();
+
+}
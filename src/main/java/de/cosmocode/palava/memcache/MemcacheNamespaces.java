@@ -0,0 +1,159 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.MemcachedClientIF;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.ipc.Current;
+
+/**
+ * Groups keys into namespaces which can be invalidated as a whole. Every namespace
+ * has a generation counter stored in memcache, keys are stored as "namespace:generation:key".
+ * Invalidating a namespace increments its generation, which orphans all keys of the
+ * previous generation until they expire or get evicted. Generations are cached in this JVM
+ * for a short time, i.e. invalidations of other nodes become visible with that delay.
+ *
+ * <p>
+ *   If a generation can't be read, e.g. because its server failed or its circuit is open,
+ *   the last known generation is used without caching it again. Without one, or after a
+ *   failed invalidation, keys get a random negative generation nobody else uses, i.e.
+ *   reads miss and writes are orphaned.
+ * </p>
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+public final class MemcacheNamespaces {
+
+    private static final String GENERATION_PREFIX = "namespace:";
+
+    private static final Random RANDOM = new Random();
+
+    private final Provider<MemcachedClientIF> currentClient;
+
+    private final ConcurrentMap<String, Generation> generations = Maps.newConcurrentMap();
+
+    private long generationTtl = 1000L;
+
+    @Inject
+    MemcacheNamespaces(@Current Provider<MemcachedClientIF> currentClient) {
+        this.currentClient = Preconditions.checkNotNull(currentClient, "CurrentClient");
+    }
+
+    @Inject(optional = true)
+    void setGenerationTtl(@Named(MemcacheClientConfig.NAMESPACE_GENERATION_TTL) long generationTtl) {
+        Preconditions.checkArgument(generationTtl >= 0, "Ttl must not be negative, but was %s", generationTtl);
+        this.generationTtl = generationTtl;
+    }
+
+    /**
+     * Provides a view of the current client which stores all keys in the given namespace.
+     * {@link MemcachedClientIF#flush()} of the returned client invalidates the namespace.
+     *
+     * @param namespace the namespace, must not contain whitespace
+     * @return a client scoped to the given namespace
+     * @throws NullPointerException if namespace is null
+     */
+    public MemcachedClientIF of(String namespace) {
+        Preconditions.checkNotNull(namespace, "Namespace");
+        return new NamespacedMemcachedClient(currentClient.get(), this, namespace);
+    }
+
+    /**
+     * Invalidates all keys of the given namespace using a single increment.
+     *
+     * @param namespace the namespace
+     * @throws NullPointerException if namespace is null
+     */
+    public void invalidate(String namespace) {
+        Preconditions.checkNotNull(namespace, "Namespace");
+        final long generation = currentClient.get().incr(GENERATION_PREFIX + namespace, 1, seed(), 0);
+        if (generation < 0) {
+            // the previous generation must not be used anymore
+            generations.remove(namespace);
+        } else {
+            generations.put(namespace, new Generation(generation, System.currentTimeMillis() + generationTtl));
+        }
+    }
+
+    /**
+     * Provides the current generation of the given namespace, creating it if necessary.
+     *
+     * @param client the client used to read the generation
+     * @param namespace the namespace
+     * @return the current generation, the last known or a random negative one if it can't be read
+     */
+    long generationOf(MemcachedClientIF client, String namespace) {
+        final Generation cached = generations.get(namespace);
+        final long now = System.currentTimeMillis();
+        if (cached != null && cached.expiresAt > now) {
+            return cached.value;
+        }
+        final long generation = client.incr(GENERATION_PREFIX + namespace, 0, seed(), 0);
+        if (generation >= 0) {
+            generations.put(namespace, new Generation(generation, now + generationTtl));
+            return generation;
+        } else if (cached == null) {
+            // -1 would be shared by all failures, a random generation is never read again
+            return -1L - (RANDOM.nextLong() & Long.MAX_VALUE);
+        } else {
+            return cached.value;
+        }
+    }
+
+    /**
+     * Missing generations start at the current time in seconds. If a generation gets evicted
+     * the namespace does not restart at a generation whose keys may still exist.
+     */
+    private static long seed() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    }
+
+    @Override
+    public String toString() {
+        return "MemcacheNamespaces [generations=" + generations.keySet() + "]";
+    }
+
+    /**
+     * A locally cached generation.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private static final class Generation {
+
+        private final long value;
+        private final long expiresAt;
+
+        Generation(long value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A binary serializer for a specific type, registered with a unique id
+ * using {@link MemcacheClientConfig#TRANSCODER_SERIALIZERS}. Serializers must
+ * be thread-safe and provide a public no-arg constructor.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ * @param <T> the generic type this serializer handles
+ */
+public interface MemcacheSerializer<T> {
+
+    /**
+     * Provides the exact type this serializer handles. Subclasses of this type
+     * are not handled by this serializer.
+     *
+     * @return the type
+     */
+    Class<T> getType();
+
+    /**
+     * Writes the given value.
+     *
+     * @param value the value, never null
+     * @param output the output to write to
+     * @throws IOException if writing failed
+     */
+    void write(T value, DataOutput output) throws IOException;
+
+    /**
+     * Reads a value previously written by {@link #write(Object, DataOutput)}.
+     *
+     * @param input the input to read from
+     * @return the value
+     * @throws IOException if reading failed
+     */
+    T read(DataInput input) throws IOException;
+
+}
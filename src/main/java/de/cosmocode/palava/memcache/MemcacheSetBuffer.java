@@ -0,0 +1,391 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.spy.memcached.MemcachedClientIF;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * A bounded write-behind buffer for sets. Sets are kept in the buffer until the next
+ * flush, which hands all of them to the client at once so they get pipelined on the
+ * connections. A set of a key which is still buffered replaces the buffered value.
+ *
+ * <p>
+ *   Sent sets are tracked until they completed. Flushing a single key using another
+ *   client waits for a set of that key which is in flight on the client of this buffer,
+ *   so that operations sent afterwards can't overtake it.
+ * </p>
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class MemcacheSetBuffer implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemcacheSetBuffer.class);
+
+    private final MemcachedClientIF client;
+
+    private final long interval;
+
+    private final long timeout;
+
+    private final Overflow overflow;
+
+    private final ConcurrentMap<String, Write> pending = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<String, Write> inFlight = Maps.newConcurrentMap();
+
+    private final Semaphore capacity;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates and starts a new buffer.
+     *
+     * @param client the client used for flushing, owned by this buffer
+     * @param capacity the maximum number of buffered keys
+     * @param interval the time between two flushes in milliseconds
+     * @param timeout the maximum time to wait for a set in flight in milliseconds
+     * @param overflow the behaviour if the buffer is full
+     */
+    MemcacheSetBuffer(MemcachedClientIF client, int capacity, long interval, long timeout, Overflow overflow) {
+        this.client = Preconditions.checkNotNull(client, "Client");
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive, but was %s", capacity);
+        Preconditions.checkArgument(interval > 0, "Interval must be positive, but was %s", interval);
+        Preconditions.checkArgument(timeout > 0, "Timeout must be positive, but was %s", timeout);
+        this.capacity = new Semaphore(capacity);
+        this.interval = interval;
+        this.timeout = timeout;
+        this.overflow = Preconditions.checkNotNull(overflow, "Overflow");
+        this.thread = new Thread(this, "memcache-set-buffer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Buffers a set.
+     *
+     * @param key the key
+     * @param exp the expiration
+     * @param value the value
+     * @return true if the set has been buffered, false if it was dropped
+     */
+    boolean set(String key, int exp, Object value) {
+        Preconditions.checkNotNull(key, "Key");
+        while (true) {
+            final Write buffered = pending.get(key);
+            if (buffered != null) {
+                final Write write;
+                if (buffered.claim()) {
+                    // superseded, will never be sent
+                    buffered.sent(null, null);
+                    write = new Write(exp, value, null);
+                } else {
+                    // in flight, must not be overtaken
+                    write = new Write(exp, value, buffered);
+                }
+                if (pending.replace(key, buffered, write)) {
+                    return true;
+                }
+                continue;
+            }
+            if (!acquire()) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (pending.putIfAbsent(key, new Write(exp, value, null)) == null) {
+                if (!running) {
+                    // shut down while waiting for capacity
+                    flush(key);
+                }
+                return true;
+            }
+            capacity.release();
+        }
+    }
+
+    private boolean acquire() {
+        if (!running) {
+            return false;
+        } else if (overflow == Overflow.DROP) {
+            return capacity.tryAcquire();
+        }
+        try {
+            capacity.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Provides the buffered value of the given key.
+     *
+     * @param key the key
+     * @return the buffered value or null if there is none
+     */
+    Object peek(String key) {
+        final Write write = pending.get(key);
+        return write == null ? null : write.value;
+    }
+
+    /**
+     * Flushes the given key if it is buffered.
+     *
+     * @param key the key
+     */
+    void flush(String key) {
+        flush(key, client);
+    }
+
+    /**
+     * Flushes the given key using the given client if it is buffered. Waits for a set of
+     * the key which is in flight on another client. Operations on the same key sent using
+     * the given client afterwards are executed after the set.
+     *
+     * @param key the key
+     * @param target the client used to write the buffered set
+     */
+    void flush(String key, MemcachedClientIF target) {
+        while (true) {
+            final Write write = pending.get(key);
+            if (write == null) {
+                final Write sent = inFlight.get(key);
+                if (sent != null && sent.target != target) {
+                    await(key, sent);
+                    inFlight.remove(key, sent);
+                }
+                return;
+            } else if (write.claim()) {
+                send(target, key, write);
+                return;
+            }
+            await(key, write);
+            remove(key, write);
+        }
+    }
+
+    /**
+     * Flushes the given keys.
+     *
+     * @param keys the keys
+     */
+    void flush(Collection<String> keys) {
+        for (String key : keys) {
+            flush(key);
+        }
+    }
+
+    /**
+     * Flushes all buffered sets.
+     */
+    void flush() {
+        for (Map.Entry<String, Write> entry : pending.entrySet()) {
+            final Write write = entry.getValue();
+            if (write.claim()) {
+                send(client, entry.getKey(), write);
+            }
+        }
+    }
+
+    /**
+     * Discards all buffered sets and waits for sets in flight.
+     * Used before flushing the cache, which must not be overtaken by buffered sets.
+     */
+    void discard() {
+        for (Map.Entry<String, Write> entry : pending.entrySet()) {
+            final Write write = entry.getValue();
+            if (write.claim()) {
+                write.sent(null, null);
+            } else {
+                await(entry.getKey(), write);
+            }
+            remove(entry.getKey(), write);
+        }
+        for (Map.Entry<String, Write> entry : inFlight.entrySet()) {
+            await(entry.getKey(), entry.getValue());
+            inFlight.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void send(MemcachedClientIF target, String key, Write write) {
+        final Write previous = write.previous;
+        if (previous != null && previous.target != target) {
+            await(key, previous);
+        }
+        Future<Boolean> future = null;
+        try {
+            future = target.set(key, write.exp, write.value);
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to write " + key, e);
+        } finally {
+            write.sent(target, future);
+        }
+        if (future != null) {
+            // tracked before leaving the buffer, so flush(key, target) sees it in one of both
+            inFlight.put(key, write);
+        }
+        remove(key, write);
+    }
+
+    private void await(String key, Write write) {
+        try {
+            if (!write.latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Set of {} was not sent within {}ms", key, timeout);
+            } else if (write.future != null) {
+                write.future.get(timeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.warn("Unable to write " + key, e.getCause());
+        } catch (TimeoutException e) {
+            LOG.warn("Set of {} did not complete within {}ms", key, timeout);
+        }
+    }
+
+    private void remove(String key, Write write) {
+        if (pending.remove(key, write)) {
+            capacity.release();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            flush();
+            for (Map.Entry<String, Write> entry : inFlight.entrySet()) {
+                if (entry.getValue().future.isDone()) {
+                    inFlight.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops buffering, flushes all buffered sets and shuts down the client
+     * once they have been written.
+     *
+     * @param timeout the maximum time to wait for outstanding writes in milliseconds
+     */
+    void shutdown(long timeout) {
+        running = false;
+        thread.interrupt();
+        flush();
+        if (dropped.get() > 0) {
+            LOG.info("Dropped {} sets because the buffer was full", dropped);
+        }
+        client.shutdown(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "MemcacheSetBuffer [interval=" + interval + "ms, overflow=" + overflow +
+            ", pending=" + pending.size() + ", dropped=" + dropped + "]";
+    }
+
+    /**
+     * Behaviour of a full buffer.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    static enum Overflow {
+
+        /**
+         * Blocks the writing thread until the next flush made room.
+         */
+        BLOCK,
+
+        /**
+         * Drops the set.
+         */
+        DROP;
+
+    }
+
+    /**
+     * A buffered set. A set gets claimed once, either for sending or because
+     * it has been superseded or discarded.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private static final class Write {
+
+        private final int exp;
+        private final Object value;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        // the set in flight this one replaced, cleared once sent
+        private volatile Write previous;
+        private volatile MemcachedClientIF target;
+        private volatile Future<Boolean> future;
+
+        Write(int exp, Object value, Write previous) {
+            this.exp = exp;
+            this.value = value;
+            this.previous = previous;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        void sent(MemcachedClientIF sender, Future<Boolean> result) {
+            this.previous = null;
+            this.target = sender;
+            this.future = result;
+            latch.countDown();
+        }
+
+    }
+
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes and reads values as streams, used by {@link StreamTranscoder}.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ * @param <T> the generic value type
+ */
+public interface MemcacheStreamCodec<T> {
+
+    /**
+     * Writes the given value to the given stream.
+     *
+     * @param value the value
+     * @param output the stream to write to, must not be closed or kept
+     * @throws IOException if writing failed
+     */
+    void write(T value, OutputStream output) throws IOException;
+
+    /**
+     * Reads a value from the given stream. The stream is backed by a reused
+     * buffer and must be consumed completely before this method returns.
+     *
+     * @param input the stream to read from, must not be kept
+     * @return the value
+     * @throws IOException if reading failed
+     */
+    T read(InputStream input) throws IOException;
+
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+/**
+ * Allows changing the memcache servers at runtime.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+public interface MemcacheTopology {
+
+    /**
+     * Provides the currently used servers.
+     *
+     * @return all servers mapped to their weight
+     */
+    Map<InetSocketAddress, Integer> getServers();
+
+    /**
+     * Switches to the given servers. Clients created afterwards use the new servers,
+     * shared clients are replaced and shut down once their pending operations
+     * drained. Using the consistent locator only keys of the changed servers move.
+     *
+     * @param addresses the new servers, same format as the "memcache.addresses" setting
+     * @throws NullPointerException if addresses is null
+     * @throws IllegalArgumentException if addresses is invalid
+     * @throws IllegalStateException if connecting to the new servers failed
+     */
+    void reload(String addresses);
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.MemcachedClientIF;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link MemcachedClientIF} leased from a {@link MemcacheClientPool} for the
+ * duration of a unit of work. Neither destroying nor shutting down the lease
+ * shuts down the underlying client, the pool owns it.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class MemcachedClientLease extends ForwardingMemcachedClient {
+
+    private final MemcachedClientIF client;
+
+    MemcachedClientLease(MemcachedClientIF client) {
+        this.client = Preconditions.checkNotNull(client, "Client");
+    }
+
+    @Override
+    protected MemcachedClientIF delegate() {
+        return client;
+    }
+
+    /**
+     * Does nothing, the pool owns the client.
+     */
+    @Override
+    public void shutdown() {
+        // the pool owns the client
+    }
+
+    /**
+     * Does nothing, the pool owns the client.
+     *
+     * @param timeout ignored
+     * @param unit ignored
+     * @return always true
+     */
+    @Override
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        return true;
+    }
+
+    @Override
+    public void destroy() {
+        // the pool owns the client
+    }
+
+    @Override
+    public String toString() {
+        return "MemcachedClientLease [client=" + client + "]";
+    }
+
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketAddress;
+import java.util.concurrent.BlockingQueue;
+
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationQueueFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Registers the operation queues of every created node in {@link MemcacheMetrics}.
+ * Nodes create their queues using the {@link #register(OperationQueueFactory) registering}
+ * {@link OperationQueueFactory}s while
+ * {@link ConnectionFactory#createMemcachedNode(SocketAddress, java.nio.channels.SocketChannel, int)}
+ * runs, the decorated factory remembers the address of that node for the current thread.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class MeteredConnectionFactory implements InvocationHandler {
+
+    private final ThreadLocal<SocketAddress> creating = new ThreadLocal<SocketAddress>();
+
+    private final MemcacheMetrics metrics;
+
+    private ConnectionFactory factory;
+
+    MeteredConnectionFactory(MemcacheMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics, "Metrics");
+    }
+
+    /**
+     * Decorates the given queue factory to register the queues it creates for a node.
+     *
+     * @param queues the queue factory
+     * @return a queue factory registering created queues
+     */
+    OperationQueueFactory register(final OperationQueueFactory queues) {
+        Preconditions.checkNotNull(queues, "Queues");
+        return new OperationQueueFactory() {
+
+            @Override
+            public BlockingQueue<Operation> create() {
+                final BlockingQueue<Operation> queue = queues.create();
+                final SocketAddress address = creating.get();
+                if (address != null) {
+                    metrics.register(address, queue);
+                }
+                return queue;
+            }
+
+        };
+    }
+
+    /**
+     * Decorates the given factory, which must have been built using
+     * {@link #register(OperationQueueFactory) registering} queue factories.
+     *
+     * @param built the built factory
+     * @return a factory registering queues of created nodes
+     */
+    ConnectionFactory decorate(ConnectionFactory built) {
+        Preconditions.checkState(factory == null, "Already decorated %s", factory);
+        this.factory = Preconditions.checkNotNull(built, "Factory");
+        final ClassLoader loader = ConnectionFactory.class.getClassLoader();
+        return ConnectionFactory.class.cast(Proxy.newProxyInstance(loader,
+            new Class<?>[] {ConnectionFactory.class}, this));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final boolean node = "createMemcachedNode".equals(method.getName());
+        if (node) {
+            creating.set((SocketAddress) args[0]);
+        }
+        try {
+            return method.invoke(factory, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            if (node) {
+                creating.remove();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,601 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.transcoders.Transcoder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ForwardingFuture;
+
+/**
+ * A {@link MemcachedClientIF} decorator which records latencies, hits, misses
+ * and timeouts in {@link MemcacheMetrics}. Synchronous calls are measured until they
+ * return, asynchronous calls until their operations completed, no matter whether and when
+ * their result is retrieved. Operations created by clients using a connection factory
+ * {@link CompletionListeners#decorate(ConnectionFactory) decorated} by {@link CompletionListeners}
+ * are observed through their callbacks, all other futures are polled.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class MeteredMemcachedClient extends ForwardingMemcachedClient {
+
+    private final MemcachedClientIF client;
+
+    private final MemcacheMetrics metrics;
+
+    MeteredMemcachedClient(MemcachedClientIF client, MemcacheMetrics metrics) {
+        this.client = Preconditions.checkNotNull(client, "Client");
+        this.metrics = Preconditions.checkNotNull(metrics, "Metrics");
+    }
+
+    @Override
+    protected MemcachedClientIF delegate() {
+        return client;
+    }
+
+    private void hitOrMiss(Object value) {
+        if (value == null) {
+            metrics.misses(1);
+        } else {
+            metrics.hits(1);
+        }
+    }
+
+    private void hitsAndMisses(int requested, Map<String, ?> values) {
+        final int found = values == null ? 0 : values.size();
+        metrics.hits(found);
+        metrics.misses(requested - found);
+    }
+
+    private <V> Future<V> meter(MemcacheOperation operation, long start, CompletionListeners.Capture capture,
+        Future<V> future) {
+        capture.listen(future, new Recorder<V>(future, operation, start));
+        return new MeteredFuture<V>(future);
+    }
+
+    private <V> Future<V> meterGet(long start, CompletionListeners.Capture capture, Future<V> future) {
+        capture.listen(future, new Recorder<V>(future, MemcacheOperation.GET, start) {
+
+            @Override
+            void completed(V value) {
+                hitOrMiss(value);
+            }
+
+        });
+        return new MeteredFuture<V>(future);
+    }
+
+    private <V> Future<Map<String, V>> meterGetBulk(final int requested, long start,
+        CompletionListeners.Capture capture, Future<Map<String, V>> future) {
+        capture.listen(future, new Recorder<Map<String, V>>(future, MemcacheOperation.GET_BULK, start) {
+
+            @Override
+            void completed(Map<String, V> values) {
+                hitsAndMisses(requested, values);
+            }
+
+        });
+        return new MeteredFuture<Map<String, V>>(future);
+    }
+
+    @Override
+    public <T> Future<CASResponse> asyncCAS(String key, long casId, T value, Transcoder<T> tc) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<CASResponse> future;
+        try {
+            future = super.asyncCAS(key, casId, value, tc);
+        } finally {
+            capture.stop();
+        }
+        return meter(MemcacheOperation.CAS, start, capture, future);
+    }
+
+    @Override
+    public Future<CASResponse> asyncCAS(String key, long casId, Object value) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<CASResponse> future;
+        try {
+            future = super.asyncCAS(key, casId, value);
+        } finally {
+            capture.stop();
+        }
+        return meter(MemcacheOperation.CAS, start, capture, future);
+    }
+
+    @Override
+    public <T> CASResponse cas(String key, long casId, T value, Transcoder<T> tc) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            return super.cas(key, casId, value, tc);
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.CAS, start);
+        }
+    }
+
+    @Override
+    public CASResponse cas(String key, long casId, Object value) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            return super.cas(key, casId, value);
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.CAS, start);
+        }
+    }
+
+    @Override
+    public <T> Future<Boolean> add(String key, int exp, T value, Transcoder<T> tc) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = super.add(key, exp, value, tc);
+        } finally {
+            capture.stop();
+        }
+        return meter(MemcacheOperation.SET, start, capture, future);
+    }
+
+    @Override
+    public Future<Boolean> add(String key, int exp, Object value) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = super.add(key, exp, value);
+        } finally {
+            capture.stop();
+        }
+        return meter(MemcacheOperation.SET, start, capture, future);
+    }
+
+    @Override
+    public <T> Future<Boolean> set(String key, int exp, T value, Transcoder<T> tc) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = super.set(key, exp, value, tc);
+        } finally {
+            capture.stop();
+        }
+        return meter(MemcacheOperation.SET, start, capture, future);
+    }
+
+    @Override
+    public Future<Boolean> set(String key, int exp, Object value) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = super.set(key, exp, value);
+        } finally {
+            capture.stop();
+        }
+        return meter(MemcacheOperation.SET, start, capture, future);
+    }
+
+    @Override
+    public <T> Future<Boolean> replace(String key, int exp, T value, Transcoder<T> tc) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = super.replace(key, exp, value, tc);
+        } finally {
+            capture.stop();
+        }
+        return meter(MemcacheOperation.SET, start, capture, future);
+    }
+
+    @Override
+    public Future<Boolean> replace(String key, int exp, Object value) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = super.replace(key, exp, value);
+        } finally {
+            capture.stop();
+        }
+        return meter(MemcacheOperation.SET, start, capture, future);
+    }
+
+    @Override
+    public <T> Future<T> asyncGet(String key, Transcoder<T> tc) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<T> future;
+        try {
+            future = super.asyncGet(key, tc);
+        } finally {
+            capture.stop();
+        }
+        return meterGet(start, capture, future);
+    }
+
+    @Override
+    public Future<Object> asyncGet(String key) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Object> future;
+        try {
+            future = super.asyncGet(key);
+        } finally {
+            capture.stop();
+        }
+        return meterGet(start, capture, future);
+    }
+
+    @Override
+    public <T> CASValue<T> gets(String key, Transcoder<T> tc) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            final CASValue<T> value = super.gets(key, tc);
+            hitOrMiss(value);
+            return value;
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.GET, start);
+        }
+    }
+
+    @Override
+    public CASValue<Object> gets(String key) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            final CASValue<Object> value = super.gets(key);
+            hitOrMiss(value);
+            return value;
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.GET, start);
+        }
+    }
+
+    @Override
+    public <T> T get(String key, Transcoder<T> tc) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            final T value = super.get(key, tc);
+            hitOrMiss(value);
+            return value;
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.GET, start);
+        }
+    }
+
+    @Override
+    public Object get(String key) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            final Object value = super.get(key);
+            hitOrMiss(value);
+            return value;
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.GET, start);
+        }
+    }
+
+    @Override
+    public <T> Future<Map<String, T>> asyncGetBulk(Collection<String> keys, Transcoder<T> tc) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Map<String, T>> future;
+        try {
+            future = super.asyncGetBulk(keys, tc);
+        } finally {
+            capture.stop();
+        }
+        return meterGetBulk(keys.size(), start, capture, future);
+    }
+
+    @Override
+    public Future<Map<String, Object>> asyncGetBulk(Collection<String> keys) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Map<String, Object>> future;
+        try {
+            future = super.asyncGetBulk(keys);
+        } finally {
+            capture.stop();
+        }
+        return meterGetBulk(keys.size(), start, capture, future);
+    }
+
+    @Override
+    public <T> Future<Map<String, T>> asyncGetBulk(Transcoder<T> tc, String... keys) {
+        return asyncGetBulk(Arrays.asList(keys), tc);
+    }
+
+    @Override
+    public Future<Map<String, Object>> asyncGetBulk(String... keys) {
+        return asyncGetBulk(Arrays.asList(keys));
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            final Map<String, T> values = super.getBulk(keys, tc);
+            hitsAndMisses(keys.size(), values);
+            return values;
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.GET_BULK, start);
+        }
+    }
+
+    @Override
+    public Map<String, Object> getBulk(Collection<String> keys) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            final Map<String, Object> values = super.getBulk(keys);
+            hitsAndMisses(keys.size(), values);
+            return values;
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.GET_BULK, start);
+        }
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Transcoder<T> tc, String... keys) throws OperationTimeoutException {
+        return getBulk(Arrays.asList(keys), tc);
+    }
+
+    @Override
+    public Map<String, Object> getBulk(String... keys) throws OperationTimeoutException {
+        return getBulk(Arrays.asList(keys));
+    }
+
+    @Override
+    public long incr(String key, int by) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            return super.incr(key, by);
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.INCR, start);
+        }
+    }
+
+    @Override
+    public long decr(String key, int by) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            return super.decr(key, by);
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.INCR, start);
+        }
+    }
+
+    @Override
+    public long incr(String key, int by, long def, int exp) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            return super.incr(key, by, def, exp);
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.INCR, start);
+        }
+    }
+
+    @Override
+    public long decr(String key, int by, long def, int exp) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            return super.decr(key, by, def, exp);
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.INCR, start);
+        }
+    }
+
+    @Override
+    public Future<Long> asyncIncr(String key, int by) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Long> future;
+        try {
+            future = super.asyncIncr(key, by);
+        } finally {
+            capture.stop();
+        }
+        return meter(MemcacheOperation.INCR, start, capture, future);
+    }
+
+    @Override
+    public Future<Long> asyncDecr(String key, int by) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Long> future;
+        try {
+            future = super.asyncDecr(key, by);
+        } finally {
+            capture.stop();
+        }
+        return meter(MemcacheOperation.INCR, start, capture, future);
+    }
+
+    @Override
+    public long incr(String key, int by, long def) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            return super.incr(key, by, def);
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.INCR, start);
+        }
+    }
+
+    @Override
+    public long decr(String key, int by, long def) throws OperationTimeoutException {
+        final long start = System.nanoTime();
+        try {
+            return super.decr(key, by, def);
+        } catch (OperationTimeoutException e) {
+            metrics.timeout();
+            throw e;
+        } finally {
+            metrics.record(MemcacheOperation.INCR, start);
+        }
+    }
+
+    @Override
+    public Future<Boolean> delete(String key) {
+        final long start = System.nanoTime();
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<Boolean> future;
+        try {
+            future = super.delete(key);
+        } finally {
+            capture.stop();
+        }
+        return meter(MemcacheOperation.DELETE, start, capture, future);
+    }
+
+    @Override
+    public String toString() {
+        return "MeteredMemcachedClient [client=" + client + "]";
+    }
+
+    /**
+     * Records the latency of an asynchronous operation once it completed.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     * @param <V> the result type
+     */
+    private class Recorder<V> implements Runnable {
+
+        private final Future<V> future;
+
+        private final MemcacheOperation operation;
+
+        private final long start;
+
+        Recorder(Future<V> future, MemcacheOperation operation, long start) {
+            this.future = future;
+            this.operation = operation;
+            this.start = start;
+        }
+
+        void completed(V value) {
+            // nothing to count by default
+        }
+
+        @Override
+        public void run() {
+            metrics.record(operation, start);
+            final V value;
+            try {
+                value = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                return;
+            } catch (CancellationException e) {
+                return;
+            }
+            completed(value);
+        }
+
+    }
+
+    /**
+     * A future which counts callers timing out while waiting for its result.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     * @param <V> the result type
+     */
+    private class MeteredFuture<V> extends ForwardingFuture<V> {
+
+        private final Future<V> future;
+
+        MeteredFuture(Future<V> future) {
+            this.future = future;
+        }
+
+        @Override
+        protected Future<V> delegate() {
+            return future;
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+            try {
+                return super.get(timeout, unit);
+            } catch (TimeoutException e) {
+                metrics.timeout();
+                throw e;
+            }
+        }
+
+    }
+
+}
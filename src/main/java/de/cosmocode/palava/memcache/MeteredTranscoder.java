@@ -0,0 +1,74 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link Transcoder} decorator which counts encoded and decoded bytes
+ * in {@link MemcacheMetrics}.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class MeteredTranscoder implements Transcoder<Object> {
+
+    private final Transcoder<Object> transcoder;
+
+    private final MemcacheMetrics metrics;
+
+    MeteredTranscoder(Transcoder<Object> transcoder, MemcacheMetrics metrics) {
+        this.transcoder = Preconditions.checkNotNull(transcoder, "Transcoder");
+        this.metrics = Preconditions.checkNotNull(metrics, "Metrics");
+    }
+
+    Transcoder<Object> getDelegate() {
+        return transcoder;
+    }
+
+    @Override
+    public boolean asyncDecode(CachedData data) {
+        return transcoder.asyncDecode(data);
+    }
+
+    @Override
+    public CachedData encode(Object value) {
+        final CachedData data = transcoder.encode(value);
+        metrics.bytesOut(data.getData().length);
+        return data;
+    }
+
+    @Override
+    public Object decode(CachedData data) {
+        metrics.bytesIn(data.getData().length);
+        return transcoder.decode(data);
+    }
+
+    @Override
+    public int getMaxSize() {
+        return transcoder.getMaxSize();
+    }
+
+    @Override
+    public String toString() {
+        return "MeteredTranscoder [transcoder=" + transcoder + "]";
+    }
+
+}
@@ -0,0 +1,362 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.transcoders.Transcoder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * A {@link MemcachedClientIF} decorator which stores all keys in a namespace
+ * managed by {@link MemcacheNamespaces}.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class NamespacedMemcachedClient extends ForwardingMemcachedClient {
+
+    private final MemcachedClientIF client;
+
+    private final MemcacheNamespaces namespaces;
+
+    private final String namespace;
+
+    NamespacedMemcachedClient(MemcachedClientIF client, MemcacheNamespaces namespaces, String namespace) {
+        this.client = Preconditions.checkNotNull(client, "Client");
+        this.namespaces = Preconditions.checkNotNull(namespaces, "Namespaces");
+        this.namespace = Preconditions.checkNotNull(namespace, "Namespace");
+    }
+
+    @Override
+    protected MemcachedClientIF delegate() {
+        return client;
+    }
+
+    private String prefix() {
+        return namespace + ":" + namespaces.generationOf(client, namespace) + ":";
+    }
+
+    private String keyOf(String key) {
+        return prefix() + key;
+    }
+
+    private List<String> keysOf(String prefix, Collection<String> keys) {
+        final List<String> prefixed = Lists.newArrayListWithCapacity(keys.size());
+        for (String key : keys) {
+            prefixed.add(prefix + key);
+        }
+        return prefixed;
+    }
+
+    private static <T> Map<String, T> strip(String prefix, Map<String, T> values) {
+        final Map<String, T> stripped = Maps.newHashMapWithExpectedSize(values.size());
+        for (Map.Entry<String, T> entry : values.entrySet()) {
+            stripped.put(entry.getKey().substring(prefix.length()), entry.getValue());
+        }
+        return stripped;
+    }
+
+    @Override
+    public Future<Boolean> append(long cas, String key, Object value) {
+        return client.append(cas, keyOf(key), value);
+    }
+
+    @Override
+    public <T> Future<Boolean> append(long cas, String key, T value, Transcoder<T> transcoder) {
+        return client.append(cas, keyOf(key), value, transcoder);
+    }
+
+    @Override
+    public Future<Boolean> prepend(long cas, String key, Object value) {
+        return client.prepend(cas, keyOf(key), value);
+    }
+
+    @Override
+    public <T> Future<Boolean> prepend(long cas, String key, T value, Transcoder<T> transcoder) {
+        return client.prepend(cas, keyOf(key), value, transcoder);
+    }
+
+    @Override
+    public <T> Future<CASResponse> asyncCAS(String key, long cas, T value, Transcoder<T> transcoder) {
+        return client.asyncCAS(keyOf(key), cas, value, transcoder);
+    }
+
+    @Override
+    public Future<CASResponse> asyncCAS(String key, long cas, Object value) {
+        return client.asyncCAS(keyOf(key), cas, value);
+    }
+
+    @Override
+    public <T> CASResponse cas(String key, long cas, T value, Transcoder<T> transcoder)
+        throws OperationTimeoutException {
+        return client.cas(keyOf(key), cas, value, transcoder);
+    }
+
+    @Override
+    public CASResponse cas(String key, long cas, Object value) throws OperationTimeoutException {
+        return client.cas(keyOf(key), cas, value);
+    }
+
+    @Override
+    public <T> Future<Boolean> add(String key, int exp, T value, Transcoder<T> transcoder) {
+        return client.add(keyOf(key), exp, value, transcoder);
+    }
+
+    @Override
+    public Future<Boolean> add(String key, int exp, Object value) {
+        return client.add(keyOf(key), exp, value);
+    }
+
+    @Override
+    public <T> Future<Boolean> set(String key, int exp, T value, Transcoder<T> transcoder) {
+        return client.set(keyOf(key), exp, value, transcoder);
+    }
+
+    @Override
+    public Future<Boolean> set(String key, int exp, Object value) {
+        return client.set(keyOf(key), exp, value);
+    }
+
+    @Override
+    public <T> Future<Boolean> replace(String key, int exp, T value, Transcoder<T> transcoder) {
+        return client.replace(keyOf(key), exp, value, transcoder);
+    }
+
+    @Override
+    public Future<Boolean> replace(String key, int exp, Object value) {
+        return client.replace(keyOf(key), exp, value);
+    }
+
+    @Override
+    public <T> Future<T> asyncGet(String key, Transcoder<T> transcoder) {
+        return client.asyncGet(keyOf(key), transcoder);
+    }
+
+    @Override
+    public Future<Object> asyncGet(String key) {
+        return client.asyncGet(keyOf(key));
+    }
+
+    @Override
+    public <T> Future<CASValue<T>> asyncGets(String key, Transcoder<T> transcoder) {
+        return client.asyncGets(keyOf(key), transcoder);
+    }
+
+    @Override
+    public Future<CASValue<Object>> asyncGets(String key) {
+        return client.asyncGets(keyOf(key));
+    }
+
+    @Override
+    public <T> CASValue<T> gets(String key, Transcoder<T> transcoder) throws OperationTimeoutException {
+        return client.gets(keyOf(key), transcoder);
+    }
+
+    @Override
+    public CASValue<Object> gets(String key) throws OperationTimeoutException {
+        return client.gets(keyOf(key));
+    }
+
+    @Override
+    public <T> T get(String key, Transcoder<T> transcoder) throws OperationTimeoutException {
+        return client.get(keyOf(key), transcoder);
+    }
+
+    @Override
+    public Object get(String key) throws OperationTimeoutException {
+        return client.get(keyOf(key));
+    }
+
+    @Override
+    public <T> Future<Map<String, T>> asyncGetBulk(Collection<String> keys, Transcoder<T> transcoder) {
+        final String prefix = prefix();
+        return new StrippingFuture<T>(prefix, client.asyncGetBulk(keysOf(prefix, keys), transcoder));
+    }
+
+    @Override
+    public Future<Map<String, Object>> asyncGetBulk(Collection<String> keys) {
+        final String prefix = prefix();
+        return new StrippingFuture<Object>(prefix, client.asyncGetBulk(keysOf(prefix, keys)));
+    }
+
+    @Override
+    public <T> Future<Map<String, T>> asyncGetBulk(Transcoder<T> transcoder, String... keys) {
+        return asyncGetBulk(Arrays.asList(keys), transcoder);
+    }
+
+    @Override
+    public Future<Map<String, Object>> asyncGetBulk(String... keys) {
+        return asyncGetBulk(Arrays.asList(keys));
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> transcoder)
+        throws OperationTimeoutException {
+        final String prefix = prefix();
+        return strip(prefix, client.getBulk(keysOf(prefix, keys), transcoder));
+    }
+
+    @Override
+    public Map<String, Object> getBulk(Collection<String> keys) throws OperationTimeoutException {
+        final String prefix = prefix();
+        return strip(prefix, client.getBulk(keysOf(prefix, keys)));
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Transcoder<T> transcoder, String... keys) throws OperationTimeoutException {
+        return getBulk(Arrays.asList(keys), transcoder);
+    }
+
+    @Override
+    public Map<String, Object> getBulk(String... keys) throws OperationTimeoutException {
+        return getBulk(Arrays.asList(keys));
+    }
+
+    @Override
+    public long incr(String key, int by) throws OperationTimeoutException {
+        return client.incr(keyOf(key), by);
+    }
+
+    @Override
+    public long decr(String key, int by) throws OperationTimeoutException {
+        return client.decr(keyOf(key), by);
+    }
+
+    @Override
+    public long incr(String key, int by, long def, int exp) throws OperationTimeoutException {
+        return client.incr(keyOf(key), by, def, exp);
+    }
+
+    @Override
+    public long decr(String key, int by, long def, int exp) throws OperationTimeoutException {
+        return client.decr(keyOf(key), by, def, exp);
+    }
+
+    @Override
+    public Future<Long> asyncIncr(String key, int by) {
+        return client.asyncIncr(keyOf(key), by);
+    }
+
+    @Override
+    public Future<Long> asyncDecr(String key, int by) {
+        return client.asyncDecr(keyOf(key), by);
+    }
+
+    @Override
+    public long incr(String key, int by, long def) throws OperationTimeoutException {
+        return client.incr(keyOf(key), by, def);
+    }
+
+    @Override
+    public long decr(String key, int by, long def) throws OperationTimeoutException {
+        return client.decr(keyOf(key), by, def);
+    }
+
+    @Override
+    public Future<Boolean> delete(String key) {
+        return client.delete(keyOf(key));
+    }
+
+    /**
+     * Invalidates this namespace instead of flushing all servers.
+     *
+     * @return an already completed future
+     */
+    @Override
+    public Future<Boolean> flush() {
+        namespaces.invalidate(namespace);
+        return Futures.immediateFuture(Boolean.TRUE);
+    }
+
+    /**
+     * Not supported, namespaces are invalidated immediately.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public Future<Boolean> flush(int delay) {
+        throw new UnsupportedOperationException("Delayed invalidation of namespaces is not supported");
+    }
+
+    @Override
+    public String toString() {
+        return "NamespacedMemcachedClient [namespace=" + namespace + ", client=" + client + "]";
+    }
+
+    /**
+     * Removes the namespace prefix from the keys of a bulk get result.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     * @param <T> the generic value type
+     */
+    private static final class StrippingFuture<T> implements Future<Map<String, T>> {
+
+        private final String prefix;
+
+        private final Future<Map<String, T>> future;
+
+        StrippingFuture(String prefix, Future<Map<String, T>> future) {
+            this.prefix = prefix;
+            this.future = future;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return future.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        @Override
+        public Map<String, T> get() throws InterruptedException, ExecutionException {
+            return strip(prefix, future.get());
+        }
+
+        @Override
+        public Map<String, T> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+            return strip(prefix, future.get(timeout, unit));
+        }
+
+    }
+
+}
@@ -0,0 +1,448 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A {@link MemcachedClientIF} decorator which memoizes reads (including misses)
+ * for its own lifetime, which is usually a single unit of work. Writes through this
+ * client update or invalidate the memoized entries, a set is only memoized once it
+ * succeeded. Only calls using the default transcoder are memoized.
+ *
+ * <p>
+ *   Values of immutable types are memoized as they are, all others are kept encoded
+ *   and decoded on every hit, so callers never share mutable values. The hit ratio
+ *   is reported to the {@link MemcacheMetrics} when this client is destroyed.
+ * </p>
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class NearCacheMemcachedClient extends ForwardingMemcachedClient {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NearCacheMemcachedClient.class);
+
+    private static final Object MISS = new Object();
+
+    private static final Set<Class<?>> IMMUTABLE = ImmutableSet.<Class<?>>of(
+        String.class, Boolean.class, Character.class, Byte.class, Short.class,
+        Integer.class, Long.class, Float.class, Double.class
+    );
+
+    private final MemcachedClientIF client;
+
+    private final MemcacheMetrics metrics;
+
+    private final ConcurrentMap<String, Object> values = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<String, CASValue<Object>> casValues = Maps.newConcurrentMap();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new near cache.
+     *
+     * @param client the decorated client
+     * @param metrics the metrics the hit ratio is reported to, may be null
+     */
+    NearCacheMemcachedClient(MemcachedClientIF client, MemcacheMetrics metrics) {
+        this.client = Preconditions.checkNotNull(client, "Client");
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected MemcachedClientIF delegate() {
+        return client;
+    }
+
+    /**
+     * Provides the transcoder copying memoized values, which must not count as bytes written.
+     */
+    private Transcoder<Object> local() {
+        final Transcoder<Object> transcoder = client.getTranscoder();
+        return transcoder instanceof MeteredTranscoder ?
+            MeteredTranscoder.class.cast(transcoder).getDelegate() : transcoder;
+    }
+
+    private Object memoize(Object value) {
+        if (value == null) {
+            return MISS;
+        } else if (IMMUTABLE.contains(value.getClass())) {
+            return value;
+        } else {
+            return local().encode(value);
+        }
+    }
+
+    private Object recall(Object memoized) {
+        if (memoized == MISS) {
+            return null;
+        } else if (memoized instanceof CachedData) {
+            return local().decode(CachedData.class.cast(memoized));
+        } else {
+            return memoized;
+        }
+    }
+
+    /**
+     * Looks up the memoized value of the given key. A set which succeeded becomes the
+     * memoized value, a set which is still in flight or failed is a miss.
+     *
+     * @param key the key
+     * @return the memoized value or null if the key has to be read
+     */
+    private Object lookup(String key) {
+        final Object cached = values.get(key);
+        if (cached instanceof Write) {
+            final Write write = Write.class.cast(cached);
+            if (!write.future.isDone()) {
+                return null;
+            } else if (write.succeeded()) {
+                values.replace(key, write, write.value);
+                return write.value;
+            } else {
+                values.remove(key, write);
+                return null;
+            }
+        } else {
+            return cached;
+        }
+    }
+
+    @Override
+    public Object get(String key) throws OperationTimeoutException {
+        final Object cached = lookup(key);
+        if (cached == null) {
+            misses.incrementAndGet();
+            final Object value = client.get(key);
+            values.put(key, memoize(value));
+            return value;
+        } else {
+            hits.incrementAndGet();
+            return recall(cached);
+        }
+    }
+
+    @Override
+    public CASValue<Object> gets(String key) throws OperationTimeoutException {
+        final CASValue<Object> cached = casValues.get(key);
+        if (cached == null) {
+            misses.incrementAndGet();
+            final CASValue<Object> value = client.gets(key);
+            if (value != null) {
+                casValues.put(key, new CASValue<Object>(value.getCas(), memoize(value.getValue())));
+            }
+            return value;
+        } else {
+            hits.incrementAndGet();
+            return new CASValue<Object>(cached.getCas(), recall(cached.getValue()));
+        }
+    }
+
+    @Override
+    public Map<String, Object> getBulk(Collection<String> keys) throws OperationTimeoutException {
+        final Map<String, Object> result = Maps.newHashMapWithExpectedSize(keys.size());
+        final List<String> missing = Lists.newArrayList();
+        for (String key : keys) {
+            final Object cached = lookup(key);
+            if (cached == null) {
+                missing.add(key);
+            } else if (cached != MISS) {
+                result.put(key, recall(cached));
+            }
+        }
+        
+        hits.addAndGet(keys.size() - missing.size());
+        misses.addAndGet(missing.size());
+        
+        if (missing.isEmpty()) {
+            return result;
+        }
+        
+        final Map<String, Object> loaded = client.getBulk(missing);
+        for (String key : missing) {
+            values.put(key, memoize(loaded.get(key)));
+        }
+        result.putAll(loaded);
+        return result;
+    }
+
+    @Override
+    public Map<String, Object> getBulk(String... keys) throws OperationTimeoutException {
+        return getBulk(Arrays.asList(keys));
+    }
+
+    private void invalidate(String key) {
+        values.remove(key);
+        casValues.remove(key);
+    }
+
+    @Override
+    public Future<Boolean> set(String key, int exp, Object value) {
+        invalidate(key);
+        final Future<Boolean> future = client.set(key, exp, value);
+        if (value != null) {
+            values.put(key, new Write(memoize(value), future));
+        }
+        return future;
+    }
+
+    @Override
+    public <T> Future<Boolean> set(String key, int exp, T value, Transcoder<T> transcoder) {
+        invalidate(key);
+        return client.set(key, exp, value, transcoder);
+    }
+
+    @Override
+    public Future<Boolean> add(String key, int exp, Object value) {
+        invalidate(key);
+        return client.add(key, exp, value);
+    }
+
+    @Override
+    public <T> Future<Boolean> add(String key, int exp, T value, Transcoder<T> transcoder) {
+        invalidate(key);
+        return client.add(key, exp, value, transcoder);
+    }
+
+    @Override
+    public Future<Boolean> replace(String key, int exp, Object value) {
+        invalidate(key);
+        return client.replace(key, exp, value);
+    }
+
+    @Override
+    public <T> Future<Boolean> replace(String key, int exp, T value, Transcoder<T> transcoder) {
+        invalidate(key);
+        return client.replace(key, exp, value, transcoder);
+    }
+
+    @Override
+    public Future<Boolean> append(long cas, String key, Object value) {
+        invalidate(key);
+        return client.append(cas, key, value);
+    }
+
+    @Override
+    public <T> Future<Boolean> append(long cas, String key, T value, Transcoder<T> transcoder) {
+        invalidate(key);
+        return client.append(cas, key, value, transcoder);
+    }
+
+    @Override
+    public Future<Boolean> prepend(long cas, String key, Object value) {
+        invalidate(key);
+        return client.prepend(cas, key, value);
+    }
+
+    @Override
+    public <T> Future<Boolean> prepend(long cas, String key, T value, Transcoder<T> transcoder) {
+        invalidate(key);
+        return client.prepend(cas, key, value, transcoder);
+    }
+
+    @Override
+    public Future<CASResponse> asyncCAS(String key, long cas, Object value) {
+        invalidate(key);
+        return client.asyncCAS(key, cas, value);
+    }
+
+    @Override
+    public <T> Future<CASResponse> asyncCAS(String key, long cas, T value, Transcoder<T> transcoder) {
+        invalidate(key);
+        return client.asyncCAS(key, cas, value, transcoder);
+    }
+
+    @Override
+    public CASResponse cas(String key, long cas, Object value) throws OperationTimeoutException {
+        invalidate(key);
+        return client.cas(key, cas, value);
+    }
+
+    @Override
+    public <T> CASResponse cas(String key, long cas, T value, Transcoder<T> transcoder) 
+        throws OperationTimeoutException {
+        invalidate(key);
+        return client.cas(key, cas, value, transcoder);
+    }
+
+    @Override
+    public long incr(String key, int by) throws OperationTimeoutException {
+        invalidate(key);
+        return client.incr(key, by);
+    }
+
+    @Override
+    public long incr(String key, int by, long def) throws OperationTimeoutException {
+        invalidate(key);
+        return client.incr(key, by, def);
+    }
+
+    @Override
+    public long incr(String key, int by, long def, int exp) throws OperationTimeoutException {
+        invalidate(key);
+        return client.incr(key, by, def, exp);
+    }
+
+    @Override
+    public Future<Long> asyncIncr(String key, int by) {
+        invalidate(key);
+        return client.asyncIncr(key, by);
+    }
+
+    @Override
+    public long decr(String key, int by) throws OperationTimeoutException {
+        invalidate(key);
+        return client.decr(key, by);
+    }
+
+    @Override
+    public long decr(String key, int by, long def) throws OperationTimeoutException {
+        invalidate(key);
+        return client.decr(key, by, def);
+    }
+
+    @Override
+    public long decr(String key, int by, long def, int exp) throws OperationTimeoutException {
+        invalidate(key);
+        return client.decr(key, by, def, exp);
+    }
+
+    @Override
+    public Future<Long> asyncDecr(String key, int by) {
+        invalidate(key);
+        return client.asyncDecr(key, by);
+    }
+
+    @Override
+    public Future<Boolean> delete(String key) {
+        invalidate(key);
+        return client.delete(key);
+    }
+
+    @Override
+    public Future<Boolean> flush() {
+        values.clear();
+        casValues.clear();
+        return client.flush();
+    }
+
+    @Override
+    public Future<Boolean> flush(int delay) {
+        values.clear();
+        casValues.clear();
+        return client.flush(delay);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Computes the ratio of reads served by this near cache.
+     *
+     * @return the hit ratio between 0 and 1 or {@link Double#NaN} if there were no reads
+     */
+    public double getHitRatio() {
+        final long h = hits.get();
+        final long total = h + misses.get();
+        return total == 0 ? Double.NaN : (double) h / total;
+    }
+
+    @Override
+    public void destroy() {
+        LOG.debug("Near cache served {} of {} reads", hits.get(), hits.get() + misses.get());
+        if (metrics != null) {
+            metrics.nearCache(hits.get(), misses.get());
+        }
+        super.destroy();
+    }
+
+    @Override
+    public String toString() {
+        return "NearCacheMemcachedClient [client=" + client + ", hitRatio=" + getHitRatio() + "]";
+    }
+
+    /**
+     * A memoized set which counts once it succeeded.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private static final class Write {
+
+        private final Object value;
+
+        private final Future<Boolean> future;
+
+        Write(Object value, Future<Boolean> future) {
+            this.value = value;
+            this.future = future;
+        }
+
+        /**
+         * Checks whether the set succeeded. Requires the set to be done.
+         *
+         * @return true if the set stored the value
+         */
+        boolean succeeded() {
+            try {
+                return Boolean.TRUE.equals(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                return false;
+            } catch (CancellationException e) {
+                return false;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,851 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+
+/**
+ * A {@link CacheStorage} which keeps keys and values outside of the java heap.
+ * Memory is allocated in pages of direct {@link ByteBuffer}s which are assigned to
+ * slab classes of growing chunk sizes on demand, the same way memcached does it.
+ * Entries are found using an open addressing index consisting of two primitive arrays,
+ * i.e. the number of objects on the heap does not depend on the number of entries.
+ * Every slab class evicts its own entries using the clock algorithm once no page is left
+ * or it reached its share of all pages. Limiting the share prevents a few large values
+ * from taking all pages, leaving no room for small ones. A slab class which needs a chunk
+ * but has no entries to evict takes a page from the class owning most pages, evicting
+ * the entries on that page, like the slab reassignment of memcached.
+ *
+ * <p>
+ *   A value replaces the previous one of its key only after it was written. Values which
+ *   exceed the page size or find no memory are refused with an {@link IllegalStateException},
+ *   which the server reports as error instead of acknowledging the store.
+ *   The blocked state of deleted elements is not stored.
+ * </p>
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class OffHeapCacheStorage extends AbstractMap<Key, LocalCacheElement>
+    implements CacheStorage<Key, LocalCacheElement> {
+
+    static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
+
+    static final int HEADER = 28;
+
+    static final int MIN_CHUNK_SIZE = 64;
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapCacheStorage.class);
+
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private static final int ALIGNMENT = 8;
+
+    private static final int STATE = 0;
+
+    private static final int REFERENCED = 1;
+
+    private static final int KEY_LENGTH = 2;
+
+    private static final int HASH = 4;
+
+    private static final int CAS = 8;
+
+    private static final int FLAGS = 16;
+
+    private static final int EXPIRE = 20;
+
+    private static final int DATA_LENGTH = 24;
+
+    private static final byte FREE = 0;
+
+    private static final byte USED = 1;
+
+    private static final long EMPTY = 0L;
+
+    private static final long DELETED = -1L;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // one long address and one int hash per slot
+    private static final int SLOT_SIZE = 12;
+
+    private final Lock lock = new ReentrantLock();
+
+    private final int maxItems;
+
+    private final long maxBytes;
+
+    private final int pageSize;
+
+    private final int maxPages;
+
+    private final int maxClassPages;
+
+    private final SlabClass[] classes;
+
+    private final List<ByteBuffer> pages = Lists.newArrayList();
+
+    private final List<SlabClass> owners = Lists.newArrayList();
+
+    private long[] addresses = new long[INITIAL_CAPACITY];
+
+    private int[] hashes = new int[INITIAL_CAPACITY];
+
+    private int count;
+
+    private int deleted;
+
+    private long used;
+
+
+    OffHeapCacheStorage(int maxItems, long maxBytes) {
+        this(maxItems, maxBytes, DEFAULT_PAGE_SIZE, 1.0);
+    }
+
+    /**
+     * Creates a new storage.
+     *
+     * @param maxItems the maximum number of entries
+     * @param maxBytes the maximum number of bytes of all pages
+     * @param pageSize the size of one page, which is also the maximum entry size
+     * @param maxClassRatio the maximum share of all pages one slab class may take, between 0.0 and 1.0
+     */
+    OffHeapCacheStorage(int maxItems, long maxBytes, int pageSize, double maxClassRatio) {
+        Preconditions.checkArgument(maxItems > 0, "Max items must be positive, but was %s", maxItems);
+        Preconditions.checkArgument(pageSize >= MIN_CHUNK_SIZE, "Page size must be at least %s", MIN_CHUNK_SIZE);
+        Preconditions.checkArgument(maxBytes >= pageSize, "Max bytes must be at least %s, but was %s",
+            pageSize, maxBytes);
+        this.maxItems = maxItems;
+        this.maxBytes = maxBytes;
+        this.pageSize = pageSize;
+        Preconditions.checkArgument(maxClassRatio > 0.0 && maxClassRatio <= 1.0,
+            "Max class ratio must be in (0.0, 1.0], but was %s", maxClassRatio);
+        this.maxPages = (int) Math.min(Integer.MAX_VALUE - 1, maxBytes / pageSize);
+        this.maxClassPages = Math.max(1, (int) (maxPages * maxClassRatio));
+        this.classes = newClasses(pageSize);
+    }
+
+    private static SlabClass[] newClasses(int pageSize) {
+        final List<SlabClass> list = Lists.newArrayList();
+        int size = MIN_CHUNK_SIZE;
+        while (size <= pageSize / 2) {
+            list.add(new SlabClass(size));
+            size = align((int) (size * GROWTH_FACTOR));
+        }
+        list.add(new SlabClass(pageSize));
+        return list.toArray(new SlabClass[list.size()]);
+    }
+
+    private static int align(int size) {
+        return (size + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+    }
+
+    private static int hash(Key key) {
+        // the buffer hash of similar keys differs in few bits only, linear probing needs a good spread
+        final int h = key.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static long addressOf(int page, int offset) {
+        return ((long) (page + 1) << 32) | offset;
+    }
+
+    private static int pageOf(long address) {
+        return (int) (address >>> 32) - 1;
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    private static int lengthOf(ChannelBuffer buffer) {
+        return buffer == null ? 0 : buffer.readableBytes();
+    }
+
+    private SlabClass classOf(int size) {
+        for (SlabClass slab : classes) {
+            if (slab.chunkSize >= size) {
+                return slab;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public LocalCacheElement get(Object key) {
+        if (!(key instanceof Key)) {
+            return null;
+        }
+        final Key k = Key.class.cast(key);
+        lock.lock();
+        try {
+            final int index = indexOf(k, hash(k));
+            if (index == -1) {
+                return null;
+            }
+            final long address = addresses[index];
+            pages.get(pageOf(address)).put(offsetOf(address) + REFERENCED, USED);
+            return read(address, k);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof Key)) {
+            return false;
+        }
+        final Key k = Key.class.cast(key);
+        lock.lock();
+        try {
+            return indexOf(k, hash(k)) != -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LocalCacheElement put(Key key, LocalCacheElement value) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(value, "Value");
+        final int hash = hash(key);
+        lock.lock();
+        try {
+            final int index = indexOf(key, hash);
+            final LocalCacheElement previous = index == -1 ? null : read(addresses[index], key);
+            store(key, hash, value, index != -1);
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LocalCacheElement putIfAbsent(Key key, LocalCacheElement value) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(value, "Value");
+        final int hash = hash(key);
+        lock.lock();
+        try {
+            final int index = indexOf(key, hash);
+            if (index == -1) {
+                store(key, hash, value, false);
+                return null;
+            } else {
+                return read(addresses[index], key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LocalCacheElement replace(Key key, LocalCacheElement value) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(value, "Value");
+        final int hash = hash(key);
+        lock.lock();
+        try {
+            final int index = indexOf(key, hash);
+            if (index == -1) {
+                return null;
+            }
+            final LocalCacheElement previous = read(addresses[index], key);
+            store(key, hash, value, true);
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(Key key, LocalCacheElement oldValue, LocalCacheElement newValue) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(newValue, "NewValue");
+        final int hash = hash(key);
+        lock.lock();
+        try {
+            final int index = indexOf(key, hash);
+            if (index == -1 || !read(addresses[index], key).equals(oldValue)) {
+                return false;
+            }
+            store(key, hash, newValue, true);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LocalCacheElement remove(Object key) {
+        if (!(key instanceof Key)) {
+            return null;
+        }
+        final Key k = Key.class.cast(key);
+        lock.lock();
+        try {
+            final int index = indexOf(k, hash(k));
+            if (index == -1) {
+                return null;
+            }
+            final LocalCacheElement previous = read(addresses[index], k);
+            release(index);
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (!(key instanceof Key)) {
+            return false;
+        }
+        final Key k = Key.class.cast(key);
+        lock.lock();
+        try {
+            final int index = indexOf(k, hash(k));
+            if (index == -1 || !read(addresses[index], k).equals(value)) {
+                return false;
+            }
+            release(index);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            for (int i = 0; i < addresses.length; i++) {
+                if (addresses[i] != EMPTY && addresses[i] != DELETED) {
+                    release(i);
+                }
+            }
+            addresses = new long[INITIAL_CAPACITY];
+            hashes = new int[INITIAL_CAPACITY];
+            deleted = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   The returned set is a weakly consistent, unmodifiable view. Its iterator
+     *   copies one entry at a time onto the heap and may miss or repeat entries
+     *   which are added concurrently.
+     * </p>
+     */
+    @Override
+    public Set<Map.Entry<Key, LocalCacheElement>> entrySet() {
+        return new AbstractSet<Map.Entry<Key, LocalCacheElement>>() {
+
+            @Override
+            public Iterator<Map.Entry<Key, LocalCacheElement>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return OffHeapCacheStorage.this.size();
+            }
+
+        };
+    }
+
+    private int indexOf(Key key, int hash) {
+        final int mask = addresses.length - 1;
+        int index = hash & mask;
+        while (true) {
+            final long address = addresses[index];
+            if (address == EMPTY) {
+                return -1;
+            } else if (address != DELETED && hashes[index] == hash && matches(address, key)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private int indexOf(long address, int hash) {
+        final int mask = addresses.length - 1;
+        int index = hash & mask;
+        while (addresses[index] != address) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private boolean matches(long address, Key key) {
+        final ByteBuffer page = pages.get(pageOf(address));
+        final int offset = offsetOf(address);
+        final ChannelBuffer bytes = key.bytes;
+        final int length = bytes.readableBytes();
+        if (page.getShort(offset + KEY_LENGTH) != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (page.get(offset + HEADER + i) != bytes.getByte(bytes.readerIndex() + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Key readKey(long address) {
+        final ByteBuffer page = pages.get(pageOf(address)).duplicate();
+        final int offset = offsetOf(address);
+        final byte[] key = new byte[page.getShort(offset + KEY_LENGTH)];
+        page.position(offset + HEADER);
+        page.get(key);
+        return new Key(ChannelBuffers.wrappedBuffer(key));
+    }
+
+    private LocalCacheElement read(long address, Key key) {
+        final ByteBuffer page = pages.get(pageOf(address)).duplicate();
+        final int offset = offsetOf(address);
+        final LocalCacheElement element = new LocalCacheElement(key,
+            page.getInt(offset + FLAGS), page.getInt(offset + EXPIRE), page.getLong(offset + CAS));
+        final byte[] data = new byte[page.getInt(offset + DATA_LENGTH)];
+        page.position(offset + HEADER + page.getShort(offset + KEY_LENGTH));
+        page.get(data);
+        element.setData(ChannelBuffers.wrappedBuffer(data));
+        return element;
+    }
+
+    /**
+     * Stores the given value. The chunk of the previous value is released once the
+     * new value was written, i.e. the previous value survives if no chunk is left.
+     *
+     * @param key the key
+     * @param hash the hash of the key
+     * @param value the value
+     * @param present whether the key has a previous value
+     * @throws IllegalStateException if the value exceeds the page size or no memory is left
+     */
+    private void store(Key key, int hash, LocalCacheElement value, boolean present) {
+        final long address = write(key, hash, value, present);
+        if (present) {
+            final int index = indexOf(key, hash);
+            // the previous value may have been evicted to make room
+            if (index != -1) {
+                release(index);
+            }
+        }
+        insert(hash, address);
+    }
+
+    private long write(Key key, int hash, LocalCacheElement value, boolean present) {
+        final int keyLength = key.bytes.readableBytes();
+        final ChannelBuffer data = value.getData();
+        final int dataLength = lengthOf(data);
+        final SlabClass slab = classOf(HEADER + keyLength + dataLength);
+        if (slab == null) {
+            throw new IllegalStateException(String.format(
+                "Object of %s bytes too large for cache with page size %s", dataLength, pageSize));
+        }
+        while (!present && count >= maxItems) {
+            evict(slab.items > 0 ? slab : fullest());
+        }
+        final long address = allocate(slab);
+        if (address == EMPTY) {
+            throw new IllegalStateException(String.format(
+                "Out of memory storing object of %s bytes", dataLength));
+        }
+
+        final ByteBuffer page = pages.get(pageOf(address)).duplicate();
+        final int offset = offsetOf(address);
+        page.put(offset + STATE, USED);
+        page.put(offset + REFERENCED, FREE);
+        page.putShort(offset + KEY_LENGTH, (short) keyLength);
+        page.putInt(offset + HASH, hash);
+        page.putLong(offset + CAS, value.getCasUnique());
+        page.putInt(offset + FLAGS, value.getFlags());
+        page.putInt(offset + EXPIRE, value.getExpire());
+        page.putInt(offset + DATA_LENGTH, dataLength);
+        page.position(offset + HEADER);
+        page.limit(offset + HEADER + keyLength);
+        key.bytes.getBytes(key.bytes.readerIndex(), page);
+        if (dataLength > 0) {
+            page.limit(offset + HEADER + keyLength + dataLength);
+            data.getBytes(data.readerIndex(), page);
+        }
+
+        slab.items++;
+        used += slab.chunkSize;
+        return address;
+    }
+
+    private long allocate(SlabClass slab) {
+        if (slab.freeCount == 0) {
+            if (pages.size() < maxPages && slab.pages.size() < maxClassPages) {
+                pages.add(ByteBuffer.allocateDirect(pageSize));
+                owners.add(null);
+                carve(slab, pages.size() - 1);
+            } else if (slab.items > 0) {
+                evict(slab);
+            } else if (!reassign(slab)) {
+                return EMPTY;
+            }
+        }
+        return slab.pop();
+    }
+
+    private void carve(SlabClass slab, int page) {
+        owners.set(page, slab);
+        slab.pages.add(Integer.valueOf(page));
+        final int chunks = pageSize / slab.chunkSize;
+        for (int i = chunks - 1; i >= 0; i--) {
+            slab.push(addressOf(page, i * slab.chunkSize));
+        }
+    }
+
+    /**
+     * Moves the last page of the slab class owning most pages to the given slab class,
+     * evicting all entries on it.
+     *
+     * @param slab the slab class in need of a page
+     * @return true if a page was moved, false if no other class owns a page
+     */
+    private boolean reassign(SlabClass slab) {
+        SlabClass victim = null;
+        for (SlabClass candidate : classes) {
+            if (candidate != slab && (victim == null || candidate.pages.size() > victim.pages.size())) {
+                victim = candidate;
+            }
+        }
+        if (victim == null || victim.pages.isEmpty()) {
+            return false;
+        }
+        final int page = victim.pages.remove(victim.pages.size() - 1).intValue();
+        final ByteBuffer buffer = pages.get(page);
+        for (int offset = 0; offset + victim.chunkSize <= pageSize; offset += victim.chunkSize) {
+            if (buffer.get(offset + STATE) == USED) {
+                release(indexOf(addressOf(page, offset), buffer.getInt(offset + HASH)));
+                victim.evictions++;
+            }
+        }
+        victim.remove(page);
+        final int chunks = victim.pages.size() * (pageSize / victim.chunkSize);
+        victim.hand = chunks == 0 ? 0 : victim.hand % chunks;
+        LOG.debug("Moved page {} from slab class of {} bytes to {} bytes", new Object[] {
+            page, victim.chunkSize, slab.chunkSize
+        });
+        carve(slab, page);
+        return true;
+    }
+
+    private SlabClass fullest() {
+        SlabClass fullest = classes[0];
+        for (SlabClass slab : classes) {
+            if (slab.items > fullest.items) {
+                fullest = slab;
+            }
+        }
+        return fullest;
+    }
+
+    private boolean evict(SlabClass slab) {
+        if (slab.items == 0) {
+            return false;
+        }
+        final int perPage = pageSize / slab.chunkSize;
+        while (true) {
+            final int page = slab.pages.get(slab.hand / perPage).intValue();
+            final int offset = (slab.hand % perPage) * slab.chunkSize;
+            slab.hand = (slab.hand + 1) % (slab.pages.size() * perPage);
+            final ByteBuffer buffer = pages.get(page);
+            if (buffer.get(offset + STATE) == FREE) {
+                continue;
+            } else if (buffer.get(offset + REFERENCED) == USED) {
+                buffer.put(offset + REFERENCED, FREE);
+                continue;
+            }
+            final long address = addressOf(page, offset);
+            release(indexOf(address, buffer.getInt(offset + HASH)));
+            slab.evictions++;
+            return true;
+        }
+    }
+
+    private void insert(int hash, long address) {
+        if ((count + deleted + 1) * 2 > addresses.length) {
+            rehash(count * 4 >= addresses.length ? addresses.length * 2 : addresses.length);
+        }
+        final int mask = addresses.length - 1;
+        int index = hash & mask;
+        while (addresses[index] != EMPTY && addresses[index] != DELETED) {
+            index = (index + 1) & mask;
+        }
+        if (addresses[index] == DELETED) {
+            deleted--;
+        }
+        addresses[index] = address;
+        hashes[index] = hash;
+        count++;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldAddresses = addresses;
+        final int[] oldHashes = hashes;
+        addresses = new long[capacity];
+        hashes = new int[capacity];
+        deleted = 0;
+        final int mask = capacity - 1;
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] != EMPTY && oldAddresses[i] != DELETED) {
+                int index = oldHashes[i] & mask;
+                while (addresses[index] != EMPTY) {
+                    index = (index + 1) & mask;
+                }
+                addresses[index] = oldAddresses[i];
+                hashes[index] = oldHashes[i];
+            }
+        }
+    }
+
+    private void release(int index) {
+        final long address = addresses[index];
+        addresses[index] = DELETED;
+        deleted++;
+        count--;
+        final int page = pageOf(address);
+        pages.get(page).put(offsetOf(address) + STATE, FREE);
+        final SlabClass slab = owners.get(page);
+        slab.push(address);
+        slab.items--;
+        used -= slab.chunkSize;
+    }
+
+    @Override
+    public long getMemoryCapacity() {
+        return maxBytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Every entry is counted with the full size of its chunk. The heap
+     *   memory of the index is included as well.
+     * </p>
+     */
+    @Override
+    public long getMemoryUsed() {
+        lock.lock();
+        try {
+            return used + (long) addresses.length * SLOT_SIZE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return maxItems;
+    }
+
+    /**
+     * Provides the number of entries evicted to make room for new ones.
+     *
+     * @return the number of evictions
+     */
+    long getEvictions() {
+        lock.lock();
+        try {
+            long evictions = 0;
+            for (SlabClass slab : classes) {
+                evictions += slab.evictions;
+            }
+            return evictions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Provides the statistics of all slab classes which allocated at least one page.
+     *
+     * @return the statistics of every used slab class, ordered by chunk size
+     */
+    List<SizeClassStats> getSizeClasses() {
+        lock.lock();
+        try {
+            final List<SizeClassStats> stats = Lists.newArrayList();
+            for (SlabClass slab : classes) {
+                if (slab.pages.isEmpty()) {
+                    continue;
+                }
+                stats.add(new SizeClassStats(slab.chunkSize, slab.items, (long) slab.items * slab.chunkSize,
+                    (long) slab.pages.size() * pageSize, (long) maxClassPages * pageSize, slab.evictions));
+            }
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases all pages. Direct memory is returned once the buffers are garbage collected.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            clear();
+            pages.clear();
+            owners.clear();
+            for (int i = 0; i < classes.length; i++) {
+                final SlabClass slab = new SlabClass(classes[i].chunkSize);
+                slab.evictions = classes[i].evictions;
+                classes[i] = slab;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapCacheStorage [maxItems=" + maxItems + ", maxBytes=" + maxBytes + ", pageSize=" + pageSize + "]";
+    }
+
+    /**
+     * Iterates over the slots of the index.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private final class EntryIterator extends AbstractIterator<Map.Entry<Key, LocalCacheElement>> {
+
+        private int index;
+
+        @Override
+        protected Map.Entry<Key, LocalCacheElement> computeNext() {
+            lock.lock();
+            try {
+                while (index < addresses.length) {
+                    final long address = addresses[index++];
+                    if (address != EMPTY && address != DELETED) {
+                        final Key key = readKey(address);
+                        return Maps.immutableEntry(key, read(address, key));
+                    }
+                }
+                return endOfData();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+    /**
+     * A slab class manages all chunks of one size.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private static final class SlabClass {
+
+        private final int chunkSize;
+
+        private final List<Integer> pages = Lists.newArrayList();
+
+        private long[] free = new long[16];
+
+        private int freeCount;
+
+        private int items;
+
+        private int hand;
+
+        private long evictions;
+
+        SlabClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        void push(long address) {
+            if (freeCount == free.length) {
+                final long[] copy = new long[free.length * 2];
+                System.arraycopy(free, 0, copy, 0, freeCount);
+                free = copy;
+            }
+            free[freeCount++] = address;
+        }
+
+        long pop() {
+            return free[--freeCount];
+        }
+
+        /**
+         * Removes all free chunks of the given page.
+         *
+         * @param page the page index
+         */
+        void remove(int page) {
+            int kept = 0;
+            for (int i = 0; i < freeCount; i++) {
+                if (pageOf(free[i]) != page) {
+                    free[kept++] = free[i];
+                }
+            }
+            freeCount = kept;
+        }
+
+    }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Thread local, reusable buffers for the value path. Buffers larger than
+ * {@link #MAX_POOLED_SIZE} are not kept.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class PooledBuffers {
+
+    static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+    private static final int INITIAL_SIZE = 4096;
+
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_SIZE];
+        }
+
+    };
+
+    private static final ThreadLocal<Output> OUTPUT = new ThreadLocal<Output>() {
+
+        @Override
+        protected Output initialValue() {
+            return new Output();
+        }
+
+    };
+
+    private PooledBuffers() {
+
+    }
+
+    /**
+     * Provides the scratch buffer of the current thread with at least the given size.
+     * Its content is undefined and the buffer is only valid until the next call.
+     *
+     * @param size the minimum size
+     * @return the scratch buffer
+     */
+    static byte[] scratch(int size) {
+        final byte[] current = SCRATCH.get();
+        if (current.length >= size) {
+            return current;
+        }
+        final byte[] buffer = new byte[Math.max(size, current.length * 2)];
+        if (buffer.length <= MAX_POOLED_SIZE) {
+            SCRATCH.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Provides the emptied output buffer of the current thread. It is only
+     * valid until the next call.
+     *
+     * @return the output buffer
+     */
+    static Output output() {
+        final Output output = OUTPUT.get();
+        if (output.capacity() > MAX_POOLED_SIZE) {
+            final Output fresh = new Output();
+            OUTPUT.set(fresh);
+            return fresh;
+        }
+        output.reset();
+        return output;
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} exposing its internal buffer.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    static final class Output extends ByteArrayOutputStream {
+
+        Output() {
+            super(INITIAL_SIZE);
+        }
+
+        /**
+         * Provides the internal buffer, valid up to {@link #size()}.
+         *
+         * @return the internal buffer
+         */
+        byte[] buffer() {
+            return buf;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+    }
+
+}
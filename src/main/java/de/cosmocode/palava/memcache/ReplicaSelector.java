@@ -0,0 +1,163 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Orders the replicas of a key for reading. Available servers come first, ordered by
+ * their smoothed read latency multiplied by their number of reads in flight. Replicas
+ * of equal score keep their order on the hash ring. Failed reads count like reads
+ * which took the whole operation timeout. The state is shared by all clients of a provider.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class ReplicaSelector {
+
+    private static final double ALPHA = 0.2;
+
+    private final ConcurrentMap<SocketAddress, Load> loads = Maps.newConcurrentMap();
+
+    private final long penalty;
+
+    /**
+     * Creates a new selector.
+     *
+     * @param timeout the operation timeout in milliseconds, used as latency of failed reads
+     */
+    ReplicaSelector(long timeout) {
+        this.penalty = TimeUnit.MILLISECONDS.toMicros(timeout);
+    }
+
+    private Load loadOf(SocketAddress address) {
+        final Load load = loads.get(address);
+        if (load == null) {
+            final Load created = new Load();
+            final Load existing = loads.putIfAbsent(address, created);
+            return existing == null ? created : existing;
+        } else {
+            return load;
+        }
+    }
+
+    /**
+     * Orders the given replicas, best first.
+     *
+     * @param replicas the replicas in ring order
+     * @param unavailable the servers which are currently not connected
+     * @return a new list containing the ordered replicas
+     */
+    List<SocketAddress> order(List<SocketAddress> replicas, Collection<SocketAddress> unavailable) {
+        final List<SocketAddress> ordered = Lists.newArrayList(replicas);
+        if (ordered.size() < 2) {
+            return ordered;
+        }
+        // scores change concurrently, sorting needs a stable snapshot
+        final Map<SocketAddress, Double> scores = Maps.newHashMap();
+        for (SocketAddress address : ordered) {
+            final double score = loadOf(address).score();
+            scores.put(address, unavailable.contains(address) ? Double.POSITIVE_INFINITY : score);
+        }
+        Collections.sort(ordered, new Comparator<SocketAddress>() {
+
+            @Override
+            public int compare(SocketAddress left, SocketAddress right) {
+                return scores.get(left).compareTo(scores.get(right));
+            }
+
+        });
+        return ordered;
+    }
+
+    /**
+     * Records the start of a read.
+     *
+     * @param address the server
+     * @return the start time in nanoseconds, to be passed to {@link #end(SocketAddress, long, boolean)}
+     */
+    long begin(SocketAddress address) {
+        loadOf(address).inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the end of a read.
+     *
+     * @param address the server
+     * @param start the value returned by {@link #begin(SocketAddress)}
+     * @param success whether the read succeeded
+     */
+    void end(SocketAddress address, long start, boolean success) {
+        final Load load = loadOf(address);
+        load.inFlight.decrementAndGet();
+        final long micros = success ? TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) : penalty;
+        load.latency += ALPHA * (micros - load.latency);
+    }
+
+    /**
+     * Provides the smoothed read latency of a server.
+     *
+     * @param address the server
+     * @return the latency in microseconds
+     */
+    double getLatency(SocketAddress address) {
+        return loadOf(address).latency;
+    }
+
+    /**
+     * Provides the number of reads in flight on a server.
+     *
+     * @param address the server
+     * @return the number of reads which began but didn't end yet
+     */
+    int getInFlight(SocketAddress address) {
+        return loadOf(address).inFlight.get();
+    }
+
+    /**
+     * The load of a single server.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private static final class Load {
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        // lost updates only make the average less smooth
+        private volatile double latency;
+
+        double score() {
+            return (latency + 1) * (inFlight.get() + 1);
+        }
+
+    }
+
+}
@@ -0,0 +1,1262 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.ConnectionObserver;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * A {@link MemcachedClientIF} which stores every key on several servers. The replicas of
+ * a key are the first distinct servers following the key on a hash ring. Writes go to all
+ * replicas. Sets and deletes report true if any replica did, otherwise the result of the
+ * first replica in ring order which didn't fail. All other writes report the result of the
+ * first replica in ring order which didn't fail, so an add succeeds for only one of several
+ * concurrent callers as long as they agree on the owner of the key.
+ * Reads go to the replica ranked best by a {@link ReplicaSelector} and fall back to the
+ * others if a server fails, times out or rejects the call because of an open circuit.
+ * An optional {@link HedgePolicy} sends slow reads to a second replica.
+ *
+ * <p>
+ *   Increments are applied on every replica. Cas values are only valid on the server which
+ *   issued them, therefore gets and cas use the first available replica and a successful cas
+ *   deletes the key from all other replicas. Statistics, flushes and lifecycle calls go to all servers.
+ * </p>
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class ReplicatedMemcachedClient extends ForwardingMemcachedClient {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicatedMemcachedClient.class);
+
+    private final Map<SocketAddress, MemcachedClientIF> clients;
+
+    private final NodeLocator locator;
+
+    private final int replicas;
+
+    private final ReplicaSelector selector;
+
+    private final HedgePolicy hedging;
+
+    private final long timeout;
+
+    /**
+     * Creates a new replicated client.
+     *
+     * @param clients one client per server, keyed by server address
+     * @param locator the hash ring over the nodes of all clients
+     * @param replicas the number of servers every key is stored on
+     * @param selector the selector ranking replicas for reads
+     * @param hedging the policy hedging slow reads, null disables hedging
+     * @param timeout the operation timeout in milliseconds
+     */
+    ReplicatedMemcachedClient(Map<? extends SocketAddress, ? extends MemcachedClientIF> clients, NodeLocator locator,
+        int replicas, ReplicaSelector selector, HedgePolicy hedging, long timeout) {
+        Preconditions.checkArgument(!clients.isEmpty(), "Clients must not be empty");
+        Preconditions.checkArgument(replicas > 0, "Replicas must be positive, but was %s", replicas);
+        this.clients = ImmutableMap.copyOf(clients);
+        this.locator = Preconditions.checkNotNull(locator, "Locator");
+        this.replicas = replicas;
+        this.selector = Preconditions.checkNotNull(selector, "Selector");
+        this.hedging = hedging;
+        this.timeout = timeout;
+    }
+
+    @Override
+    protected MemcachedClientIF delegate() {
+        return clients.values().iterator().next();
+    }
+
+    private List<SocketAddress> replicasOf(String key) {
+        final List<SocketAddress> addresses = Lists.newArrayListWithCapacity(replicas);
+        addresses.add(locator.getPrimary(key).getSocketAddress());
+        final Iterator<MemcachedNode> sequence = locator.getSequence(key);
+        while (addresses.size() < replicas && sequence.hasNext()) {
+            addresses.add(sequence.next().getSocketAddress());
+        }
+        return addresses;
+    }
+
+    private List<SocketAddress> unavailableOf(List<SocketAddress> addresses) {
+        final List<SocketAddress> unavailable = Lists.newArrayListWithCapacity(0);
+        for (SocketAddress address : addresses) {
+            if (!clients.get(address).getUnavailableServers().isEmpty()) {
+                unavailable.add(address);
+            }
+        }
+        return unavailable;
+    }
+
+    private List<SocketAddress> readOrderOf(String key) {
+        final List<SocketAddress> addresses = replicasOf(key);
+        return selector.order(addresses, unavailableOf(addresses));
+    }
+
+    private MemcachedClientIF ownerOf(String key) {
+        final List<SocketAddress> addresses = replicasOf(key);
+        final List<SocketAddress> unavailable = unavailableOf(addresses);
+        for (SocketAddress address : addresses) {
+            if (!unavailable.contains(address)) {
+                return clients.get(address);
+            }
+        }
+        return clients.get(addresses.get(0));
+    }
+
+    private <V> Future<V> writeAll(String key, Write<V> write) {
+        return replicate(key, targetsOf(key), false, write);
+    }
+
+    private Future<Boolean> writeAny(String key, Write<Boolean> write) {
+        return replicate(key, targetsOf(key), true, write);
+    }
+
+    private List<MemcachedClientIF> targetsOf(String key) {
+        final List<MemcachedClientIF> targets = Lists.newArrayListWithCapacity(replicas);
+        for (SocketAddress address : replicasOf(key)) {
+            targets.add(clients.get(address));
+        }
+        return targets;
+    }
+
+    private <V> Future<V> replicate(String key, Collection<MemcachedClientIF> targets, boolean any,
+        Write<V> write) {
+        final List<Future<V>> futures = Lists.newArrayListWithCapacity(targets.size());
+        final List<CompletionListeners.Capture> captures = Lists.newArrayListWithCapacity(targets.size());
+        RuntimeException last = null;
+        for (MemcachedClientIF client : targets) {
+            final CompletionListeners.Capture capture = CompletionListeners.capture();
+            try {
+                futures.add(write.apply(client));
+                captures.add(capture);
+            } catch (RuntimeException e) {
+                LOG.debug("Writing {} to {} failed: {}", new Object[] {key, client, e});
+                last = e;
+            } finally {
+                capture.stop();
+            }
+        }
+        if (futures.isEmpty()) {
+            throw last;
+        }
+        return new ReplicatedFuture<V>(futures, captures, any, timeout);
+    }
+
+    private long countAll(String key, Count count) {
+        final List<SocketAddress> addresses = replicasOf(key);
+        final List<SocketAddress> unavailable = unavailableOf(addresses);
+        Long result = null;
+        boolean available = false;
+        RuntimeException last = null;
+        for (SocketAddress address : addresses) {
+            try {
+                final long value = count.apply(clients.get(address));
+                // prefer the value of an available replica over the miss of an open circuit
+                if (result == null || (!available && !unavailable.contains(address))) {
+                    result = Long.valueOf(value);
+                    available = !unavailable.contains(address);
+                }
+            } catch (RuntimeException e) {
+                LOG.debug("Counting {} on {} failed: {}", new Object[] {key, address, e});
+                last = e;
+            }
+        }
+        if (result == null) {
+            throw last;
+        }
+        return result.longValue();
+    }
+
+    private void invalidateReplicas(String key, MemcachedClientIF owner) {
+        for (SocketAddress address : replicasOf(key)) {
+            final MemcachedClientIF client = clients.get(address);
+            if (client == owner) {
+                continue;
+            }
+            try {
+                client.delete(key);
+            } catch (RuntimeException e) {
+                LOG.debug("Invalidating {} on {} failed: {}", new Object[] {key, address, e});
+            }
+        }
+    }
+
+    private <T> T getFrom(List<SocketAddress> order, String key, Transcoder<T> tc) {
+        RuntimeException last = null;
+        for (SocketAddress address : order) {
+            final long start = selector.begin(address);
+            try {
+                final T value = clients.get(address).get(key, tc);
+                selector.end(address, start, true);
+                return value;
+            } catch (RuntimeException e) {
+                selector.end(address, start, false);
+                LOG.debug("Reading {} from {} failed, trying next replica: {}", new Object[] {key, address, e});
+                last = e;
+            }
+        }
+        throw last;
+    }
+
+    @Override
+    public Collection<SocketAddress> getAvailableServers() {
+        final List<SocketAddress> servers = Lists.newArrayList();
+        for (MemcachedClientIF client : clients.values()) {
+            servers.addAll(client.getAvailableServers());
+        }
+        return servers;
+    }
+
+    @Override
+    public Collection<SocketAddress> getUnavailableServers() {
+        final List<SocketAddress> servers = Lists.newArrayList();
+        for (MemcachedClientIF client : clients.values()) {
+            servers.addAll(client.getUnavailableServers());
+        }
+        return servers;
+    }
+
+    @Override
+    public NodeLocator getNodeLocator() {
+        return locator.getReadonlyCopy();
+    }
+
+    @Override
+    public Future<Boolean> append(long cas, String key, Object value) {
+        return append(cas, key, value, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<Boolean> append(final long cas, final String key, final T value, final Transcoder<T> tc) {
+        return writeAll(key, new Write<Boolean>() {
+
+            @Override
+            public Future<Boolean> apply(MemcachedClientIF client) {
+                return client.append(cas, key, value, tc);
+            }
+
+        });
+    }
+
+    @Override
+    public Future<Boolean> prepend(long cas, String key, Object value) {
+        return prepend(cas, key, value, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<Boolean> prepend(final long cas, final String key, final T value, final Transcoder<T> tc) {
+        return writeAll(key, new Write<Boolean>() {
+
+            @Override
+            public Future<Boolean> apply(MemcachedClientIF client) {
+                return client.prepend(cas, key, value, tc);
+            }
+
+        });
+    }
+
+    @Override
+    public <T> Future<CASResponse> asyncCAS(final String key, long casId, T value, Transcoder<T> tc) {
+        final MemcachedClientIF owner = ownerOf(key);
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        final Future<CASResponse> future;
+        try {
+            future = owner.asyncCAS(key, casId, value, tc);
+        } finally {
+            capture.stop();
+        }
+        capture.listen(future, new Runnable() {
+
+            @Override
+            public void run() {
+                if (valueOf(future) == CASResponse.OK) {
+                    invalidateReplicas(key, owner);
+                }
+            }
+
+        });
+        return future;
+    }
+
+    @Override
+    public Future<CASResponse> asyncCAS(String key, long casId, Object value) {
+        return asyncCAS(key, casId, value, getTranscoder());
+    }
+
+    @Override
+    public <T> CASResponse cas(String key, long casId, T value, Transcoder<T> tc) {
+        final MemcachedClientIF owner = ownerOf(key);
+        final CASResponse response = owner.cas(key, casId, value, tc);
+        if (response == CASResponse.OK) {
+            invalidateReplicas(key, owner);
+        }
+        return response;
+    }
+
+    @Override
+    public CASResponse cas(String key, long casId, Object value) {
+        return cas(key, casId, value, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<Boolean> add(final String key, final int exp, final T value, final Transcoder<T> tc) {
+        return writeAll(key, new Write<Boolean>() {
+
+            @Override
+            public Future<Boolean> apply(MemcachedClientIF client) {
+                return client.add(key, exp, value, tc);
+            }
+
+        });
+    }
+
+    @Override
+    public Future<Boolean> add(String key, int exp, Object value) {
+        return add(key, exp, value, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<Boolean> set(final String key, final int exp, final T value, final Transcoder<T> tc) {
+        return writeAny(key, new Write<Boolean>() {
+
+            @Override
+            public Future<Boolean> apply(MemcachedClientIF client) {
+                return client.set(key, exp, value, tc);
+            }
+
+        });
+    }
+
+    @Override
+    public Future<Boolean> set(String key, int exp, Object value) {
+        return set(key, exp, value, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<Boolean> replace(final String key, final int exp, final T value, final Transcoder<T> tc) {
+        return writeAll(key, new Write<Boolean>() {
+
+            @Override
+            public Future<Boolean> apply(MemcachedClientIF client) {
+                return client.replace(key, exp, value, tc);
+            }
+
+        });
+    }
+
+    @Override
+    public Future<Boolean> replace(String key, int exp, Object value) {
+        return replace(key, exp, value, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<T> asyncGet(String key, Transcoder<T> tc) {
+        return new ReadFuture<T>(readOrderOf(key), key, tc);
+    }
+
+    @Override
+    public Future<Object> asyncGet(String key) {
+        return asyncGet(key, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<CASValue<T>> asyncGets(String key, Transcoder<T> tc) {
+        return ownerOf(key).asyncGets(key, tc);
+    }
+
+    @Override
+    public Future<CASValue<Object>> asyncGets(String key) {
+        return asyncGets(key, getTranscoder());
+    }
+
+    @Override
+    public <T> CASValue<T> gets(String key, Transcoder<T> tc) {
+        return ownerOf(key).gets(key, tc);
+    }
+
+    @Override
+    public CASValue<Object> gets(String key) {
+        return gets(key, getTranscoder());
+    }
+
+    @Override
+    public <T> T get(String key, Transcoder<T> tc) {
+        if (hedging == null) {
+            return getFrom(readOrderOf(key), key, tc);
+        }
+        try {
+            // every replica read expires after the operation timeout
+            return asyncGet(key, tc).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for value", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw RuntimeException.class.cast(e.getCause());
+            }
+            throw new RuntimeException("Exception waiting for value", e);
+        }
+    }
+
+    @Override
+    public Object get(String key) {
+        return get(key, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<Map<String, T>> asyncGetBulk(Collection<String> keys, Transcoder<T> tc) {
+        final Map<String, List<SocketAddress>> orders = Maps.newHashMap();
+        for (String key : keys) {
+            orders.put(key, readOrderOf(key));
+        }
+        return new BulkFuture<T>(orders, tc);
+    }
+
+    @Override
+    public Future<Map<String, Object>> asyncGetBulk(Collection<String> keys) {
+        return asyncGetBulk(keys, getTranscoder());
+    }
+
+    @Override
+    public <T> Future<Map<String, T>> asyncGetBulk(Transcoder<T> tc, String... keys) {
+        return asyncGetBulk(Arrays.asList(keys), tc);
+    }
+
+    @Override
+    public Future<Map<String, Object>> asyncGetBulk(String... keys) {
+        return asyncGetBulk(Arrays.asList(keys), getTranscoder());
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc) {
+        try {
+            return asyncGetBulk(keys, tc).get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for bulk values", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Exception waiting for bulk values", e);
+        } catch (TimeoutException e) {
+            throw new OperationTimeoutException("Timeout waiting for bulk values");
+        }
+    }
+
+    @Override
+    public Map<String, Object> getBulk(Collection<String> keys) {
+        return getBulk(keys, getTranscoder());
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Transcoder<T> tc, String... keys) {
+        return getBulk(Arrays.asList(keys), tc);
+    }
+
+    @Override
+    public Map<String, Object> getBulk(String... keys) {
+        return getBulk(Arrays.asList(keys), getTranscoder());
+    }
+
+    @Override
+    public Map<SocketAddress, String> getVersions() {
+        final Map<SocketAddress, String> versions = Maps.newHashMap();
+        for (MemcachedClientIF client : clients.values()) {
+            versions.putAll(client.getVersions());
+        }
+        return versions;
+    }
+
+    @Override
+    public Map<SocketAddress, Map<String, String>> getStats() {
+        final Map<SocketAddress, Map<String, String>> stats = Maps.newHashMap();
+        for (MemcachedClientIF client : clients.values()) {
+            stats.putAll(client.getStats());
+        }
+        return stats;
+    }
+
+    @Override
+    public Map<SocketAddress, Map<String, String>> getStats(String prefix) {
+        final Map<SocketAddress, Map<String, String>> stats = Maps.newHashMap();
+        for (MemcachedClientIF client : clients.values()) {
+            stats.putAll(client.getStats(prefix));
+        }
+        return stats;
+    }
+
+    @Override
+    public long incr(final String key, final int by) {
+        return countAll(key, new Count() {
+
+            @Override
+            public long apply(MemcachedClientIF client) {
+                return client.incr(key, by);
+            }
+
+        });
+    }
+
+    @Override
+    public long decr(final String key, final int by) {
+        return countAll(key, new Count() {
+
+            @Override
+            public long apply(MemcachedClientIF client) {
+                return client.decr(key, by);
+            }
+
+        });
+    }
+
+    @Override
+    public long incr(final String key, final int by, final long def, final int exp) {
+        return countAll(key, new Count() {
+
+            @Override
+            public long apply(MemcachedClientIF client) {
+                return client.incr(key, by, def, exp);
+            }
+
+        });
+    }
+
+    @Override
+    public long decr(final String key, final int by, final long def, final int exp) {
+        return countAll(key, new Count() {
+
+            @Override
+            public long apply(MemcachedClientIF client) {
+                return client.decr(key, by, def, exp);
+            }
+
+        });
+    }
+
+    @Override
+    public Future<Long> asyncIncr(final String key, final int by) {
+        return writeAll(key, new Write<Long>() {
+
+            @Override
+            public Future<Long> apply(MemcachedClientIF client) {
+                return client.asyncIncr(key, by);
+            }
+
+        });
+    }
+
+    @Override
+    public Future<Long> asyncDecr(final String key, final int by) {
+        return writeAll(key, new Write<Long>() {
+
+            @Override
+            public Future<Long> apply(MemcachedClientIF client) {
+                return client.asyncDecr(key, by);
+            }
+
+        });
+    }
+
+    @Override
+    public long incr(final String key, final int by, final long def) {
+        return countAll(key, new Count() {
+
+            @Override
+            public long apply(MemcachedClientIF client) {
+                return client.incr(key, by, def);
+            }
+
+        });
+    }
+
+    @Override
+    public long decr(final String key, final int by, final long def) {
+        return countAll(key, new Count() {
+
+            @Override
+            public long apply(MemcachedClientIF client) {
+                return client.decr(key, by, def);
+            }
+
+        });
+    }
+
+    @Override
+    public Future<Boolean> delete(final String key) {
+        return writeAny(key, new Write<Boolean>() {
+
+            @Override
+            public Future<Boolean> apply(MemcachedClientIF client) {
+                return client.delete(key);
+            }
+
+        });
+    }
+
+    @Override
+    public Future<Boolean> flush(final int delay) {
+        return replicate("all keys", clients.values(), true, new Write<Boolean>() {
+
+            @Override
+            public Future<Boolean> apply(MemcachedClientIF client) {
+                return client.flush(delay);
+            }
+
+        });
+    }
+
+    @Override
+    public Future<Boolean> flush() {
+        return replicate("all keys", clients.values(), true, new Write<Boolean>() {
+
+            @Override
+            public Future<Boolean> apply(MemcachedClientIF client) {
+                return client.flush();
+            }
+
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        for (MemcachedClientIF client : clients.values()) {
+            client.shutdown();
+        }
+    }
+
+    @Override
+    public boolean shutdown(long duration, TimeUnit unit) {
+        boolean success = true;
+        for (MemcachedClientIF client : clients.values()) {
+            success &= client.shutdown(duration, unit);
+        }
+        return success;
+    }
+
+    @Override
+    public boolean waitForQueues(long duration, TimeUnit unit) {
+        boolean success = true;
+        for (MemcachedClientIF client : clients.values()) {
+            success &= client.waitForQueues(duration, unit);
+        }
+        return success;
+    }
+
+    @Override
+    public boolean addObserver(ConnectionObserver observer) {
+        boolean success = true;
+        for (MemcachedClientIF client : clients.values()) {
+            success &= client.addObserver(observer);
+        }
+        return success;
+    }
+
+    @Override
+    public boolean removeObserver(ConnectionObserver observer) {
+        boolean success = true;
+        for (MemcachedClientIF client : clients.values()) {
+            success &= client.removeObserver(observer);
+        }
+        return success;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicatedMemcachedClient [servers=" + clients.keySet() + ", replicas=" + replicas + "]";
+    }
+
+    /**
+     * A write sent to a single replica.
+     *
+     * @param <V> the generic result type
+     */
+    private interface Write<V> {
+
+        Future<V> apply(MemcachedClientIF client);
+
+    }
+
+    /**
+     * An increment or decrement sent to a single replica.
+     */
+    private interface Count {
+
+        long apply(MemcachedClientIF client);
+
+    }
+
+    /**
+     * Combines the futures of several replicas. If any replica's result counts, the result is
+     * true as soon as any replica returned true. Otherwise it is the result of the first replica
+     * which neither failed nor was rejected, as soon as it and all replicas before it completed,
+     * or, if there is none, the result of the first replica which didn't fail once all replicas
+     * completed. Replicas which didn't complete within the operation timeout are cancelled.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     * @param <V> the generic result type
+     */
+    static final class ReplicatedFuture<V> extends MemcacheFuture<V> {
+
+        private final List<Future<V>> futures;
+
+        private final boolean any;
+
+        private final AtomicInteger pending;
+
+        /**
+         * Creates a new future combining the given futures.
+         *
+         * @param futures the futures of all replicas, in ring order
+         * @param captures the captures which were active while the futures were created
+         * @param any whether true of any replica is the result
+         * @param timeout the operation timeout in milliseconds
+         */
+        ReplicatedFuture(List<Future<V>> futures, List<CompletionListeners.Capture> captures, boolean any,
+            long timeout) {
+            Preconditions.checkArgument(!futures.isEmpty(), "Futures must not be empty");
+            this.futures = futures;
+            this.any = any;
+            this.pending = new AtomicInteger(futures.size());
+            for (int i = 0; i < futures.size(); i++) {
+                final Future<V> future = futures.get(i);
+                captures.get(i).listen(future, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        completed(future);
+                    }
+
+                });
+                CompletionListeners.expire(future, timeout, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        future.cancel(false);
+                    }
+
+                });
+            }
+        }
+
+        private void completed(Future<V> future) {
+            if (any) {
+                final V value = valueOf(future);
+                if (Boolean.TRUE.equals(value)) {
+                    set(value);
+                }
+            } else {
+                owned();
+            }
+            if (pending.decrementAndGet() > 0) {
+                return;
+            }
+            Throwable failure = null;
+            for (Future<V> each : futures) {
+                if (rejected(each) && !allRejected()) {
+                    continue;
+                }
+                try {
+                    set(each.get());
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = e;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                } catch (CancellationException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            setException(failure);
+        }
+
+        /**
+         * Completes this future with the result of the first replica in ring order which
+         * neither failed nor was rejected, once all replicas before it completed.
+         */
+        private void owned() {
+            for (Future<V> each : futures) {
+                if (!each.isDone()) {
+                    return;
+                } else if (rejected(each)) {
+                    continue;
+                }
+                try {
+                    set(each.get());
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    continue;
+                } catch (CancellationException e) {
+                    continue;
+                }
+            }
+        }
+
+        private boolean allRejected() {
+            for (Future<V> future : futures) {
+                if (!rejected(future)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (super.cancel(mayInterruptIfRunning)) {
+                for (Future<V> future : futures) {
+                    future.cancel(mayInterruptIfRunning);
+                }
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+    }
+
+    /**
+     * A read from the best replica which falls back to the next replica if it fails or
+     * doesn't complete within the operation timeout. If hedging is enabled and the first
+     * replica didn't answer within the hedge delay once a caller waits for the result,
+     * the read is sent to the second replica as well and the first successful answer wins.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     * @param <T> the generic value type
+     */
+    private final class ReadFuture<T> extends MemcacheFuture<T> {
+
+        private final List<SocketAddress> order;
+
+        private final String key;
+
+        private final Transcoder<T> tc;
+
+        private final List<Future<T>> attempts;
+
+        private final long start;
+
+        // index of the next replica to read from, guarded by this
+        private int next;
+
+        // attempts which didn't complete yet, guarded by this
+        private int running;
+
+        ReadFuture(List<SocketAddress> order, String key, Transcoder<T> tc) {
+            this.order = order;
+            this.key = key;
+            this.tc = tc;
+            this.attempts = Lists.newArrayListWithCapacity(order.size());
+            synchronized (this) {
+                this.start = attempt(false);
+            }
+        }
+
+        /**
+         * Sends the read to the next replica. Requires the lock on this future.
+         *
+         * @param hedged whether the attempt is a hedge
+         * @return the start of the attempt in nanoseconds
+         */
+        private long attempt(final boolean hedged) {
+            final int index = next++;
+            final SocketAddress address = order.get(index);
+            final long begin = selector.begin(address);
+            final CompletionListeners.Capture capture = CompletionListeners.capture();
+            Future<T> read;
+            try {
+                read = clients.get(address).asyncGet(key, tc);
+            } catch (RuntimeException e) {
+                read = Futures.immediateFailedFuture(e);
+            } finally {
+                capture.stop();
+            }
+            final Future<T> future = read;
+            final Attempt<T> attempt = new Attempt<T>(address, begin, future);
+            attempts.add(future);
+            running++;
+            capture.listen(future, new Runnable() {
+
+                @Override
+                public void run() {
+                    attempt.run();
+                    completed(index, begin, future, hedged);
+                }
+
+            });
+            CompletionListeners.expire(future, timeout, new Runnable() {
+
+                @Override
+                public void run() {
+                    future.cancel(false);
+                }
+
+            });
+            return begin;
+        }
+
+        private void completed(int index, long begin, Future<T> future, boolean hedged) {
+            if (index == 0 && hedging != null) {
+                // the first replica's own latency, a hedge answering earlier would cut it short
+                hedging.record(System.nanoTime() - begin);
+            }
+            final boolean rejected = rejected(future);
+            Throwable failure = null;
+            try {
+                final T value = future.get();
+                if (!rejected) {
+                    if (set(value) && hedged) {
+                        hedging.won();
+                    }
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = e;
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (CancellationException e) {
+                failure = new OperationTimeoutException("Timeout reading " + key + " from " + order.get(index));
+            }
+            synchronized (this) {
+                running--;
+                if (isDone() || running > 0) {
+                    return;
+                } else if (next < order.size()) {
+                    LOG.debug("Reading {} from {} failed, trying next replica: {}", new Object[] {
+                        key, order.get(index), rejected ? "circuit open" : failure
+                    });
+                    attempt(false);
+                } else if (rejected) {
+                    // every replica was tried, the rejection is a miss
+                    set(valueOf(future));
+                } else {
+                    setException(failure);
+                }
+            }
+        }
+
+        /**
+         * Waits until the hedge delay, measured from the start of the first read, passed
+         * and hedges the read if it is still pending and the budget allows it.
+         *
+         * @param remaining the nanoseconds the caller is willing to wait
+         * @throws InterruptedException if the current thread was interrupted
+         * @throws ExecutionException if the read failed
+         */
+        private void hedge(long remaining) throws InterruptedException, ExecutionException {
+            if (hedging == null || order.size() == 1 || isDone()) {
+                return;
+            }
+            final long delay = start + hedging.getDelay() - System.nanoTime();
+            if (delay >= remaining) {
+                return;
+            } else if (delay > 0) {
+                try {
+                    super.get(delay, TimeUnit.NANOSECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    // the first replica is slow
+                }
+            }
+            synchronized (this) {
+                if (!isDone() && next == 1 && hedging.tryHedge()) {
+                    LOG.trace("Hedging read of {} on {}", key, order.get(0));
+                    attempt(true);
+                }
+            }
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            hedge(Long.MAX_VALUE);
+            return super.get();
+        }
+
+        @Override
+        public T get(long duration, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos(duration);
+            hedge(unit.toNanos(duration));
+            return super.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (super.cancel(mayInterruptIfRunning)) {
+                synchronized (this) {
+                    for (Future<T> attempt : attempts) {
+                        attempt.cancel(mayInterruptIfRunning);
+                    }
+                }
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+    }
+
+    /**
+     * Checks whether the given future belongs to a call rejected by an open circuit.
+     *
+     * @param future the future
+     * @return true if the call was rejected
+     */
+    private static boolean rejected(Future<?> future) {
+        return future instanceof CircuitBreakingMemcachedClient.RejectedFuture<?>;
+    }
+
+    /**
+     * Provides the value of the given completed future.
+     *
+     * @param <V> the generic value type
+     * @param future a completed future
+     * @return the value or null if the future failed or was cancelled
+     */
+    private static <V> V valueOf(Future<V> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A single read of a {@link ReadFuture} sent to one replica. Reports the end
+     * of the read to the selector once it completed or was cancelled.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     * @param <T> the generic value type
+     */
+    private final class Attempt<T> implements Runnable {
+
+        private final SocketAddress address;
+
+        private final long start;
+
+        private final Future<T> future;
+
+        Attempt(SocketAddress address, long start, Future<T> future) {
+            this.address = address;
+            this.start = start;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            selector.end(address, start, CompletionListeners.succeeded(future));
+        }
+
+    }
+
+    /**
+     * A bulk read which groups the keys by their best replica and retries the keys
+     * of failed servers on their next replicas. The given timeout applies to the
+     * first round, retries use the operation timeout.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     * @param <T> the generic value type
+     */
+    private final class BulkFuture<T> implements Future<Map<String, T>> {
+
+        private final Transcoder<T> tc;
+
+        private final Map<String, T> result = Maps.newHashMap();
+
+        private Map<String, List<SocketAddress>> orders;
+
+        private Map<SocketAddress, List<String>> groups;
+
+        private final Map<SocketAddress, Future<Map<String, T>>> futures = Maps.newHashMap();
+
+        private boolean cancelled;
+
+        private boolean completed;
+
+        BulkFuture(Map<String, List<SocketAddress>> orders, Transcoder<T> tc) {
+            this.tc = tc;
+            this.orders = orders;
+            issue();
+        }
+
+        private void issue() {
+            groups = Maps.newLinkedHashMap();
+            for (Map.Entry<String, List<SocketAddress>> entry : orders.entrySet()) {
+                final SocketAddress address = entry.getValue().get(0);
+                List<String> group = groups.get(address);
+                if (group == null) {
+                    group = Lists.newArrayList();
+                    groups.put(address, group);
+                }
+                group.add(entry.getKey());
+            }
+            futures.clear();
+            for (Map.Entry<SocketAddress, List<String>> group : groups.entrySet()) {
+                final SocketAddress address = group.getKey();
+                final long start = selector.begin(address);
+                final CompletionListeners.Capture capture = CompletionListeners.capture();
+                Future<Map<String, T>> future;
+                try {
+                    future = clients.get(address).asyncGetBulk(group.getValue(), tc);
+                } catch (RuntimeException e) {
+                    future = Futures.immediateFailedFuture(e);
+                } finally {
+                    capture.stop();
+                }
+                capture.listen(future, new Attempt<Map<String, T>>(address, start, future));
+                futures.put(address, future);
+            }
+        }
+
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            cancelled = true;
+            for (Future<Map<String, T>> future : futures.values()) {
+                future.cancel(mayInterruptIfRunning);
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            if (completed || cancelled) {
+                return true;
+            }
+            for (Future<Map<String, T>> future : futures.values()) {
+                if (!future.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Map<String, T> get() throws InterruptedException, ExecutionException {
+            try {
+                return get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new ExecutionException(e);
+            }
+        }
+
+        @Override
+        public synchronized Map<String, T> get(long duration, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+            long nanos = unit.toNanos(duration);
+            while (!completed) {
+                collect(nanos);
+                nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            }
+            return result;
+        }
+
+        private void collect(long nanos) throws InterruptedException, ExecutionException, TimeoutException {
+            final long deadline = System.nanoTime() + nanos;
+            final Map<String, List<SocketAddress>> retries = Maps.newHashMap();
+            Exception exhausted = null;
+            for (Map.Entry<SocketAddress, List<String>> group : groups.entrySet()) {
+                final SocketAddress address = group.getKey();
+                final Future<Map<String, T>> future = futures.get(address);
+                Exception failure;
+                try {
+                    result.putAll(future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                    continue;
+                } catch (ExecutionException e) {
+                    failure = e;
+                } catch (TimeoutException e) {
+                    future.cancel(false);
+                    failure = e;
+                }
+                LOG.debug("Reading {} keys from {} failed: {}", new Object[] {
+                    group.getValue().size(), address, failure
+                });
+                for (String key : group.getValue()) {
+                    final List<SocketAddress> order = orders.get(key);
+                    if (order.size() == 1) {
+                        exhausted = failure;
+                    } else {
+                        retries.put(key, order.subList(1, order.size()));
+                    }
+                }
+            }
+            if (exhausted instanceof TimeoutException) {
+                completed = true;
+                throw TimeoutException.class.cast(exhausted);
+            } else if (exhausted != null) {
+                completed = true;
+                throw ExecutionException.class.cast(exhausted);
+            } else if (retries.isEmpty()) {
+                completed = true;
+            } else {
+                orders = retries;
+                issue();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+
+/**
+ * A {@link CacheStorage} which routes every key to one of several independent storages
+ * by its hash. Every shard has its own locks, eviction order and memory budget, i.e.
+ * concurrent writes to different shards don't contend.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class ShardedCacheStorage extends AbstractMap<Key, LocalCacheElement>
+    implements CacheStorage<Key, LocalCacheElement> {
+
+    private final List<CacheStorage<Key, LocalCacheElement>> shards;
+
+    ShardedCacheStorage(List<? extends CacheStorage<Key, LocalCacheElement>> shards) {
+        Preconditions.checkArgument(!shards.isEmpty(), "Shards must not be empty");
+        this.shards = ImmutableList.<CacheStorage<Key, LocalCacheElement>>copyOf(shards);
+    }
+
+    List<CacheStorage<Key, LocalCacheElement>> getShards() {
+        return shards;
+    }
+
+    private CacheStorage<Key, LocalCacheElement> shardOf(Object key) {
+        // uses the high bits of a different mix than the shards, which keeps their own hashing uniform
+        final int h = key.hashCode() * 0x85ebca6b;
+        return shards.get((int) (((h ^ (h >>> 13)) & 0xffffffffL) * shards.size() >>> 32));
+    }
+
+    @Override
+    public LocalCacheElement get(Object key) {
+        return key == null ? null : shardOf(key).get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key != null && shardOf(key).containsKey(key);
+    }
+
+    @Override
+    public LocalCacheElement put(Key key, LocalCacheElement value) {
+        return shardOf(key).put(key, value);
+    }
+
+    @Override
+    public LocalCacheElement putIfAbsent(Key key, LocalCacheElement value) {
+        return shardOf(key).putIfAbsent(key, value);
+    }
+
+    @Override
+    public LocalCacheElement replace(Key key, LocalCacheElement value) {
+        return shardOf(key).replace(key, value);
+    }
+
+    @Override
+    public boolean replace(Key key, LocalCacheElement oldValue, LocalCacheElement newValue) {
+        return shardOf(key).replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public LocalCacheElement remove(Object key) {
+        return key == null ? null : shardOf(key).remove(key);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        return key != null && shardOf(key).remove(key, value);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (CacheStorage<Key, LocalCacheElement> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (CacheStorage<Key, LocalCacheElement> shard : shards) {
+            shard.clear();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   The returned set is a view which iterates the shards one after another.
+     * </p>
+     */
+    @Override
+    public Set<Map.Entry<Key, LocalCacheElement>> entrySet() {
+        return new AbstractSet<Map.Entry<Key, LocalCacheElement>>() {
+
+            @Override
+            public Iterator<Map.Entry<Key, LocalCacheElement>> iterator() {
+                final List<Iterator<Map.Entry<Key, LocalCacheElement>>> iterators =
+                    Lists.newArrayListWithCapacity(shards.size());
+                for (CacheStorage<Key, LocalCacheElement> shard : shards) {
+                    iterators.add(shard.entrySet().iterator());
+                }
+                return Iterators.concat(iterators.iterator());
+            }
+
+            @Override
+            public int size() {
+                return ShardedCacheStorage.this.size();
+            }
+
+        };
+    }
+
+    @Override
+    public long getMemoryCapacity() {
+        long capacity = 0;
+        for (CacheStorage<Key, LocalCacheElement> shard : shards) {
+            capacity += shard.getMemoryCapacity();
+        }
+        return capacity;
+    }
+
+    @Override
+    public long getMemoryUsed() {
+        long used = 0;
+        for (CacheStorage<Key, LocalCacheElement> shard : shards) {
+            used += shard.getMemoryUsed();
+        }
+        return used;
+    }
+
+    @Override
+    public int capacity() {
+        int capacity = 0;
+        for (CacheStorage<Key, LocalCacheElement> shard : shards) {
+            capacity += shard.capacity();
+        }
+        return capacity;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (CacheStorage<Key, LocalCacheElement> shard : shards) {
+            shard.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedCacheStorage [shards=" + shards.size() + ", shard=" + shards.get(0) + "]";
+    }
+
+}
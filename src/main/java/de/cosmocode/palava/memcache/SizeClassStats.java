@@ -0,0 +1,107 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Immutable statistics of one size class of a local server storage.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class SizeClassStats {
+
+    private final int chunkSize;
+
+    private final long items;
+
+    private final long memoryUsed;
+
+    private final long memoryAllocated;
+
+    private final long memoryLimit;
+
+    private final long evictions;
+
+    SizeClassStats(int chunkSize, long items, long memoryUsed, long memoryAllocated, long memoryLimit,
+        long evictions) {
+        this.chunkSize = chunkSize;
+        this.items = items;
+        this.memoryUsed = memoryUsed;
+        this.memoryAllocated = memoryAllocated;
+        this.memoryLimit = memoryLimit;
+        this.evictions = evictions;
+    }
+
+    /**
+     * Provides the largest number of bytes an entry of this class occupies.
+     *
+     * @return the chunk size in bytes
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getItems() {
+        return items;
+    }
+
+    /**
+     * Provides the number of bytes occupied by entries, including headers
+     * and the unused rest of their chunks.
+     *
+     * @return the used memory in bytes
+     */
+    public long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    public long getMemoryAllocated() {
+        return memoryAllocated;
+    }
+
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Adds the given statistics of a class with the same chunk size to these.
+     *
+     * @param that the statistics to add
+     * @return the sum
+     */
+    SizeClassStats plus(SizeClassStats that) {
+        Preconditions.checkArgument(chunkSize == that.chunkSize, "Chunk sizes %s and %s differ",
+            chunkSize, that.chunkSize);
+        return new SizeClassStats(chunkSize, items + that.items, memoryUsed + that.memoryUsed,
+            memoryAllocated + that.memoryAllocated, memoryLimit + that.memoryLimit, evictions + that.evictions);
+    }
+
+    @Override
+    public String toString() {
+        return "SizeClassStats [chunkSize=" + chunkSize + ", items=" + items + ", memoryUsed=" + memoryUsed
+            + ", memoryAllocated=" + memoryAllocated + ", memoryLimit=" + memoryLimit
+            + ", evictions=" + evictions + "]";
+    }
+
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ForwardingConcurrentMap;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+
+/**
+ * A {@link CacheStorage} decorator which writes all entries to a snapshot file when it
+ * gets closed and can read them back in using {@link #load()}. The file is written and read
+ * through memory mapped windows. Expiries are stored as absolute times, expired entries
+ * are neither written nor loaded.
+ *
+ * <p>
+ *   The snapshot gets deleted after loading, which prevents a crashed server from
+ *   loading stale entries on its next start.
+ * </p>
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class SnapshotCacheStorage extends ForwardingConcurrentMap<Key, LocalCacheElement>
+    implements CacheStorage<Key, LocalCacheElement> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotCacheStorage.class);
+
+    private static final int MAGIC = 0x504d4353;
+
+    private static final int VERSION = 1;
+
+    private static final int FILE_HEADER = 8;
+
+    // key length, flags, expire, cas, data length
+    private static final int RECORD_HEADER = 2 + 4 + 4 + 8 + 4;
+
+    private static final int WINDOW = 64 * 1024 * 1024;
+
+    private final CacheStorage<Key, LocalCacheElement> storage;
+
+    private final File file;
+
+    SnapshotCacheStorage(CacheStorage<Key, LocalCacheElement> storage, File file) {
+        this.storage = Preconditions.checkNotNull(storage, "Storage");
+        this.file = Preconditions.checkNotNull(file, "File");
+    }
+
+    @Override
+    protected ConcurrentMap<Key, LocalCacheElement> delegate() {
+        return storage;
+    }
+
+    private static boolean isExpired(int expire, int now) {
+        return expire != 0 && expire < now;
+    }
+
+    /**
+     * Loads all unexpired entries of the snapshot file, if it exists, and deletes it afterwards.
+     *
+     * @return the number of loaded entries
+     * @throws IOException if reading the snapshot failed
+     */
+    int load() throws IOException {
+        if (!file.exists()) {
+            LOG.info("No memcache snapshot found at {}", file);
+            return 0;
+        }
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            final int loaded = read(input.getChannel());
+            LOG.info("Loaded {} entries from memcache snapshot {}", loaded, file);
+            return loaded;
+        } finally {
+            input.close();
+            if (!file.delete()) {
+                LOG.warn("Unable to delete memcache snapshot {}", file);
+            }
+        }
+    }
+
+    private int read(FileChannel channel) throws IOException {
+        final long length = channel.size();
+        if (length < FILE_HEADER) {
+            throw new IOException(file + " is not a memcache snapshot");
+        }
+        long position = 0;
+        MappedByteBuffer window = channel.map(MapMode.READ_ONLY, position, Math.min(WINDOW, length));
+        if (window.getInt() != MAGIC || window.getInt() != VERSION) {
+            throw new IOException(file + " is not a memcache snapshot of version " + VERSION);
+        }
+
+        final int now = LocalCacheElement.Now();
+        int loaded = 0;
+        while (position + window.position() < length) {
+            if (window.remaining() < RECORD_HEADER) {
+                position += window.position();
+                window = channel.map(MapMode.READ_ONLY, position, Math.min(WINDOW, length - position));
+                if (window.remaining() < RECORD_HEADER) {
+                    throw new IOException(file + " is truncated");
+                }
+            }
+            final int start = window.position();
+            final int size = RECORD_HEADER + window.getShort(start) + window.getInt(start + RECORD_HEADER - 4);
+            if (window.remaining() < size) {
+                position += start;
+                window = channel.map(MapMode.READ_ONLY, position, Math.min(Math.max(WINDOW, size), length - position));
+                if (window.remaining() < size) {
+                    throw new IOException(file + " is truncated");
+                }
+            }
+
+            final byte[] key = new byte[window.getShort()];
+            final int flags = window.getInt();
+            final int expire = window.getInt();
+            final long cas = window.getLong();
+            final byte[] data = new byte[window.getInt()];
+            window.get(key);
+            window.get(data);
+            if (isExpired(expire, now)) {
+                continue;
+            }
+            final Key k = new Key(ChannelBuffers.wrappedBuffer(key));
+            final LocalCacheElement element = new LocalCacheElement(k, flags, expire, cas);
+            element.setData(ChannelBuffers.wrappedBuffer(data));
+            try {
+                storage.put(k, element);
+            } catch (IllegalStateException e) {
+                LOG.warn("Skipping snapshot entry {}: {}", new String(key, Charsets.UTF_8), e.getMessage());
+                continue;
+            }
+            loaded++;
+        }
+        return loaded;
+    }
+
+    /**
+     * Writes all unexpired entries to the snapshot file. The entries are written
+     * to a temporary file first which replaces the snapshot once it is complete.
+     *
+     * @return the number of written entries
+     * @throws IOException if writing the snapshot failed
+     */
+    int save() throws IOException {
+        final File temporary = new File(file.getPath() + ".tmp");
+        final RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+        final int saved;
+        try {
+            saved = write(output.getChannel());
+        } finally {
+            output.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace " + file);
+        } else if (!temporary.renameTo(file)) {
+            throw new IOException("Unable to rename " + temporary + " to " + file);
+        }
+        LOG.info("Saved {} entries to memcache snapshot {}", saved, file);
+        return saved;
+    }
+
+    private int write(FileChannel channel) throws IOException {
+        long position = 0;
+        MappedByteBuffer window = channel.map(MapMode.READ_WRITE, position, WINDOW);
+        window.putInt(MAGIC);
+        window.putInt(VERSION);
+
+        final int now = LocalCacheElement.Now();
+        int saved = 0;
+        for (Map.Entry<Key, LocalCacheElement> entry : storage.entrySet()) {
+            final LocalCacheElement element = entry.getValue();
+            if (isExpired(element.getExpire(), now)) {
+                continue;
+            }
+            final ChannelBuffer key = entry.getKey().bytes;
+            final ChannelBuffer data = element.getData();
+            final int dataLength = data == null ? 0 : data.readableBytes();
+            final int size = RECORD_HEADER + key.readableBytes() + dataLength;
+            if (window.remaining() < size) {
+                window.force();
+                position += window.position();
+                window = channel.map(MapMode.READ_WRITE, position, Math.max(WINDOW, size));
+            }
+            window.putShort((short) key.readableBytes());
+            window.putInt(element.getFlags());
+            window.putInt(element.getExpire());
+            window.putLong(element.getCasUnique());
+            window.putInt(dataLength);
+            transfer(key, window);
+            if (data != null) {
+                transfer(data, window);
+            }
+            saved++;
+        }
+        window.force();
+        channel.truncate(position + window.position());
+        return saved;
+    }
+
+    private static void transfer(ChannelBuffer source, ByteBuffer target) {
+        final ByteBuffer slice = target.slice();
+        slice.limit(source.readableBytes());
+        source.getBytes(source.readerIndex(), slice);
+        target.position(target.position() + source.readableBytes());
+    }
+
+    @Override
+    public long getMemoryCapacity() {
+        return storage.getMemoryCapacity();
+    }
+
+    @Override
+    public long getMemoryUsed() {
+        return storage.getMemoryUsed();
+    }
+
+    @Override
+    public int capacity() {
+        return storage.capacity();
+    }
+
+    /**
+     * Saves a snapshot and closes the underlying storage afterwards. The daemon closes
+     * its storage after all connections have been closed, i.e. the snapshot is complete.
+     * Failing to save is logged but does not prevent the storage from being closed.
+     *
+     * @throws IOException if closing the underlying storage failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            save();
+        } catch (IOException e) {
+            LOG.error("Unable to save memcache snapshot to " + file, e);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotCacheStorage [storage=" + storage + ", file=" + file + "]";
+    }
+
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.BaseSerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link Transcoder} which lets a {@link MemcacheStreamCodec} write and read values
+ * directly from thread local, reused buffers. Compared to the serializing transcoders
+ * this saves the intermediate arrays of the object streams and of decompression,
+ * only the exactly sized array handed to the connection remains per operation.
+ * Values are compressed like {@link CompressingTranscoder} does.
+ *
+ * <p>
+ *   Usage: {@code client.get(key, transcoder)} and {@code client.set(key, exp, value, transcoder)}.
+ * </p>
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ * @param <T> the generic value type
+ */
+public final class StreamTranscoder<T> implements Transcoder<T> {
+
+    /**
+     * Special type flag, distinct from the types used by the other transcoders.
+     */
+    static final int STREAM = 0x81 << 8;
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreamTranscoder.class);
+
+    private static final int SPECIAL_MASK = 0xff00;
+
+    private static final int MIN_SIZE = 64;
+
+    private final MemcacheStreamCodec<T> codec;
+
+    private final MemcacheCodec compression;
+
+    private final int threshold;
+
+    /**
+     * Creates a transcoder compressing values larger than the spymemcached default
+     * threshold using {@link MemcacheCodec#LZ4}.
+     *
+     * @param codec the codec writing and reading values
+     */
+    public StreamTranscoder(MemcacheStreamCodec<T> codec) {
+        this(codec, MemcacheCodec.LZ4, BaseSerializingTranscoder.DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * Creates a transcoder.
+     *
+     * @param codec the codec writing and reading values
+     * @param compression the codec used to compress large values
+     * @param threshold the size above which values are compressed
+     */
+    public StreamTranscoder(MemcacheStreamCodec<T> codec, MemcacheCodec compression, int threshold) {
+        this.codec = Preconditions.checkNotNull(codec, "Codec");
+        this.compression = Preconditions.checkNotNull(compression, "Compression");
+        this.threshold = Math.max(threshold, MIN_SIZE);
+    }
+
+    @Override
+    public boolean asyncDecode(CachedData data) {
+        return false;
+    }
+
+    @Override
+    public CachedData encode(T value) {
+        final PooledBuffers.Output output = PooledBuffers.output();
+        try {
+            codec.write(value, output);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to encode " + value, e);
+        }
+        
+        final int size = output.size();
+        if (size > threshold) {
+            final byte[] compressed;
+            try {
+                compressed = compression.compress(output.buffer(), 0, size, null);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Unable to compress " + value, e);
+            }
+            if (compressed.length < size - size / 8) {
+                final int flags = STREAM | CompressingTranscoder.COMPRESSED | 
+                    (compression.getId() << CompressingTranscoder.CODEC_SHIFT);
+                return new CachedData(flags, compressed, getMaxSize());
+            }
+        }
+        
+        return new CachedData(STREAM, Arrays.copyOf(output.buffer(), size), getMaxSize());
+    }
+
+    @Override
+    public T decode(CachedData data) {
+        final int flags = data.getFlags();
+        if ((flags & SPECIAL_MASK) != STREAM) {
+            LOG.warn("Ignoring value with flags {} not written by a StreamTranscoder", flags);
+            return null;
+        }
+        
+        final int id = (flags & CompressingTranscoder.CODEC_MASK) >>> CompressingTranscoder.CODEC_SHIFT;
+        try {
+            final InputStream input;
+            if ((flags & CompressingTranscoder.COMPRESSED) == 0) {
+                input = new ByteArrayInputStream(data.getData());
+            } else {
+                input = MemcacheCodec.of(id).openStream(data.getData(), null);
+            }
+            return codec.read(input);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Ignoring value compressed using unknown codec {}", id);
+            return null;
+        } catch (IOException e) {
+            LOG.warn("Unable to decode " + data, e);
+            return null;
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return CachedData.MAX_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamTranscoder [codec=" + codec + ", compression=" + compression + "]";
+    }
+
+}
@@ -0,0 +1,468 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+
+/**
+ * A {@link CacheStorage} using the W-TinyLFU eviction policy. New entries enter a small
+ * LRU window. Entries leaving the window compete with the least recently used entry of the
+ * probation segment of a segmented LRU, and only the one which was used more often
+ * according to a {@link FrequencySketch} stays. Entries hit in probation move into the
+ * protected segment. This keeps the frequently used entries when scans pass through the cache.
+ * The byte limit applies to the estimated heap usage of each entry, see {@link #weigh(Key, LocalCacheElement)}.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class TinyLfuCacheStorage extends AbstractMap<Key, LocalCacheElement>
+    implements CacheStorage<Key, LocalCacheElement> {
+
+    private static final double WINDOW_RATIO = 0.01;
+
+    private static final double PROTECTED_RATIO = 0.8;
+
+    // key 24, element 56, node 32, hash map entry and table slot 40
+    private static final long ENTRY_OVERHEAD = 152;
+
+    // heap channel buffer without its array
+    private static final long BUFFER_OVERHEAD = 40;
+
+    private static final long ARRAY_HEADER = 16;
+
+    private final Lock lock = new ReentrantLock();
+
+    private final Map<Key, Node> nodes = Maps.newHashMap();
+
+    private final Node window = new Node(null, null, Segment.WINDOW);
+
+    private final Node probation = new Node(null, null, Segment.PROBATION);
+
+    private final Node protect = new Node(null, null, Segment.PROTECTED);
+
+    private final FrequencySketch sketch;
+
+    private final int maxItems;
+
+    private final long maxBytes;
+
+    private final int maxWindow;
+
+    private final int maxProtected;
+
+    private int windowSize;
+
+    private int protectedSize;
+
+    private long bytes;
+
+    TinyLfuCacheStorage(int maxItems, long maxBytes) {
+        Preconditions.checkArgument(maxItems > 0, "Max items must be positive, but was %s", maxItems);
+        Preconditions.checkArgument(maxBytes > 0, "Max bytes must be positive, but was %s", maxBytes);
+        this.maxItems = maxItems;
+        this.maxBytes = maxBytes;
+        this.maxWindow = Math.max(1, (int) (maxItems * WINDOW_RATIO));
+        this.maxProtected = (int) ((maxItems - maxWindow) * PROTECTED_RATIO);
+        this.sketch = new FrequencySketch(maxItems);
+    }
+
+    private static int hash(Object key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Estimates the heap memory an entry occupies on a 64 bit virtual machine with compressed
+     * references. This includes the key and its buffer, the element and its data buffer,
+     * the node and the hash map entry. The capacity of the data buffer is counted, which may
+     * be larger than the value.
+     *
+     * @param key the key
+     * @param element the element
+     * @return the estimated number of bytes
+     */
+    static long weigh(Key key, LocalCacheElement element) {
+        final long data = element.getData() == null ? 0 : BUFFER_OVERHEAD + align(element.size());
+        return ENTRY_OVERHEAD + BUFFER_OVERHEAD + align(key.bytes.capacity()) + data;
+    }
+
+    private static long align(long size) {
+        return (ARRAY_HEADER + size + 7) & ~7L;
+    }
+
+    @Override
+    public LocalCacheElement get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        lock.lock();
+        try {
+            sketch.increment(hash(key));
+            final Node node = nodes.get(key);
+            if (node == null) {
+                return null;
+            }
+            onAccess(node);
+            return node.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        lock.lock();
+        try {
+            return nodes.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LocalCacheElement put(Key key, LocalCacheElement value) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(value, "Value");
+        lock.lock();
+        try {
+            return store(key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LocalCacheElement putIfAbsent(Key key, LocalCacheElement value) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(value, "Value");
+        lock.lock();
+        try {
+            final Node node = nodes.get(key);
+            if (node == null) {
+                store(key, value);
+                return null;
+            } else {
+                return node.value;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LocalCacheElement replace(Key key, LocalCacheElement value) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(value, "Value");
+        lock.lock();
+        try {
+            return nodes.containsKey(key) ? store(key, value) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(Key key, LocalCacheElement oldValue, LocalCacheElement newValue) {
+        Preconditions.checkNotNull(key, "Key");
+        Preconditions.checkNotNull(newValue, "NewValue");
+        lock.lock();
+        try {
+            final Node node = nodes.get(key);
+            if (node == null || !node.value.equals(oldValue)) {
+                return false;
+            }
+            store(key, newValue);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LocalCacheElement remove(Object key) {
+        lock.lock();
+        try {
+            final Node node = nodes.get(key);
+            if (node == null) {
+                return null;
+            }
+            evict(node);
+            return node.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        lock.lock();
+        try {
+            final Node node = nodes.get(key);
+            if (node == null || !node.value.equals(value)) {
+                return false;
+            }
+            evict(node);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return nodes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            nodes.clear();
+            for (Node head : new Node[] {window, probation, protect}) {
+                head.previous = head;
+                head.next = head;
+            }
+            windowSize = 0;
+            protectedSize = 0;
+            bytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   The returned set is an unmodifiable snapshot.
+     * </p>
+     */
+    @Override
+    public Set<Map.Entry<Key, LocalCacheElement>> entrySet() {
+        lock.lock();
+        try {
+            final Map<Key, LocalCacheElement> copy = Maps.newHashMapWithExpectedSize(nodes.size());
+            for (Node node : nodes.values()) {
+                copy.put(node.key, node.value);
+            }
+            return Collections.unmodifiableMap(copy).entrySet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private LocalCacheElement store(Key key, LocalCacheElement value) {
+        sketch.increment(hash(key));
+        final Node node = nodes.get(key);
+        final LocalCacheElement previous;
+        if (node == null) {
+            previous = null;
+            final Node added = new Node(key, value, Segment.WINDOW);
+            nodes.put(key, added);
+            added.linkBefore(window);
+            windowSize++;
+        } else {
+            previous = node.value;
+            bytes -= weigh(key, previous);
+            node.value = value;
+            onAccess(node);
+        }
+        bytes += weigh(key, value);
+        evict();
+        return previous;
+    }
+
+    private void onAccess(Node node) {
+        switch (node.segment) {
+            case WINDOW: {
+                node.unlink();
+                node.linkBefore(window);
+                break;
+            }
+            case PROBATION: {
+                node.unlink();
+                node.segment = Segment.PROTECTED;
+                node.linkBefore(protect);
+                protectedSize++;
+                while (protectedSize > maxProtected) {
+                    final Node demoted = protect.next;
+                    demoted.unlink();
+                    demoted.segment = Segment.PROBATION;
+                    demoted.linkBefore(probation);
+                    protectedSize--;
+                }
+                break;
+            }
+            case PROTECTED: {
+                node.unlink();
+                node.linkBefore(protect);
+                break;
+            }
+            default: {
+                throw new AssertionError("Unknown segment " + node.segment);
+            }
+        }
+    }
+
+    private void evict() {
+        Node candidate = null;
+        while (windowSize > maxWindow) {
+            candidate = window.next;
+            candidate.unlink();
+            candidate.segment = Segment.PROBATION;
+            candidate.linkBefore(probation);
+            windowSize--;
+        }
+        while (nodes.size() > maxItems || bytes > maxBytes) {
+            final Node victim = victim();
+            if (candidate == null || candidate == victim || candidate.segment != Segment.PROBATION) {
+                evict(victim);
+            } else if (sketch.frequency(hash(candidate.key)) > sketch.frequency(hash(victim.key))) {
+                evict(victim);
+            } else {
+                evict(candidate);
+                candidate = null;
+            }
+        }
+    }
+
+    private Node victim() {
+        if (probation.next != probation) {
+            return probation.next;
+        } else if (protect.next != protect) {
+            return protect.next;
+        } else {
+            return window.next;
+        }
+    }
+
+    private void evict(Node node) {
+        node.unlink();
+        nodes.remove(node.key);
+        bytes -= weigh(node.key, node.value);
+        if (node.segment == Segment.WINDOW) {
+            windowSize--;
+        } else if (node.segment == Segment.PROTECTED) {
+            protectedSize--;
+        }
+    }
+
+    @Override
+    public long getMemoryCapacity() {
+        return maxBytes;
+    }
+
+    @Override
+    public long getMemoryUsed() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return maxItems;
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    @Override
+    public String toString() {
+        return "TinyLfuCacheStorage [maxItems=" + maxItems + ", maxBytes=" + maxBytes + "]";
+    }
+
+    /**
+     * The segments an entry can be in.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private enum Segment {
+
+        WINDOW,
+
+        PROBATION,
+
+        PROTECTED;
+
+    }
+
+    /**
+     * An entry which is linked into the list of its segment. The head of every
+     * list is a sentinel node, its next node is the least recently used one.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private static final class Node {
+
+        private final Key key;
+
+        private LocalCacheElement value;
+
+        private Segment segment;
+
+        private Node previous = this;
+
+        private Node next = this;
+
+        Node(Key key, LocalCacheElement value, Segment segment) {
+            this.key = key;
+            this.value = value;
+            this.segment = segment;
+        }
+
+        void linkBefore(Node head) {
+            previous = head.previous;
+            next = head;
+            head.previous.next = this;
+            head.previous = this;
+        }
+
+        void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = this;
+            next = this;
+        }
+
+    }
+
+}
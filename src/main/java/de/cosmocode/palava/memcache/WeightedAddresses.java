@@ -0,0 +1,74 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+import net.spy.memcached.AddrUtil;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Parses server lists of the form "host1:port1:weight1 host2:port2". The weight
+ * is optional and defaults to 1.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class WeightedAddresses {
+
+    private static final Integer DEFAULT_WEIGHT = Integer.valueOf(1);
+
+    private static final Splitter SPLITTER = Splitter.on(CharMatcher.anyOf(", ")).trimResults().omitEmptyStrings();
+
+    private WeightedAddresses() {
+
+    }
+
+    /**
+     * Parses the given server list.
+     *
+     * @param addresses the server list
+     * @return all addresses mapped to their weight, in configuration order
+     * @throws NullPointerException if addresses is null
+     * @throws IllegalArgumentException if addresses contains no or an invalid server
+     */
+    static Map<InetSocketAddress, Integer> parse(String addresses) {
+        Preconditions.checkNotNull(addresses, "Addresses");
+        final ImmutableMap.Builder<InetSocketAddress, Integer> builder = ImmutableMap.builder();
+        for (String server : SPLITTER.split(addresses)) {
+            final int first = server.indexOf(':');
+            final int last = server.lastIndexOf(':');
+            // exactly two colons: host:port:weight, anything else is left to AddrUtil (ipv6)
+            if (first > 0 && last > first && server.indexOf(':', first + 1) == last) {
+                final Integer weight = Integer.valueOf(server.substring(last + 1));
+                Preconditions.checkArgument(weight.intValue() > 0, "Weight of %s must be positive", server);
+                builder.put(AddrUtil.getAddresses(server.substring(0, last)).get(0), weight);
+            } else {
+                builder.put(AddrUtil.getAddresses(server).get(0), DEFAULT_WEIGHT);
+            }
+        }
+        final Map<InetSocketAddress, Integer> weights = builder.build();
+        Preconditions.checkArgument(!weights.isEmpty(), "No servers in %s", addresses);
+        return weights;
+    }
+
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.UnsupportedEncodingException;
+import java.net.SocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.spy.memcached.HashAlgorithm;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+
+/**
+ * A ketama {@link NodeLocator} which places {@value #POINTS_PER_WEIGHT} points per
+ * unit of weight of a server on the continuum. Points only depend on the server
+ * and its own weight, i.e. adding or removing a server only moves the keys
+ * of the affected slice.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class WeightedKetamaNodeLocator implements NodeLocator {
+
+    static final int POINTS_PER_WEIGHT = 160;
+
+    private static final int POINTS_PER_DIGEST = 4;
+
+    private final Map<SocketAddress, Integer> weights;
+
+    private final HashAlgorithm hashAlgorithm;
+
+    private volatile List<MemcachedNode> nodes;
+
+    private volatile TreeMap<Long, MemcachedNode> continuum;
+
+    WeightedKetamaNodeLocator(List<MemcachedNode> nodes, Map<? extends SocketAddress, Integer> weights,
+        HashAlgorithm hashAlgorithm) {
+        this.nodes = ImmutableList.copyOf(nodes);
+        this.weights = ImmutableMap.copyOf(Preconditions.checkNotNull(weights, "Weights"));
+        this.hashAlgorithm = Preconditions.checkNotNull(hashAlgorithm, "HashAlgorithm");
+        this.continuum = newContinuum(this.nodes);
+    }
+
+    private TreeMap<Long, MemcachedNode> newContinuum(Collection<MemcachedNode> members) {
+        final TreeMap<Long, MemcachedNode> points = new TreeMap<Long, MemcachedNode>();
+        final MessageDigest md5 = newDigest();
+        for (MemcachedNode node : members) {
+            final Integer weight = weights.get(node.getSocketAddress());
+            final int digests = (weight == null ? 1 : weight.intValue()) * POINTS_PER_WEIGHT / POINTS_PER_DIGEST;
+            final String name = nameOf(node);
+            for (int i = 0; i < digests; i++) {
+                final byte[] digest = md5.digest(bytesOf(name + "-" + i));
+                for (int h = 0; h < POINTS_PER_DIGEST; h++) {
+                    points.put(pointOf(digest, h), node);
+                }
+            }
+        }
+        return points;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] bytesOf(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String nameOf(MemcachedNode node) {
+        final String name = node.getSocketAddress().toString();
+        return name.startsWith("/") ? name.substring(1) : name;
+    }
+
+    private static long pointOf(byte[] digest, int h) {
+        return ((long) (digest[3 + h * 4] & 0xFF) << 24)
+            | ((long) (digest[2 + h * 4] & 0xFF) << 16)
+            | ((long) (digest[1 + h * 4] & 0xFF) << 8)
+            | (digest[h * 4] & 0xFF);
+    }
+
+    @Override
+    public MemcachedNode getPrimary(String key) {
+        final TreeMap<Long, MemcachedNode> points = continuum;
+        Preconditions.checkState(!points.isEmpty(), "No servers configured");
+        final Map.Entry<Long, MemcachedNode> entry = points.ceilingEntry(hashAlgorithm.hash(key));
+        return entry == null ? points.firstEntry().getValue() : entry.getValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   The sequence contains all other servers in the order they follow the
+     *   primary on the continuum.
+     * </p>
+     */
+    @Override
+    public Iterator<MemcachedNode> getSequence(String key) {
+        final TreeMap<Long, MemcachedNode> points = continuum;
+        final Long start = Long.valueOf(hashAlgorithm.hash(key));
+        final int size = nodes.size();
+        final Set<MemcachedNode> sequence = Sets.newLinkedHashSet();
+        collect(points.tailMap(start, true), sequence, size);
+        collect(points.headMap(start, false), sequence, size);
+        final Iterator<MemcachedNode> iterator = sequence.iterator();
+        if (iterator.hasNext()) {
+            // skip the primary
+            iterator.next();
+        }
+        return iterator;
+    }
+
+    private static void collect(SortedMap<Long, MemcachedNode> points, Set<MemcachedNode> sequence, int size) {
+        for (MemcachedNode node : points.values()) {
+            if (sequence.size() == size) {
+                return;
+            }
+            sequence.add(node);
+        }
+    }
+
+    @Override
+    public Collection<MemcachedNode> getAll() {
+        return nodes;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   The returned copy shares the nodes with this locator.
+     * </p>
+     */
+    @Override
+    public NodeLocator getReadonlyCopy() {
+        return new WeightedKetamaNodeLocator(nodes, weights, hashAlgorithm);
+    }
+
+    /**
+     * Rebuilds the continuum using the given nodes. Newer versions of spymemcached
+     * call this method when the server list changes.
+     *
+     * @param members the new server nodes
+     */
+    public void updateLocator(List<MemcachedNode> members) {
+        final List<MemcachedNode> copy = ImmutableList.copyOf(members);
+        continuum = newContinuum(copy);
+        nodes = copy;
+    }
+
+    @Override
+    public String toString() {
+        return "WeightedKetamaNodeLocator [weights=" + weights + ", hashAlgorithm=" + hashAlgorithm + "]";
+    }
+
+}
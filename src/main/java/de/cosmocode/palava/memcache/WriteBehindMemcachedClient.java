@@ -0,0 +1,417 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.transcoders.Transcoder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * A {@link MemcachedClientIF} decorator which buffers sets using the default transcoder
+ * in a shared {@link MemcacheSetBuffer}. The returned futures report whether the set has
+ * been buffered. Synchronous and asynchronous reads of this client see buffered values,
+ * reads using other transcoders, reads of cas ids and all other writes flush buffered sets
+ * of the same key first and wait for sets of that key in flight to keep their order, so a
+ * cas id returned by gets matches the buffered value. Flushing the cache discards all buffered sets.
+ * Destroying this client flushes all sets it buffered.
+ *
+ * @since 1.3
+ * @author Willi Schoenborn
+ */
+final class WriteBehindMemcachedClient extends ForwardingMemcachedClient {
+
+    private static final Future<Boolean> BUFFERED = Futures.immediateFuture(Boolean.TRUE);
+
+    private static final Future<Boolean> DROPPED = Futures.immediateFuture(Boolean.FALSE);
+
+    private final MemcachedClientIF client;
+
+    private final MemcacheSetBuffer buffer;
+
+    private final Set<String> written = Sets.newHashSet();
+
+    WriteBehindMemcachedClient(MemcachedClientIF client, MemcacheSetBuffer buffer) {
+        this.client = Preconditions.checkNotNull(client, "Client");
+        this.buffer = Preconditions.checkNotNull(buffer, "Buffer");
+    }
+
+    @Override
+    protected MemcachedClientIF delegate() {
+        return client;
+    }
+
+    @Override
+    public Future<Boolean> set(String key, int exp, Object value) {
+        if (buffer.set(key, exp, value)) {
+            synchronized (written) {
+                written.add(key);
+            }
+            return BUFFERED;
+        } else {
+            return DROPPED;
+        }
+    }
+
+    @Override
+    public <T> Future<Boolean> set(String key, int exp, T value, Transcoder<T> transcoder) {
+        buffer.flush(key, client);
+        return client.set(key, exp, value, transcoder);
+    }
+
+    @Override
+    public Object get(String key) throws OperationTimeoutException {
+        final Object buffered = buffer.peek(key);
+        return buffered == null ? client.get(key) : buffered;
+    }
+
+    @Override
+    public Future<Object> asyncGet(String key) {
+        final Object buffered = buffer.peek(key);
+        return buffered == null ? client.asyncGet(key) : Futures.immediateFuture(buffered);
+    }
+
+    @Override
+    public Map<String, Object> getBulk(Collection<String> keys) throws OperationTimeoutException {
+        final Map<String, Object> result = Maps.newHashMapWithExpectedSize(keys.size());
+        final List<String> missing = peek(keys, result);
+        if (!missing.isEmpty()) {
+            result.putAll(client.getBulk(missing));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Object> getBulk(String... keys) throws OperationTimeoutException {
+        return getBulk(Arrays.asList(keys));
+    }
+
+    @Override
+    public Future<Map<String, Object>> asyncGetBulk(Collection<String> keys) {
+        final Map<String, Object> result = Maps.newHashMapWithExpectedSize(keys.size());
+        final List<String> missing = peek(keys, result);
+        if (missing.isEmpty()) {
+            return Futures.immediateFuture(result);
+        } else {
+            return new MergingFuture(result, client.asyncGetBulk(missing));
+        }
+    }
+
+    @Override
+    public Future<Map<String, Object>> asyncGetBulk(String... keys) {
+        return asyncGetBulk(Arrays.asList(keys));
+    }
+
+    private List<String> peek(Collection<String> keys, Map<String, Object> result) {
+        final List<String> missing = Lists.newArrayList();
+        for (String key : keys) {
+            final Object buffered = buffer.peek(key);
+            if (buffered == null) {
+                missing.add(key);
+            } else {
+                result.put(key, buffered);
+            }
+        }
+        return missing;
+    }
+
+    @Override
+    public <T> T get(String key, Transcoder<T> tc) throws OperationTimeoutException {
+        buffer.flush(key, client);
+        return client.get(key, tc);
+    }
+
+    @Override
+    public <T> Future<T> asyncGet(String key, Transcoder<T> tc) {
+        buffer.flush(key, client);
+        return client.asyncGet(key, tc);
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc) throws OperationTimeoutException {
+        flush(keys);
+        return client.getBulk(keys, tc);
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Transcoder<T> tc, String... keys) throws OperationTimeoutException {
+        return getBulk(Arrays.asList(keys), tc);
+    }
+
+    @Override
+    public <T> Future<Map<String, T>> asyncGetBulk(Collection<String> keys, Transcoder<T> tc) {
+        flush(keys);
+        return client.asyncGetBulk(keys, tc);
+    }
+
+    @Override
+    public <T> Future<Map<String, T>> asyncGetBulk(Transcoder<T> tc, String... keys) {
+        return asyncGetBulk(Arrays.asList(keys), tc);
+    }
+
+    private void flush(Collection<String> keys) {
+        for (String key : keys) {
+            buffer.flush(key, client);
+        }
+    }
+
+    @Override
+    public CASValue<Object> gets(String key) throws OperationTimeoutException {
+        buffer.flush(key, client);
+        return client.gets(key);
+    }
+
+    @Override
+    public <T> CASValue<T> gets(String key, Transcoder<T> tc) throws OperationTimeoutException {
+        buffer.flush(key, client);
+        return client.gets(key, tc);
+    }
+
+    @Override
+    public Future<CASValue<Object>> asyncGets(String key) {
+        buffer.flush(key, client);
+        return client.asyncGets(key);
+    }
+
+    @Override
+    public <T> Future<CASValue<T>> asyncGets(String key, Transcoder<T> tc) {
+        buffer.flush(key, client);
+        return client.asyncGets(key, tc);
+    }
+
+    @Override
+    public Future<Boolean> add(String key, int exp, Object value) {
+        buffer.flush(key, client);
+        return client.add(key, exp, value);
+    }
+
+    @Override
+    public <T> Future<Boolean> add(String key, int exp, T value, Transcoder<T> transcoder) {
+        buffer.flush(key, client);
+        return client.add(key, exp, value, transcoder);
+    }
+
+    @Override
+    public Future<Boolean> replace(String key, int exp, Object value) {
+        buffer.flush(key, client);
+        return client.replace(key, exp, value);
+    }
+
+    @Override
+    public <T> Future<Boolean> replace(String key, int exp, T value, Transcoder<T> transcoder) {
+        buffer.flush(key, client);
+        return client.replace(key, exp, value, transcoder);
+    }
+
+    @Override
+    public Future<Boolean> append(long cas, String key, Object value) {
+        buffer.flush(key, client);
+        return client.append(cas, key, value);
+    }
+
+    @Override
+    public <T> Future<Boolean> append(long cas, String key, T value, Transcoder<T> transcoder) {
+        buffer.flush(key, client);
+        return client.append(cas, key, value, transcoder);
+    }
+
+    @Override
+    public Future<Boolean> prepend(long cas, String key, Object value) {
+        buffer.flush(key, client);
+        return client.prepend(cas, key, value);
+    }
+
+    @Override
+    public <T> Future<Boolean> prepend(long cas, String key, T value, Transcoder<T> transcoder) {
+        buffer.flush(key, client);
+        return client.prepend(cas, key, value, transcoder);
+    }
+
+    @Override
+    public Future<CASResponse> asyncCAS(String key, long cas, Object value) {
+        buffer.flush(key, client);
+        return client.asyncCAS(key, cas, value);
+    }
+
+    @Override
+    public <T> Future<CASResponse> asyncCAS(String key, long cas, T value, Transcoder<T> transcoder) {
+        buffer.flush(key, client);
+        return client.asyncCAS(key, cas, value, transcoder);
+    }
+
+    @Override
+    public CASResponse cas(String key, long cas, Object value) throws OperationTimeoutException {
+        buffer.flush(key, client);
+        return client.cas(key, cas, value);
+    }
+
+    @Override
+    public <T> CASResponse cas(String key, long cas, T value, Transcoder<T> transcoder)
+        throws OperationTimeoutException {
+        buffer.flush(key, client);
+        return client.cas(key, cas, value, transcoder);
+    }
+
+    @Override
+    public long incr(String key, int by) throws OperationTimeoutException {
+        buffer.flush(key, client);
+        return client.incr(key, by);
+    }
+
+    @Override
+    public long incr(String key, int by, long def) throws OperationTimeoutException {
+        buffer.flush(key, client);
+        return client.incr(key, by, def);
+    }
+
+    @Override
+    public long incr(String key, int by, long def, int exp) throws OperationTimeoutException {
+        buffer.flush(key, client);
+        return client.incr(key, by, def, exp);
+    }
+
+    @Override
+    public Future<Long> asyncIncr(String key, int by) {
+        buffer.flush(key, client);
+        return client.asyncIncr(key, by);
+    }
+
+    @Override
+    public long decr(String key, int by) throws OperationTimeoutException {
+        buffer.flush(key, client);
+        return client.decr(key, by);
+    }
+
+    @Override
+    public long decr(String key, int by, long def) throws OperationTimeoutException {
+        buffer.flush(key, client);
+        return client.decr(key, by, def);
+    }
+
+    @Override
+    public long decr(String key, int by, long def, int exp) throws OperationTimeoutException {
+        buffer.flush(key, client);
+        return client.decr(key, by, def, exp);
+    }
+
+    @Override
+    public Future<Long> asyncDecr(String key, int by) {
+        buffer.flush(key, client);
+        return client.asyncDecr(key, by);
+    }
+
+    @Override
+    public Future<Boolean> delete(String key) {
+        buffer.flush(key, client);
+        return client.delete(key);
+    }
+
+    @Override
+    public Future<Boolean> flush() {
+        buffer.discard();
+        return client.flush();
+    }
+
+    @Override
+    public Future<Boolean> flush(int delay) {
+        buffer.discard();
+        return client.flush(delay);
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (written) {
+            buffer.flush(written);
+            written.clear();
+        }
+        super.destroy();
+    }
+
+    @Override
+    public String toString() {
+        return "WriteBehindMemcachedClient [client=" + client + ", buffer=" + buffer + "]";
+    }
+
+    /**
+     * Merges buffered values into the result of a bulk read of the missing keys.
+     *
+     * @since 1.3
+     * @author Willi Schoenborn
+     */
+    private static final class MergingFuture implements Future<Map<String, Object>> {
+
+        private final Map<String, Object> buffered;
+
+        private final Future<Map<String, Object>> future;
+
+        MergingFuture(Map<String, Object> buffered, Future<Map<String, Object>> future) {
+            this.buffered = buffered;
+            this.future = future;
+        }
+
+        private Map<String, Object> merge(Map<String, Object> values) {
+            final Map<String, Object> result = Maps.newHashMap(values);
+            result.putAll(buffered);
+            return result;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return future.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        @Override
+        public Map<String, Object> get() throws InterruptedException, ExecutionException {
+            return merge(future.get());
+        }
+
+        @Override
+        public Map<String, Object> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+            return merge(future.get(timeout, unit));
+        }
+
+    }
+
+}
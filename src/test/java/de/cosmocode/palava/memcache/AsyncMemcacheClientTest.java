@@ -0,0 +1,108 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.OperationTimeoutException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link AsyncMemcacheClient}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class AsyncMemcacheClientTest implements UnitProvider<AsyncMemcacheClient> {
+
+    private final InMemoryMemcachedClient backend = new InMemoryMemcachedClient();
+
+    private final ExecutorService completer = Executors.newSingleThreadExecutor();
+
+    @Override
+    public AsyncMemcacheClient unit() {
+        return new AsyncMemcacheClient(backend, completer, 1000);
+    }
+
+    @After
+    public void shutdown() {
+        completer.shutdown();
+    }
+
+    @Test
+    public void listener() throws InterruptedException {
+        final AsyncMemcacheClient unit = unit();
+        final ListenableFuture<Boolean> future = unit.set("a", 0, "1");
+        final CountDownLatch latch = new CountDownLatch(1);
+        future.addListener(new Runnable() {
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+
+        }, MoreExecutors.sameThreadExecutor());
+        Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void compose() throws InterruptedException, ExecutionException {
+        backend.set("a", 0, "1");
+        backend.set("b", 0, "2");
+        final ListenableFuture<Map<String, Object>> values = unit().getBulk(Arrays.asList("a", "b", "c"));
+        final ListenableFuture<Integer> size = Futures.transform(values, new Function<Map<String, Object>, Integer>() {
+
+            @Override
+            public Integer apply(Map<String, Object> from) {
+                return from.size();
+            }
+
+        });
+        Assert.assertEquals(Integer.valueOf(2), size.get());
+    }
+
+    @Test
+    public void timeout() throws InterruptedException {
+        backend.setStalled(true);
+        final ListenableFuture<Object> future = new AsyncMemcacheClient(backend, completer, 10).get("a");
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            Assert.fail("Expected timeout");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof OperationTimeoutException);
+        } catch (TimeoutException e) {
+            Assert.fail("Future was not expired");
+        }
+    }
+
+}
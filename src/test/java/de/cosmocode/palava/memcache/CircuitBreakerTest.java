@@ -0,0 +1,153 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * Tests {@link CircuitBreaker} and {@link CircuitBreakingMemcachedClient}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class CircuitBreakerTest {
+
+    private static final long SLOW_CALL = 1000L;
+
+    private static void fail(CircuitBreaker unit, int times) {
+        for (int i = 0; i < times; i++) {
+            Assert.assertTrue(unit.allow(InMemoryMemcachedClient.ADDRESS));
+            unit.record(InMemoryMemcachedClient.ADDRESS, System.nanoTime(), false);
+        }
+    }
+
+    /**
+     * Tests that a circuit opens once the failure rate is reached.
+     */
+    @Test
+    public void opens() {
+        final CircuitBreaker unit = new CircuitBreaker(0.5, SLOW_CALL, 100, 60000L, 3);
+        for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+            unit.record(InMemoryMemcachedClient.ADDRESS, System.nanoTime(), true);
+        }
+        fail(unit, CircuitBreaker.MIN_CALLS - 1);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, unit.getState(InMemoryMemcachedClient.ADDRESS));
+        fail(unit, 1);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, unit.getState(InMemoryMemcachedClient.ADDRESS));
+        Assert.assertFalse(unit.allow(InMemoryMemcachedClient.ADDRESS));
+        Assert.assertEquals(1L, unit.getRejected());
+    }
+
+    /**
+     * Tests that slow calls count as failures.
+     */
+    @Test
+    public void slowCalls() {
+        final CircuitBreaker unit = new CircuitBreaker(0.5, SLOW_CALL, 100, 60000L, 3);
+        final long longAgo = System.nanoTime() - 2000000000L;
+        for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+            unit.record(InMemoryMemcachedClient.ADDRESS, longAgo, true);
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, unit.getState(InMemoryMemcachedClient.ADDRESS));
+    }
+
+    /**
+     * Tests that successful probes close an open circuit and a failed probe opens it again.
+     */
+    @Test
+    public void probes() {
+        final CircuitBreaker unit = new CircuitBreaker(0.5, SLOW_CALL, 100, 0L, 2);
+        unit.connectionLost(InMemoryMemcachedClient.ADDRESS);
+        Assert.assertTrue(unit.allow(InMemoryMemcachedClient.ADDRESS));
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, unit.getState(InMemoryMemcachedClient.ADDRESS));
+        unit.record(InMemoryMemcachedClient.ADDRESS, System.nanoTime(), false);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, unit.getState(InMemoryMemcachedClient.ADDRESS));
+        Assert.assertTrue(unit.allow(InMemoryMemcachedClient.ADDRESS));
+        Assert.assertTrue(unit.allow(InMemoryMemcachedClient.ADDRESS));
+        unit.record(InMemoryMemcachedClient.ADDRESS, System.nanoTime(), true);
+        unit.record(InMemoryMemcachedClient.ADDRESS, System.nanoTime(), true);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, unit.getState(InMemoryMemcachedClient.ADDRESS));
+    }
+
+    /**
+     * Tests that the client fails fast like a cache miss while the circuit is open.
+     */
+    @Test
+    public void failsFast() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, SLOW_CALL, 100, 60000L, 3);
+        final InMemoryMemcachedClient client = new InMemoryMemcachedClient();
+        final CircuitBreakingMemcachedClient unit = new CircuitBreakingMemcachedClient(client, breaker);
+        unit.set("key", 0, "value");
+        client.setFailing(true);
+        // the set counts as one of the calls
+        for (int i = 0; i < CircuitBreaker.MIN_CALLS - 1; i++) {
+            try {
+                unit.get("key");
+                Assert.fail("Expected failure");
+            } catch (RuntimeException e) {
+                continue;
+            }
+        }
+        Assert.assertNull(unit.get("key"));
+        Assert.assertFalse(unit.set("key", 0, "value").get());
+        Assert.assertTrue(unit.getBulk("key").isEmpty());
+        Assert.assertEquals(3L, breaker.getRejected());
+        Assert.assertTrue(unit.getUnavailableServers().contains(InMemoryMemcachedClient.ADDRESS));
+    }
+
+    /**
+     * Tests that asynchronous calls are recorded when they complete, even if their
+     * future is never queried.
+     */
+    @Test
+    public void recordsUnqueried() {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, SLOW_CALL, 100, 60000L, 3);
+        final InMemoryMemcachedClient client = new InMemoryMemcachedClient();
+        final CircuitBreakingMemcachedClient unit = new CircuitBreakingMemcachedClient(client, breaker);
+        client.setFailing(true);
+        for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+            unit.asyncGet("key");
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(InMemoryMemcachedClient.ADDRESS));
+    }
+
+    /**
+     * Tests that a replicated write ignores replicas which rejected it because of an open circuit.
+     */
+    @Test
+    public void replicasSkipRejected() throws Exception {
+        final List<Future<Long>> futures = Lists.newArrayList();
+        futures.add(new CircuitBreakingMemcachedClient.RejectedFuture<Long>(Long.valueOf(-1L)));
+        futures.add(Futures.immediateFuture(Long.valueOf(5L)));
+        final List<CompletionListeners.Capture> captures = Lists.newArrayList();
+        for (int i = 0; i < futures.size(); i++) {
+            final CompletionListeners.Capture capture = CompletionListeners.capture();
+            capture.stop();
+            captures.add(capture);
+        }
+        Assert.assertEquals(Long.valueOf(5L),
+            new ReplicatedMemcachedClient.ReplicatedFuture<Long>(futures, captures, false, SLOW_CALL).get());
+    }
+
+}
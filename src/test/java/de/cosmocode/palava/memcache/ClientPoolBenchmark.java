@@ -0,0 +1,173 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
+
+import com.google.common.collect.Lists;
+import com.thimbleware.jmemcached.CacheImpl;
+
+import de.cosmocode.palava.scope.Destroyable;
+
+/**
+ * Measures units of work per second against a {@link MemcacheLocalDaemon} on the loopback
+ * interface, once with a new client per unit, as the provider does without a pool, and
+ * once with leases of a {@link MemcacheClientPool}. Every unit does ten operations,
+ * 90% gets and 10% sets.
+ *
+ * <p>
+ *   Usage: {@code ClientPoolBenchmark [seconds] [threads] [poolSize]}.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class ClientPoolBenchmark {
+
+    private static final int KEYS = 10000;
+
+    private static final int OPERATIONS_PER_UNIT = 10;
+
+    private ClientPoolBenchmark() {
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int poolSize = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 21213);
+        final MemcacheLocalDaemon daemon = new MemcacheLocalDaemon(
+            new CacheImpl(new OffHeapCacheStorage(100000, 64L * 1024 * 1024)), address);
+        daemon.start();
+        try {
+            final List<InetSocketAddress> addresses = Collections.singletonList(address);
+            final double perUnit = run(new Units() {
+
+                @Override
+                public MemcachedClientIF begin() throws IOException {
+                    return new MemcachedClient(new DefaultConnectionFactory(), addresses);
+                }
+
+                @Override
+                public void end(MemcachedClientIF client) {
+                    client.shutdown();
+                }
+
+            }, threads, seconds);
+
+            final List<MemcachedClient> clients = Lists.newArrayList();
+            for (int i = 0; i < poolSize; i++) {
+                clients.add(new MemcachedClient(new DefaultConnectionFactory(), addresses));
+            }
+            final MemcacheClientPool pool = new MemcacheClientPool(clients);
+            final double pooled = run(new Units() {
+
+                @Override
+                public MemcachedClientIF begin() {
+                    return new MemcachedClientLease(pool.lease());
+                }
+
+                @Override
+                public void end(MemcachedClientIF client) {
+                    Destroyable.class.cast(client).destroy();
+                }
+
+            }, threads, seconds);
+            pool.shutdown();
+
+            System.out.printf("per unit %,12.0f units/s%n", perUnit);
+            System.out.printf("pooled   %,12.0f units/s%n", pooled);
+        } finally {
+            daemon.stop();
+        }
+    }
+
+    private static double run(final Units units, int threads, int seconds) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong completed = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    final Random random = new Random();
+                    long count = 0;
+                    try {
+                        while (running.get()) {
+                            final MemcachedClientIF client = units.begin();
+                            try {
+                                for (int j = 0; j < OPERATIONS_PER_UNIT; j++) {
+                                    final String key = "key" + random.nextInt(KEYS);
+                                    if (random.nextInt(10) == 0) {
+                                        client.set(key, 0, "value").get();
+                                    } else {
+                                        client.get(key);
+                                    }
+                                }
+                            } finally {
+                                units.end(client);
+                            }
+                            count++;
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        completed.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+
+            }).start();
+        }
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        done.await();
+        return completed.get() / (double) seconds;
+    }
+
+    /**
+     * Creates and releases the client of a unit of work.
+     *
+     * @author Willi Schoenborn
+     */
+    private interface Units {
+
+        MemcachedClientIF begin() throws IOException;
+
+        void end(MemcachedClientIF client);
+
+    }
+
+}
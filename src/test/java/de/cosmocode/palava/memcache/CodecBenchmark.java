@@ -0,0 +1,104 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Measures the cpu time per compress/decompress round trip and the compressed size of every
+ * {@link MemcacheCodec}, for a large value above the compression threshold and for a small
+ * value with and without a preset dictionary.
+ *
+ * <p>
+ *   Usage: {@code CodecBenchmark [seconds] [size]}.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class CodecBenchmark {
+
+    private CodecBenchmark() {
+
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        final int size = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+        final Random random = new Random(42L);
+        final byte[] large = newValue(random, size);
+        final byte[] small = newValue(random, 512);
+        final byte[] dictionary = newValue(random, 4096);
+
+        for (MemcacheCodec codec : MemcacheCodec.values()) {
+            run("large", codec, large, null, seconds);
+        }
+        for (MemcacheCodec codec : MemcacheCodec.values()) {
+            run("small", codec, small, null, seconds);
+        }
+        run("small+dict", MemcacheCodec.DEFLATE, small, dictionary, seconds);
+    }
+
+    /**
+     * Creates json like records with recurring field names and varying values.
+     */
+    private static byte[] newValue(Random random, int size) {
+        final StringBuilder builder = new StringBuilder(size + 128);
+        while (builder.length() < size) {
+            builder.append("{\"id\":").append(random.nextInt(1000000));
+            builder.append(",\"name\":\"customer").append(random.nextInt(1000));
+            builder.append("\",\"active\":").append(random.nextBoolean());
+            builder.append(",\"score\":").append(random.nextDouble()).append("}");
+        }
+        return Arrays.copyOf(builder.toString().getBytes(Charsets.UTF_8), size);
+    }
+
+    private static void run(String name, MemcacheCodec codec, byte[] value, byte[] dictionary,
+        int seconds) throws IOException {
+        final byte[] compressed = codec.compress(value, dictionary);
+        if (!Arrays.equals(value, codec.decompress(compressed, dictionary))) {
+            throw new IllegalStateException(codec + " failed to round trip");
+        }
+        // warm up
+        measure(codec, value, dictionary, seconds);
+        final double cpu = measure(codec, value, dictionary, seconds);
+        System.out.printf("%-10s %-7s %,8d -> %,8d bytes %,10.0f ns cpu/op%n",
+            name, codec, value.length, compressed.length, cpu);
+    }
+
+    private static double measure(MemcacheCodec codec, byte[] value, byte[] dictionary,
+        int seconds) throws IOException {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long start = threads.getCurrentThreadCpuTime();
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long count = 0;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 10; i++) {
+                codec.decompress(codec.compress(value, dictionary), dictionary);
+            }
+            count += 10;
+        }
+        return (threads.getCurrentThreadCpuTime() - start) / (double) count;
+    }
+
+}
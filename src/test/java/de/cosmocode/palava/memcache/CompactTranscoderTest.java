@@ -0,0 +1,172 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link CompactTranscoder}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class CompactTranscoderTest implements UnitProvider<CompactTranscoder> {
+
+    @Override
+    public CompactTranscoder unit() {
+        return new CompactTranscoder(ImmutableMap.of(1, new PointSerializer()), MemcacheCodec.LZ4, null, 0);
+    }
+
+    private Object roundTrip(Object value) {
+        final CompactTranscoder unit = unit();
+        return unit.decode(unit.encode(value));
+    }
+
+    @Test
+    public void simple() {
+        Assert.assertEquals("string", roundTrip("string"));
+        Assert.assertEquals(Long.valueOf(42L), roundTrip(42L));
+        Assert.assertEquals(new Date(1000L), roundTrip(new Date(1000L)));
+    }
+
+    @Test
+    public void collections() {
+        final Map<String, Object> map = new HashMap<String, Object>();
+        map.put("list", new ArrayList<Object>(Arrays.asList(1, "two", 3.0, null)));
+        map.put("set", new LinkedHashSet<String>(Arrays.asList("a", "b")));
+        map.put("sorted", new TreeMap<String, String>(ImmutableMap.of("x", "y")));
+        map.put("bytes", "bytes");
+        Assert.assertEquals(map, roundTrip(map));
+    }
+
+    @Test
+    public void registered() {
+        final HashMap<String, Point> map = new HashMap<String, Point>();
+        map.put("origin", new Point(0, 0));
+        map.put("far", new Point(Integer.MAX_VALUE, -1));
+        Assert.assertEquals(map, roundTrip(map));
+    }
+
+    @Test
+    public void compressed() {
+        final CompactTranscoder unit = unit();
+        final ArrayList<String> list = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            list.add("element");
+        }
+        final CachedData data = unit.encode(list);
+        Assert.assertEquals(CompactTranscoder.COMPRESSED, data.getFlags() & CompactTranscoder.COMPRESSED);
+        Assert.assertEquals(list, unit.decode(data));
+    }
+
+    @Test
+    public void corrupt() {
+        final CompactTranscoder unit = unit();
+        final byte[][] values = {
+            // array list and byte array of Integer.MAX_VALUE elements
+            {7, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07},
+            {6, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07},
+            // negative byte array length
+            {6, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f},
+            // truncated string
+            {1, 5, 'a', 'b'},
+            // unknown tag
+            {42}
+        };
+        for (byte[] value : values) {
+            Assert.assertNull(unit.decode(new CachedData(CompactTranscoder.COMPACT, value, unit.getMaxSize())));
+        }
+    }
+
+    @Test
+    public void readsSerializingTranscoder() {
+        final HashMap<String, String> map = new HashMap<String, String>();
+        map.put("key", "value");
+        Assert.assertEquals(map, unit().decode(new SerializingTranscoder().encode(map)));
+    }
+
+    /**
+     * Registered test type.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Point {
+
+        private final int x;
+        private final int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            return that instanceof Point && Point.class.cast(that).x == x && Point.class.cast(that).y == y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
+
+    }
+
+    /**
+     * Serializer for {@link Point}.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class PointSerializer implements MemcacheSerializer<Point> {
+
+        @Override
+        public Class<Point> getType() {
+            return Point.class;
+        }
+
+        @Override
+        public void write(Point value, DataOutput output) throws IOException {
+            output.writeInt(value.x);
+            output.writeInt(value.y);
+        }
+
+        @Override
+        public Point read(DataInput input) throws IOException {
+            return new Point(input.readInt(), input.readInt());
+        }
+
+    }
+
+}
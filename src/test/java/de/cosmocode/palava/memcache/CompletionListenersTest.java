@@ -0,0 +1,164 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.OperationFactory;
+import net.spy.memcached.ops.GetOperation;
+import net.spy.memcached.ops.OperationStatus;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Callables;
+
+/**
+ * Tests {@link CompletionListeners}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class CompletionListenersTest {
+
+    private final AtomicReference<GetOperation.Callback> callback = new AtomicReference<GetOperation.Callback>();
+
+    private OperationFactory operations() {
+        final OperationFactory operations = OperationFactory.class.cast(Proxy.newProxyInstance(
+            OperationFactory.class.getClassLoader(), new Class<?>[] {OperationFactory.class},
+            new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    callback.set(GetOperation.Callback.class.cast(args[1]));
+                    return null;
+                }
+
+            }));
+        final ConnectionFactory factory = ConnectionFactory.class.cast(Proxy.newProxyInstance(
+            ConnectionFactory.class.getClassLoader(), new Class<?>[] {ConnectionFactory.class},
+            new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return operations;
+                }
+
+            }));
+        return CompletionListeners.decorate(factory).getOperationFactory();
+    }
+
+    private GetOperation.Callback noop() {
+        return new GetOperation.Callback() {
+
+            @Override
+            public void receivedStatus(OperationStatus status) {
+
+            }
+
+            @Override
+            public void complete() {
+
+            }
+
+            @Override
+            public void gotData(String key, int flags, byte[] data) {
+
+            }
+
+        };
+    }
+
+    private Runnable counting(final AtomicInteger counter) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                counter.incrementAndGet();
+            }
+
+        };
+    }
+
+    private Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+
+        };
+    }
+
+    @Test
+    public void completion() {
+        final OperationFactory operations = operations();
+        final FutureTask<Object> future = new FutureTask<Object>(Callables.returning(null));
+        final CompletionListeners.Capture capture = CompletionListeners.capture();
+        try {
+            operations.get("a", noop());
+        } finally {
+            capture.stop();
+        }
+        final AtomicInteger completed = new AtomicInteger();
+        capture.listen(future, counting(completed));
+        Assert.assertEquals(0, completed.get());
+        future.run();
+        callback.get().complete();
+        Assert.assertEquals(1, completed.get());
+        callback.get().complete();
+        Assert.assertEquals(1, completed.get());
+    }
+
+    @Test
+    public void uncaptured() {
+        final GetOperation.Callback original = noop();
+        operations().get("a", original);
+        Assert.assertSame(original, callback.get());
+    }
+
+    @Test
+    public void polled() throws InterruptedException {
+        final FutureTask<Object> future = new FutureTask<Object>(Callables.returning(null));
+        final CountDownLatch latch = new CountDownLatch(1);
+        CompletionListeners.listen(future, countDown(latch));
+        Assert.assertEquals(1, latch.getCount());
+        future.run();
+        Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void expired() throws InterruptedException {
+        final FutureTask<Object> done = new FutureTask<Object>(Callables.returning(null));
+        done.run();
+        final AtomicInteger expired = new AtomicInteger();
+        CompletionListeners.expire(done, 1, counting(expired));
+        final CountDownLatch latch = new CountDownLatch(1);
+        CompletionListeners.expire(new FutureTask<Object>(Callables.returning(null)), 10, countDown(latch));
+        Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(0, expired.get());
+    }
+
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.IOException;
+import java.util.Random;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+/**
+ * Tests {@link CompressingTranscoder}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class CompressingTranscoderTest {
+
+    private static final String LARGE = Strings.repeat("compressible ", 2000);
+
+    private static final String SMALL = 
+        "{\"id\": 42, \"name\": \"small json payload\", \"active\": true, \"created\": \"2010-10-18\"}";
+
+    private static final byte[] DICTIONARY = 
+        "{\"id\": , \"name\": \"\", \"active\": true, \"created\": \"2010-10-18\"}".getBytes();
+
+    private static int codecOf(CachedData data) {
+        return (data.getFlags() & CompressingTranscoder.CODEC_MASK) >>> CompressingTranscoder.CODEC_SHIFT;
+    }
+
+    @Test
+    public void allCodecs() {
+        for (MemcacheCodec codec : MemcacheCodec.values()) {
+            final CompressingTranscoder unit = new CompressingTranscoder(codec, null, 0);
+            final CachedData data = unit.encode(LARGE);
+            Assert.assertEquals(codec.getId(), codecOf(data));
+            Assert.assertTrue(data.getData().length < LARGE.length() / 10);
+            Assert.assertEquals(LARGE, unit.decode(data));
+        }
+    }
+
+    @Test
+    public void allCodecsIntoTarget() throws IOException {
+        final byte[] value = LARGE.getBytes(Charsets.UTF_8);
+        for (MemcacheCodec codec : MemcacheCodec.values()) {
+            final byte[] compressed = codec.compress(value, null);
+            Assert.assertEquals(value.length, codec.lengthOf(compressed));
+            final byte[] target = new byte[value.length];
+            codec.decompress(compressed, null, target);
+            Assert.assertArrayEquals(value, target);
+        }
+    }
+
+    @Test
+    public void dictionary() {
+        final CompressingTranscoder unit = new CompressingTranscoder(MemcacheCodec.LZ4, DICTIONARY, 4096);
+        final CachedData data = unit.encode(SMALL);
+        Assert.assertEquals(CompressingTranscoder.COMPRESSED, data.getFlags() & CompressingTranscoder.COMPRESSED);
+        Assert.assertEquals(MemcacheCodec.DEFLATE.getId(), codecOf(data));
+        Assert.assertEquals(SMALL, unit.decode(data));
+    }
+
+    @Test
+    public void smallWithoutDictionary() {
+        final CompressingTranscoder unit = new CompressingTranscoder(MemcacheCodec.LZ4, null, 4096);
+        Assert.assertEquals(0, unit.encode(SMALL).getFlags() & CompressingTranscoder.COMPRESSED);
+    }
+
+    @Test
+    public void incompressibleStoredRaw() {
+        final byte[] random = new byte[100000];
+        new Random(0).nextBytes(random);
+        final CompressingTranscoder unit = new CompressingTranscoder(MemcacheCodec.LZ4, null, 0);
+        final CachedData data = unit.encode(random);
+        Assert.assertEquals(0, data.getFlags() & CompressingTranscoder.COMPRESSED);
+        Assert.assertArrayEquals(random, (byte[]) unit.decode(data));
+    }
+
+    /**
+     * Tests that a forged length header of an LZ4 value is rejected instead of trusted.
+     */
+    @Test
+    public void corruptLz4Length() {
+        final CompressingTranscoder unit = new CompressingTranscoder(MemcacheCodec.LZ4, null, 0);
+        final CachedData data = unit.encode(LARGE);
+        for (int length : new int[] {LARGE.length() + 100, LARGE.length() - 100, -1, Integer.MAX_VALUE}) {
+            final byte[] forged = data.getData().clone();
+            forged[0] = (byte) (length >>> 24);
+            forged[1] = (byte) (length >>> 16);
+            forged[2] = (byte) (length >>> 8);
+            forged[3] = (byte) length;
+            Assert.assertNull(unit.decode(new CachedData(data.getFlags(), forged, unit.getMaxSize())));
+        }
+    }
+
+    /**
+     * Tests that a DEFLATE value ending before the length of its header is rejected.
+     */
+    @Test
+    public void corruptDeflateLength() {
+        final CompressingTranscoder unit = new CompressingTranscoder(MemcacheCodec.DEFLATE, null, 0);
+        final CachedData data = unit.encode(LARGE);
+        final byte[] forged = data.getData().clone();
+        final int length = LARGE.length() + 100;
+        forged[0] = (byte) (length >>> 24);
+        forged[1] = (byte) (length >>> 16);
+        forged[2] = (byte) (length >>> 8);
+        forged[3] = (byte) length;
+        Assert.assertNull(unit.decode(new CachedData(data.getFlags(), forged, unit.getMaxSize())));
+    }
+
+    @Test
+    public void unknownCodec() {
+        final CompressingTranscoder unit = new CompressingTranscoder(MemcacheCodec.LZ4, null, 0);
+        final CachedData data = unit.encode(LARGE);
+        final int flags = data.getFlags() | CompressingTranscoder.CODEC_MASK;
+        Assert.assertNull(unit.decode(new CachedData(flags, data.getData(), unit.getMaxSize())));
+    }
+
+    @Test
+    public void readsGzipOfSerializingTranscoder() {
+        final SerializingTranscoder legacy = new SerializingTranscoder();
+        legacy.setCompressionThreshold(0);
+        final CachedData data = legacy.encode(LARGE);
+        Assert.assertEquals(LARGE, new CompressingTranscoder(MemcacheCodec.LZ4, null, 0).decode(data));
+    }
+
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.ConnectionFactoryBuilder.Protocol;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.ops.ArrayOperationQueueFactory;
+
+import com.google.common.collect.Lists;
+import com.thimbleware.jmemcached.CacheImpl;
+
+/**
+ * Measures throughput and tail latency against a {@link MemcacheLocalDaemon} on the loopback
+ * interface for different op queue lengths and read buffer sizes, the settings of
+ * {@link MemcacheClientConfig#OP_QUEUE_LENGTH} and {@link MemcacheClientConfig#READ_BUFFER_SIZE}.
+ * Every thread sends bursts of asynchronous operations, 90% gets and 10% sets, and waits
+ * for each burst to complete. The latency of an operation is the time from sending it
+ * until its future returned.
+ *
+ * <p>
+ *   Usage: {@code ConnectionFactoryBenchmark [seconds] [threads] [burst] [valueSize]}.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class ConnectionFactoryBenchmark {
+
+    private static final int KEYS = 10000;
+
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private ConnectionFactoryBenchmark() {
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int burst = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        final int valueSize = args.length > 3 ? Integer.parseInt(args[3]) : 4096;
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 21216);
+        final MemcacheLocalDaemon daemon = new MemcacheLocalDaemon(
+            new CacheImpl(new OffHeapCacheStorage(100000, 64L * 1024 * 1024)), address);
+        daemon.setBinary(true);
+        daemon.start();
+        try {
+            final byte[] value = new byte[valueSize];
+            new Random(42L).nextBytes(value);
+            final int[][] settings = {
+                {16384, 16384},
+                {64, 16384},
+                {16384, 1024},
+                {16384, 65536}
+            };
+            for (int[] setting : settings) {
+                final MemcachedClient client = new MemcachedClient(new ConnectionFactoryBuilder().
+                    setProtocol(Protocol.BINARY).
+                    setOpQueueFactory(new ArrayOperationQueueFactory(setting[0])).
+                    setReadBufferSize(setting[1]).
+                    setOpTimeout(TimeUnit.SECONDS.toMillis(10)).
+                    build(), Collections.singletonList(address));
+                try {
+                    // warm up
+                    run(client, value, threads, burst, seconds);
+                    final long[] latencies = run(client, value, threads, burst, seconds);
+                    System.out.printf("queue %,6d buffer %,6d %,12.0f ops/s p50 %,8d us p99 %,8d us p99.9 %,8d us%n",
+                        setting[0], setting[1], latencies.length / (double) seconds,
+                        percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999));
+                } finally {
+                    client.shutdown();
+                }
+            }
+        } finally {
+            daemon.stop();
+        }
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0L;
+        }
+        final int index = (int) Math.min(sorted.length - 1, Math.round(quantile * sorted.length));
+        return TimeUnit.NANOSECONDS.toMicros(sorted[index]);
+    }
+
+    /**
+     * Runs the load for the given time.
+     *
+     * @return the sorted latencies of all completed operations in nanoseconds
+     */
+    private static long[] run(final MemcachedClient client, final byte[] value, int threads, final int burst,
+        int seconds) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final List<long[]> samples = Collections.synchronizedList(Lists.<long[]>newArrayList());
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    final Random random = new Random();
+                    final List<Future<?>> futures = Lists.newArrayListWithCapacity(burst);
+                    final long[] started = new long[burst];
+                    long[] latencies = new long[1024];
+                    int count = 0;
+                    try {
+                        while (running.get()) {
+                            futures.clear();
+                            for (int j = 0; j < burst; j++) {
+                                final String key = "key" + random.nextInt(KEYS);
+                                started[j] = System.nanoTime();
+                                if (random.nextInt(10) == 0) {
+                                    futures.add(client.set(key, 0, value));
+                                } else {
+                                    futures.add(client.asyncGet(key));
+                                }
+                            }
+                            for (int j = 0; j < burst; j++) {
+                                futures.get(j).get();
+                                if (count < MAX_SAMPLES) {
+                                    if (count == latencies.length) {
+                                        latencies = Arrays.copyOf(latencies, latencies.length * 2);
+                                    }
+                                    latencies[count++] = System.nanoTime() - started[j];
+                                }
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        samples.add(Arrays.copyOf(latencies, count));
+                        done.countDown();
+                    }
+                }
+
+            }).start();
+        }
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        done.await();
+        int total = 0;
+        for (long[] sample : samples) {
+            total += sample.length;
+        }
+        final long[] all = new long[total];
+        int offset = 0;
+        for (long[] sample : samples) {
+            System.arraycopy(sample, 0, all, offset, sample.length);
+            offset += sample.length;
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+}
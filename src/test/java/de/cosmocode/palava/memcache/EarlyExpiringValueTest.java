@@ -0,0 +1,77 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link EarlyExpiringValue}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class EarlyExpiringValueTest {
+
+    private static final int SAMPLES = 10000;
+
+    private static final long EXPIRY = 1000000L;
+
+    private static double dueRatio(EarlyExpiringValue value, double beta, long now) {
+        final Random random = new Random(0);
+        int due = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            if (value.isDue(beta, random, now)) {
+                due++;
+            }
+        }
+        return (double) due / SAMPLES;
+    }
+
+    @Test
+    public void dueAfterExpiry() {
+        final EarlyExpiringValue value = new EarlyExpiringValue("value", 100, EXPIRY);
+        Assert.assertEquals(1.0, dueRatio(value, 1.0, EXPIRY), 0.0);
+        Assert.assertEquals(1.0, dueRatio(value, 1.0, EXPIRY + 1), 0.0);
+    }
+
+    @Test
+    public void rarelyDueLongBeforeExpiry() {
+        final EarlyExpiringValue value = new EarlyExpiringValue("value", 100, EXPIRY);
+        Assert.assertTrue(dueRatio(value, 1.0, EXPIRY - 2000) < 0.001);
+    }
+
+    /**
+     * Tests that the probability follows exp(-gap / (delta * beta)).
+     */
+    @Test
+    public void probability() {
+        final EarlyExpiringValue value = new EarlyExpiringValue("value", 1000, EXPIRY);
+        Assert.assertEquals(Math.exp(-1.0), dueRatio(value, 1.0, EXPIRY - 1000), 0.02);
+        Assert.assertEquals(Math.exp(-0.5), dueRatio(value, 2.0, EXPIRY - 1000), 0.02);
+        Assert.assertEquals(Math.exp(-2.0), dueRatio(value, 1.0, EXPIRY - 2000), 0.02);
+    }
+
+    @Test
+    public void expensiveRefreshedEarlier() {
+        final EarlyExpiringValue cheap = new EarlyExpiringValue("value", 10, EXPIRY);
+        final EarlyExpiringValue expensive = new EarlyExpiringValue("value", 1000, EXPIRY);
+        Assert.assertTrue(dueRatio(cheap, 1.0, EXPIRY - 500) < dueRatio(expensive, 1.0, EXPIRY - 500));
+    }
+
+}
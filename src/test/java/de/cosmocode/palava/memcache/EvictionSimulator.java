@@ -0,0 +1,145 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+
+/**
+ * Replays a key trace against every storage of the local server and reports hit ratio
+ * and throughput. Every miss is followed by a put, the way a read-through client would do it.
+ *
+ * <p>
+ *   Usage: {@code EvictionSimulator [maxItems] [traceFile]}. The trace file contains one
+ *   key per line. Without a trace file a zipf distributed trace interleaved with scans is used.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class EvictionSimulator {
+
+    private static final byte[] VALUE = "value".getBytes(Charsets.UTF_8);
+
+    private static final long MAX_BYTES = 1L << 30;
+
+    private EvictionSimulator() {
+
+    }
+
+    /**
+     * Creates a trace of zipf distributed keys, interrupted by scans over keys
+     * which are never used again.
+     *
+     * @param length the number of accesses, excluding scans
+     * @param keys the number of distinct keys of the zipf distribution
+     * @param skew the zipf exponent
+     * @param scanEvery the number of accesses between two scans
+     * @param scanLength the number of keys per scan
+     * @param seed the random seed
+     * @return the trace
+     */
+    static String[] zipfWithScans(int length, int keys, double skew, int scanEvery, int scanLength, long seed) {
+        final double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = sum;
+        }
+        final Random random = new Random(seed);
+        final String[] trace = new String[length + length / scanEvery * scanLength];
+        int scans = 0;
+        int position = 0;
+        for (int i = 0; i < length; i++) {
+            if (i > 0 && i % scanEvery == 0) {
+                for (int j = 0; j < scanLength; j++) {
+                    trace[position++] = "scan" + scans++;
+                }
+            }
+            final int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            trace[position++] = "key" + (index < 0 ? -index - 1 : index);
+        }
+        return Arrays.copyOf(trace, position);
+    }
+
+    /**
+     * Replays the given trace.
+     *
+     * @param storage the storage
+     * @param trace the keys
+     * @return the hit ratio
+     */
+    static double hitRatio(CacheStorage<Key, LocalCacheElement> storage, String[] trace) {
+        long hits = 0;
+        for (String key : trace) {
+            final Key k = new Key(ChannelBuffers.wrappedBuffer(key.getBytes(Charsets.UTF_8)));
+            if (storage.get(k) == null) {
+                final LocalCacheElement element = new LocalCacheElement(k, 0, 0, 0);
+                element.setData(ChannelBuffers.wrappedBuffer(VALUE));
+                storage.put(k, element);
+            } else {
+                hits++;
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    static CacheStorage<Key, LocalCacheElement> newStorage(String policy, int maxItems) {
+        if ("TINY_LFU".equals(policy)) {
+            return new TinyLfuCacheStorage(maxItems, MAX_BYTES);
+        } else if ("OFFHEAP".equals(policy)) {
+            return new OffHeapCacheStorage(maxItems, MAX_BYTES);
+        } else {
+            return ConcurrentLinkedHashMap.create(ConcurrentLinkedHashMap.EvictionPolicy.valueOf(policy),
+                maxItems, MAX_BYTES);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int maxItems = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final String[] trace;
+        if (args.length > 1) {
+            final List<String> lines = Files.readLines(new File(args[1]), Charsets.UTF_8);
+            trace = lines.toArray(new String[lines.size()]);
+        } else {
+            trace = zipfWithScans(1000000, 100000, 0.9, 100000, 20000, 42L);
+        }
+        System.out.printf("%d accesses, %d max items%n", trace.length, maxItems);
+        for (String policy : new String[] {"FIFO", "SECOND_CHANCE", "LRU", "TINY_LFU", "OFFHEAP"}) {
+            final CacheStorage<Key, LocalCacheElement> storage = newStorage(policy, maxItems);
+            final long start = System.nanoTime();
+            final double hitRatio = hitRatio(storage, trace);
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-14s hit ratio %6.2f%%  %,12.0f ops/s%n",
+                policy, hitRatio * 100, trace.length / seconds);
+            storage.close();
+        }
+    }
+
+}
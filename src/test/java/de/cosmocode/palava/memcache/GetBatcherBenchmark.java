@@ -0,0 +1,121 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
+
+import com.thimbleware.jmemcached.CacheImpl;
+
+/**
+ * Measures the throughput of concurrent single key gets against a {@link MemcacheLocalDaemon}
+ * on the loopback interface, once sent one by one and once coalesced by a {@link MemcacheGetBatcher}.
+ * All keys are present, so every get is a hit.
+ *
+ * <p>
+ *   Usage: {@code GetBatcherBenchmark [seconds] [threads] [windowMicros] [maxKeys]}.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class GetBatcherBenchmark {
+
+    private static final int KEYS = 10000;
+
+    private GetBatcherBenchmark() {
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        final long window = args.length > 2 ? Long.parseLong(args[2]) : 200;
+        final int maxKeys = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 21215);
+        final MemcacheLocalDaemon daemon = new MemcacheLocalDaemon(
+            new CacheImpl(new OffHeapCacheStorage(100000, 64L * 1024 * 1024)), address);
+        daemon.start();
+        try {
+            final List<InetSocketAddress> addresses = Collections.singletonList(address);
+            final MemcachedClient client = new MemcachedClient(new DefaultConnectionFactory(), addresses);
+            for (int i = 0; i < KEYS; i++) {
+                client.set("key" + i, 0, "value").get();
+            }
+            final double single = run(client, threads, seconds);
+
+            final MemcacheGetBatcher batcher = new MemcacheGetBatcher(window, maxKeys,
+                DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT);
+            final double batched = run(new BatchingMemcachedClient(client, batcher,
+                DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT), threads, seconds);
+            batcher.shutdown();
+            client.shutdown();
+
+            System.out.printf("single  %,12.0f gets/s%n", single);
+            System.out.printf("batched %,12.0f gets/s%n", batched);
+        } finally {
+            daemon.stop();
+        }
+    }
+
+    private static double run(final MemcachedClientIF client, int threads, int seconds) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong operations = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    final Random random = new Random();
+                    long count = 0;
+                    try {
+                        while (running.get()) {
+                            if (client.asyncGet("key" + random.nextInt(KEYS)).get() == null) {
+                                throw new IllegalStateException("Unexpected miss");
+                            }
+                            count++;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        operations.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+
+            }).start();
+        }
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        done.await();
+        return operations.get() / (double) seconds;
+    }
+
+}
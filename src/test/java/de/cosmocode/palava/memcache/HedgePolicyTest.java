@@ -0,0 +1,92 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link HedgePolicy}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class HedgePolicyTest {
+
+    /**
+     * Tests that no read is hedged before the first window is complete.
+     */
+    @Test
+    public void warmUp() {
+        final HedgePolicy unit = new HedgePolicy(0.95, 1.0, 0L);
+        for (int i = 1; i < HedgePolicy.WINDOW; i++) {
+            unit.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        Assert.assertEquals(Long.MAX_VALUE, unit.getDelay());
+        unit.record(TimeUnit.MICROSECONDS.toNanos(HedgePolicy.WINDOW));
+        final long delay = TimeUnit.NANOSECONDS.toMicros(unit.getDelay());
+        Assert.assertTrue("delay was " + delay, delay >= 900 && delay <= 1100);
+    }
+
+    /**
+     * Tests that the min delay bounds the delay.
+     */
+    @Test
+    public void minDelay() {
+        final HedgePolicy unit = new HedgePolicy(0.95, 1.0, 5000L);
+        for (int i = 0; i < HedgePolicy.WINDOW; i++) {
+            unit.record(TimeUnit.MICROSECONDS.toNanos(10));
+        }
+        Assert.assertEquals(TimeUnit.MICROSECONDS.toNanos(5000), unit.getDelay());
+    }
+
+    /**
+     * Tests that hedges are capped by the budget.
+     */
+    @Test
+    public void budget() {
+        final HedgePolicy unit = new HedgePolicy(0.95, 0.05, 0L);
+        int hedges = 0;
+        for (int i = 0; i < 10000; i++) {
+            unit.record(TimeUnit.MICROSECONDS.toNanos(100));
+            if (unit.tryHedge()) {
+                hedges++;
+            }
+        }
+        Assert.assertEquals(500, hedges);
+        Assert.assertEquals(500, unit.getSent());
+    }
+
+    /**
+     * Tests that unused hedges only accumulate up to the burst.
+     */
+    @Test
+    public void burst() {
+        final HedgePolicy unit = new HedgePolicy(0.95, 0.5, 0L);
+        for (int i = 0; i < 10000; i++) {
+            unit.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        int hedges = 0;
+        while (unit.tryHedge()) {
+            hedges++;
+        }
+        Assert.assertEquals(HedgePolicy.BURST, hedges);
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link HotKeyDetector}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class HotKeyDetectorTest implements UnitProvider<HotKeyDetector> {
+
+    @Override
+    public HotKeyDetector unit() {
+        return new HotKeyDetector(100, 2, TimeUnit.HOURS.toMillis(1), 1);
+    }
+
+    @Test
+    public void skewed() {
+        final HotKeyDetector unit = unit();
+        for (int i = 0; i < 10000; i++) {
+            unit.record("cold" + i);
+            if (i % 10 == 0) {
+                unit.record("hot");
+            }
+        }
+        Assert.assertTrue(unit.isHot("hot"));
+        Assert.assertFalse(unit.isHot("cold1"));
+        Assert.assertEquals(1, unit.getHotKeys().size());
+    }
+
+    @Test
+    public void bounded() {
+        final HotKeyDetector unit = unit();
+        for (int i = 0; i < 300; i++) {
+            unit.record("a");
+            unit.record("b");
+            unit.record("c");
+            unit.record("c");
+        }
+        Assert.assertEquals(2, unit.getHotKeys().size());
+        Assert.assertTrue(unit.isHot("c"));
+        Assert.assertEquals("c", unit.getHotKeys().keySet().iterator().next());
+    }
+
+    @Test
+    public void sampled() {
+        final HotKeyDetector unit = new HotKeyDetector(1000, 2, TimeUnit.HOURS.toMillis(1), 8);
+        for (int i = 0; i < 500; i++) {
+            unit.record("warm");
+        }
+        Assert.assertFalse(unit.isHot("warm"));
+        for (int i = 0; i < 10000; i++) {
+            unit.record("hot");
+        }
+        Assert.assertTrue(unit.isHot("hot"));
+        Assert.assertFalse(unit.isHot("warm"));
+    }
+
+    @Test
+    public void servedLocally() {
+        final InMemoryMemcachedClient backend = new InMemoryMemcachedClient();
+        backend.set("hot", 0, "value");
+        final MemcacheLocalCache cache = new MemcacheLocalCache("", 100, 1024 * 1024, unit(), 60000);
+        final LocalCacheMemcachedClient client = new LocalCacheMemcachedClient(backend, cache);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals("value", client.get("hot"));
+        }
+        // the initial set and 100 reads until promotion, the last of which filled the local copy
+        Assert.assertEquals(101, backend.getRoundTrips());
+        client.set("hot", 0, "changed");
+        Assert.assertEquals("changed", client.get("hot"));
+    }
+
+}
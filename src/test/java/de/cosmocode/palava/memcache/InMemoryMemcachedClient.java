@@ -0,0 +1,306 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.HashAlgorithm;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Callables;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * A map based {@link MemcachedClientIF} for tests which counts the round trips
+ * it would have caused. Only get, getBulk, asyncGetBulk, gets, asyncGets, cas, asyncCAS, set,
+ * add, delete, flush, incr with default, shutdown and getTranscoder are supported. Cas ids are
+ * the identity hash codes of the stored values. A failing client
+ * throws {@link OperationTimeoutException}s on reads and writes, the asynchronous
+ * reads of a stalled client never complete.
+ *
+ * @author Willi Schoenborn
+ */
+final class InMemoryMemcachedClient extends ForwardingMemcachedClient {
+
+    static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 11211);
+
+    private final ConcurrentMap<String, Object> values = Maps.newConcurrentMap();
+
+    private final AtomicInteger roundTrips = new AtomicInteger();
+
+    private final AtomicInteger shutdowns = new AtomicInteger();
+
+    private final Transcoder<Object> transcoder = new SerializingTranscoder();
+
+    private volatile boolean failing;
+
+    private volatile boolean stalled;
+
+    @Override
+    protected MemcachedClientIF delegate() {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    public int getShutdowns() {
+        return shutdowns.get();
+    }
+
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    public void setStalled(boolean stalled) {
+        this.stalled = stalled;
+    }
+
+    private void roundTrip() {
+        if (failing) {
+            throw new OperationTimeoutException("Client is failing");
+        }
+        roundTrips.incrementAndGet();
+    }
+
+    @Override
+    public NodeLocator getNodeLocator() {
+        final Map<InetSocketAddress, Integer> servers = Collections.singletonMap(ADDRESS, 1);
+        return new WeightedKetamaNodeLocator(WeightedKetamaNodeLocatorTest.nodesOf(servers), servers,
+            HashAlgorithm.KETAMA_HASH);
+    }
+
+    @Override
+    public Collection<SocketAddress> getUnavailableServers() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Transcoder<Object> getTranscoder() {
+        return transcoder;
+    }
+
+    @Override
+    public Object get(String key) {
+        roundTrip();
+        return values.get(key);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key, Transcoder<T> tc) {
+        final Object value = get(key);
+        return value == null || tc == transcoder ? (T) value : tc.decode(transcoder.encode(value));
+    }
+
+    @Override
+    public Future<Object> asyncGet(String key) {
+        return asyncGet(key, transcoder);
+    }
+
+    @Override
+    public <T> Future<T> asyncGet(String key, Transcoder<T> tc) {
+        if (stalled) {
+            return new FutureTask<T>(Callables.<T>returning(null));
+        }
+        try {
+            return Futures.immediateFuture(get(key, tc));
+        } catch (OperationTimeoutException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public Map<String, Object> getBulk(Collection<String> keys) {
+        roundTrip();
+        final Map<String, Object> result = Maps.newHashMap();
+        for (String key : keys) {
+            final Object value = values.get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc) {
+        final Map<String, T> result = Maps.newHashMap();
+        for (Map.Entry<String, Object> entry : getBulk(keys).entrySet()) {
+            result.put(entry.getKey(), tc.decode(transcoder.encode(entry.getValue())));
+        }
+        return result;
+    }
+
+    @Override
+    public Future<Map<String, Object>> asyncGetBulk(Collection<String> keys) {
+        if (stalled) {
+            return new FutureTask<Map<String, Object>>(Callables.<Map<String, Object>>returning(null));
+        }
+        return Futures.immediateFuture(getBulk(keys));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Future<Map<String, T>> asyncGetBulk(Collection<String> keys, Transcoder<T> tc) {
+        try {
+            return Futures.immediateFuture((Map<String, T>) getBulk(keys));
+        } catch (OperationTimeoutException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public CASValue<Object> gets(String key) {
+        final Object value = get(key);
+        return value == null ? null : new CASValue<Object>(System.identityHashCode(value), value);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> CASValue<T> gets(String key, Transcoder<T> tc) {
+        final CASValue<Object> value = gets(key);
+        return value == null || tc == transcoder ? (CASValue<T>) (Object) value :
+            new CASValue<T>(value.getCas(), tc.decode(transcoder.encode(value.getValue())));
+    }
+
+    @Override
+    public Future<CASValue<Object>> asyncGets(String key) {
+        try {
+            return Futures.immediateFuture(gets(key));
+        } catch (OperationTimeoutException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public CASResponse cas(String key, long cas, Object value) {
+        roundTrip();
+        final Object current = values.get(key);
+        if (current == null) {
+            return CASResponse.NOT_FOUND;
+        } else if (System.identityHashCode(current) == cas && values.replace(key, current, value)) {
+            return CASResponse.OK;
+        } else {
+            return CASResponse.EXISTS;
+        }
+    }
+
+    @Override
+    public <T> CASResponse cas(String key, long cas, T value, Transcoder<T> tc) {
+        return cas(key, cas, value);
+    }
+
+    @Override
+    public Future<CASResponse> asyncCAS(String key, long cas, Object value) {
+        try {
+            return Futures.immediateFuture(cas(key, cas, value));
+        } catch (OperationTimeoutException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public <T> Future<CASResponse> asyncCAS(String key, long cas, T value, Transcoder<T> tc) {
+        return asyncCAS(key, cas, value);
+    }
+
+    @Override
+    public <T> Future<Boolean> set(String key, int exp, T value, Transcoder<T> tc) {
+        return set(key, exp, value);
+    }
+
+    @Override
+    public Future<Boolean> set(String key, int exp, Object value) {
+        roundTrip();
+        values.put(key, value);
+        return Futures.immediateFuture(Boolean.TRUE);
+    }
+
+    @Override
+    public <T> Future<Boolean> add(String key, int exp, T value, Transcoder<T> tc) {
+        return add(key, exp, value);
+    }
+
+    @Override
+    public Future<Boolean> add(String key, int exp, Object value) {
+        roundTrip();
+        return Futures.immediateFuture(values.putIfAbsent(key, value) == null);
+    }
+
+    @Override
+    public Future<Boolean> delete(String key) {
+        roundTrip();
+        return Futures.immediateFuture(values.remove(key) != null);
+    }
+
+    @Override
+    public Future<Boolean> flush() {
+        roundTrip();
+        values.clear();
+        return Futures.immediateFuture(Boolean.TRUE);
+    }
+
+    @Override
+    public long incr(String key, int by, long def, int exp) {
+        roundTrip();
+        while (true) {
+            final Object current = values.putIfAbsent(key, Long.valueOf(def));
+            if (current == null) {
+                return def;
+            }
+            final long next = ((Long) current).longValue() + by;
+            if (values.replace(key, current, Long.valueOf(next))) {
+                return next;
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdowns.incrementAndGet();
+    }
+
+    @Override
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        shutdowns.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void destroy() {
+        
+    }
+
+}
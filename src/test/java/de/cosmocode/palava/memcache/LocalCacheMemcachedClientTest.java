@@ -0,0 +1,223 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.OperationFactory;
+import net.spy.memcached.ops.GetOperation;
+import net.spy.memcached.ops.OperationCallback;
+import net.spy.memcached.ops.OperationStatus;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Callables;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link LocalCacheMemcachedClient} and {@link MemcacheLocalCache}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class LocalCacheMemcachedClientTest implements UnitProvider<LocalCacheMemcachedClient> {
+
+    private final InMemoryMemcachedClient backend = new InMemoryMemcachedClient();
+
+    private MemcacheLocalCache cache = new MemcacheLocalCache("local:60", 100, 1024 * 1024);
+
+    @Override
+    public LocalCacheMemcachedClient unit() {
+        return new LocalCacheMemcachedClient(backend, cache);
+    }
+
+    @Test
+    public void hits() {
+        final LocalCacheMemcachedClient unit = unit();
+        backend.set("local:a", 0, "value");
+        backend.set("remote:a", 0, "value");
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("value", unit.get("local:a"));
+            Assert.assertEquals("value", unit.get("remote:a"));
+        }
+        Assert.assertEquals(2 + 1 + 10, backend.getRoundTrips());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void bulkHits() {
+        final LocalCacheMemcachedClient unit = unit();
+        backend.set("local:a", 0, "1");
+        backend.set("remote:a", 0, "2");
+        Assert.assertEquals(2, unit.getBulk("local:a", "remote:a", "local:missing").size());
+        Assert.assertEquals("1", unit.get("local:a"));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void hitsAreCopies() {
+        final LocalCacheMemcachedClient unit = unit();
+        backend.set("local:a", 0, Lists.newArrayList("value"));
+        @SuppressWarnings("unchecked")
+        final List<String> first = (List<String>) unit.get("local:a");
+        first.add("modified");
+        Assert.assertEquals(ImmutableList.of("value"), unit.get("local:a"));
+        Assert.assertNotSame(unit.get("local:a"), unit.get("local:a"));
+    }
+
+    @Test
+    public void invalidation() {
+        final LocalCacheMemcachedClient unit = unit();
+        unit.set("local:a", 0, "1");
+        Assert.assertEquals("1", unit.get("local:a"));
+        unit.set("local:a", 0, "2");
+        Assert.assertEquals("2", unit.get("local:a"));
+        unit.delete("local:a");
+        Assert.assertNull(unit.get("local:a"));
+        unit.set("local:a", 0, "3");
+        Assert.assertEquals("3", unit.get("local:a"));
+        unit.flush();
+        Assert.assertNull(unit.get("local:a"));
+    }
+
+    /**
+     * Tests that a value read while a delete is in flight is dropped by the
+     * callback of the delete's operation rather than by polling its future.
+     */
+    @Test
+    public void invalidatedOnCompletion() {
+        final AtomicReference<OperationCallback> callback = new AtomicReference<OperationCallback>();
+        final OperationFactory operations = decorated(callback);
+        final FutureTask<Boolean> deleted = new FutureTask<Boolean>(Callables.returning(Boolean.TRUE));
+        final MemcachedClientIF client = new ForwardingMemcachedClient() {
+
+            @Override
+            protected MemcachedClientIF delegate() {
+                return backend;
+            }
+
+            @Override
+            public Future<Boolean> delete(String key) {
+                // any captured operation stands in for the delete
+                operations.get(key, new GetOperation.Callback() {
+
+                    @Override
+                    public void receivedStatus(OperationStatus status) {
+
+                    }
+
+                    @Override
+                    public void complete() {
+
+                    }
+
+                    @Override
+                    public void gotData(String k, int flags, byte[] data) {
+
+                    }
+
+                });
+                return deleted;
+            }
+
+        };
+        final LocalCacheMemcachedClient unit = new LocalCacheMemcachedClient(client, cache);
+        backend.set("local:a", 0, "1");
+        unit.delete("local:a");
+        Assert.assertEquals("1", unit.get("local:a"));
+        Assert.assertEquals(1, cache.size());
+        backend.delete("local:a");
+        deleted.run();
+        callback.get().complete();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNull(unit.get("local:a"));
+    }
+
+    private OperationFactory decorated(final AtomicReference<OperationCallback> callback) {
+        final OperationFactory operations = OperationFactory.class.cast(Proxy.newProxyInstance(
+            OperationFactory.class.getClassLoader(), new Class<?>[] {OperationFactory.class},
+            new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    callback.set(OperationCallback.class.cast(args[1]));
+                    return null;
+                }
+
+            }));
+        final ConnectionFactory factory = ConnectionFactory.class.cast(Proxy.newProxyInstance(
+            ConnectionFactory.class.getClassLoader(), new Class<?>[] {ConnectionFactory.class},
+            new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return operations;
+                }
+
+            }));
+        return CompletionListeners.decorate(factory).getOperationFactory();
+    }
+
+    @Test
+    public void staleReadDropped() {
+        final long stamp = cache.stamp("local:a");
+        cache.invalidate("local:a");
+        cache.put("local:a", new CachedData(0, new byte[1], CachedData.MAX_SIZE), stamp);
+        Assert.assertNull(cache.get("local:a"));
+        cache.put("local:a", new CachedData(0, new byte[1], CachedData.MAX_SIZE), cache.stamp("local:a"));
+        Assert.assertNotNull(cache.get("local:a"));
+    }
+
+    @Test
+    public void ttl() throws InterruptedException {
+        cache = new MemcacheLocalCache("local:1", 100, 1024 * 1024);
+        final LocalCacheMemcachedClient unit = unit();
+        backend.set("local:a", 0, "1");
+        Assert.assertEquals("1", unit.get("local:a"));
+        backend.set("local:a", 0, "2");
+        Assert.assertEquals("1", unit.get("local:a"));
+        Thread.sleep(1100);
+        Assert.assertEquals("2", unit.get("local:a"));
+    }
+
+    @Test
+    public void weightBounded() {
+        cache = new MemcacheLocalCache("local:60", 100, 100);
+        final LocalCacheMemcachedClient unit = unit();
+        final String value = new String(new char[40]).replace('\0', 'x');
+        for (int i = 0; i < 10; i++) {
+            backend.set("local:" + i, 0, value);
+            Assert.assertEquals(value, unit.get("local:" + i));
+        }
+        // the map evicts before adding, which may exceed the bound by one value
+        Assert.assertTrue(cache.getMemoryUsed() <= 100 + value.length());
+        Assert.assertEquals(cache.getMemoryUsed(), cache.size() * value.length());
+    }
+
+}
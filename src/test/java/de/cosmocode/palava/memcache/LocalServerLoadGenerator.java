@@ -0,0 +1,123 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.spy.memcached.MemcachedClient;
+
+import com.google.common.collect.Lists;
+import com.thimbleware.jmemcached.CacheImpl;
+
+/**
+ * Starts a {@link MemcacheLocalDaemon} backed by the off-heap storage and measures
+ * throughput for growing numbers of connections. Every connection is driven by its
+ * own thread doing 90% gets and 10% sets of small values.
+ *
+ * <p>
+ *   Usage: {@code LocalServerLoadGenerator [seconds] [workers] [directBuffers]}.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class LocalServerLoadGenerator {
+
+    private static final int[] CONNECTIONS = {1, 4, 16, 64, 256};
+
+    private static final int KEYS = 10000;
+
+    private LocalServerLoadGenerator() {
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 21211);
+        final MemcacheLocalDaemon daemon = new MemcacheLocalDaemon(
+            new CacheImpl(new OffHeapCacheStorage(100000, 64L * 1024 * 1024)), address);
+        if (args.length > 1) {
+            daemon.setWorkers(Integer.parseInt(args[1]));
+        }
+        daemon.setDirectBuffers(args.length > 2 && Boolean.parseBoolean(args[2]));
+        daemon.start();
+        try {
+            for (int connections : CONNECTIONS) {
+                final double throughput = run(address, connections, seconds);
+                System.out.printf("%4d connections %,12.0f ops/s%n", connections, throughput);
+            }
+        } finally {
+            daemon.stop();
+        }
+    }
+
+    private static double run(InetSocketAddress address, int connections, int seconds)
+        throws IOException, InterruptedException {
+        final List<MemcachedClient> clients = Lists.newArrayListWithCapacity(connections);
+        for (int i = 0; i < connections; i++) {
+            clients.add(new MemcachedClient(address));
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong operations = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(connections);
+        for (final MemcachedClient client : clients) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    final Random random = new Random();
+                    long count = 0;
+                    try {
+                        while (running.get()) {
+                            final String key = "key" + random.nextInt(KEYS);
+                            if (random.nextInt(10) == 0) {
+                                client.set(key, 0, "value").get();
+                            } else {
+                                client.get(key);
+                            }
+                            count++;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        operations.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+
+            }).start();
+        }
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        done.await();
+        for (MemcachedClient client : clients) {
+            client.shutdown();
+        }
+        return operations.get() / (double) seconds;
+    }
+
+}
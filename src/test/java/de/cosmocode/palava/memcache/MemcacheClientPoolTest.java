@@ -0,0 +1,110 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.MemcachedClientIF;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link MemcacheClientPool} and {@link MemcachedClientLease}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class MemcacheClientPoolTest implements UnitProvider<MemcacheClientPool> {
+
+    private final List<InMemoryMemcachedClient> clients = ImmutableList.of(
+        new InMemoryMemcachedClient(), new InMemoryMemcachedClient(), new InMemoryMemcachedClient());
+
+    @Override
+    public MemcacheClientPool unit() {
+        return new MemcacheClientPool(clients);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void empty() {
+        new MemcacheClientPool(ImmutableList.<MemcachedClientIF>of());
+    }
+
+    @Test
+    public void sameClientPerThread() {
+        final MemcacheClientPool unit = unit();
+        Assert.assertSame(unit.lease(), unit.lease());
+    }
+
+    /**
+     * Tests that threads are striped over all clients.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void stripedByThread() throws InterruptedException {
+        final MemcacheClientPool unit = unit();
+        final Set<MemcachedClientIF> leased = Collections.synchronizedSet(Sets.<MemcachedClientIF>newHashSet());
+        for (int i = 0; i < 10 * clients.size(); i++) {
+            final Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    leased.add(unit.lease());
+                }
+
+            });
+            thread.start();
+            thread.join();
+        }
+        Assert.assertEquals(clients.size(), leased.size());
+    }
+
+    @Test
+    public void shutdown() {
+        final MemcacheClientPool unit = unit();
+        unit.shutdown();
+        unit.shutdown(1, TimeUnit.SECONDS);
+        for (InMemoryMemcachedClient client : clients) {
+            Assert.assertEquals(2, client.getShutdowns());
+        }
+    }
+
+    /**
+     * Tests that a lease forwards operations but leaves the pooled client running.
+     */
+    @Test
+    public void lease() {
+        final MemcachedClientLease lease = new MemcachedClientLease(unit().lease());
+        lease.set("key", 0, "value");
+        Assert.assertEquals("value", lease.get("key"));
+        lease.shutdown();
+        Assert.assertTrue(lease.shutdown(1, TimeUnit.SECONDS));
+        lease.destroy();
+        for (InMemoryMemcachedClient client : clients) {
+            Assert.assertEquals(0, client.getShutdowns());
+        }
+    }
+
+}
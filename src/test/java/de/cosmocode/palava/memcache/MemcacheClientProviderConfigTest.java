@@ -0,0 +1,87 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.FailureMode;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.name.Names;
+
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests the connection factory configuration of {@link MemcacheClientProvider}. Every key is
+ * bound as a string, as a properties file would. No server is needed, the provider creates
+ * clients lazily.
+ *
+ * @author Willi Schoenborn
+ */
+public final class MemcacheClientProviderConfigTest implements UnitProvider<MemcacheClientProvider> {
+
+    private MemcacheClientProvider provider;
+
+    @Override
+    public MemcacheClientProvider unit() {
+        provider = Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                bindConstant().annotatedWith(Names.named(MemcacheClientConfig.ADRESSES)).to("127.0.0.1:11211");
+                bindConstant().annotatedWith(Names.named(MemcacheClientConfig.OP_QUEUE_LENGTH)).to("2048");
+                bindConstant().annotatedWith(Names.named(MemcacheClientConfig.OP_QUEUE_MAX_BLOCK_TIME)).to("5000");
+                bindConstant().annotatedWith(Names.named(MemcacheClientConfig.READ_BUFFER_SIZE)).to("32768");
+                bindConstant().annotatedWith(Names.named(MemcacheClientConfig.OPERATION_TIMEOUT)).to("2000");
+                bindConstant().annotatedWith(Names.named(MemcacheClientConfig.FAILURE_MODE)).to("Retry");
+                bindConstant().annotatedWith(Names.named(MemcacheClientConfig.USE_NAGLE)).to("true");
+                bindConstant().annotatedWith(Names.named(MemcacheClientConfig.MAX_RECONNECT_DELAY)).to("10");
+            }
+
+        }).getInstance(MemcacheClientProvider.class);
+        return provider;
+    }
+
+    @After
+    public void dispose() throws LifecycleException {
+        if (provider != null) {
+            provider.dispose();
+        }
+    }
+
+    @Test
+    public void connectionFactory() throws LifecycleException {
+        final MemcacheClientProvider unit = unit();
+        unit.initialize();
+        final ConnectionFactory factory = unit.getConnectionFactory();
+        Assert.assertEquals(2048, factory.createOperationQueue().remainingCapacity());
+        Assert.assertEquals(Integer.MAX_VALUE, factory.createReadOperationQueue().remainingCapacity());
+        Assert.assertEquals(Integer.MAX_VALUE, factory.createWriteOperationQueue().remainingCapacity());
+        Assert.assertEquals(5000L, factory.getOpQueueMaxBlockTime());
+        Assert.assertEquals(32768, factory.getReadBufSize());
+        Assert.assertEquals(2000L, factory.getOperationTimeout());
+        Assert.assertEquals(FailureMode.Retry, factory.getFailureMode());
+        Assert.assertTrue(factory.useNagleAlgorithm());
+        Assert.assertEquals(10L, factory.getMaxReconnectDelay());
+    }
+
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import net.spy.memcached.OperationTimeoutException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests {@link MemcacheGetBatcher}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class MemcacheGetBatcherTest {
+
+    private final InMemoryMemcachedClient backend = new InMemoryMemcachedClient();
+
+    private final MemcacheGetBatcher unit = new MemcacheGetBatcher(100000, 10, 100);
+
+    @After
+    public void shutdown() {
+        unit.shutdown();
+    }
+
+    @Test
+    public void coalesce() throws InterruptedException, ExecutionException {
+        backend.set("a", 0, "1");
+        backend.set("b", 0, "2");
+        final List<Future<Object>> futures = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            futures.add(unit.get(backend, i % 2 == 0 ? "a" : "b"));
+        }
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(i % 2 == 0 ? "1" : "2", futures.get(i).get());
+        }
+        Assert.assertEquals(3, backend.getRoundTrips());
+    }
+
+    @Test
+    public void perClient() throws InterruptedException, ExecutionException {
+        final InMemoryMemcachedClient other = new InMemoryMemcachedClient();
+        backend.set("a", 0, "1");
+        other.set("a", 0, "2");
+        final Future<Object> first = unit.get(backend, "a");
+        final Future<Object> second = unit.get(other, "a");
+        Assert.assertEquals("1", first.get());
+        Assert.assertEquals("2", second.get());
+        Assert.assertEquals(2, backend.getRoundTrips());
+        Assert.assertEquals(2, other.getRoundTrips());
+    }
+
+    @Test
+    public void readYourWrites() {
+        final BatchingMemcachedClient client = new BatchingMemcachedClient(
+            new MemcachedClientLease(backend), unit, 1000);
+        client.set("a", 0, "1");
+        Assert.assertEquals("1", client.get("a"));
+        Assert.assertEquals(2, backend.getRoundTrips());
+    }
+
+    /**
+     * Tests that a stalled batch does not hold up batches of other clients.
+     *
+     * @throws InterruptedException should not happen
+     * @throws ExecutionException should not happen
+     */
+    @Test
+    public void stalledClientDoesNotBlock() throws InterruptedException, ExecutionException {
+        final InMemoryMemcachedClient stalled = new InMemoryMemcachedClient();
+        stalled.setStalled(true);
+        backend.set("a", 0, "1");
+        final Future<Object> blocked = unit.get(stalled, "a");
+        final Future<Object> future = unit.get(backend, "a");
+        Assert.assertEquals("1", future.get());
+        Assert.assertFalse(blocked.isDone());
+    }
+
+    @Test
+    public void miss() throws InterruptedException, ExecutionException {
+        Assert.assertNull(unit.get(backend, "missing").get());
+    }
+
+    @Test
+    public void timeout() throws InterruptedException {
+        backend.setStalled(true);
+        final Future<Object> future = unit.get(backend, "a");
+        try {
+            future.get();
+            Assert.fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof OperationTimeoutException);
+        }
+    }
+
+    @Test
+    public void shutdownFails() throws InterruptedException {
+        unit.shutdown();
+        try {
+            unit.get(backend, "a").get();
+            Assert.fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.OperationTimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.inject.util.Providers;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link MemcacheLoader}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class MemcacheLoaderTest implements UnitProvider<MemcacheLoader> {
+
+    private final InMemoryMemcachedClient backend = new InMemoryMemcachedClient();
+
+    @Override
+    public MemcacheLoader unit() {
+        return new MemcacheLoader(Providers.<MemcachedClientIF>of(backend));
+    }
+
+    @Test
+    public void loadsOnce() throws InterruptedException, ExecutionException {
+        final MemcacheLoader unit = unit();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Callable<String> loader = new Callable<String>() {
+
+            @Override
+            public String call() throws InterruptedException {
+                loads.incrementAndGet();
+                latch.await();
+                return "value";
+            }
+
+        };
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<String>> futures = Lists.newArrayList();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<String>() {
+
+                @Override
+                public String call() throws ExecutionException {
+                    return unit.getOrLoad("key", 0, loader);
+                }
+
+            }));
+        }
+        
+        Thread.sleep(100);
+        latch.countDown();
+        for (Future<String> future : futures) {
+            Assert.assertEquals("value", future.get());
+        }
+        executor.shutdown();
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals("value", backend.get("key"));
+        Assert.assertNull(backend.get("key:lease"));
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void loaderFails() throws ExecutionException {
+        unit().getOrLoad("key", 0, new Callable<String>() {
+
+            @Override
+            public String call() {
+                throw new IllegalArgumentException();
+            }
+
+        });
+    }
+
+    @Test
+    public void refreshStoresEarlyExpiringValue() throws ExecutionException {
+        final MemcacheLoader unit = unit();
+        final AtomicInteger loads = new AtomicInteger();
+        final Callable<String> loader = new Callable<String>() {
+
+            @Override
+            public String call() {
+                loads.incrementAndGet();
+                return "value";
+            }
+
+        };
+        
+        Assert.assertEquals("value", unit.getOrRefresh("key", 60, loader));
+        Assert.assertEquals("value", unit.getOrRefresh("key", 60, loader));
+        Assert.assertEquals(1, loads.get());
+        Assert.assertTrue(backend.get("key") instanceof EarlyExpiringValue);
+    }
+
+    /**
+     * Tests that a due value is served stale while another caller refreshes it
+     * and that the refreshed value replaces it.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void staleWhileRefreshing() throws Exception {
+        final MemcacheLoader unit = unit();
+        unit.setRandom(new Random(0));
+        backend.set("key", 0, new EarlyExpiringValue("stale", 1000, System.currentTimeMillis() - 1));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Callable<String> loader = new Callable<String>() {
+
+            @Override
+            public String call() throws InterruptedException {
+                started.countDown();
+                latch.await();
+                return "fresh";
+            }
+
+        };
+        
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Future<String> refresh = executor.submit(new Callable<String>() {
+
+            @Override
+            public String call() throws ExecutionException {
+                return unit.getOrRefresh("key", 60, loader);
+            }
+
+        });
+        started.await();
+        Assert.assertEquals("stale", unit.getOrRefresh("key", 60, loader));
+        latch.countDown();
+        Assert.assertEquals("fresh", refresh.get());
+        executor.shutdown();
+        Assert.assertEquals("fresh", EarlyExpiringValue.class.cast(backend.get("key")).getValue());
+    }
+
+    /**
+     * Tests that a due value is served stale while another node holds the lease.
+     *
+     * @throws ExecutionException should not happen
+     */
+    @Test
+    public void staleWhileLeased() throws ExecutionException {
+        final MemcacheLoader unit = unit();
+        backend.set("key", 0, new EarlyExpiringValue("stale", 1000, System.currentTimeMillis() - 1));
+        backend.set("key:lease", 0, "1");
+        final AtomicInteger loads = new AtomicInteger();
+        Assert.assertEquals("stale", unit.getOrRefresh("key", 60, new Callable<String>() {
+
+            @Override
+            public String call() {
+                loads.incrementAndGet();
+                return "fresh";
+            }
+
+        }));
+        Assert.assertEquals(0, loads.get());
+    }
+
+    /**
+     * Tests that a failed lease acquisition loads locally and keeps the lease,
+     * which might belong to another node.
+     *
+     * @throws ExecutionException should not happen
+     */
+    @Test
+    public void failedLeaseKept() throws ExecutionException {
+        backend.set("key:lease", 0, "1");
+        final MemcachedClientIF client = new ForwardingMemcachedClient() {
+
+            @Override
+            protected MemcachedClientIF delegate() {
+                return backend;
+            }
+
+            @Override
+            public Future<Boolean> add(String key, int exp, Object value) {
+                return Futures.immediateFailedFuture(new OperationTimeoutException("Timeout"));
+            }
+
+        };
+        final MemcacheLoader unit = new MemcacheLoader(Providers.of(client));
+        Assert.assertEquals("value", unit.getOrLoad("key", 0, new Callable<String>() {
+
+            @Override
+            public String call() {
+                return "value";
+            }
+
+        }));
+        Assert.assertEquals("1", backend.get("key:lease"));
+    }
+
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.thimbleware.jmemcached.CacheImpl;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link MemcacheLocalDaemon}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class MemcacheLocalDaemonTest implements UnitProvider<MemcacheLocalDaemon> {
+
+    private final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 21217);
+
+    private MemcacheLocalDaemon daemon;
+
+    @Override
+    public MemcacheLocalDaemon unit() {
+        daemon = new MemcacheLocalDaemon(new CacheImpl(new OffHeapCacheStorage(1000, 1024 * 1024)), address);
+        daemon.setWorkers(2);
+        daemon.setBacklog(16);
+        daemon.setTcpNoDelay(true);
+        daemon.setReceiveBufferSize(16 * 1024);
+        daemon.setSendBufferSize(16 * 1024);
+        daemon.setDirectBuffers(true);
+        return daemon;
+    }
+
+    /**
+     * Stops the daemon started by the current test.
+     */
+    @After
+    public void stop() {
+        if (daemon != null) {
+            daemon.stop();
+        }
+    }
+
+    /**
+     * Tests a set/get round trip over the text protocol using the configured socket options.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void roundTrip() throws IOException {
+        unit().start();
+        final Socket socket = new Socket(address.getAddress(), address.getPort());
+        try {
+            final OutputStream output = socket.getOutputStream();
+            final BufferedReader input = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), Charsets.US_ASCII));
+            output.write("set key 0 0 5\r\nvalue\r\n".getBytes(Charsets.US_ASCII));
+            output.flush();
+            Assert.assertEquals("STORED", input.readLine());
+            output.write("get key\r\n".getBytes(Charsets.US_ASCII));
+            output.flush();
+            Assert.assertEquals("VALUE key 0 5", input.readLine());
+            Assert.assertEquals("value", input.readLine());
+            Assert.assertEquals("END", input.readLine());
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Tests that stopping releases the port so the daemon can be started again.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void restart() throws IOException {
+        unit().start();
+        daemon.stop();
+        final ServerSocket socket = new ServerSocket();
+        try {
+            socket.setReuseAddress(true);
+            socket.bind(address);
+        } finally {
+            socket.close();
+        }
+        unit().start();
+        new Socket(address.getAddress(), address.getPort()).close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void startTwice() {
+        final MemcacheLocalDaemon unit = unit();
+        unit.start();
+        unit.start();
+    }
+
+}
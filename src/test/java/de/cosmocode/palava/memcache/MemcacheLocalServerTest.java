@@ -0,0 +1,76 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests the storage configuration of {@link MemcacheLocalServer}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class MemcacheLocalServerTest implements UnitProvider<MemcacheLocalServer> {
+
+    @Override
+    public MemcacheLocalServer unit() {
+        final MemcacheLocalServer server = new MemcacheLocalServer();
+        server.setStorage(MemcacheLocalServer.Storage.OFFHEAP);
+        return server;
+    }
+
+    /**
+     * Tests that the default maxBytes can be split into off-heap shards.
+     *
+     * @throws LifecycleException should not happen
+     * @throws IOException should not happen
+     */
+    @Test
+    public void offHeapShards() throws LifecycleException, IOException {
+        final MemcacheLocalServer unit = unit();
+        unit.setShards(4);
+        final CacheStorage<Key, LocalCacheElement> storage = unit.newStorage();
+        Assert.assertTrue(storage instanceof ShardedCacheStorage);
+        Assert.assertEquals(1024 * 1024, storage.getMemoryCapacity());
+        storage.close();
+    }
+
+    @Test(expected = LifecycleException.class)
+    public void offHeapShardsTooSmall() throws LifecycleException {
+        final MemcacheLocalServer unit = unit();
+        unit.setMaxBytes(100);
+        unit.setShards(4);
+        unit.newStorage();
+    }
+
+    @Test(expected = LifecycleException.class)
+    public void noShards() throws LifecycleException {
+        final MemcacheLocalServer unit = unit();
+        unit.setShards(0);
+        unit.newStorage();
+    }
+
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import net.spy.memcached.MemcachedClientIF;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.inject.Provider;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link MemcacheNamespaces}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class MemcacheNamespacesTest implements UnitProvider<MemcacheNamespaces> {
+
+    private final InMemoryMemcachedClient backend = new InMemoryMemcachedClient();
+
+    private volatile boolean failing;
+
+    /**
+     * The backend, failing increments like an open circuit while {@link #failing} is set.
+     */
+    private final MemcachedClientIF client = new ForwardingMemcachedClient() {
+
+        @Override
+        protected MemcachedClientIF delegate() {
+            return backend;
+        }
+
+        @Override
+        public long incr(String key, int by, long def, int exp) {
+            return failing ? -1L : backend.incr(key, by, def, exp);
+        }
+
+    };
+
+    @Override
+    public MemcacheNamespaces unit() {
+        return unit(60000);
+    }
+
+    private MemcacheNamespaces unit(long generationTtl) {
+        final MemcacheNamespaces unit = new MemcacheNamespaces(new Provider<MemcachedClientIF>() {
+
+            @Override
+            public MemcachedClientIF get() {
+                return client;
+            }
+
+        });
+        unit.setGenerationTtl(generationTtl);
+        return unit;
+    }
+
+    @Test
+    public void invalidate() {
+        final MemcacheNamespaces unit = unit();
+        final MemcachedClientIF users = unit.of("users");
+        users.set("1", 0, "alice");
+        Assert.assertEquals("alice", users.get("1"));
+        Assert.assertNull(unit.of("groups").get("1"));
+        
+        unit.invalidate("users");
+        Assert.assertNull(users.get("1"));
+        users.set("1", 0, "bob");
+        Assert.assertEquals("bob", users.get("1"));
+    }
+
+    @Test
+    public void bulk() {
+        final MemcachedClientIF users = unit().of("users");
+        users.set("1", 0, "alice");
+        Assert.assertEquals(Collections.singletonMap("1", "alice"), users.getBulk(Arrays.asList("1", "2")));
+    }
+
+    @Test
+    public void failedGenerationNotShared() {
+        final MemcacheNamespaces unit = unit();
+        failing = true;
+        unit.of("users").set("1", 0, "stale");
+        Assert.assertNull(unit.of("users").get("1"));
+        failing = false;
+        Assert.assertNull(unit.of("users").get("1"));
+        failing = true;
+        Assert.assertNull(unit().of("users").get("1"));
+    }
+
+    @Test
+    public void failedGenerationUsesLastKnown() {
+        final MemcacheNamespaces unit = unit(0);
+        unit.of("users").set("1", 0, "alice");
+        failing = true;
+        Assert.assertEquals("alice", unit.of("users").get("1"));
+        failing = false;
+        Assert.assertEquals("alice", unit.of("users").get("1"));
+    }
+
+    @Test
+    public void failedInvalidation() {
+        final MemcacheNamespaces unit = unit();
+        unit.of("users").set("1", 0, "alice");
+        failing = true;
+        unit.invalidate("users");
+        Assert.assertNull(unit.of("users").get("1"));
+    }
+
+    @Test
+    public void generationCached() {
+        final MemcachedClientIF users = unit().of("users");
+        users.get("1");
+        final int roundTrips = backend.getRoundTrips();
+        users.get("1");
+        users.get("2");
+        Assert.assertEquals(roundTrips + 2, backend.getRoundTrips());
+    }
+
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClientIF;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link MemcacheSetBuffer} and {@link WriteBehindMemcachedClient}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class MemcacheSetBufferTest implements UnitProvider<MemcacheSetBuffer> {
+
+    private final InMemoryMemcachedClient backend = new InMemoryMemcachedClient();
+
+    private MemcacheSetBuffer buffer;
+
+    @Override
+    public MemcacheSetBuffer unit() {
+        buffer = new MemcacheSetBuffer(backend, 2, 60000, 1000, MemcacheSetBuffer.Overflow.DROP);
+        return buffer;
+    }
+
+    @After
+    public void shutdown() {
+        if (buffer != null) {
+            buffer.shutdown(0);
+        }
+    }
+
+    @Test
+    public void coalesce() {
+        final MemcacheSetBuffer unit = unit();
+        Assert.assertTrue(unit.set("a", 0, "1"));
+        Assert.assertTrue(unit.set("a", 0, "2"));
+        Assert.assertEquals(0, backend.getRoundTrips());
+        unit.flush();
+        Assert.assertEquals(1, backend.getRoundTrips());
+        Assert.assertEquals("2", backend.get("a"));
+    }
+
+    @Test
+    public void drop() {
+        final MemcacheSetBuffer unit = unit();
+        Assert.assertTrue(unit.set("a", 0, "1"));
+        Assert.assertTrue(unit.set("b", 0, "1"));
+        Assert.assertFalse(unit.set("c", 0, "1"));
+        Assert.assertTrue(unit.set("b", 0, "2"));
+        Assert.assertEquals(1, unit.getDropped());
+        unit.flush();
+        Assert.assertTrue(unit.set("c", 0, "1"));
+    }
+
+    @Test
+    public void readYourWrites() throws InterruptedException, ExecutionException {
+        final WriteBehindMemcachedClient client = new WriteBehindMemcachedClient(backend, unit());
+        Assert.assertTrue(client.set("a", 0, "1").get().booleanValue());
+        Assert.assertEquals("1", client.get("a"));
+        Assert.assertNull(backend.get("a"));
+        client.delete("a");
+        Assert.assertNull(client.get("a"));
+    }
+
+    @Test
+    public void asyncGetReadsYourWrites() throws InterruptedException, ExecutionException {
+        final WriteBehindMemcachedClient client = new WriteBehindMemcachedClient(backend, unit());
+        backend.set("a", 0, "0");
+        client.set("a", 0, "1");
+        Assert.assertEquals("1", client.asyncGet("a").get());
+        Assert.assertEquals("0", backend.get("a"));
+    }
+
+    @Test
+    public void asyncGetBulkReadsYourWrites() throws InterruptedException, ExecutionException {
+        final WriteBehindMemcachedClient client = new WriteBehindMemcachedClient(backend, unit());
+        backend.set("a", 0, "0");
+        backend.set("b", 0, "0");
+        client.set("a", 0, "1");
+        final Map<String, Object> values = client.asyncGetBulk(Arrays.asList("a", "b", "c")).get();
+        Assert.assertEquals(2, values.size());
+        Assert.assertEquals("1", values.get("a"));
+        Assert.assertEquals("0", values.get("b"));
+        Assert.assertEquals("1", client.asyncGetBulk("a").get().get("a"));
+        Assert.assertEquals("0", backend.get("a"));
+    }
+
+    @Test
+    public void transcodedReadsFlush() throws InterruptedException, ExecutionException {
+        final WriteBehindMemcachedClient client = new WriteBehindMemcachedClient(backend, unit());
+        backend.set("a", 0, "0");
+        backend.set("b", 0, "0");
+        client.set("a", 0, "1");
+        Assert.assertEquals("1", client.asyncGet("a", backend.getTranscoder()).get());
+        Assert.assertEquals("1", backend.get("a"));
+        client.set("b", 0, "1");
+        Assert.assertEquals("1", client.asyncGetBulk(backend.getTranscoder(), "b").get().get("b"));
+        Assert.assertEquals("1", backend.get("b"));
+        client.set("a", 0, "2");
+        Assert.assertEquals("2", client.getBulk(backend.getTranscoder(), "a").get("a"));
+    }
+
+    @Test
+    public void getsThenCas() {
+        final WriteBehindMemcachedClient client = new WriteBehindMemcachedClient(backend, unit());
+        backend.set("a", 0, "0");
+        client.set("a", 0, "1");
+        final CASValue<Object> value = client.gets("a");
+        Assert.assertEquals("1", value.getValue());
+        Assert.assertEquals(CASResponse.OK, client.cas("a", value.getCas(), "2"));
+        Assert.assertEquals("2", client.get("a"));
+    }
+
+    @Test
+    public void asyncGetsThenCas() throws InterruptedException, ExecutionException {
+        final WriteBehindMemcachedClient client = new WriteBehindMemcachedClient(backend, unit());
+        backend.set("a", 0, "0");
+        client.set("a", 0, "1");
+        final CASValue<Object> value = client.asyncGets("a").get();
+        Assert.assertEquals("1", value.getValue());
+        Assert.assertEquals(CASResponse.OK, client.cas("a", value.getCas(), "2"));
+        Assert.assertEquals("2", backend.get("a"));
+    }
+
+    @Test
+    public void destroyFlushes() {
+        final WriteBehindMemcachedClient client = new WriteBehindMemcachedClient(backend, unit());
+        client.set("a", 0, "1");
+        client.destroy();
+        Assert.assertEquals("1", backend.get("a"));
+    }
+
+    /**
+     * Tests that a delete waits for a set of the same key in flight on the buffer's client.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void deleteWaitsForSetInFlight() throws InterruptedException {
+        final SettableFuture<Boolean> result = SettableFuture.create();
+        final MemcachedClientIF stalled = new ForwardingMemcachedClient() {
+
+            @Override
+            protected MemcachedClientIF delegate() {
+                return backend;
+            }
+
+            @Override
+            public Future<Boolean> set(String key, int exp, Object value) {
+                return result;
+            }
+
+        };
+        buffer = new MemcacheSetBuffer(stalled, 2, 60000, 1000, MemcacheSetBuffer.Overflow.DROP);
+        final WriteBehindMemcachedClient client = new WriteBehindMemcachedClient(backend, buffer);
+        client.set("a", 0, "1");
+        buffer.flush();
+        final Thread deleter = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                client.delete("a");
+            }
+
+        });
+        deleter.start();
+        deleter.join(100);
+        Assert.assertTrue(deleter.isAlive());
+        backend.set("a", 0, "1");
+        result.set(Boolean.TRUE);
+        deleter.join();
+        Assert.assertNull(backend.get("a"));
+    }
+
+    @Test
+    public void flushDiscards() {
+        final WriteBehindMemcachedClient client = new WriteBehindMemcachedClient(backend, unit());
+        client.set("a", 0, "1");
+        client.flush();
+        buffer.flush();
+        Assert.assertNull(backend.get("a"));
+        Assert.assertNull(client.get("a"));
+        Assert.assertTrue(buffer.set("a", 0, "2"));
+        Assert.assertTrue(buffer.set("b", 0, "2"));
+    }
+
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
+
+import com.thimbleware.jmemcached.CacheImpl;
+
+/**
+ * Measures the throughput of a client with and without {@link MeteredMemcachedClient}
+ * against a {@link MemcacheLocalDaemon} on the loopback interface. Every thread does 90%
+ * synchronous gets and 10% sets. Rounds alternate between both clients to even out
+ * warm-up and the reported overhead is the relative loss of throughput.
+ *
+ * <p>
+ *   Usage: {@code MeteredClientBenchmark [seconds] [threads] [rounds]}.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class MeteredClientBenchmark {
+
+    private static final int KEYS = 10000;
+
+    private MeteredClientBenchmark() {
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 21212);
+        final MemcacheLocalDaemon daemon = new MemcacheLocalDaemon(
+            new CacheImpl(new OffHeapCacheStorage(100000, 64L * 1024 * 1024)), address);
+        daemon.start();
+        try {
+            double plain = 0.0;
+            double metered = 0.0;
+            for (int round = 0; round < rounds; round++) {
+                final MemcachedClient bare = new MemcachedClient(new DefaultConnectionFactory(),
+                    Collections.singletonList(address));
+                plain += run(bare, threads, seconds);
+                bare.shutdown();
+
+                final ConnectionFactory factory = CompletionListeners.decorate(new DefaultConnectionFactory());
+                final MemcachedClient decorated = new MemcachedClient(factory, Collections.singletonList(address));
+                metered += run(new MeteredMemcachedClient(decorated, new MemcacheMetrics()), threads, seconds);
+                decorated.shutdown();
+            }
+            System.out.printf("plain   %,12.0f ops/s%n", plain / rounds);
+            System.out.printf("metered %,12.0f ops/s%n", metered / rounds);
+            System.out.printf("overhead %.2f%%%n", (plain - metered) / plain * 100.0);
+        } finally {
+            daemon.stop();
+        }
+    }
+
+    private static double run(final MemcachedClientIF client, int threads, int seconds) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong operations = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    final Random random = new Random();
+                    long count = 0;
+                    try {
+                        while (running.get()) {
+                            final String key = "key" + random.nextInt(KEYS);
+                            if (random.nextInt(10) == 0) {
+                                client.set(key, 0, "value").get();
+                            } else {
+                                client.get(key);
+                            }
+                            count++;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        operations.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+
+            }).start();
+        }
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        done.await();
+        return operations.get() / (double) seconds;
+    }
+
+}
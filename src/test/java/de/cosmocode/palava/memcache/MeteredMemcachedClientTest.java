@@ -0,0 +1,124 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link MeteredMemcachedClient} and {@link MemcacheMetrics}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class MeteredMemcachedClientTest implements UnitProvider<MeteredMemcachedClient> {
+
+    private final InMemoryMemcachedClient backend = new InMemoryMemcachedClient();
+
+    private final MemcacheMetrics metrics = new MemcacheMetrics();
+
+    @Override
+    public MeteredMemcachedClient unit() {
+        return new MeteredMemcachedClient(backend, metrics);
+    }
+
+    @Test
+    public void hitsAndMisses() {
+        backend.set("a", 0, "1");
+        final MeteredMemcachedClient unit = unit();
+        Assert.assertEquals("1", unit.get("a"));
+        Assert.assertNull(unit.get("b"));
+        unit.getBulk(Arrays.asList("a", "b", "c"));
+        Assert.assertEquals(2, metrics.getHits());
+        Assert.assertEquals(3, metrics.getMisses());
+        Assert.assertEquals(2, metrics.getCount(MemcacheOperation.GET));
+        Assert.assertEquals(1, metrics.getCount(MemcacheOperation.GET_BULK));
+    }
+
+    @Test
+    public void futureRecordedOnce() throws InterruptedException, ExecutionException {
+        final MeteredMemcachedClient unit = unit();
+        unit.set("a", 0, "1").get();
+        final Future<Boolean> future = unit.delete("a");
+        future.get();
+        future.get();
+        Assert.assertEquals(1, metrics.getCount(MemcacheOperation.SET));
+        Assert.assertEquals(1, metrics.getCount(MemcacheOperation.DELETE));
+    }
+
+    @Test
+    public void recordedOnCompletion() {
+        backend.set("a", 0, "1");
+        final MeteredMemcachedClient unit = unit();
+        unit.set("b", 0, "2");
+        unit.asyncGet("a");
+        unit.asyncGet("c");
+        unit.asyncGetBulk(Arrays.asList("a", "b"));
+        Assert.assertEquals(1, metrics.getCount(MemcacheOperation.SET));
+        Assert.assertEquals(2, metrics.getCount(MemcacheOperation.GET));
+        Assert.assertEquals(1, metrics.getCount(MemcacheOperation.GET_BULK));
+        Assert.assertEquals(3, metrics.getHits());
+        Assert.assertEquals(1, metrics.getMisses());
+    }
+
+    @Test
+    public void stalledNotRecorded() throws InterruptedException, ExecutionException {
+        backend.setStalled(true);
+        final Future<Object> future = unit().asyncGet("a");
+        try {
+            future.get(1, TimeUnit.MILLISECONDS);
+            Assert.fail("Expected timeout");
+        } catch (TimeoutException e) {
+            Assert.assertEquals(1, metrics.getTimeouts());
+        }
+        Assert.assertEquals(0, metrics.getCount(MemcacheOperation.GET));
+    }
+
+    @Test
+    public void histogramQuantiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(500.0, histogram.getValueAt(0.5), 500 * 0.07);
+        Assert.assertEquals(990.0, histogram.getValueAt(0.99), 990 * 0.07);
+        Assert.assertEquals(1000, histogram.getValueAt(1.0));
+        Assert.assertEquals(500.5, histogram.getMean(), 0.0);
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void bucketBounds() {
+        for (long value = 0; value < 1L << 20; value += 7) {
+            final int index = LatencyHistogram.indexOf(value);
+            Assert.assertTrue(LatencyHistogram.highestValueOf(index) >= value);
+            Assert.assertTrue(index == 0 || LatencyHistogram.highestValueOf(index - 1) < value);
+        }
+        Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(LatencyHistogram.MAX_VALUE));
+        Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(Long.MAX_VALUE));
+    }
+
+}
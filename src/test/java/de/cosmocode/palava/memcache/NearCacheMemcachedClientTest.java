@@ -0,0 +1,165 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import net.spy.memcached.MemcachedClientIF;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Callables;
+import com.google.common.util.concurrent.Futures;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link NearCacheMemcachedClient}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class NearCacheMemcachedClientTest implements UnitProvider<NearCacheMemcachedClient> {
+
+    private final InMemoryMemcachedClient backend = new InMemoryMemcachedClient();
+
+    private final MemcacheMetrics metrics = new MemcacheMetrics();
+
+    @Override
+    public NearCacheMemcachedClient unit() {
+        return new NearCacheMemcachedClient(backend, metrics);
+    }
+
+    private MemcachedClientIF setting(final Future<Boolean> result) {
+        return new ForwardingMemcachedClient() {
+
+            @Override
+            protected MemcachedClientIF delegate() {
+                return backend;
+            }
+
+            @Override
+            public Future<Boolean> set(String key, int exp, Object value) {
+                return result;
+            }
+
+        };
+    }
+
+    @Test
+    public void repeatedGet() {
+        backend.set("key", 0, "value");
+        final NearCacheMemcachedClient unit = unit();
+        Assert.assertEquals("value", unit.get("key"));
+        Assert.assertEquals("value", unit.get("key"));
+        Assert.assertEquals(2, backend.getRoundTrips());
+        Assert.assertEquals(0.5, unit.getHitRatio(), 0.0);
+    }
+
+    @Test
+    public void repeatedMiss() {
+        final NearCacheMemcachedClient unit = unit();
+        Assert.assertNull(unit.get("key"));
+        Assert.assertNull(unit.get("key"));
+        Assert.assertEquals(1, backend.getRoundTrips());
+    }
+
+    @Test
+    public void setUpdates() {
+        final NearCacheMemcachedClient unit = unit();
+        Assert.assertNull(unit.get("key"));
+        unit.set("key", 0, "value");
+        Assert.assertEquals("value", unit.get("key"));
+        Assert.assertEquals(2, backend.getRoundTrips());
+    }
+
+    @Test
+    public void failedSetNotMemoized() {
+        final NearCacheMemcachedClient unit = new NearCacheMemcachedClient(
+            setting(Futures.immediateFuture(Boolean.FALSE)), metrics);
+        unit.set("key", 0, "value");
+        Assert.assertNull(unit.get("key"));
+        Assert.assertEquals(1, backend.getRoundTrips());
+    }
+
+    @Test
+    public void pendingSetNotMemoized() {
+        final FutureTask<Boolean> result = new FutureTask<Boolean>(Callables.returning(Boolean.TRUE));
+        final NearCacheMemcachedClient unit = new NearCacheMemcachedClient(setting(result), metrics);
+        unit.set("key", 0, "value");
+        backend.set("key", 0, "value");
+        Assert.assertEquals("value", unit.get("key"));
+        Assert.assertEquals(2, backend.getRoundTrips());
+        result.run();
+        unit.set("key", 0, "other");
+        Assert.assertEquals("other", unit.get("key"));
+        Assert.assertEquals(2, backend.getRoundTrips());
+    }
+
+    @Test
+    public void hitsAreCopies() {
+        final NearCacheMemcachedClient unit = unit();
+        backend.set("key", 0, Lists.newArrayList("value"));
+        @SuppressWarnings("unchecked")
+        final List<String> first = (List<String>) unit.get("key");
+        first.add("modified");
+        Assert.assertEquals(ImmutableList.of("value"), unit.get("key"));
+        Assert.assertNotSame(unit.get("key"), unit.get("key"));
+    }
+
+    @Test
+    public void reportsHitRatio() {
+        backend.set("key", 0, "value");
+        final NearCacheMemcachedClient unit = unit();
+        unit.get("key");
+        unit.get("key");
+        unit.get("key");
+        unit.destroy();
+        Assert.assertEquals(2, metrics.getNearCacheHits());
+        Assert.assertEquals(1, metrics.getNearCacheMisses());
+    }
+
+    @Test
+    public void deleteInvalidates() {
+        backend.set("key", 0, "value");
+        final NearCacheMemcachedClient unit = unit();
+        Assert.assertEquals("value", unit.get("key"));
+        unit.delete("key");
+        Assert.assertNull(unit.get("key"));
+        Assert.assertEquals(4, backend.getRoundTrips());
+    }
+
+    @Test
+    public void getBulkFetchesMissingOnly() {
+        backend.set("a", 0, "1");
+        backend.set("b", 0, "2");
+        final NearCacheMemcachedClient unit = unit();
+        Assert.assertEquals("1", unit.get("a"));
+        final Map<String, Object> values = unit.getBulk(Arrays.asList("a", "b", "c"));
+        Assert.assertEquals(2, values.size());
+        Assert.assertEquals("2", values.get("b"));
+        Assert.assertNull(unit.get("c"));
+        Assert.assertEquals(4, backend.getRoundTrips());
+    }
+
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link OffHeapCacheStorage}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class OffHeapCacheStorageTest implements UnitProvider<OffHeapCacheStorage> {
+
+    private static final int PAGE_SIZE = 4096;
+
+    @Override
+    public OffHeapCacheStorage unit() {
+        return new OffHeapCacheStorage(100000, 64 * PAGE_SIZE, PAGE_SIZE, 1.0);
+    }
+
+    private static Key key(String key) {
+        return new Key(ChannelBuffers.wrappedBuffer(key.getBytes(Charsets.UTF_8)));
+    }
+
+    private static LocalCacheElement element(String key, String value, long cas) {
+        final LocalCacheElement element = new LocalCacheElement(key(key), 7, 42, cas);
+        element.setData(ChannelBuffers.wrappedBuffer(value.getBytes(Charsets.UTF_8)));
+        return element;
+    }
+
+    private static String valueOf(LocalCacheElement element) {
+        return element.getData().toString(Charsets.UTF_8);
+    }
+
+    @Test
+    public void putGet() {
+        final OffHeapCacheStorage unit = unit();
+        Assert.assertNull(unit.put(key("a"), element("a", "value", 1)));
+        final LocalCacheElement element = unit.get(key("a"));
+        Assert.assertEquals("value", valueOf(element));
+        Assert.assertEquals(7, element.getFlags());
+        Assert.assertEquals(42, element.getExpire());
+        Assert.assertEquals(1, element.getCasUnique());
+        Assert.assertEquals("value", valueOf(unit.put(key("a"), element("a", "other", 2))));
+        Assert.assertEquals("other", valueOf(unit.get(key("a"))));
+        Assert.assertEquals(1, unit.size());
+        Assert.assertNull(unit.get(key("b")));
+    }
+
+    @Test
+    public void replaceAndRemove() {
+        final OffHeapCacheStorage unit = unit();
+        Assert.assertNull(unit.replace(key("a"), element("a", "value", 1)));
+        Assert.assertNull(unit.putIfAbsent(key("a"), element("a", "value", 1)));
+        Assert.assertNotNull(unit.putIfAbsent(key("a"), element("a", "other", 2)));
+        final LocalCacheElement current = unit.get(key("a"));
+        Assert.assertFalse(unit.replace(key("a"), element("a", "value", 3), element("a", "next", 4)));
+        Assert.assertTrue(unit.replace(key("a"), current, element("a", "next", 4)));
+        Assert.assertEquals("next", valueOf(unit.remove(key("a"))));
+        Assert.assertTrue(unit.isEmpty());
+        Assert.assertEquals(0, unit.getSizeClasses().get(0).getMemoryUsed());
+    }
+
+    @Test
+    public void manyEntries() {
+        final OffHeapCacheStorage unit = new OffHeapCacheStorage(100000, 1024 * PAGE_SIZE, PAGE_SIZE, 1.0);
+        for (int i = 0; i < 20000; i++) {
+            unit.put(key("key" + i), element("key" + i, "value" + i, i));
+        }
+        for (int i = 0; i < 20000; i += 2) {
+            unit.remove(key("key" + i));
+        }
+        Assert.assertEquals(10000, unit.size());
+        Assert.assertEquals(10000, unit.entrySet().size());
+        for (int i = 1; i < 20000; i += 2) {
+            Assert.assertEquals("value" + i, valueOf(unit.get(key("key" + i))));
+        }
+        Assert.assertEquals(0, unit.getEvictions());
+    }
+
+    @Test
+    public void evictsWhenFull() {
+        final OffHeapCacheStorage unit = unit();
+        for (int i = 0; i < 10000; i++) {
+            unit.put(key("key" + i), element("key" + i, "value" + i, i));
+            // keep one entry referenced
+            Assert.assertNotNull(unit.get(key("key0")));
+        }
+        Assert.assertTrue(unit.getEvictions() > 0);
+        long allocated = 0;
+        for (SizeClassStats stats : unit.getSizeClasses()) {
+            allocated += stats.getMemoryAllocated();
+        }
+        Assert.assertTrue(allocated <= unit.getMemoryCapacity());
+        Assert.assertNotNull(unit.get(key("key9999")));
+        Assert.assertNotNull(unit.get(key("key0")));
+    }
+
+    @Test
+    public void maxItems() {
+        final OffHeapCacheStorage unit = new OffHeapCacheStorage(10, 64 * PAGE_SIZE, PAGE_SIZE, 1.0);
+        for (int i = 0; i < 100; i++) {
+            unit.put(key("key" + i), element("key" + i, "value" + i, i));
+        }
+        Assert.assertEquals(10, unit.size());
+    }
+
+    @Test
+    public void limitsSizeClasses() {
+        final OffHeapCacheStorage unit = new OffHeapCacheStorage(100000, 8 * PAGE_SIZE, PAGE_SIZE, 0.5);
+        final String large = new String(new char[PAGE_SIZE / 2]);
+        for (int i = 0; i < 100; i++) {
+            unit.put(key("large" + i), element("large" + i, large, i));
+        }
+        for (int i = 0; i < 100; i++) {
+            unit.put(key("small" + i), element("small" + i, "value", i));
+        }
+        Assert.assertEquals(2, unit.getSizeClasses().size());
+        Assert.assertEquals(4, unit.getSizeClasses().get(1).getItems());
+        Assert.assertEquals(96, unit.getSizeClasses().get(1).getEvictions());
+        Assert.assertEquals(100, unit.getSizeClasses().get(0).getItems());
+    }
+
+    @Test
+    public void tooLarge() {
+        final OffHeapCacheStorage unit = unit();
+        unit.put(key("a"), element("a", "value", 1));
+        try {
+            unit.put(key("a"), element("a", new String(new char[PAGE_SIZE]), 2));
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("value", valueOf(unit.get(key("a"))));
+        }
+    }
+
+    /**
+     * Tests that all size classes get memory with the default page size,
+     * even if the first class took the only page.
+     */
+    @Test
+    public void sizeClassesShareDefaultPage() {
+        final OffHeapCacheStorage unit = new OffHeapCacheStorage(1000, OffHeapCacheStorage.DEFAULT_PAGE_SIZE);
+        final int[] sizes = {100, 1000, 10000, 100000};
+        for (int round = 0; round < 3; round++) {
+            for (int size : sizes) {
+                final String name = "size" + size;
+                final String value = new String(new char[size]).replace('\0', 'x');
+                unit.put(key(name), element(name, value, round));
+                Assert.assertEquals(value, valueOf(unit.get(key(name))));
+            }
+        }
+        unit.close();
+    }
+
+    /**
+     * Tests that a class without entries takes a page from a full class.
+     */
+    @Test
+    public void reassignsPages() {
+        final OffHeapCacheStorage unit = new OffHeapCacheStorage(10000, 2 * PAGE_SIZE, PAGE_SIZE, 1.0);
+        final String small = "value";
+        for (int i = 0; i < 200; i++) {
+            unit.put(key("small" + i), element("small" + i, small, i));
+        }
+        final String large = new String(new char[1000]).replace('\0', 'x');
+        unit.put(key("large"), element("large", large, 1));
+        Assert.assertEquals(large, valueOf(unit.get(key("large"))));
+        Assert.assertTrue(unit.getEvictions() > 0);
+        Assert.assertEquals(unit.size() - 1, countSmall(unit));
+    }
+
+    private static int countSmall(OffHeapCacheStorage unit) {
+        int found = 0;
+        for (int i = 0; i < 200; i++) {
+            if (unit.get(key("small" + i)) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+}
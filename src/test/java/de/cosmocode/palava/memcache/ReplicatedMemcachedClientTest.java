@@ -0,0 +1,279 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.HashAlgorithm;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Tests {@link ReplicatedMemcachedClient}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class ReplicatedMemcachedClientTest {
+
+    private static final int KEYS = 100;
+
+    private final Map<InetSocketAddress, InMemoryMemcachedClient> clients = Maps.newLinkedHashMap();
+
+    private WeightedKetamaNodeLocator ring;
+
+    private ReplicatedMemcachedClient unit;
+
+    /**
+     * Creates a client storing every key on two of three servers.
+     */
+    @Before
+    public void setUp() {
+        final Map<InetSocketAddress, Integer> servers = Maps.newLinkedHashMap();
+        for (int port = 11211; port <= 11213; port++) {
+            final InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+            servers.put(address, 1);
+            clients.put(address, new InMemoryMemcachedClient());
+        }
+        ring = new WeightedKetamaNodeLocator(
+            WeightedKetamaNodeLocatorTest.nodesOf(servers), servers, HashAlgorithm.KETAMA_HASH);
+        unit = new ReplicatedMemcachedClient(clients, ring, 2, new ReplicaSelector(1000L), null, 1000L);
+    }
+
+    private int copiesOf(String key) {
+        int copies = 0;
+        for (InMemoryMemcachedClient client : clients.values()) {
+            if (client.get(key) != null) {
+                copies++;
+            }
+        }
+        return copies;
+    }
+
+    private List<String> keys() {
+        final List<String> keys = Lists.newArrayList();
+        for (int i = 0; i < KEYS; i++) {
+            keys.add("key" + i);
+            unit.set("key" + i, 0, "value" + i);
+        }
+        return keys;
+    }
+
+    /**
+     * Tests that writes and deletes reach all replicas of a key.
+     */
+    @Test
+    public void writesAllReplicas() {
+        for (String key : keys()) {
+            Assert.assertEquals(2, copiesOf(key));
+            unit.delete(key);
+            Assert.assertEquals(0, copiesOf(key));
+        }
+    }
+
+    /**
+     * Tests that reads fall back to the other replica if a server fails.
+     */
+    @Test
+    public void getFallsBack() {
+        final List<String> keys = keys();
+        clients.values().iterator().next().setFailing(true);
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals("value" + i, unit.get(keys.get(i)));
+        }
+    }
+
+    /**
+     * Tests that bulk reads retry the keys of a failed server on the other replicas.
+     */
+    @Test
+    public void getBulkFallsBack() {
+        final List<String> keys = keys();
+        clients.values().iterator().next().setFailing(true);
+        final Map<String, Object> values = unit.getBulk(keys);
+        Assert.assertEquals(KEYS, values.size());
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertEquals("value" + i, values.get(keys.get(i)));
+        }
+    }
+
+    /**
+     * Tests that writes succeed as long as one replica accepts them.
+     */
+    @Test
+    public void setSurvivesFailure() throws Exception {
+        clients.values().iterator().next().setFailing(true);
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertTrue(unit.set("key" + i, 0, "value" + i).get());
+            Assert.assertEquals("value" + i, unit.get("key" + i));
+        }
+    }
+
+    /**
+     * Tests that reads stuck on their first replica are answered by the hedge. Once
+     * the stalled server is penalized, reads prefer the other replica and need no hedge.
+     */
+    @Test
+    public void hedgeWins() {
+        final HedgePolicy hedging = new HedgePolicy(0.95, 1.0, 0L);
+        for (int i = 0; i < HedgePolicy.WINDOW; i++) {
+            hedging.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        unit = new ReplicatedMemcachedClient(clients, ring, 2, new ReplicaSelector(1000L), hedging, 1000L);
+        final List<String> keys = keys();
+        final InetSocketAddress stalled = clients.keySet().iterator().next();
+        clients.get(stalled).setStalled(true);
+        int expected = 0;
+        for (int i = 0; i < KEYS && expected < HedgePolicy.BURST; i++) {
+            if (stalled.equals(ring.getPrimary(keys.get(i)).getSocketAddress())) {
+                Assert.assertEquals("value" + i, unit.get(keys.get(i)));
+                expected++;
+            }
+        }
+        Assert.assertTrue(expected > 0);
+        Assert.assertTrue(hedging.getSent() > 0);
+        Assert.assertEquals(hedging.getSent(), hedging.getWon());
+    }
+
+    /**
+     * Tests that deletes report success if any replica succeeded, even if the first one didn't.
+     */
+    @Test
+    public void deleteTrueIfAnyReplica() throws Exception {
+        final String key = "key";
+        unit.set(key, 0, "value");
+        final InetSocketAddress primary = (InetSocketAddress) ring.getPrimary(key).getSocketAddress();
+        clients.get(primary).delete(key);
+        Assert.assertTrue(unit.delete(key).get());
+        Assert.assertFalse(unit.delete(key).get());
+    }
+
+    /**
+     * Tests that adds report the result of the owner, so only one caller can take a lease
+     * even if another replica accepted the add.
+     */
+    @Test
+    public void addRequiresOwner() throws Exception {
+        final String key = "key";
+        final InetSocketAddress primary = (InetSocketAddress) ring.getPrimary(key).getSocketAddress();
+        clients.get(primary).set(key, 0, "old");
+        Assert.assertFalse(unit.add(key, 0, "new").get());
+        Assert.assertEquals(2, copiesOf(key));
+        clients.get(primary).delete(key);
+        unit.delete(key);
+        Assert.assertTrue(unit.add(key, 0, "new").get());
+        Assert.assertFalse(unit.add(key, 0, "new").get());
+    }
+
+    /**
+     * Tests that adds fall back to the next replica in ring order if the owner fails.
+     */
+    @Test
+    public void addFallsBack() throws Exception {
+        final String key = "key";
+        final InetSocketAddress primary = (InetSocketAddress) ring.getPrimary(key).getSocketAddress();
+        clients.get(primary).setFailing(true);
+        Assert.assertTrue(unit.add(key, 0, "new").get());
+        Assert.assertFalse(unit.add(key, 0, "new").get());
+    }
+
+    /**
+     * Tests that only a successful cas deletes the key from the other replicas.
+     */
+    @Test
+    public void casInvalidatesOnSuccess() throws Exception {
+        final String key = "key";
+        unit.set(key, 0, "value");
+        final CASValue<Object> value = unit.gets(key);
+        Assert.assertEquals(CASResponse.EXISTS, unit.cas(key, value.getCas() + 1, "other"));
+        Assert.assertEquals(2, copiesOf(key));
+        Assert.assertEquals(CASResponse.EXISTS, unit.asyncCAS(key, value.getCas() + 1, "other").get());
+        Assert.assertEquals(2, copiesOf(key));
+        Assert.assertEquals(CASResponse.OK, unit.cas(key, value.getCas(), "new"));
+        Assert.assertEquals(1, copiesOf(key));
+        unit.set(key, 0, "value");
+        Assert.assertEquals(CASResponse.OK, unit.asyncCAS(key, unit.gets(key).getCas(), "new").get());
+        Assert.assertEquals(1, copiesOf(key));
+        Assert.assertEquals("new", unit.gets(key).getValue());
+    }
+
+    /**
+     * Tests that reads end on the selector when they complete or are cancelled, even if
+     * nobody waits for them.
+     */
+    @Test
+    public void readsEnd() throws InterruptedException {
+        final ReplicaSelector selector = new ReplicaSelector(1000L);
+        unit = new ReplicatedMemcachedClient(clients, ring, 2, selector, null, 1000L);
+        final List<String> keys = keys();
+        for (String key : keys) {
+            unit.asyncGet(key);
+        }
+        unit.asyncGetBulk(keys);
+        final InetSocketAddress stalled = clients.keySet().iterator().next();
+        clients.get(stalled).setStalled(true);
+        for (String key : keys) {
+            unit.asyncGet(key).cancel(false);
+        }
+        // cancelled futures which can't notify listeners are polled
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        for (InetSocketAddress address : clients.keySet()) {
+            while (selector.getInFlight(address) > 0 && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            Assert.assertEquals(0, selector.getInFlight(address));
+        }
+    }
+
+    /**
+     * Tests that the hedge delay is measured from the start of the read, not from the
+     * moment a caller starts waiting.
+     */
+    @Test
+    public void hedgeDelayFromStart() throws Exception {
+        final HedgePolicy hedging = new HedgePolicy(0.95, 1.0, 0L);
+        for (int i = 0; i < HedgePolicy.WINDOW; i++) {
+            hedging.record(TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        unit = new ReplicatedMemcachedClient(clients, ring, 2, new ReplicaSelector(1000L), hedging, 1000L);
+        final List<String> keys = keys();
+        final InetSocketAddress stalled = clients.keySet().iterator().next();
+        clients.get(stalled).setStalled(true);
+        for (int i = 0; i < KEYS; i++) {
+            if (stalled.equals(ring.getPrimary(keys.get(i)).getSocketAddress())) {
+                final Future<Object> future = unit.asyncGet(keys.get(i));
+                TimeUnit.MILLISECONDS.sleep(60);
+                Assert.assertEquals("value" + i, future.get(10, TimeUnit.MILLISECONDS));
+                Assert.assertEquals(1, hedging.getWon());
+                return;
+            }
+        }
+        Assert.fail("No key on the stalled server");
+    }
+
+}
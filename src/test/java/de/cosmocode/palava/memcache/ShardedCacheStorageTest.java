@@ -0,0 +1,90 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link ShardedCacheStorage}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class ShardedCacheStorageTest implements UnitProvider<ShardedCacheStorage> {
+
+    private static final int SHARDS = 8;
+
+    @Override
+    public ShardedCacheStorage unit() {
+        final List<CacheStorage<Key, LocalCacheElement>> shards = Lists.newArrayList();
+        for (int i = 0; i < SHARDS; i++) {
+            shards.add(new OffHeapCacheStorage(10000, 1 << 20));
+        }
+        return new ShardedCacheStorage(shards);
+    }
+
+    private static Key key(String key) {
+        return new Key(ChannelBuffers.wrappedBuffer(key.getBytes(Charsets.UTF_8)));
+    }
+
+    private static LocalCacheElement element(String key) {
+        final LocalCacheElement element = new LocalCacheElement(key(key), 0, 0, 0);
+        element.setData(ChannelBuffers.wrappedBuffer(key.getBytes(Charsets.UTF_8)));
+        return element;
+    }
+
+    @Test
+    public void routes() {
+        final ShardedCacheStorage unit = unit();
+        for (int i = 0; i < 8000; i++) {
+            unit.put(key("key" + i), element("key" + i));
+        }
+        Assert.assertEquals(8000, unit.size());
+        Assert.assertEquals(8000, unit.entrySet().size());
+        Assert.assertEquals(8000, Lists.newArrayList(unit.entrySet()).size());
+        for (int i = 0; i < 8000; i++) {
+            Assert.assertEquals("key" + i, unit.get(key("key" + i)).getData().toString(Charsets.UTF_8));
+        }
+        for (CacheStorage<Key, LocalCacheElement> shard : unit.getShards()) {
+            Assert.assertTrue("Unbalanced shard of size " + shard.size(), shard.size() > 800 && shard.size() < 1200);
+        }
+        Assert.assertEquals(SHARDS * 10000, unit.capacity());
+        Assert.assertEquals(SHARDS << 20, unit.getMemoryCapacity());
+    }
+
+    @Test
+    public void remove() {
+        final ShardedCacheStorage unit = unit();
+        unit.put(key("a"), element("a"));
+        Assert.assertNotNull(unit.remove(key("a")));
+        Assert.assertNull(unit.get(key("a")));
+        Assert.assertTrue(unit.isEmpty());
+    }
+
+}
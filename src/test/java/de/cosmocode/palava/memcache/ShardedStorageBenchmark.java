@@ -0,0 +1,121 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+
+/**
+ * Measures the throughput of the local server storages with and without sharding
+ * for a growing number of threads. Every thread does 80% gets and 20% sets.
+ *
+ * <p>
+ *   Usage: {@code ShardedStorageBenchmark [seconds] [shards]}.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class ShardedStorageBenchmark {
+
+    private static final int KEYS = 100000;
+
+    private static final int MAX_ITEMS = 50000;
+
+    private static final byte[] VALUE = new byte[100];
+
+    private ShardedStorageBenchmark() {
+
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final int shards = args.length > 1 ? Integer.parseInt(args[1]) : cores * 2;
+        final Key[] keys = new Key[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new Key(ChannelBuffers.wrappedBuffer(("key" + i).getBytes(Charsets.UTF_8)));
+        }
+        for (String policy : new String[] {"LRU", "TINY_LFU", "OFFHEAP"}) {
+            for (int count : new int[] {1, shards}) {
+                for (int threads = 1; threads <= cores * 2; threads *= 2) {
+                    final CacheStorage<Key, LocalCacheElement> storage = newStorage(policy, count);
+                    final double throughput = run(storage, keys, threads, seconds);
+                    System.out.printf("%-9s %3d shards %3d threads %,14.0f ops/s%n",
+                        policy, count, threads, throughput);
+                }
+            }
+        }
+    }
+
+    private static CacheStorage<Key, LocalCacheElement> newStorage(String policy, int shards) {
+        if (shards == 1) {
+            return EvictionSimulator.newStorage(policy, MAX_ITEMS);
+        }
+        final List<CacheStorage<Key, LocalCacheElement>> list = Lists.newArrayListWithCapacity(shards);
+        for (int i = 0; i < shards; i++) {
+            list.add(EvictionSimulator.newStorage(policy, MAX_ITEMS / shards));
+        }
+        return new ShardedCacheStorage(list);
+    }
+
+    private static double run(final CacheStorage<Key, LocalCacheElement> storage, final Key[] keys,
+        int threads, int seconds) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong operations = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    final Random random = new Random();
+                    long count = 0;
+                    while (running.get()) {
+                        final Key key = keys[random.nextInt(keys.length)];
+                        if (random.nextInt(5) == 0 || storage.get(key) == null) {
+                            final LocalCacheElement element = new LocalCacheElement(key, 0, 0, count);
+                            element.setData(ChannelBuffers.wrappedBuffer(VALUE));
+                            storage.put(key, element);
+                        }
+                        count++;
+                    }
+                    operations.addAndGet(count);
+                    done.countDown();
+                }
+
+            }).start();
+        }
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        done.await();
+        return operations.get() / (double) seconds;
+    }
+
+}
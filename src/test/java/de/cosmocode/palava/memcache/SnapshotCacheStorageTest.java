@@ -0,0 +1,88 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+
+/**
+ * Tests {@link SnapshotCacheStorage}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class SnapshotCacheStorageTest {
+
+    private static Key key(String key) {
+        return new Key(ChannelBuffers.wrappedBuffer(key.getBytes(Charsets.UTF_8)));
+    }
+
+    private static void put(CacheStorage<Key, LocalCacheElement> storage, String key, String value, int expire) {
+        final LocalCacheElement element = new LocalCacheElement(key(key), 3, expire, 5);
+        element.setData(ChannelBuffers.wrappedBuffer(value.getBytes(Charsets.UTF_8)));
+        storage.put(key(key), element);
+    }
+
+    private static File newFile() throws IOException {
+        final File file = File.createTempFile("memcache", ".snapshot");
+        Assert.assertTrue(file.delete());
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void restart() throws IOException {
+        final File file = newFile();
+        final SnapshotCacheStorage before = new SnapshotCacheStorage(new OffHeapCacheStorage(100000, 1 << 24), file);
+        for (int i = 0; i < 10000; i++) {
+            put(before, "key" + i, "value" + i, 0);
+        }
+        put(before, "expiring", "value", LocalCacheElement.Now() + 3600);
+        put(before, "expired", "value", LocalCacheElement.Now() - 1);
+        before.close();
+        Assert.assertTrue(file.exists());
+
+        final SnapshotCacheStorage after = new SnapshotCacheStorage(
+            ConcurrentLinkedHashMap.<Key, LocalCacheElement>create(
+                ConcurrentLinkedHashMap.EvictionPolicy.LRU, 100000, 1 << 24), file);
+        Assert.assertEquals(10001, after.load());
+        Assert.assertFalse(file.exists());
+        final LocalCacheElement element = after.get(key("key42"));
+        Assert.assertEquals("value42", element.getData().toString(Charsets.UTF_8));
+        Assert.assertEquals(3, element.getFlags());
+        Assert.assertEquals(5, element.getCasUnique());
+        Assert.assertNotNull(after.get(key("expiring")));
+        Assert.assertNull(after.get(key("expired")));
+    }
+
+    @Test
+    public void missing() throws IOException {
+        final SnapshotCacheStorage unit = new SnapshotCacheStorage(new OffHeapCacheStorage(100, 1 << 20), newFile());
+        Assert.assertEquals(0, unit.load());
+    }
+
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import com.google.common.collect.ImmutableMap;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Measures the bytes allocated per encode/decode round trip of a large value by the
+ * {@link StreamTranscoder} compared to the {@link SerializingTranscoder} and the
+ * {@link CompressingTranscoder}, using the allocation counter of the current thread.
+ * The decoded value itself is part of every figure.
+ *
+ * <p>
+ *   Usage: {@code StreamTranscoderBenchmark [seconds] [ints]}.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class StreamTranscoderBenchmark {
+
+    private StreamTranscoderBenchmark() {
+
+    }
+
+    public static void main(String[] args) {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        final int ints = args.length > 1 ? Integer.parseInt(args[1]) : 16 * 1024;
+        final Random random = new Random(42L);
+        final int[] value = new int[ints];
+        for (int i = 0; i < ints; i++) {
+            value[i] = random.nextInt(1000);
+        }
+
+        final Map<String, Object> transcoders = ImmutableMap.<String, Object>of(
+            "serializing", new SerializingTranscoder(),
+            "compressing", new CompressingTranscoder(MemcacheCodec.LZ4, null, 0),
+            "stream", new StreamTranscoder<int[]>(new IntArrayCodec())
+        );
+        for (Map.Entry<String, Object> entry : transcoders.entrySet()) {
+            @SuppressWarnings("unchecked")
+            final Transcoder<Object> transcoder = (Transcoder<Object>) entry.getValue();
+            if (!Arrays.equals(value, (int[]) transcoder.decode(transcoder.encode(value)))) {
+                throw new IllegalStateException(entry.getKey() + " failed to round trip");
+            }
+            // warm up
+            run(transcoder, value, seconds);
+            final double[] result = run(transcoder, value, seconds);
+            System.out.printf("%-12s %,10.0f bytes/op %,10.0f ns/op%n", entry.getKey(), result[0], result[1]);
+        }
+    }
+
+    /**
+     * Runs round trips for the given time.
+     *
+     * @return the allocated bytes and the nanoseconds per round trip
+     */
+    private static double[] run(Transcoder<Object> transcoder, int[] value, int seconds) {
+        final ThreadMXBean threads = ThreadMXBean.class.cast(ManagementFactory.getThreadMXBean());
+        final long id = Thread.currentThread().getId();
+        final long allocated = threads.getThreadAllocatedBytes(id);
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long count = 0;
+        long now = start;
+        while (now < end) {
+            for (int i = 0; i < 10; i++) {
+                transcoder.decode(transcoder.encode(value));
+            }
+            count += 10;
+            now = System.nanoTime();
+        }
+        return new double[] {
+            (threads.getThreadAllocatedBytes(id) - allocated) / (double) count,
+            (now - start) / (double) count
+        };
+    }
+
+    /**
+     * Writes int arrays length prefixed.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class IntArrayCodec implements MemcacheStreamCodec<int[]> {
+
+        @Override
+        public void write(int[] value, OutputStream output) throws IOException {
+            final DataOutputStream data = new DataOutputStream(output);
+            data.writeInt(value.length);
+            for (int i : value) {
+                data.writeInt(i);
+            }
+            data.flush();
+        }
+
+        @Override
+        public int[] read(InputStream input) throws IOException {
+            final DataInputStream data = new DataInputStream(input);
+            final int[] value = new int[data.readInt()];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = data.readInt();
+            }
+            return value;
+        }
+
+    }
+
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import net.spy.memcached.CachedData;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link StreamTranscoder}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class StreamTranscoderTest implements UnitProvider<StreamTranscoder<String>> {
+
+    @Override
+    public StreamTranscoder<String> unit() {
+        return new StreamTranscoder<String>(new MemcacheStreamCodec<String>() {
+
+            @Override
+            public void write(String value, OutputStream output) throws IOException {
+                output.write(value.getBytes(Charsets.UTF_8));
+            }
+
+            @Override
+            public String read(InputStream input) throws IOException {
+                return new String(ByteStreams.toByteArray(input), Charsets.UTF_8);
+            }
+
+        });
+    }
+
+    @Test
+    public void small() {
+        final StreamTranscoder<String> unit = unit();
+        final CachedData data = unit.encode("small");
+        Assert.assertEquals(StreamTranscoder.STREAM, data.getFlags());
+        Assert.assertEquals("small", unit.decode(data));
+    }
+
+    @Test
+    public void large() {
+        final StreamTranscoder<String> unit = unit();
+        final String value = Strings.repeat("large value ", 10000);
+        final CachedData data = unit.encode(value);
+        Assert.assertTrue(data.getData().length < value.length() / 10);
+        Assert.assertEquals(value, unit.decode(data));
+        Assert.assertEquals(value, unit.decode(unit.encode(value)));
+    }
+
+    @Test
+    public void corrupt() {
+        final StreamTranscoder<String> unit = unit();
+        final CachedData data = unit.encode(Strings.repeat("large value ", 10000));
+        final byte[] truncated = Arrays.copyOf(data.getData(), data.getData().length / 2);
+        Assert.assertNull(unit.decode(new CachedData(data.getFlags(), truncated, CachedData.MAX_SIZE)));
+        final int unknown = data.getFlags() | CompressingTranscoder.CODEC_MASK;
+        Assert.assertNull(unit.decode(new CachedData(unknown, data.getData(), CachedData.MAX_SIZE)));
+    }
+
+    @Test
+    public void foreignValue() {
+        Assert.assertNull(unit().decode(new CachedData(0, new byte[] {1}, CachedData.MAX_SIZE)));
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.memcache;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link TinyLfuCacheStorage}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class TinyLfuCacheStorageTest implements UnitProvider<TinyLfuCacheStorage> {
+
+    @Override
+    public TinyLfuCacheStorage unit() {
+        return new TinyLfuCacheStorage(100, 1 << 20);
+    }
+
+    private static Key key(String key) {
+        return new Key(ChannelBuffers.wrappedBuffer(key.getBytes(Charsets.UTF_8)));
+    }
+
+    private static LocalCacheElement element(String key, int size) {
+        final LocalCacheElement element = new LocalCacheElement(key(key), 0, 0, 0);
+        element.setData(ChannelBuffers.wrappedBuffer(new byte[size]));
+        return element;
+    }
+
+    @Test
+    public void bounded() {
+        final TinyLfuCacheStorage unit = unit();
+        for (int i = 0; i < 1000; i++) {
+            unit.put(key("key" + i), element("key" + i, 10));
+        }
+        Assert.assertEquals(100, unit.size());
+        Assert.assertEquals(100 * TinyLfuCacheStorage.weigh(key("key0"), element("key0", 10)), unit.getMemoryUsed());
+        Assert.assertEquals(100, unit.entrySet().size());
+    }
+
+    @Test
+    public void boundedByBytes() {
+        final long weight = TinyLfuCacheStorage.weigh(key("key0"), element("key0", 100));
+        final TinyLfuCacheStorage unit = new TinyLfuCacheStorage(100, 10 * weight);
+        for (int i = 0; i < 100; i++) {
+            unit.put(key("key" + i), element("key" + i, 100));
+        }
+        Assert.assertEquals(10, unit.size());
+        Assert.assertEquals(10 * weight, unit.getMemoryUsed());
+    }
+
+    @Test
+    public void replaceAndRemove() {
+        final TinyLfuCacheStorage unit = unit();
+        Assert.assertNull(unit.putIfAbsent(key("a"), element("a", 1)));
+        final LocalCacheElement current = unit.get(key("a"));
+        Assert.assertFalse(unit.replace(key("a"), element("a", 2), element("a", 3)));
+        Assert.assertTrue(unit.replace(key("a"), current, element("a", 3)));
+        Assert.assertEquals(3, unit.remove(key("a")).size());
+        Assert.assertTrue(unit.isEmpty());
+        Assert.assertEquals(0, unit.getMemoryUsed());
+    }
+
+    @Test
+    public void keepsFrequentEntriesDuringScans() {
+        final String[] trace = EvictionSimulator.zipfWithScans(200000, 20000, 0.9, 20000, 5000, 42L);
+        final double lru = EvictionSimulator.hitRatio(EvictionSimulator.newStorage("LRU", 2000), trace);
+        final double tinyLfu = EvictionSimulator.hitRatio(EvictionSimulator.newStorage("TINY_LFU", 2000), trace);
+        Assert.assertTrue("TinyLFU " + tinyLfu + " <= LRU " + lru, tinyLfu > lru);
+    }
+
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Compares the encoded size and the encode/decode time of the {@link CompactTranscoder}
+ * with the default {@link SerializingTranscoder}, for a typical map and for a list of
+ * DTOs which the compact transcoder writes using a registered {@link MemcacheSerializer}.
+ * Both payloads stay below the compression threshold.
+ *
+ * <p>
+ *   Usage: {@code TranscoderBenchmark [seconds]}.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class TranscoderBenchmark {
+
+    private static final int DTOS = 50;
+
+    private TranscoderBenchmark() {
+
+    }
+
+    public static void main(String[] args) {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        final Map<String, Object> transcoders = ImmutableMap.<String, Object>of(
+            "serializing", new SerializingTranscoder(),
+            "compact", new CompactTranscoder(ImmutableMap.of(1, new DtoSerializer()), MemcacheCodec.LZ4, null, 0)
+        );
+        final Map<String, Object> payloads = ImmutableMap.<String, Object>of(
+            "map", newMap(0),
+            "dtos", newDtos()
+        );
+        for (Map.Entry<String, Object> payload : payloads.entrySet()) {
+            for (Map.Entry<String, Object> entry : transcoders.entrySet()) {
+                @SuppressWarnings("unchecked")
+                final Transcoder<Object> transcoder = (Transcoder<Object>) entry.getValue();
+                final CachedData data = transcoder.encode(payload.getValue());
+                if (!payload.getValue().equals(transcoder.decode(data))) {
+                    throw new IllegalStateException(entry.getKey() + " failed to round trip " + payload.getKey());
+                }
+                // warm up
+                run(transcoder, payload.getValue(), seconds);
+                final double throughput = run(transcoder, payload.getValue(), seconds);
+                System.out.printf("%-5s %-12s %,8d bytes %,12.0f ops/s %,10.0f ns/op%n",
+                    payload.getKey(), entry.getKey(), data.getData().length, throughput,
+                    TimeUnit.SECONDS.toNanos(1) / throughput);
+            }
+        }
+    }
+
+    private static Map<String, Object> newMap(int seed) {
+        final Map<String, Object> map = new HashMap<String, Object>();
+        map.put("id", Long.valueOf(1000000L + seed));
+        map.put("name", "Customer " + seed);
+        map.put("email", "customer" + seed + "@example.com");
+        map.put("active", Boolean.TRUE);
+        map.put("score", Double.valueOf(seed * 0.5));
+        map.put("visits", Integer.valueOf(seed * 7));
+        map.put("tags", new ArrayList<Object>(Arrays.asList("premium", "newsletter", "beta")));
+        final Map<String, Object> address = new HashMap<String, Object>();
+        address.put("street", "Main Street " + seed);
+        address.put("city", "Hamburg");
+        address.put("zip", "20095");
+        map.put("address", address);
+        return map;
+    }
+
+    private static ArrayList<Dto> newDtos() {
+        final ArrayList<Dto> dtos = new ArrayList<Dto>();
+        for (int i = 0; i < DTOS; i++) {
+            dtos.add(new Dto(i, "Product " + i, i * 100L, i % 3 == 0));
+        }
+        return dtos;
+    }
+
+    private static double run(Transcoder<Object> transcoder, Object value, int seconds) {
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long count = 0;
+        int sink = 0;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 100; i++) {
+                final Object decoded = transcoder.decode(transcoder.encode(value));
+                sink += decoded == null ? 0 : 1;
+            }
+            count += 100;
+        }
+        if (sink != count) {
+            throw new IllegalStateException("Decoding failed");
+        }
+        return count / (double) seconds;
+    }
+
+    /**
+     * A typical DTO.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Dto implements Serializable {
+
+        private static final long serialVersionUID = 4611394788163092836L;
+
+        private final int id;
+        private final String name;
+        private final long price;
+        private final boolean available;
+
+        Dto(int id, String name, long price, boolean available) {
+            this.id = id;
+            this.name = name;
+            this.price = price;
+            this.available = available;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            if (that instanceof Dto) {
+                final Dto other = Dto.class.cast(that);
+                return id == other.id && name.equals(other.name) && price == other.price &&
+                    available == other.available;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+
+    }
+
+    /**
+     * Serializer for {@link Dto}.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class DtoSerializer implements MemcacheSerializer<Dto> {
+
+        @Override
+        public Class<Dto> getType() {
+            return Dto.class;
+        }
+
+        @Override
+        public void write(Dto value, DataOutput output) throws IOException {
+            output.writeInt(value.id);
+            output.writeUTF(value.name);
+            output.writeLong(value.price);
+            output.writeBoolean(value.available);
+        }
+
+        @Override
+        public Dto read(DataInput input) throws IOException {
+            return new Dto(input.readInt(), input.readUTF(), input.readLong(), input.readBoolean());
+        }
+
+    }
+
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.memcache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.spy.memcached.HashAlgorithm;
+import net.spy.memcached.MemcachedNode;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Tests {@link WeightedKetamaNodeLocator}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class WeightedKetamaNodeLocatorTest {
+
+    private static final int KEYS = 100000;
+
+    static List<MemcachedNode> nodesOf(Map<InetSocketAddress, Integer> servers) {
+        final List<MemcachedNode> nodes = Lists.newArrayList();
+        for (final InetSocketAddress address : servers.keySet()) {
+            nodes.add(MemcachedNode.class.cast(Proxy.newProxyInstance(getClassLoader(),
+                new Class<?>[] {MemcachedNode.class}, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getSocketAddress".equals(method.getName())) {
+                            return address;
+                        } else if ("equals".equals(method.getName())) {
+                            return proxy == args[0];
+                        } else if ("hashCode".equals(method.getName())) {
+                            return address.hashCode();
+                        } else {
+                            return address.toString();
+                        }
+                    }
+
+                })));
+        }
+        return nodes;
+    }
+
+    private static ClassLoader getClassLoader() {
+        return WeightedKetamaNodeLocatorTest.class.getClassLoader();
+    }
+
+    private static WeightedKetamaNodeLocator locatorOf(String addresses) {
+        final Map<InetSocketAddress, Integer> servers = WeightedAddresses.parse(addresses);
+        return new WeightedKetamaNodeLocator(nodesOf(servers), servers, HashAlgorithm.KETAMA_HASH);
+    }
+
+    private static String primary(WeightedKetamaNodeLocator locator, String key) {
+        return locator.getPrimary(key).getSocketAddress().toString();
+    }
+
+    /**
+     * Tests that adding a fifth server only moves keys to the new server,
+     * roughly a fifth of them.
+     */
+    @Test
+    public void remappedFractionOnAdd() {
+        final WeightedKetamaNodeLocator before = locatorOf(
+            "10.0.0.1:11211 10.0.0.2:11211 10.0.0.3:11211 10.0.0.4:11211");
+        final WeightedKetamaNodeLocator after = locatorOf(
+            "10.0.0.1:11211 10.0.0.2:11211 10.0.0.3:11211 10.0.0.4:11211 10.0.0.5:11211");
+        final String added = new InetSocketAddress("10.0.0.5", 11211).toString();
+
+        int remapped = 0;
+        for (int i = 0; i < KEYS; i++) {
+            final String key = "key" + i;
+            final String previous = primary(before, key);
+            final String current = primary(after, key);
+            if (!previous.equals(current)) {
+                Assert.assertEquals(added, current);
+                remapped++;
+            }
+        }
+
+        final double fraction = (double) remapped / KEYS;
+        Assert.assertEquals(0.2, fraction, 0.05);
+    }
+
+    /**
+     * Tests that a server with weight 2 receives about twice as many keys.
+     */
+    @Test
+    public void weights() {
+        final WeightedKetamaNodeLocator unit = locatorOf("10.0.0.1:11211:2 10.0.0.2:11211:1");
+        final String heavy = new InetSocketAddress("10.0.0.1", 11211).toString();
+        int count = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (heavy.equals(primary(unit, "key" + i))) {
+                count++;
+            }
+        }
+        Assert.assertEquals(2.0 / 3.0, (double) count / KEYS, 0.05);
+    }
+
+    /**
+     * Tests that the sequence contains every other server exactly once.
+     */
+    @Test
+    public void sequence() {
+        final WeightedKetamaNodeLocator unit = locatorOf("10.0.0.1:11211 10.0.0.2:11211 10.0.0.3:11211");
+        final MemcachedNode primary = unit.getPrimary("key");
+        final Set<MemcachedNode> others = Sets.newHashSet();
+        final Iterator<MemcachedNode> iterator = unit.getSequence("key");
+        while (iterator.hasNext()) {
+            final MemcachedNode node = iterator.next();
+            Assert.assertNotSame(primary, node);
+            Assert.assertTrue(others.add(node));
+        }
+        Assert.assertEquals(2, others.size());
+    }
+
+    /**
+     * Tests parsing of optional weights.
+     */
+    @Test
+    public void parse() {
+        final Map<InetSocketAddress, Integer> expected = Maps.newLinkedHashMap();
+        expected.put(new InetSocketAddress("10.0.0.1", 11211), 3);
+        expected.put(new InetSocketAddress("10.0.0.2", 11212), 1);
+        Assert.assertEquals(expected, WeightedAddresses.parse("10.0.0.1:11211:3, 10.0.0.2:11212"));
+    }
+
+}